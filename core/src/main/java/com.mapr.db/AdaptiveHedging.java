@@ -0,0 +1,154 @@
+package com.mapr.db;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Derives the time to wait for the primary table before hedging to the secondary from the latency
+ * that the table normally has.
+ * <p>
+ * Latency of successful requests is kept in a rolling histogram per table and per {@link OperationType}.
+ * The hedging delay is the chosen percentile of that latency multiplied by a factor and clamped to
+ * [minDelayMs, maxDelayMs]. So a table answering point reads in 3 ms fails over after a few tens of
+ * milliseconds, while scans that normally take 400 ms are not hedged before they are really late.
+ * Until enough requests of a kind were seen, the fixed timeout of the table is used.
+ * <p>
+ * Attempts given up on at the hedging delay are counted apart. Their latency is only known to be at least the
+ * delay, so taking them into the percentile would make the delay feed on itself and grow while the table is slow.
+ */
+public class AdaptiveHedging {
+
+    private static final int SLICES = 6;
+
+    private final double percentile;    // which percentile of latency is the base for the delay
+    private final double factor;        // how many times the percentile we wait
+    private final long minDelayMs;
+    private final long maxDelayMs;
+    private final long minSamples;      // requests needed in the window before the statistics are trusted
+    private final long windowMs;        // how long a latency is remembered
+
+    /**
+     * Histograms per table, the index is the same as for the tables in {@link EnhancedJSONTable}.
+     * Created on first use, so a pair of tables does not pay for the replicas it does not have.
+     */
+    private final AtomicReferenceArray<Map<OperationType, LatencyHistogram>> histograms =
+            new AtomicReferenceArray<>(EnhancedJSONTable.MAX_REPLICAS);
+    private final AtomicReferenceArray<Map<OperationType, LatencyHistogram>> abandoned =
+            new AtomicReferenceArray<>(EnhancedJSONTable.MAX_REPLICAS);
+
+    /**
+     * @param percentile the percentile of latency, e.g. 0.99
+     * @param factor     multiplier applied to the percentile
+     * @param minDelayMs the shortest delay before hedging
+     * @param maxDelayMs the longest delay before hedging
+     * @param minSamples quantity of requests that must be seen before the delay is adapted
+     * @param windowMs   how long the observed latencies are taken into account
+     */
+    public AdaptiveHedging(double percentile, double factor, long minDelayMs, long maxDelayMs,
+                           long minSamples, long windowMs) {
+        if (percentile <= 0 || percentile > 1) {
+            throw new IllegalArgumentException("Percentile must be in (0, 1]: " + percentile);
+        }
+        if (minDelayMs > maxDelayMs) {
+            throw new IllegalArgumentException("Minimal delay " + minDelayMs + " exceeds maximal delay " + maxDelayMs);
+        }
+        this.percentile = percentile;
+        this.factor = factor;
+        this.minDelayMs = minDelayMs;
+        this.maxDelayMs = maxDelayMs;
+        this.minSamples = minSamples;
+        this.windowMs = windowMs;
+    }
+
+    /**
+     * @return hedging after 2 times the 99th percentile of the last minute, between 10 ms and 5 s,
+     * once 100 requests were seen
+     */
+    public static AdaptiveHedging defaults() {
+        return new AdaptiveHedging(0.99, 2, 10, 5000, 100, 60_000);
+    }
+
+    /**
+     * Count the latency of a successful request
+     *
+     * @param table index of the table that served the request
+     * @param type  kind of the request
+     * @param nanos latency in nanoseconds
+     */
+    void record(int table, OperationType type, long nanos) {
+        histograms(histograms, table).get(type).record(nanos);
+    }
+
+    /**
+     * Count a request given up on at the hedging delay, it does not change the delay
+     *
+     * @param table index of the table that was too slow
+     * @param type  kind of the request
+     * @param nanos how long the request was waited for
+     */
+    void recordAbandoned(int table, OperationType type, long nanos) {
+        histograms(abandoned, table).get(type).record(nanos);
+    }
+
+    /**
+     * @param table    index of the table
+     * @param type     kind of the request
+     * @param fallback delay used while there are not enough observations
+     * @return how long to wait for the table before hedging, in milliseconds
+     */
+    long hedgeDelay(int table, OperationType type, long fallback) {
+        LatencyHistogram histogram = histograms(histograms, table).get(type);
+        if (histogram.count() < minSamples) {
+            return fallback;
+        }
+        long delay = (long) Math.ceil(histogram.percentile(percentile) * factor);
+        return Math.max(minDelayMs, Math.min(maxDelayMs, delay));
+    }
+
+    /**
+     * Latency statistics for monitoring
+     *
+     * @param table    index of the table, 0 for primary, 1 for secondary, further replicas follow in their order
+     * @param type     kind of the request
+     * @param quantile the fraction, e.g. 0.5 for the median
+     * @return latency in milliseconds, or -1 if there were no requests in the window
+     */
+    public double getLatencyPercentile(int table, OperationType type, double quantile) {
+        return histograms(histograms, table).get(type).percentile(quantile);
+    }
+
+    /**
+     * @param table index of the table, 0 for primary, 1 for secondary, further replicas follow in their order
+     * @param type  kind of the request
+     * @return quantity of requests given up on at the hedging delay in the window
+     */
+    public long getAbandonedCount(int table, OperationType type) {
+        return histograms(abandoned, table).get(type).count();
+    }
+
+    private Map<OperationType, LatencyHistogram> histograms(
+            AtomicReferenceArray<Map<OperationType, LatencyHistogram>> histograms, int table) {
+        Map<OperationType, LatencyHistogram> perType = histograms.get(table);
+        if (perType == null) {
+            perType = new EnumMap<>(OperationType.class);
+            for (OperationType type : OperationType.values()) {
+                perType.put(type, new LatencyHistogram(windowMs, SLICES));
+            }
+            if (!histograms.compareAndSet(table, null, perType)) {
+                perType = histograms.get(table);
+            }
+        }
+        return perType;
+    }
+
+    public long getWindowMs() {
+        return windowMs;
+    }
+
+    @Override
+    public String toString() {
+        return "AdaptiveHedging{percentile=" + percentile + ", factor=" + factor + ", minDelayMs=" + minDelayMs +
+                ", maxDelayMs=" + maxDelayMs + ", minSamples=" + minSamples + ", windowMs=" + windowMs + '}';
+    }
+}
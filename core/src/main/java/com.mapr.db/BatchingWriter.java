@@ -0,0 +1,378 @@
+package com.mapr.db;
+
+import org.ojai.Document;
+import org.ojai.Value;
+import org.ojai.store.DocumentStore;
+import org.ojai.store.exceptions.MultiOpException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Coalesces single document writes of many threads into bulk writes of {@link EnhancedJSONTable}.
+ * <p>
+ * The documents are collected into a batch until it has <code>maxDocuments</code> documents, or about
+ * <code>maxBytes</code>, or <code>lingerMs</code> have passed since its first document. The size is estimated
+ * from the field names and the string and binary values, without serializing the documents. The batch is
+ * then written with one {@link org.ojai.DocumentStream} call, with the same fail-over as the bulk writes
+ * of the table. A batch holds writes of one kind only, a write of another kind closes the current batch.
+ * Up to <code>maxInFlight</code> batches are written at a time, in the order they were closed. While they are in
+ * flight the next ones fill up, so the batches grow with the load. Batches in flight together may be applied in
+ * any order, so two writes of the same document keep their order only with one batch in flight.
+ * <p>
+ * Every write returns a future of its own document. When the bulk write fails with {@link MultiOpException}
+ * only the futures of the failed documents complete with it, when it fails otherwise all the futures of the
+ * batch do. The writer does not limit the quantity of pending writes, callers that produce faster than the
+ * tables accept should wait for the futures. Close the writer before the table.
+ */
+public class BatchingWriter implements AutoCloseable {
+    private static final Logger LOG = LoggerFactory.getLogger(BatchingWriter.class);
+
+    /**
+     * Kinds of writes that can be batched
+     */
+    private enum Kind {
+        INSERT_OR_REPLACE {
+            @Override
+            void write(DocumentStore store, List<Document> documents) {
+                store.insertOrReplace(new DocumentListStream(documents));
+            }
+        },
+        INSERT {
+            @Override
+            void write(DocumentStore store, List<Document> documents) {
+                store.insert(new DocumentListStream(documents));
+            }
+        },
+        DELETE {
+            @Override
+            void write(DocumentStore store, List<Document> documents) {
+                store.delete(new DocumentListStream(documents));
+            }
+        };
+
+        abstract void write(DocumentStore store, List<Document> documents);
+    }
+
+    /**
+     * Writes of one bulk call
+     */
+    private static class Batch {
+        final Kind kind;
+        final List<Document> documents = new ArrayList<>();
+        final List<CompletableFuture<Void>> futures = new ArrayList<>();
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+        long bytes;
+
+        Batch(Kind kind) {
+            this.kind = kind;
+        }
+    }
+
+    /**
+     * Writes a batch with fail-over, as {@link EnhancedJSONTable} does
+     */
+    interface BulkWrite {
+        CompletableFuture<Void> write(List<Document> documents, EnhancedJSONTable.TableProcedure task);
+    }
+
+    private final BulkWrite bulk;
+    private final ScheduledExecutorService scheduler;
+    private final int maxDocuments;    // documents that fill a batch
+    private final long maxBytes;       // estimated size that fills a batch, 0 if the size is not tracked
+    private final long lingerMs;       // how long the first document of a batch may wait for others
+    private final int maxInFlight;     // batches written at a time
+
+    /**
+     * Batch being filled, the closed batches waiting for their turn, the batches not done yet and the state of
+     * the writer, guarded by this
+     */
+    private Batch current;
+    private ScheduledFuture<?> lingerTimer;
+    private final Queue<Batch> sealed = new ArrayDeque<>();
+    private final List<Batch> unfinished = new ArrayList<>();
+    private int inFlight;
+    private boolean closed;
+
+    /**
+     * @param table        the table to write to
+     * @param maxDocuments documents that fill a batch
+     * @param maxBytes     estimated size of the documents that fills a batch, or 0 to fill batches by count only
+     * @param lingerMs     how long the first document of a batch may wait for others, in milliseconds
+     * @param maxInFlight  batches written at a time, 1 to keep the order of all the writes
+     */
+    public BatchingWriter(EnhancedJSONTable table, int maxDocuments, long maxBytes, long lingerMs, int maxInFlight) {
+        this(table::bulkWriteAsync, table.scheduler(), maxDocuments, maxBytes, lingerMs, maxInFlight);
+    }
+
+    BatchingWriter(BulkWrite bulk, ScheduledExecutorService scheduler, int maxDocuments, long maxBytes,
+                   long lingerMs, int maxInFlight) {
+        if (maxDocuments < 1) {
+            throw new IllegalArgumentException("A batch must hold at least one document: " + maxDocuments);
+        }
+        if (maxBytes < 0 || lingerMs < 0) {
+            throw new IllegalArgumentException("Size and linger time must not be negative: " + maxBytes + ", " +
+                    lingerMs);
+        }
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("At least one batch must be in flight: " + maxInFlight);
+        }
+        this.bulk = bulk;
+        this.scheduler = scheduler;
+        this.maxDocuments = maxDocuments;
+        this.maxBytes = maxBytes;
+        this.lingerMs = lingerMs;
+        this.maxInFlight = maxInFlight;
+    }
+
+    /**
+     * @param table the table to write to
+     * @return writer with batches of up to 500 documents or 4 MB that wait at most 5 ms, 4 of them in flight
+     */
+    public static BatchingWriter defaults(EnhancedJSONTable table) {
+        return new BatchingWriter(table, 500, 4 << 20, 5, 4);
+    }
+
+    /**
+     * @param doc the document to insert or replace
+     * @return future that completes when the batch of the document is written
+     */
+    public CompletableFuture<Void> insertOrReplace(Document doc) {
+        return write(Kind.INSERT_OR_REPLACE, doc);
+    }
+
+    /**
+     * @param doc the document to insert
+     * @return future that completes when the batch of the document is written
+     */
+    public CompletableFuture<Void> insert(Document doc) {
+        return write(Kind.INSERT, doc);
+    }
+
+    /**
+     * @param doc the document to delete, only its id is used
+     * @return future that completes when the batch of the document is written
+     */
+    public CompletableFuture<Void> delete(Document doc) {
+        return write(Kind.DELETE, doc);
+    }
+
+    private CompletableFuture<Void> write(Kind kind, Document doc) {
+        CompletableFuture<Void> written = new CompletableFuture<>();
+        long bytes = maxBytes > 0 ? estimateBytes(doc) : 0;
+        synchronized (this) {
+            if (closed) {
+                written.completeExceptionally(new IllegalStateException("Writer is closed"));
+                return written;
+            }
+            if (current != null && current.kind != kind) {
+                seal();
+            }
+            if (current == null) {
+                current = new Batch(kind);
+                if (lingerMs > 0) {
+                    Batch filling = current;
+                    lingerTimer = scheduler.schedule(() -> lingerExpired(filling), lingerMs,
+                            TimeUnit.MILLISECONDS);
+                }
+            }
+            current.documents.add(doc);
+            current.futures.add(written);
+            current.bytes += bytes;
+            if (lingerMs == 0 || current.documents.size() >= maxDocuments
+                    || (maxBytes > 0 && current.bytes >= maxBytes)) {
+                seal();
+            }
+        }
+        dispatch();
+        return written;
+    }
+
+    private void lingerExpired(Batch filling) {
+        synchronized (this) {
+            if (current != filling) {
+                return;
+            }
+            seal();
+        }
+        dispatch();
+    }
+
+    /**
+     * Close the current batch, it is sent by the next {@link #dispatch} that finds a free slot
+     */
+    private void seal() {
+        Batch batch = current;
+        current = null;
+        if (lingerTimer != null) {
+            lingerTimer.cancel(false);
+            lingerTimer = null;
+        }
+        sealed.add(batch);
+        unfinished.add(batch);
+    }
+
+    /**
+     * Send the closed batches while there are free slots, outside of the lock
+     */
+    private void dispatch() {
+        while (true) {
+            Batch batch;
+            synchronized (this) {
+                if (inFlight >= maxInFlight || sealed.isEmpty()) {
+                    return;
+                }
+                batch = sealed.poll();
+                inFlight++;
+            }
+            send(batch);
+        }
+    }
+
+    private void send(Batch batch) {
+        CompletableFuture<Void> sent;
+        try {
+            sent = bulk.write(batch.documents, t -> batch.kind.write(t, batch.documents));
+        } catch (RuntimeException e) {
+            sent = new CompletableFuture<>();
+            sent.completeExceptionally(e);
+        }
+        sent.whenComplete((r, t) -> {
+            complete(batch, t);
+            synchronized (this) {
+                inFlight--;
+                unfinished.remove(batch);
+            }
+            batch.done.complete(null);
+            dispatch();
+        });
+    }
+
+    private static void complete(Batch batch, Throwable error) {
+        if (error instanceof CompletionException && error.getCause() != null) {
+            error = error.getCause();
+        }
+        if (error == null) {
+            for (CompletableFuture<Void> future : batch.futures) {
+                future.complete(null);
+            }
+            return;
+        }
+        LOG.debug("Bulk write of {} documents failed", batch.documents.size(), error);
+        if (error instanceof MultiOpException) {
+            for (MultiOpException.Failure failure : ((MultiOpException) error).getFailures()) {
+                batch.futures.get(failure.getIndex()).completeExceptionally(error);
+            }
+            // the other documents of the batch were written
+            for (CompletableFuture<Void> future : batch.futures) {
+                future.complete(null);
+            }
+            return;
+        }
+        for (CompletableFuture<Void> future : batch.futures) {
+            future.completeExceptionally(error);
+        }
+    }
+
+    /**
+     * Send the current batch without waiting for the linger time
+     *
+     * @return future that completes when all the writes made so far are done
+     */
+    public CompletableFuture<Void> flush() {
+        CompletableFuture<?>[] pending;
+        synchronized (this) {
+            if (current != null) {
+                seal();
+            }
+            pending = new CompletableFuture<?>[unfinished.size()];
+            for (int i = 0; i < pending.length; i++) {
+                pending[i] = unfinished.get(i).done;
+            }
+        }
+        dispatch();
+        return CompletableFuture.allOf(pending);
+    }
+
+    /**
+     * Send the current batch and wait until all the writes are done. Later writes fail.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            closed = true;
+        }
+        flush().join();
+    }
+
+    /**
+     * @return size of the document as written, roughly: the field names, the strings and the binary values,
+     * and a few bytes for everything else
+     */
+    static long estimateBytes(Document doc) {
+        long bytes = 0;
+        for (Map.Entry<String, Value> field : doc) {
+            bytes += field.getKey().length() + estimateBytes(field.getValue());
+        }
+        return bytes;
+    }
+
+    private static long estimateBytes(Value value) {
+        if (value == null) {
+            return 8;
+        }
+        switch (value.getType()) {
+            case STRING:
+                return 8 + value.getString().length();
+            case BINARY:
+                return 8 + value.getBinary().remaining();
+            case MAP:
+                return 8 + estimateBytes(value.getMap());
+            case ARRAY:
+                return 8 + estimateBytes(value.getList());
+            default:
+                return 8;
+        }
+    }
+
+    private static long estimateBytes(Object value) {
+        if (value instanceof String) {
+            return 8 + ((String) value).length();
+        }
+        if (value instanceof ByteBuffer) {
+            return 8 + ((ByteBuffer) value).remaining();
+        }
+        if (value instanceof Map) {
+            long bytes = 8;
+            for (Map.Entry<?, ?> field : ((Map<?, ?>) value).entrySet()) {
+                bytes += String.valueOf(field.getKey()).length() + estimateBytes(field.getValue());
+            }
+            return bytes;
+        }
+        if (value instanceof List) {
+            long bytes = 8;
+            for (Object element : (List<?>) value) {
+                bytes += estimateBytes(element);
+            }
+            return bytes;
+        }
+        return 8;
+    }
+
+    @Override
+    public String toString() {
+        return "BatchingWriter{maxDocuments=" + maxDocuments + ", maxBytes=" + maxBytes + ", lingerMs=" + lingerMs +
+                ", maxInFlight=" + maxInFlight + '}';
+    }
+}
@@ -0,0 +1,291 @@
+package com.mapr.db;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Stops sending requests to a table that keeps failing or answering slowly.
+ * <p>
+ * The outcomes of the last <code>windowSize</code> requests are kept per table. Once at least
+ * <code>minCalls</code> of them were seen and the rate of failed or of slow requests reaches its threshold,
+ * the breaker of the table opens. While it is open requests are not sent to the table at all, so a sick
+ * cluster costs the caller microseconds instead of a time out. After <code>openMs</code> the breaker lets
+ * <code>halfOpenTrials</code> requests through. If all of them succeed the breaker closes, if any of them
+ * fails it opens again. Only the requests let through by {@link #tryAcquire} are trials, the outcome of a request
+ * sent without asking, e.g. a hedged attempt, does not decide about a half open breaker.
+ * <p>
+ * The instance keeps state of one table, so it must not be shared.
+ */
+public class CircuitBreaker {
+    private static final Logger LOG = LoggerFactory.getLogger(CircuitBreaker.class);
+
+    /**
+     * State of the breaker of one table
+     */
+    public enum State {
+        /**
+         * Requests go to the table
+         */
+        CLOSED,
+        /**
+         * Requests are not sent to the table
+         */
+        OPEN,
+        /**
+         * A few trial requests go to the table to see if it has recovered
+         */
+        HALF_OPEN
+    }
+
+    private static final byte FAILED = 1;
+    private static final byte SLOW = 2;
+
+    private final int windowSize;             // how many of the last requests are taken into account
+    private final int minCalls;               // requests needed in the window before the rates are trusted
+    private final double failureRateThreshold;
+    private final double slowCallRateThreshold;
+    private final long slowCallNanos;         // successful requests slower than that count as slow
+    private final long openMs;                // how long the breaker stays open before trial requests
+    private final int halfOpenTrials;         // successful trial requests needed to close the breaker
+
+    /**
+     * Windows per table, the index is the same as for the tables in {@link EnhancedJSONTable}.
+     * Created on first use, guarded by this.
+     */
+    private final Window[] windows = new Window[EnhancedJSONTable.MAX_REPLICAS];
+
+    /**
+     * @param windowSize            how many of the last requests are taken into account
+     * @param minCalls              quantity of requests that must be seen before the breaker may open
+     * @param failureRateThreshold  fraction of failed requests that opens the breaker, e.g. 0.5
+     * @param slowCallRateThreshold fraction of slow requests that opens the breaker, e.g. 0.8
+     * @param slowCallMs            successful requests slower than that count as slow, in milliseconds
+     * @param openMs                how long the breaker stays open before trial requests, in milliseconds
+     * @param halfOpenTrials        successful trial requests needed to close the breaker
+     */
+    public CircuitBreaker(int windowSize, int minCalls, double failureRateThreshold, double slowCallRateThreshold,
+                          long slowCallMs, long openMs, int halfOpenTrials) {
+        if (minCalls < 1 || minCalls > windowSize) {
+            throw new IllegalArgumentException("Minimal calls must be in [1, " + windowSize + "]: " + minCalls);
+        }
+        if (halfOpenTrials < 1) {
+            throw new IllegalArgumentException("At least one trial request must be allowed: " + halfOpenTrials);
+        }
+        this.windowSize = windowSize;
+        this.minCalls = minCalls;
+        this.failureRateThreshold = failureRateThreshold;
+        this.slowCallRateThreshold = slowCallRateThreshold;
+        this.slowCallNanos = slowCallMs * 1_000_000;
+        this.openMs = openMs;
+        this.halfOpenTrials = halfOpenTrials;
+    }
+
+    /**
+     * @param slowCallMs successful requests slower than that count as slow, in milliseconds
+     * @return breaker that opens when half of the last 100 requests failed or 80% of them were slow,
+     * once 20 requests were seen, and tries the table again after 5 seconds
+     */
+    public static CircuitBreaker defaults(long slowCallMs) {
+        return new CircuitBreaker(100, 20, 0.5, 0.8, slowCallMs, 5000, 3);
+    }
+
+    /**
+     * Ask for a permission to send a request to the table. If it is granted the outcome of the request
+     * must be reported as permitted with one of {@link #onSuccess}, {@link #onFailure} or {@link #onIgnored}.
+     *
+     * @param table index of the table
+     * @return false if the request must not be sent to the table
+     */
+    boolean tryAcquire(int table) {
+        return tryAcquire(table, System.currentTimeMillis());
+    }
+
+    synchronized boolean tryAcquire(int table, long now) {
+        Window w = window(table);
+        if (w.state == State.OPEN) {
+            if (now - w.openedAt < openMs) {
+                return false;
+            }
+            w.halfOpen();
+            LOG.info("Circuit breaker of table {} is half open", table);
+        }
+        if (w.state == State.HALF_OPEN) {
+            if (w.permits == 0) {
+                return false;
+            }
+            w.permits--;
+        }
+        return true;
+    }
+
+    /**
+     * @param table     index of the table
+     * @param nanos     latency of the request in nanoseconds
+     * @param permitted true if the request was let through by {@link #tryAcquire}
+     */
+    void onSuccess(int table, long nanos, boolean permitted) {
+        onSuccess(table, nanos, permitted, System.currentTimeMillis());
+    }
+
+    synchronized void onSuccess(int table, long nanos, boolean permitted, long now) {
+        Window w = window(table);
+        if (w.state == State.HALF_OPEN) {
+            if (permitted && ++w.trialSuccesses >= halfOpenTrials) {
+                w.close();
+                LOG.info("Circuit breaker of table {} is closed", table);
+            }
+        } else if (w.state == State.CLOSED) {
+            record(table, w, nanos >= slowCallNanos ? SLOW : 0, now);
+        }
+    }
+
+    /**
+     * @param table     index of the table
+     * @param permitted true if the request was let through by {@link #tryAcquire}
+     */
+    void onFailure(int table, boolean permitted) {
+        onFailure(table, permitted, System.currentTimeMillis());
+    }
+
+    synchronized void onFailure(int table, boolean permitted, long now) {
+        Window w = window(table);
+        if (w.state == State.HALF_OPEN) {
+            if (!permitted) {
+                return;
+            }
+            w.open(now);
+            LOG.info("Circuit breaker of table {} is open again, trial request failed", table);
+        } else if (w.state == State.CLOSED) {
+            record(table, w, FAILED, now);
+        }
+    }
+
+    /**
+     * The request gave no evidence about the table, e.g. it was cancelled because the other table answered.
+     * A trial request gives its permission back.
+     *
+     * @param table     index of the table
+     * @param permitted true if the request was let through by {@link #tryAcquire}
+     */
+    synchronized void onIgnored(int table, boolean permitted) {
+        Window w = window(table);
+        if (permitted && w.state == State.HALF_OPEN && w.permits < halfOpenTrials - w.trialSuccesses) {
+            w.permits++;
+        }
+    }
+
+    private Window window(int table) {
+        Window w = windows[table];
+        if (w == null) {
+            w = new Window();
+            windows[table] = w;
+        }
+        return w;
+    }
+
+    private void record(int table, Window w, byte outcome, long now) {
+        w.add(outcome, windowSize);
+        if (w.size < minCalls) {
+            return;
+        }
+        double failureRate = (double) w.failed / w.size;
+        double slowRate = (double) w.slow / w.size;
+        if (failureRate >= failureRateThreshold || slowRate >= slowCallRateThreshold) {
+            w.open(now);
+            LOG.warn("Circuit breaker of table {} is open, failure rate {}, slow call rate {}",
+                    table, failureRate, slowRate);
+        }
+    }
+
+    /**
+     * @param table index of the table, 0 for primary, 1 for secondary, further replicas follow in their order
+     */
+    public synchronized State getState(int table) {
+        return window(table).state;
+    }
+
+    /**
+     * @param table index of the table, 0 for primary, 1 for secondary, further replicas follow in their order
+     * @return fraction of failed requests in the window, or -1 if there were no requests
+     */
+    public synchronized double getFailureRate(int table) {
+        Window w = window(table);
+        return w.size == 0 ? -1 : (double) w.failed / w.size;
+    }
+
+    /**
+     * @param table index of the table, 0 for primary, 1 for secondary, further replicas follow in their order
+     * @return fraction of slow requests in the window, or -1 if there were no requests
+     */
+    public synchronized double getSlowCallRate(int table) {
+        Window w = window(table);
+        return w.size == 0 ? -1 : (double) w.slow / w.size;
+    }
+
+    @Override
+    public String toString() {
+        return "CircuitBreaker{windowSize=" + windowSize + ", minCalls=" + minCalls +
+                ", failureRateThreshold=" + failureRateThreshold + ", slowCallRateThreshold=" + slowCallRateThreshold +
+                ", slowCallMs=" + slowCallNanos / 1_000_000 + ", openMs=" + openMs + ", halfOpenTrials=" + halfOpenTrials + '}';
+    }
+
+    /**
+     * Ring of the last outcomes of one table, guarded by the breaker
+     */
+    private class Window {
+        private final byte[] outcomes = new byte[windowSize];
+        private int next;               // where the next outcome goes
+        private int size;               // outcomes in the ring
+        private int failed;
+        private int slow;
+
+        private State state = State.CLOSED;
+        private long openedAt;
+        private int permits;            // trial requests that may still be sent while half open
+        private int trialSuccesses;
+
+        void add(byte outcome, int capacity) {
+            if (size == capacity) {
+                forget(outcomes[next]);
+            } else {
+                size++;
+            }
+            outcomes[next] = outcome;
+            if ((outcome & FAILED) != 0) {
+                failed++;
+            }
+            if ((outcome & SLOW) != 0) {
+                slow++;
+            }
+            next = (next + 1) % capacity;
+        }
+
+        private void forget(byte outcome) {
+            if ((outcome & FAILED) != 0) {
+                failed--;
+            }
+            if ((outcome & SLOW) != 0) {
+                slow--;
+            }
+        }
+
+        void open(long now) {
+            state = State.OPEN;
+            openedAt = now;
+        }
+
+        void halfOpen() {
+            state = State.HALF_OPEN;
+            permits = halfOpenTrials;
+            trialSuccesses = 0;
+        }
+
+        void close() {
+            state = State.CLOSED;
+            next = 0;
+            size = 0;
+            failed = 0;
+            slow = 0;
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package com.mapr.db;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time budget of the requests that the current thread sends to {@link EnhancedJSONTable}.
+ * <p>
+ * The deadline applies to the requests of the thread until it is closed, so a request handler can enforce
+ * its own time limit end to end:
+ * <pre>
+ * try (Deadline deadline = Deadline.after(250, TimeUnit.MILLISECONDS)) {
+ *     Document doc = table.findById(id);
+ * }
+ * </pre>
+ * Each request sizes the wait on the primary table and on the secondary table to what is left of the budget
+ * when it is sent, and skips the secondary table when too little would be left for it. A request that cannot
+ * finish in time fails with {@link EnhancedJSONTable.FailoverException}. An asynchronous request takes the
+ * deadline of the thread that sends it.
+ * <p>
+ * Deadlines nest, an inner deadline never extends the outer one.
+ */
+public final class Deadline implements AutoCloseable {
+
+    private static final ThreadLocal<Deadline> CURRENT = new ThreadLocal<>();
+
+    private final long expiresAt;       // in System.nanoTime() terms
+    private final Deadline outer;       // restored when this deadline is closed
+
+    private Deadline(long expiresAt, Deadline outer) {
+        this.expiresAt = expiresAt;
+        this.outer = outer;
+    }
+
+    /**
+     * Set the deadline of the current thread until the returned deadline is closed
+     *
+     * @param budget how long the requests may take from now
+     * @param unit   the unit of the budget
+     * @return the deadline, to be closed in the same thread
+     */
+    public static Deadline after(long budget, TimeUnit unit) {
+        Deadline outer = CURRENT.get();
+        long expiresAt = System.nanoTime() + unit.toNanos(budget);
+        if (outer != null && outer.expiresAt - expiresAt < 0) {
+            expiresAt = outer.expiresAt;
+        }
+        Deadline deadline = new Deadline(expiresAt, outer);
+        CURRENT.set(deadline);
+        return deadline;
+    }
+
+    /**
+     * @return the deadline of the current thread, or null if it has none
+     */
+    public static Deadline current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * @return milliseconds left until the deadline, zero or negative once it has passed
+     */
+    public long remainingMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(expiresAt - System.nanoTime());
+    }
+
+    public boolean isExpired() {
+        return expiresAt - System.nanoTime() <= 0;
+    }
+
+    /**
+     * Restore the deadline that was set before this one
+     */
+    @Override
+    public void close() {
+        if (CURRENT.get() == this) {
+            if (outer == null) {
+                CURRENT.remove();
+            } else {
+                CURRENT.set(outer);
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "Deadline{remainingMillis=" + remainingMillis() + '}';
+    }
+}
@@ -0,0 +1,55 @@
+package com.mapr.db;
+
+import org.ojai.Document;
+import org.ojai.DocumentListener;
+import org.ojai.DocumentReader;
+import org.ojai.DocumentStream;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Stream of documents held in memory. Unlike the streams of the driver it does not consume its documents,
+ * so every attempt of a bulk write may get a new stream over the same list.
+ */
+class DocumentListStream implements DocumentStream {
+
+    private final List<Document> documents;
+
+    DocumentListStream(List<Document> documents) {
+        this.documents = documents;
+    }
+
+    @Override
+    public void streamTo(DocumentListener listener) {
+        try {
+            for (Document document : documents) {
+                if (!listener.documentArrived(document)) {
+                    break;
+                }
+            }
+            listener.eos();
+        } catch (Exception e) {
+            listener.failed(e);
+        }
+    }
+
+    @Override
+    public Iterator<Document> iterator() {
+        return documents.iterator();
+    }
+
+    @Override
+    public Iterable<DocumentReader> documentReaders() {
+        List<DocumentReader> readers = new ArrayList<>(documents.size());
+        for (Document document : documents) {
+            readers.add(document.asReader());
+        }
+        return readers;
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,395 @@
+package com.mapr.db;
+
+import org.ojai.store.Connection;
+import org.ojai.store.DriverManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.function.Supplier;
+
+/**
+ * Hands out {@link EnhancedJSONTable} instances that share one OJAI connection, the worker pools of the
+ * clusters and the failover scheduler.
+ * <p>
+ * A table created with its own constructor opens a connection per store and starts two worker pools and a
+ * scheduler, which adds up quickly in a service with many tables. Tables obtained here use the pools of their
+ * failover group instead, so the quantity of threads is bounded by the {@link WorkerPoolConfig} of the connection
+ * and the quantity of groups, whatever the quantity of tables.
+ * <p>
+ * The tables also share the routing of a {@link FailoverGroup}, so when one of them detects that the primary
+ * cluster is down all of them switch to the secondary cluster. By default all the tables of a connection join
+ * the same group, tables on other clusters should use a group of their own, see
+ * {@link #getFailoverGroup(String)}. Every group has worker pools of its own, so sick clusters cannot take the
+ * workers of the others. Tables over more than two replicas are obtained with {@link #getTable(List, long)},
+ * all the tables of a group have the same quantity of replicas.
+ * <p>
+ * When a table declares its store failed, the store is opened again through a new OJAI connection, which the
+ * tables share from then on. The old connection is closed with the last store opened with it.
+ * <p>
+ * The shared resources are released when the connection and all the tables obtained from it are closed,
+ * in any order.
+ */
+public class EnhancedConnection implements AutoCloseable {
+    private static final Logger LOG = LoggerFactory.getLogger(EnhancedConnection.class);
+
+    private final WorkerPoolConfig poolConfig;
+    private final ExecutorService maintenance;   // opens the tables of all the groups
+    private final ScheduledExecutorService scheduler;
+
+    private static final String DEFAULT_GROUP = "default";
+
+    private final Map<String, FailoverGroup> groups = new HashMap<>();   // guarded by this
+
+    /**
+     * Worker pools of the clusters per group. The pools of the primary and the secondary cluster are created with
+     * the group, those of further replicas with the first table that has them. Guarded by this.
+     */
+    private final Map<String, ExecutorService[]> executors = new HashMap<>();
+
+    /**
+     * Quantity of replicated tables of the tables in each group, set by the first table, guarded by this
+     */
+    private final Map<String, Integer> replicas = new HashMap<>();
+
+    private final Supplier<Connection> driver;   // opens the OJAI connections
+    private Connection connection;   // opened on first use, replaced when a store of it fails, guarded by this
+
+    /**
+     * Stores opened with each connection and not closed yet, a replaced connection is closed with its last store.
+     * Guarded by this.
+     */
+    private final Map<Connection, Integer> users = new IdentityHashMap<>();
+
+    private final StoreHandle.Connector connector = new StoreHandle.Connector() {
+        @Override
+        public Connection acquire(Connection poisoned) {
+            return acquireConnection(poisoned);
+        }
+
+        @Override
+        public void release(Connection released) {
+            releaseConnection(released);
+        }
+    };
+    private int openTables;          // tables that were obtained and not closed yet, guarded by this
+    private boolean closed;          // guarded by this
+
+    private volatile long openTimeOut = EnhancedJSONTable.DEFAULT_OPEN_TIME_OUT;
+
+    /**
+     * Create a connection with worker pools of the default size
+     */
+    public EnhancedConnection() {
+        this(WorkerPoolConfig.defaults());
+    }
+
+    /**
+     * @param poolConfig the size and bounds of the worker pool created for each of the clusters of a group,
+     *                   shared by all the tables of the group
+     */
+    public EnhancedConnection(WorkerPoolConfig poolConfig) {
+        this(poolConfig, () -> DriverManager.getConnection(EnhancedJSONTable.DB_DRIVER_NAME));
+    }
+
+    /**
+     * @param poolConfig the size and bounds of the worker pool created for each of the clusters of a group
+     * @param driver     opens a new OJAI connection
+     */
+    EnhancedConnection(WorkerPoolConfig poolConfig, Supplier<Connection> driver) {
+        this.poolConfig = poolConfig;
+        this.driver = driver;
+        this.maintenance = EnhancedJSONTable.createMaintenanceExecutor();
+        this.scheduler = EnhancedJSONTable.createScheduler();
+    }
+
+    /**
+     * @param primaryTable   the primary table used by the application
+     * @param secondaryTable the table used in case of fail over
+     * @return table that switches to the secondary table if the operation on primary is not successful in 700 ms
+     */
+    public EnhancedJSONTable getTable(String primaryTable, String secondaryTable) {
+        return getTable(primaryTable, secondaryTable, EnhancedJSONTable.DEFAULT_TIME_OUT);
+    }
+
+    /**
+     * @param primaryTable   the primary table used by the application
+     * @param secondaryTable the table used in case of fail over
+     * @param timeOut        the time out on primary table before switching to secondary.
+     * @return table that uses the shared resources of this connection
+     */
+    public EnhancedJSONTable getTable(String primaryTable, String secondaryTable, long timeOut) {
+        return getTable(primaryTable, secondaryTable, timeOut, false, false);
+    }
+
+    /**
+     * @param primaryTable   the primary table used by the application
+     * @param secondaryTable the table used in case of fail over
+     * @param timeOut        the time out on primary table before switching to secondary.
+     * @param medium         the flag that needed for determining what to do with medium dangerous operations
+     * @param hard           the flag that needed for determining what to do with non idempotent operations
+     * @return table that uses the shared resources of this connection, in the default group
+     */
+    public EnhancedJSONTable getTable(String primaryTable, String secondaryTable, long timeOut,
+                                      boolean medium, boolean hard) {
+        return getTable(getFailoverGroup(DEFAULT_GROUP), primaryTable, secondaryTable, timeOut, medium, hard);
+    }
+
+    /**
+     * @param group          the failover group of the table, obtained from this connection
+     * @param primaryTable   the primary table used by the application
+     * @param secondaryTable the table used in case of fail over
+     * @param timeOut        the time out on primary table before switching to secondary.
+     * @param medium         the flag that needed for determining what to do with medium dangerous operations
+     * @param hard           the flag that needed for determining what to do with non idempotent operations
+     * @return table that uses the shared resources of this connection and switches together with the group
+     */
+    public EnhancedJSONTable getTable(FailoverGroup group, String primaryTable, String secondaryTable, long timeOut,
+                                      boolean medium, boolean hard) {
+        return getTable(group, new String[]{primaryTable, secondaryTable}, timeOut, medium, hard);
+    }
+
+    /**
+     * @param replicas the replicated tables, the primary table first, from 2 to 8 of them
+     * @param timeOut  the time out on each table before hedging to the next one
+     * @return table over the replicas that uses the shared resources of this connection, in the default group
+     */
+    public EnhancedJSONTable getTable(List<String> replicas, long timeOut) {
+        return getTable(getFailoverGroup(DEFAULT_GROUP), replicas, timeOut, false, false);
+    }
+
+    /**
+     * All the tables of a group must have the same quantity of replicas, on the same clusters in the same order.
+     *
+     * @param group    the failover group of the table, obtained from this connection
+     * @param replicas the replicated tables, the primary table first, from 2 to 8 of them
+     * @param timeOut  the time out on each table before hedging to the next one
+     * @param medium   the flag that needed for determining what to do with medium dangerous operations
+     * @param hard     the flag that needed for determining what to do with non idempotent operations
+     * @return table over the replicas that uses the shared resources of this connection and switches together
+     * with the group
+     */
+    public EnhancedJSONTable getTable(FailoverGroup group, List<String> replicas, long timeOut,
+                                      boolean medium, boolean hard) {
+        return getTable(group, EnhancedJSONTable.replicaNames(replicas), timeOut, medium, hard);
+    }
+
+    private EnhancedJSONTable getTable(FailoverGroup group, String[] tableNames, long timeOut,
+                                       boolean medium, boolean hard) {
+        ExecutorService[] executors;
+        synchronized (this) {
+            if (closed) {
+                throw new IllegalStateException("Connection is closed");
+            }
+            if (groups.get(group.getName()) != group) {
+                throw new IllegalArgumentException("Failover group " + group.getName() + " belongs to another connection");
+            }
+            int expected = replicas.computeIfAbsent(group.getName(), name -> tableNames.length);
+            if (expected != tableNames.length) {
+                throw new IllegalArgumentException("Tables of failover group " + group.getName() + " have " + expected
+                        + " replicas, got " + tableNames.length);
+            }
+            executors = executors(group, tableNames.length);
+            openTables++;
+        }
+        // the tables are opened without holding the lock, opening may take long when a cluster is down
+        try {
+            return new EnhancedJSONTable(tableNames, timeOut, medium, hard,
+                    this, group, executors, maintenance, scheduler, openTimeOut);
+        } catch (RuntimeException e) {
+            release();
+            throw e;
+        }
+    }
+
+    public long getOpenTimeOut() {
+        return openTimeOut;
+    }
+
+    /**
+     * @param openTimeOut how long {@link #getTable} waits for one of the tables to open, in milliseconds.
+     *                    If the primary table is not open by then its requests go to the secondary table, and
+     *                    the failover group switches too unless another table of the group has its primary open
+     */
+    public void setOpenTimeOut(long openTimeOut) {
+        this.openTimeOut = openTimeOut;
+    }
+
+    /**
+     * @return the group that the tables join by default
+     */
+    public FailoverGroup getFailoverGroup() {
+        return getFailoverGroup(DEFAULT_GROUP);
+    }
+
+    /**
+     * @param name the name of the group
+     * @return the group with that name, created on first use together with its worker pools
+     */
+    public synchronized FailoverGroup getFailoverGroup(String name) {
+        FailoverGroup group = groups.get(name);
+        if (group == null) {
+            if (closed) {
+                throw new IllegalStateException("Connection is closed");
+            }
+            String prefix = poolPrefix(name);
+            executors.put(name, new ExecutorService[]{
+                    poolConfig.createExecutor(prefix + "-primary"),
+                    poolConfig.createExecutor(prefix + "-secondary")});
+            group = new FailoverGroup(name, scheduler);
+            groups.put(name, group);
+        }
+        return group;
+    }
+
+    /**
+     * @param group a group of this connection
+     * @return the worker pools of the clusters of the group, the primary one first
+     */
+    synchronized ExecutorService[] executors(FailoverGroup group) {
+        return executors.get(group.getName());
+    }
+
+    /**
+     * @param group    a group of this connection
+     * @param replicas quantity of replicated tables
+     * @return the worker pools of the first clusters of the group, the missing ones are created
+     */
+    private ExecutorService[] executors(FailoverGroup group, int replicas) {
+        ExecutorService[] pools = executors.get(group.getName());
+        if (pools.length < replicas) {
+            String prefix = poolPrefix(group.getName());
+            pools = Arrays.copyOf(pools, replicas);
+            for (int i = 2; i < replicas; i++) {
+                if (pools[i] == null) {
+                    pools[i] = poolConfig.createExecutor(prefix + "-replica-" + i);
+                }
+            }
+            executors.put(group.getName(), pools);
+        }
+        return Arrays.copyOf(pools, replicas);
+    }
+
+    private static String poolPrefix(String group) {
+        return DEFAULT_GROUP.equals(group) ? "ojai-shared" : "ojai-" + group;
+    }
+
+    /**
+     * @return the way the tables obtained from this connection open their stores of MapR-DB
+     */
+    StoreHandle.Connector connector() {
+        return connector;
+    }
+
+    synchronized Connection connection() {
+        if (connection == null) {
+            connection = driver.get();
+        }
+        return connection;
+    }
+
+    /**
+     * @param poisoned the connection of a store that was declared failed, or null
+     * @return the shared connection, a new one if the shared one is poisoned
+     */
+    private synchronized Connection acquireConnection(Connection poisoned) {
+        if (poisoned != null && poisoned == connection) {
+            LOG.warn("A store of the shared connection has failed, the connection is replaced");
+            connection = null;
+            if (!users.containsKey(poisoned)) {
+                closeQuietly(poisoned);
+            }
+        }
+        Connection current = connection();
+        users.merge(current, 1, Integer::sum);
+        return current;
+    }
+
+    private synchronized void releaseConnection(Connection released) {
+        Integer stores = users.get(released);
+        if (stores == null) {
+            return;
+        }
+        if (stores > 1) {
+            users.put(released, stores - 1);
+            return;
+        }
+        users.remove(released);
+        if (released != connection) {
+            // replaced, its last store is gone
+            closeQuietly(released);
+        }
+    }
+
+    private void closeQuietly(Connection old) {
+        try {
+            old.close();
+        } catch (RuntimeException e) {
+            LOG.debug("Cannot close the replaced connection", e);
+        }
+    }
+
+    /**
+     * Called by a table obtained from this connection when it is closed, the calls beyond the obtained tables
+     * are ignored
+     */
+    synchronized void release() {
+        if (openTables == 0) {
+            LOG.warn("Release of a table without open tables is ignored");
+            return;
+        }
+        openTables--;
+        if (closed && openTables == 0) {
+            shutdown();
+        }
+    }
+
+    /**
+     * @return quantity of tables obtained from this connection and not closed yet
+     */
+    public synchronized int getOpenTables() {
+        return openTables;
+    }
+
+    /**
+     * Close the connection. The shared executors stop once all the tables obtained from it are closed too.
+     */
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (openTables == 0) {
+            shutdown();
+        } else {
+            LOG.info("Connection closed, shared resources are released when {} open tables are closed", openTables);
+        }
+    }
+
+    private void shutdown() {
+        scheduler.shutdownNow();
+        maintenance.shutdownNow();
+        for (ExecutorService[] pools : executors.values()) {
+            for (ExecutorService executor : pools) {
+                WorkerPoolConfig.shutdownNow(executor);
+            }
+        }
+        for (Connection replaced : users.keySet()) {
+            if (replaced != connection) {
+                closeQuietly(replaced);
+            }
+        }
+        users.clear();
+        if (connection != null) {
+            connection.close();
+            connection = null;
+        }
+    }
+}
@@ -16,15 +16,42 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.math.BigDecimal;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.StringJoiner;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
 
 import static org.ojai.annotation.API.NonNullable;
 
@@ -32,46 +59,175 @@ import static org.ojai.annotation.API.NonNullable;
  * EnhancedJSONTable represents a wrapper above {@link DocumentStore} providing a fail-over
  * strategy that should provide user a high availability of cluster.
  * For update operations failover is not supported because of consistency problems especially with increment operations.
+ * <p>
+ * The most used operations also have asynchronous versions, e.g. {@link #findByIdAsync(String)}, which return
+ * {@link CompletableFuture} and apply the same fail-over without blocking the calling thread.
+ * <p>
+ * Besides a pair of tables the store may work with an ordered list of replicated tables, see
+ * {@link #EnhancedJSONTable(List, long, WorkerPoolConfig, long)}. Requests then hedge along the list, so the
+ * store survives the failure of more than one cluster without waiting for the driver to time out.
+ * <p>
+ * Bulk writes of a {@link DocumentStream} are sent in chunks. Each chunk is kept in memory until it is written,
+ * so a chunk that fails over is written whole to the secondary table, and only a few chunks are held at once.
+ * <p>
+ * Without a {@link Deadline} a request may take up to the time out on primary table plus the secondary time out.
+ * A caller with less time sets a deadline, the request then fits the waits on the tables into what is left.
  */
 public class EnhancedJSONTable implements DocumentStore {
     private static final Logger LOG = LoggerFactory.getLogger(EnhancedJSONTable.class);
 
-    private static final String DB_DRIVER_NAME = "ojai:mapr:";
+    static final String DB_DRIVER_NAME = "ojai:mapr:";
 
     /**
      * Variable that indicates that request is safe for failover
      */
     private static final boolean SAFE = true;
 
+    /**
+     * Time out on primary table used when none is given
+     */
+    static final long DEFAULT_TIME_OUT = 700;
+
+    /**
+     * How long the constructor waits for one of the tables to open when no time is given
+     */
+    static final long DEFAULT_OPEN_TIME_OUT = 10_000;
+
+    /**
+     * The largest quantity of replicated tables a store may work with
+     */
+    static final int MAX_REPLICAS = 8;
+
+    /**
+     * Documents of a bulk write sent in one request when no chunk size is given
+     */
+    static final int DEFAULT_BULK_CHUNK_SIZE = 1000;
+
+    /**
+     * Chunks of a bulk write in flight at the same time when no parallelism is given
+     */
+    static final int DEFAULT_BULK_PARALLELISM = 4;
+
+    /**
+     * Failed requests in a row after which a table is declared failed and opened again
+     */
+    static final int DEFAULT_REOPEN_AFTER_FAILURES = 20;
+
+    /**
+     * Keys whose writes to the primary table are remembered for the reconciliation, writes of further keys are not
+     */
+    static final int MAX_TRACKED_PRIMARY_WRITES = 1_000_000;
+
+    /**
+     * Locks that keep the writes to the primary table and the reconciliation of the same keys apart
+     */
+    private static final int KEY_LOCK_STRIPES = 64;
+
     private long timeOut;              // How long to wait before starting secondary query
-    private long secondaryTimeOut;     // How long to wait before giving up on a good result
+    private volatile long secondaryTimeOut;  // How long to wait before giving up on a good result
+    private volatile long minSecondaryBudget; // Least time of a Deadline worth hedging to the next table
+    private volatile int bulkChunkSize = DEFAULT_BULK_CHUNK_SIZE;      // documents per request of a bulk write
+    private volatile int bulkParallelism = DEFAULT_BULK_PARALLELISM;   // requests of a bulk write in flight
 
-    private DocumentStore[] stores;    // the tables we talk to. Primary is first, then secondary
-    private AtomicInteger current =    // the index for stores
-            new AtomicInteger(0);
+    private StoreHandle[] stores;      // the tables we talk to. Primary is first, then secondary, then further replicas
 
-    private AtomicBoolean switched =
-            new AtomicBoolean(false); // Indicates if the table switched in that moment
+    /**
+     * How long to wait for each table of the hedging chain before hedging to the next one,
+     * if null the time out on primary table is used at every step
+     */
+    private volatile long[] hedgeDelays;
+
+    /**
+     * Decides which table acts as primary right now, shared with the other tables on the same clusters
+     */
+    private final FailoverGroup group;
 
     private String[] tableNames;       // the names of the tables
 
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+
+    /**
+     * Worker pools for working with the stores, in the same order as stores. Each pool works only with
+     * its own cluster, whichever of them acts as primary right now.
+     */
+    private ExecutorService[] executors;
+
+    /**
+     * Opens the tables in the background, apart from the worker pools
+     */
+    private final ExecutorService maintenance;
+
+    /**
+     * Service that schedules failback operations and keeps track of request timeouts
+     */
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * The connection that owns the executors and the scheduler, null if the table owns them itself
+     */
+    private final EnhancedConnection connection;
+
+
+    /**
+     * Derives the time to wait for the primary from its observed latency, if null timeOut is used
+     */
+    private volatile AdaptiveHedging adaptiveHedging;
+
+    /**
+     * Tells the errors that are the answer of a healthy cluster from the failures of a cluster
+     */
+    private volatile ExceptionClassifier exceptionClassifier = ExceptionTypeClassifier.defaults();
+
+    /**
+     * Stops sending requests to a table that keeps failing, if null requests always go to the tables
+     */
+    private volatile CircuitBreaker circuitBreaker;
+
+    /**
+     * Records the writes sent to a table other than the primary one, if null they are not recorded
+     */
+    private volatile WriteJournal writeJournal;
+
+    /**
+     * When keys were last written to the primary table, in milliseconds. Kept from the first journaled write until
+     * the reconciliation, so it does not overwrite them with older versions. Null while there is nothing to
+     * reconcile.
+     */
+    private final AtomicReference<Map<Object, Long>> primaryWrites = new AtomicReference<>();
+
+    /**
+     * Locks of the keys by their hash. A write to the primary table holds the read locks of its keys, the
+     * reconciliation holds the write locks while it checks and copies them.
+     */
+    private final ReentrantReadWriteLock[] keyLocks = Stream.generate(ReentrantReadWriteLock::new)
+            .limit(KEY_LOCK_STRIPES).toArray(ReentrantReadWriteLock[]::new);
+
+    /**
+     * Takes the single document writes that all the tables failed, if null such writes fail
+     */
+    private volatile Outbox outbox;
+
     /**
-     * Executor for working with primary store
+     * Makes the binary ids of the reconciliation and the documents of the outbox when the table has no
+     * {@link EnhancedConnection}, created on first use, guarded by this
      */
-    private ExecutorService primaryExecutor = Executors.newSingleThreadExecutor();
+    private Connection documentConnection;
+
     /**
-     * Executor for working with failover store
+     * Keeps the standby table warm, if null the standby table is used only by hedged requests
      */
-    private ExecutorService secondaryExecutor = Executors.newSingleThreadExecutor();
+    private volatile StandbyKeepAlive standbyKeepAlive;
+
     /**
-     * Variable for determining time that needed for switching table
+     * Spreads the reads across the healthy replicas, if null all the requests go to the active table
      */
-    private AtomicInteger counterForTableSwitching = new AtomicInteger(0);
+    private volatile ReadBalancer readBalancer;
 
     /**
-     * Service that schedules failback operations
+     * Operations for which the primary stays alive after hedging and may still win with a late result.
+     * Replaced as a whole on change, so requests can read it without locking.
      */
-    private ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1);
+    private volatile Set<OperationType> latePrimaryAllowed = EnumSet.noneOf(OperationType.class);
 
     /**
      * Do we need use failover for medium dangerous operations with db.
@@ -108,7 +264,7 @@ public class EnhancedJSONTable implements DocumentStore {
      * @param secondaryTable the table used in case of fail over
      */
     public EnhancedJSONTable(String primaryTable, String secondaryTable) {
-        this(primaryTable, secondaryTable, 700);
+        this(primaryTable, secondaryTable, DEFAULT_TIME_OUT);
     }
 
     /**
@@ -120,874 +276,2380 @@ public class EnhancedJSONTable implements DocumentStore {
      * @param timeOut        the time out on primary table before switching to secondary.
      */
     public EnhancedJSONTable(String primaryTable, String secondaryTable, long timeOut) {
-        this.tableNames = new String[]{primaryTable, secondaryTable};
-        this.timeOut = timeOut;
-        this.secondaryTimeOut = 15 * timeOut;
-
-        DocumentStore primary = getDocumentStore(primaryTable);
-        DocumentStore secondary = getDocumentStore(secondaryTable);
-
-        this.stores = new DocumentStore[]{primary, secondary};
+        this(primaryTable, secondaryTable, timeOut, WorkerPoolConfig.defaults());
     }
 
-    public boolean isMediumDangerous() {
-        return mediumDangerous;
+    /**
+     * Create a new JSON store that with a primary table and secondary table. The application will automatically switch
+     * to the secondary table if the operation on primary is successful in the <code>timeout</code>
+     *
+     * @param primaryTable   the primary table used by the application
+     * @param secondaryTable the table used in case of fail over
+     * @param timeOut        the time out on primary table before switching to secondary.
+     * @param poolConfig     the size and bounds of the worker pool created for each of the clusters
+     */
+    public EnhancedJSONTable(String primaryTable, String secondaryTable, long timeOut, WorkerPoolConfig poolConfig) {
+        this(primaryTable, secondaryTable, timeOut, poolConfig, DEFAULT_OPEN_TIME_OUT);
     }
 
-    public void setMediumDangerous(boolean mediumDangerous) {
-        this.mediumDangerous = mediumDangerous;
+    /**
+     * Create a new JSON store that with a primary table and secondary table. Both tables are opened at the same
+     * time and the store is ready as soon as one of them is open, the other one is opened in the background.
+     *
+     * @param primaryTable   the primary table used by the application
+     * @param secondaryTable the table used in case of fail over
+     * @param timeOut        the time out on primary table before switching to secondary.
+     * @param poolConfig     the size and bounds of the worker pool created for each of the clusters
+     * @param openTimeOut    how long to wait for one of the tables to open, if the primary table is not open
+     *                       by then the store switches to the secondary table
+     * @throws FailoverException If neither of the tables opens in the <code>openTimeOut</code>
+     */
+    public EnhancedJSONTable(String primaryTable, String secondaryTable, long timeOut, WorkerPoolConfig poolConfig,
+                             long openTimeOut) {
+        this(new String[]{primaryTable, secondaryTable}, timeOut, false, false, null, null,
+                createExecutors(poolConfig, 2), createMaintenanceExecutor(), createScheduler(), openTimeOut);
     }
 
-    public boolean isVeryDangerous() {
-        return veryDangerous;
+    /**
+     * Create a new JSON store over an ordered list of replicated tables. Requests go to the first table that
+     * is active and hedge along the list: to the next table after the time out, to the one after it after
+     * another time out and so on, see {@link #setHedgeDelays(long...)}. All the tables are opened at the same
+     * time, each by a worker pool of its own, and the store is ready as soon as one of them is open.
+     *
+     * @param replicas    the replicated tables, the primary table first, from 2 to 8 of them
+     * @param timeOut     the time out on each table before hedging to the next one
+     * @param poolConfig  the size and bounds of the worker pool created for each of the clusters
+     * @param openTimeOut how long to wait for one of the tables to open, if the primary table is not open
+     *                    by then the store switches to the next open table
+     * @throws FailoverException If none of the tables opens in the <code>openTimeOut</code>
+     */
+    public EnhancedJSONTable(List<String> replicas, long timeOut, WorkerPoolConfig poolConfig, long openTimeOut) {
+        this(replicaNames(replicas), timeOut, false, false, null, null,
+                createExecutors(poolConfig, replicas.size()), createMaintenanceExecutor(), createScheduler(),
+                openTimeOut);
     }
 
-    public void setVeryDangerous(boolean veryDangerous) {
-        this.veryDangerous = veryDangerous;
+    /**
+     * Create a new JSON store that works with the given executors and scheduler
+     *
+     * @param tableNames  the tables, the primary table first, then the secondary one and further replicas
+     * @param timeOut     the time out on primary table before switching to secondary.
+     * @param medium      the flag that needed for determining what to do with medium dangerous operations
+     * @param hard        the flag that needed for determining what to do with non idempotent operations
+     * @param connection  the connection that owns executors and scheduler and opens the tables,
+     *                    or null if the table owns them
+     * @param group       the failover group to join, or null to create a group of its own
+     * @param executors   the worker pools of the clusters, in the same order as the tables
+     * @param maintenance the executor that opens the tables
+     * @param scheduler   the scheduler for timeouts and failback
+     * @param openTimeOut how long to wait for one of the tables to open
+     * @throws FailoverException If none of the tables opens in the <code>openTimeOut</code>
+     */
+    EnhancedJSONTable(String[] tableNames, long timeOut, boolean medium, boolean hard,
+                      EnhancedConnection connection, FailoverGroup group,
+                      ExecutorService[] executors, ExecutorService maintenance, ScheduledExecutorService scheduler,
+                      long openTimeOut) {
+        if (executors.length != tableNames.length) {
+            throw new IllegalArgumentException("Expected a worker pool per table, got " + executors.length +
+                    " for " + tableNames.length + " tables");
+        }
+        this.tableNames = tableNames;
+        this.timeOut = timeOut;
+        this.secondaryTimeOut = 15 * timeOut;
+        this.minSecondaryBudget = timeOut / 4;
+        this.mediumDangerous = medium;
+        this.veryDangerous = hard;
+
+        this.connection = connection;
+        this.executors = executors;
+        this.maintenance = maintenance;
+        this.scheduler = scheduler;
+
+        this.stores = new StoreHandle[tableNames.length];
+        StoreHandle.Connector connector = connection != null ? connection.connector() : OWN_CONNECTIONS;
+        for (int i = 0; i < stores.length; i++) {
+            Runnable onOpenFailed = i == 0 ? this::primaryUnavailable : () -> {
+            };
+            stores[i] = new StoreHandle(tableNames[i], connector, maintenance, scheduler,
+                    DEFAULT_REOPEN_AFTER_FAILURES, onOpenFailed);
+        }
+
+        this.group = group == null ? new FailoverGroup(tableNames[0], scheduler) : group;
+        this.group.join(this);
+
+        openTables(openTimeOut);
     }
 
     /**
-     * {@inheritDoc}
+     * Open all the tables at the same time in the background and wait until one of them is open. Until the
+     * primary table is open, requests go to whichever tables are open. If it fails to open, or is not open in
+     * the <code>openTimeOut</code>, the group may fail over to the next open table, see {@link #primaryUnavailable}.
      */
-    @Override
-    public boolean isReadOnly() {
-        return checkAndDoWithFailover(DocumentStore::isReadOnly, SAFE);
+    private void openTables(long openTimeOut) {
+        long started = System.currentTimeMillis();
+        for (StoreHandle store : stores) {
+            store.open();
+        }
+        CompletableFuture<?>[] opened = new CompletableFuture<?>[stores.length];
+        for (int i = 0; i < stores.length; i++) {
+            opened[i] = stores[i].opened();
+        }
+        try {
+            CompletableFuture.anyOf(opened).get(openTimeOut, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            closeTables();
+            throw new FailoverException(noneOfTheTables() + " could be opened in " + openTimeOut + " ms", e);
+        } catch (InterruptedException e) {
+            closeTables();
+            Thread.currentThread().interrupt();
+            throw new FailoverException("Thread was interrupted while opening tables", e);
+        } catch (ExecutionException e) {
+            // opened() never completes exceptionally
+            throw new IllegalStateException(e);
+        }
+        if (!stores[0].isOpen()) {
+            long remaining = Math.max(0, started + openTimeOut - System.currentTimeMillis());
+            scheduler.schedule(() -> {
+                if (!stores[0].isOpen() && !stores[0].isClosed()) {
+                    primaryUnavailable();
+                }
+            }, remaining, TimeUnit.MILLISECONDS);
+        }
     }
 
     /**
-     * {@inheritDoc}
+     * The primary table failed to open or is not open by the deadline. Requests of this table go to its open
+     * tables anyway, the group is switched only when the primary cluster looks down: the group still works with
+     * it and no other table of the group has its primary table open.
      */
-    @Override
-    public void flush() throws StoreException {
-        doNoReturn(DocumentStore::flush, SAFE);  // TODO verify that this method reference does what is expected
+    private void primaryUnavailable() {
+        RoutingState state = group.current();
+        if (state.isSwitched() || group.isPrimaryOpen()) {
+            LOG.debug("Primary table {} is not open, group {} is not switched", tableNames[0], group.getName());
+            return;
+        }
+        int to = 1;
+        while (to < stores.length - 1 && !stores[to].isOpen()) {
+            to++;
+        }
+        if (!stores[to].isOpen()) {
+            // none is open yet, the secondary table is the first to take over
+            to = 1;
+        }
+        LOG.warn("Primary table {} is not open, switching group {}", tableNames[0], group.getName());
+        group.failOver(state, to);
     }
 
     /**
-     * {@inheritDoc}
+     * @return true if the primary table is open
      */
-    @Override
-    public void beginTrackingWrites() throws StoreException {
-        doNoReturn(DocumentStore::beginTrackingWrites, veryDangerous);
+    boolean isPrimaryOpen() {
+        return stores[0].isOpen();
     }
 
-    /**
-     * {@inheritDoc}
-     */
-    @Override
-    public void beginTrackingWrites(@NonNullable String previousWritesContext) throws StoreException {
-        doNoReturn((DocumentStore t) -> t.beginTrackingWrites(previousWritesContext), veryDangerous);
+    private String noneOfTheTables() {
+        return tableNames.length == 2 ? "Neither " + tableNames[0] + " nor " + tableNames[1]
+                : "None of " + String.join(", ", tableNames);
     }
 
-    /**
-     * {@inheritDoc}
-     */
-    @Override
-    public String endTrackingWrites() throws StoreException {
-        return checkAndDoWithFailover(DocumentStore::endTrackingWrites, veryDangerous);
+    static String[] replicaNames(List<String> replicas) {
+        if (replicas.size() < 2 || replicas.size() > MAX_REPLICAS) {
+            throw new IllegalArgumentException("Expected from 2 to " + MAX_REPLICAS + " tables, got " + replicas);
+        }
+        return replicas.toArray(new String[0]);
     }
 
     /**
-     * {@inheritDoc}
+     * Each cluster has its own pool, so a hung cluster cannot take the workers of the others
      */
-    @Override
-    public void clearTrackedWrites() throws StoreException {
-        doNoReturn(DocumentStore::clearTrackedWrites, veryDangerous);
+    private static ExecutorService[] createExecutors(WorkerPoolConfig poolConfig, int replicas) {
+        ExecutorService[] executors = new ExecutorService[replicas];
+        for (int i = 0; i < replicas; i++) {
+            String name = i == 0 ? "ojai-primary" : i == 1 ? "ojai-secondary" : "ojai-replica-" + i;
+            executors[i] = poolConfig.createExecutor(name);
+        }
+        return executors;
     }
 
-    /**
-     * {@inheritDoc}
-     */
-    @Override
-    public Document findById(String _id) throws StoreException {
-        return checkAndDoWithFailover((DocumentStore t) -> t.findById(_id), SAFE);
+    public long getSecondaryTimeOut() {
+        return secondaryTimeOut;
     }
 
     /**
-     * {@inheritDoc}
+     * @param secondaryTimeOut how long to wait for the secondary table before giving up, by default 15 times
+     *                         the time out on primary table
      */
-    @Override
-    public Document findById(Value _id) throws StoreException {
-        return checkAndDoWithFailover((DocumentStore t) -> t.findById(_id), SAFE);
+    public void setSecondaryTimeOut(long secondaryTimeOut) {
+        this.secondaryTimeOut = secondaryTimeOut;
     }
 
-    /**
-     * {@inheritDoc}
-     */
-    @Override
-    public Document findById(String _id, String... fieldPaths) throws StoreException {
-        return checkAndDoWithFailover((DocumentStore t) -> t.findById(_id, fieldPaths), SAFE);
+    public long getMinSecondaryBudget() {
+        return minSecondaryBudget;
     }
 
     /**
-     * {@inheritDoc}
+     * @param minSecondaryBudget under a {@link Deadline} the wait on a table is cut so that at least this many
+     *                           milliseconds are left for the next table, with less left the request is not
+     *                           hedged at all. By default a quarter of the time out on primary table
      */
-    @Override
-    public Document findById(String _id, FieldPath... fieldPaths) throws StoreException {
-        return checkAndDoWithFailover((DocumentStore t) -> t.findById(_id, fieldPaths), SAFE);
+    public void setMinSecondaryBudget(long minSecondaryBudget) {
+        if (minSecondaryBudget < 0) {
+            throw new IllegalArgumentException("Minimal secondary budget must not be negative: " + minSecondaryBudget);
+        }
+        this.minSecondaryBudget = minSecondaryBudget;
     }
 
-    /**
-     * {@inheritDoc}
-     */
-    @Override
-    public Document findById(Value _id, String... fieldPaths) throws StoreException {
-        return checkAndDoWithFailover((DocumentStore t) -> t.findById(_id, fieldPaths), SAFE);
+    public int getBulkChunkSize() {
+        return bulkChunkSize;
     }
 
     /**
-     * {@inheritDoc}
+     * @param bulkChunkSize documents of a bulk write sent in one request, by default 1000
      */
-    @Override
-    public Document findById(Value value, FieldPath... fieldPaths) throws StoreException {
-        return checkAndDoWithFailover((DocumentStore t) -> t.findById(value, fieldPaths), SAFE);
+    public void setBulkChunkSize(int bulkChunkSize) {
+        if (bulkChunkSize < 1) {
+            throw new IllegalArgumentException("A chunk must hold at least one document: " + bulkChunkSize);
+        }
+        this.bulkChunkSize = bulkChunkSize;
     }
 
-    /**
-     * {@inheritDoc}
-     */
-    @Override
-    public Document findById(String s, QueryCondition queryCondition) throws StoreException {
-        return checkAndDoWithFailover((DocumentStore t) -> t.findById(s, queryCondition), SAFE);
+    public int getBulkParallelism() {
+        return bulkParallelism;
     }
 
     /**
-     * {@inheritDoc}
+     * @param bulkParallelism chunks of a bulk write in flight at the same time, by default 4. With more than one,
+     *                        documents with the same id in one stream may be written in any order
      */
-    @Override
-    public Document findById(Value value, QueryCondition queryCondition) throws StoreException {
-        return checkAndDoWithFailover((DocumentStore t) -> t.findById(value, queryCondition), SAFE);
+    public void setBulkParallelism(int bulkParallelism) {
+        if (bulkParallelism < 1) {
+            throw new IllegalArgumentException("At least one chunk must be in flight: " + bulkParallelism);
+        }
+        this.bulkParallelism = bulkParallelism;
     }
 
     /**
-     * {@inheritDoc}
+     * @return quantity of the replicated tables, 2 for a primary and a secondary table
      */
-    @Override
-    public Document findById(String s, QueryCondition queryCondition, String... strings) throws StoreException {
-        return checkAndDoWithFailover((DocumentStore t) -> t.findById(s, queryCondition, strings), SAFE);
+    public int getReplicaCount() {
+        return stores.length;
     }
 
-    /**
-     * {@inheritDoc}
-     */
-    @Override
-    public Document findById(String s, QueryCondition queryCondition, FieldPath... fieldPaths) throws StoreException {
-        return checkAndDoWithFailover((DocumentStore t) -> t.findById(s, queryCondition, fieldPaths), SAFE);
+    public long[] getHedgeDelays() {
+        long[] delays = hedgeDelays;
+        return delays == null ? null : delays.clone();
     }
 
     /**
-     * {@inheritDoc}
+     * Set how long a request waits for each table of the hedging chain before it hedges to the next one.
+     * E.g. with three tables <code>setHedgeDelays(50, 200)</code> tries the active table, hedges to the next
+     * one after 50 ms and to the last one 200 ms later. With adaptive hedging the delays are only used until
+     * enough latency of a table has been seen.
+     *
+     * @param hedgeDelays one delay in milliseconds per table except the last one, or null to wait the time out
+     *                    on primary table at every step
      */
-    @Override
-    public Document findById(Value value, QueryCondition queryCondition, String... strings) throws StoreException {
-        return checkAndDoWithFailover((DocumentStore t) -> t.findById(value, queryCondition, strings), SAFE);
+    public void setHedgeDelays(long... hedgeDelays) {
+        if (hedgeDelays != null && hedgeDelays.length != stores.length - 1) {
+            throw new IllegalArgumentException("Expected " + (stores.length - 1) + " hedge delays, got " +
+                    hedgeDelays.length);
+        }
+        if (hedgeDelays != null) {
+            for (long delay : hedgeDelays) {
+                if (delay < 0) {
+                    throw new IllegalArgumentException("Hedge delay must not be negative: " + delay);
+                }
+            }
+        }
+        this.hedgeDelays = hedgeDelays == null ? null : hedgeDelays.clone();
     }
 
     /**
-     * {@inheritDoc}
+     * @return the group whose routing this table follows
      */
-    @Override
-    public Document findById(Value value, QueryCondition queryCondition, FieldPath... fieldPaths) throws StoreException {
-        return checkAndDoWithFailover((DocumentStore t) -> t.findById(value, queryCondition, fieldPaths), SAFE);
+    public FailoverGroup getFailoverGroup() {
+        return group;
     }
 
-    /**
-     * {@inheritDoc}
-     */
-    @Override
-    public DocumentStream find() throws StoreException {
-        return checkAndDoWithFailover(DocumentStore::find, SAFE);
+    public FailoverPolicy getFailoverPolicy() {
+        return group.getFailoverPolicy();
     }
 
     /**
-     * {@inheritDoc}
+     * Same as {@link FailoverGroup#setFailoverPolicy}, applies to all the tables of the failover group
+     *
+     * @param failoverPolicy decides when to switch tables, how long to stay on the secondary table and when
+     *                       to come back, by default {@link FixedWindowFailoverPolicy#defaults()}
      */
-    @Override
-    public DocumentStream find(@NonNullable String... paths) throws StoreException {
-        return checkAndDoWithFailover((DocumentStore t) -> t.find(paths), SAFE);
+    public void setFailoverPolicy(FailoverPolicy failoverPolicy) {
+        group.setFailoverPolicy(failoverPolicy);
     }
 
-    /**
-     * {@inheritDoc}
-     */
-    @Override
-    public DocumentStream find(@NonNullable FieldPath... paths) throws StoreException {
-        return checkAndDoWithFailover((DocumentStore t) -> t.find(paths), SAFE);
+    public ExceptionClassifier getExceptionClassifier() {
+        return exceptionClassifier;
     }
 
     /**
-     * {@inheritDoc}
+     * @param exceptionClassifier decides which errors are rethrown right away instead of failing over,
+     *                            by default {@link ExceptionTypeClassifier#defaults()}
      */
-    @Override
-    public DocumentStream find(@NonNullable QueryCondition c) throws StoreException {
-        return checkAndDoWithFailover((DocumentStore t) -> t.find(c), SAFE);
+    public void setExceptionClassifier(ExceptionClassifier exceptionClassifier) {
+        if (exceptionClassifier == null) {
+            throw new IllegalArgumentException("Exception classifier must not be null");
+        }
+        this.exceptionClassifier = exceptionClassifier;
     }
 
-    /**
-     * {@inheritDoc}
-     */
-    @Override
-    public DocumentStream find(@NonNullable QueryCondition c, @NonNullable String... paths) throws StoreException {
-        return checkAndDoWithFailover((DocumentStore t) -> t.find(c, paths), SAFE);
+    public AdaptiveHedging getAdaptiveHedging() {
+        return adaptiveHedging;
     }
 
     /**
-     * {@inheritDoc}
+     * Hedge to the secondary table after a delay derived from the latency that primary table normally has,
+     * instead of the fixed time out. The instance keeps statistics of this table, so it must not be shared.
+     *
+     * @param adaptiveHedging the way to derive the delay, or null to use the fixed time out
      */
-    @Override
-    public DocumentStream find(@NonNullable QueryCondition c, @NonNullable FieldPath... paths) throws StoreException {
-        return checkAndDoWithFailover((DocumentStore t) -> t.find(c, paths), SAFE);
+    public void setAdaptiveHedging(AdaptiveHedging adaptiveHedging) {
+        this.adaptiveHedging = adaptiveHedging;
+    }
+
+    public CircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
     }
 
     /**
-     * {@inheritDoc}
+     * Stop sending requests to a table while too many of them fail or are slow. While the breaker of the
+     * primary table is open, operations that are safe for failover go right to the secondary table and the
+     * others fail at once with {@link FailoverException}. The instance keeps state of this table, so it must
+     * not be shared.
      *
-     * @return DocumentStream that wrapped by DocumentStreamFailoverWrapper for catching {@code StoreException}
-     * and rethrowing {@code EnhancedJSONTable.FailoverException}
+     * @param circuitBreaker the breaker, or null to always send requests to the tables
      */
-    @Override
-    public DocumentStream findQuery(@NonNullable Query query) throws StoreException {
-        return new DocumentStreamFailoverWrapper(checkAndDoWithFailover((DocumentStore t) -> t.findQuery(query), SAFE));
+    public void setCircuitBreaker(CircuitBreaker circuitBreaker) {
+        this.circuitBreaker = circuitBreaker;
     }
 
     /**
-     * {@inheritDoc}
+     * A store may keep failing after its cluster has recovered. Once that many requests to a table failed
+     * in a row, the table is opened again in the background and the new store replaces the old one.
+     * Application errors, cancelled and rejected requests are not counted.
      *
-     * @return DocumentStream that wrapped by DocumentStreamFailoverWrapper for catching {@code StoreException}
-     * and rethrowing {@code EnhancedJSONTable.FailoverException}
+     * @param reopenAfterFailures failed requests in a row, 0 to never open the tables again
      */
-    @Override
-    public DocumentStream findQuery(@NonNullable String query) throws StoreException {
-        return new DocumentStreamFailoverWrapper(checkAndDoWithFailover((DocumentStore t) -> t.findQuery(query), SAFE));
+    public void setReopenAfterFailures(int reopenAfterFailures) {
+        for (StoreHandle store : stores) {
+            store.setReopenAfterFailures(reopenAfterFailures);
+        }
     }
 
     /**
-     * {@inheritDoc}
+     * @param table index of the table, 0 for primary, 1 for secondary
+     * @return how many times the table was opened again after it was declared failed
      */
-    @Override
-    public void insertOrReplace(@NonNullable Document doc) throws StoreException {
-        doNoReturn((DocumentStore t) -> t.insertOrReplace(doc), SAFE);
+    public long getReopenCount(int table) {
+        return stores[table].getReopenCount();
     }
 
-    /**
-     * {@inheritDoc}
-     */
-    @Override
-    public void insertOrReplace(@NonNullable Value _id, @NonNullable Document doc) throws StoreException {
-        doNoReturn((DocumentStore t) -> t.insertOrReplace(_id, doc), SAFE);
+    public StandbyKeepAlive getStandbyKeepAlive() {
+        return standbyKeepAlive;
     }
 
     /**
-     * {@inheritDoc}
+     * Periodically read from the table that is not active at the moment, and optionally shadow some of the
+     * lookups by id to it, so its connection and caches are warm when a request has to fail over to it.
+     * The instance keeps state of this table, so it must not be shared.
+     *
+     * @param standbyKeepAlive the keep-alive, or null to leave the standby table alone
      */
-    @Override
-    public void insertOrReplace(@NonNullable Document doc, @NonNullable FieldPath fieldAsKey) throws StoreException {
-        doNoReturn((DocumentStore t) -> t.insertOrReplace(doc, fieldAsKey), SAFE);
+    public synchronized void setStandbyKeepAlive(StandbyKeepAlive standbyKeepAlive) {
+        if (this.standbyKeepAlive != null) {
+            this.standbyKeepAlive.stop();
+        }
+        if (standbyKeepAlive != null) {
+            standbyKeepAlive.start(key -> probe((group.current().getActive() + 1) % stores.length, key), scheduler);
+        }
+        this.standbyKeepAlive = standbyKeepAlive;
+    }
+
+    public ReadBalancer getReadBalancer() {
+        return readBalancer;
     }
 
     /**
-     * {@inheritDoc}
+     * Spread reads across all the open replicas instead of sending them to the active table only.
+     * Writes keep going to the active table. Enable it only if the application tolerates reads that do not
+     * see a write made just before, the replicas are replicated asynchronously. The instance keeps state
+     * of this table, so it must not be shared.
+     *
+     * @param readBalancer the balancer, or null to send all the requests to the active table
      */
-    @Override
-    public void insertOrReplace(@NonNullable Document doc, @NonNullable String fieldAsKey) throws StoreException {
-        doNoReturn((DocumentStore t) -> t.insertOrReplace(doc, fieldAsKey), SAFE);
+    public void setReadBalancer(ReadBalancer readBalancer) {
+        this.readBalancer = readBalancer;
+    }
+
+    public HealthProber getHealthProber() {
+        return group.getHealthProber();
     }
 
     /**
-     * {@inheritDoc}
+     * Probe the primary table when the failover time is over and switch back only once it answers reliably.
+     * There is no prober by default, the group switches back when the failover time is over.
+     * {@link HealthProber#defaults(long)} with the time out on primary table is a good start. Applies to all the
+     * tables of the failover group.
+     *
+     * @param healthProber the way to check the primary table, or null to switch back without checking
      */
-    @Override
-    public void insertOrReplace(@NonNullable DocumentStream stream) throws MultiOpException {
-        doNoReturn((DocumentStore t) -> t.insertOrReplace(stream), SAFE);
+    public void setHealthProber(HealthProber healthProber) {
+        group.setHealthProber(healthProber);
+    }
+
+    public FailbackRamp getFailbackRamp() {
+        return group.getFailbackRamp();
+    }
+
+    public WriteJournal getWriteJournal() {
+        return writeJournal;
     }
 
     /**
-     * {@inheritDoc}
+     * Record the id of every document written to a table other than the primary one, so the primary table can be
+     * brought up to date after failback. The ids are recorded when the write is sent, so a write that failed or
+     * timed out is recorded too. The journal belongs to the caller and must be closed by it.
+     *
+     * @param writeJournal the journal, or null to record nothing
      */
-    @Override
-    public void insertOrReplace(@NonNullable DocumentStream stream, @NonNullable FieldPath fieldAsKey) throws MultiOpException {
-        doNoReturn((DocumentStore t) -> t.insertOrReplace(stream, fieldAsKey), SAFE);
+    public void setWriteJournal(WriteJournal writeJournal) {
+        this.writeJournal = writeJournal;
+    }
+
+    public Outbox getOutbox() {
+        return outbox;
     }
 
     /**
-     * {@inheritDoc}
+     * Accept <code>insertOrReplace</code> and <code>delete</code> of single documents with a string id when they
+     * were sent to all the tables and all of them failed, and apply them in order once a table recovers. A write
+     * accepted by the outbox returns normally, the asynchronous versions of these writes complete normally.
+     * The outbox can be set once and starts applying the writes it holds right away.
+     * <p>
+     * While the outbox holds writes, the writes of other kinds fail with a {@link StoreException} at once. They
+     * would reach the tables before the writes in the outbox, which could then overwrite them with older versions.
+     *
+     * @param outbox the outbox, it belongs to the caller and must be closed before the table, or null to fail
+     *               such writes
      */
-    @Override
-    public void insertOrReplace(@NonNullable DocumentStream stream, @NonNullable String fieldAsKey) throws MultiOpException {
-        doNoReturn((DocumentStore t) -> t.insertOrReplace(stream, fieldAsKey), SAFE);
+    public void setOutbox(Outbox outbox) {
+        if (outbox != null) {
+            outbox.start(this);
+        }
+        this.outbox = outbox;
     }
 
     /**
-     * {@inheritDoc}
+     * Return the traffic to the primary table in steps once it is healthy, so its cold caches are not hit by
+     * the full load at once. Applies to all the tables of the failover group.
+     *
+     * @param failbackRamp the steps of the return, or null to switch back at once
      */
-    @Override
-    public void insertOrReplace(@NonNullable String _id, @NonNullable Document doc) throws StoreException {
-        doNoReturn((DocumentStore t) -> t.insert(_id, doc), SAFE);
+    public void setFailbackRamp(FailbackRamp failbackRamp) {
+        group.setFailbackRamp(failbackRamp);
+    }
+
+    public RoutingStateFile getRoutingStateFile() {
+        return group.getRoutingStateFile();
     }
 
     /**
-     * {@inheritDoc}
+     * Save the routing to a local file and continue an unexpired failover found there, so a process restarted
+     * during an outage starts on the secondary table right away. Applies to all the tables of the failover
+     * group. The file belongs to the caller and must be closed by it.
+     *
+     * @param routingStateFile the file, or null to keep the routing in memory only
      */
-    @Override
-    public void insert(@NonNullable String _id, @NonNullable Document doc) throws StoreException {
-        doNoReturn((DocumentStore t) -> t.insert(_id, doc), SAFE);
+    public void setRoutingStateFile(RoutingStateFile routingStateFile) {
+        group.setRoutingStateFile(routingStateFile);
+    }
+
+    public boolean isLatePrimaryAllowed(OperationType type) {
+        return latePrimaryAllowed.contains(type);
+    }
+
+    /**
+     * Choose what happens to the primary request when the time out on primary table expires. By default it is
+     * cancelled and the table is switched right away. If a late primary is allowed, the primary and the secondary
+     * requests race and the first successful result wins. The table is switched only if the secondary wins or
+     * the primary fails, so a short latency spike on the primary cluster doesn't cause a switch.
+     *
+     * @param type    the kind of operation
+     * @param allowed true to let a late primary result win
+     */
+    public synchronized void setLatePrimaryAllowed(OperationType type, boolean allowed) {
+        Set<OperationType> copy = EnumSet.noneOf(OperationType.class);
+        copy.addAll(latePrimaryAllowed);
+        if (allowed) {
+            copy.add(type);
+        } else {
+            copy.remove(type);
+        }
+        latePrimaryAllowed = copy;
+    }
+
+    public boolean isMediumDangerous() {
+        return mediumDangerous;
+    }
+
+    public void setMediumDangerous(boolean mediumDangerous) {
+        this.mediumDangerous = mediumDangerous;
+    }
+
+    public boolean isVeryDangerous() {
+        return veryDangerous;
+    }
+
+    public void setVeryDangerous(boolean veryDangerous) {
+        this.veryDangerous = veryDangerous;
     }
 
     /**
      * {@inheritDoc}
      */
     @Override
-    public void update(@NonNullable Value _id, @NonNullable DocumentMutation m) throws StoreException {
-        doNoReturn((DocumentStore t) -> t.update(_id, m), SAFE);
+    public boolean isReadOnly() {
+        return checkAndDoWithFailover(OperationType.ADMIN, DocumentStore::isReadOnly, SAFE);
     }
 
     /**
      * {@inheritDoc}
      */
     @Override
-    public void update(@NonNullable String _id, @NonNullable DocumentMutation mutation) throws StoreException {
-        doNoReturn((DocumentStore t) -> t.update(_id, mutation), SAFE);
+    public void flush() throws StoreException {
+        doNoReturn(OperationType.ADMIN, DocumentStore::flush, SAFE);  // TODO verify that this method reference does what is expected
     }
 
     /**
      * {@inheritDoc}
      */
     @Override
-    public void delete(@NonNullable String _id) throws StoreException {
-        doNoReturn((DocumentStore t) -> t.delete(_id), SAFE);
+    public void beginTrackingWrites() throws StoreException {
+        doNoReturn(OperationType.ADMIN, DocumentStore::beginTrackingWrites, veryDangerous);
     }
 
     /**
      * {@inheritDoc}
      */
     @Override
-    public void delete(@NonNullable Value _id) throws StoreException {
-        doNoReturn((DocumentStore t) -> t.delete(_id), SAFE);
+    public void beginTrackingWrites(@NonNullable String previousWritesContext) throws StoreException {
+        doNoReturn(OperationType.ADMIN, (DocumentStore t) -> t.beginTrackingWrites(previousWritesContext), veryDangerous);
     }
 
     /**
      * {@inheritDoc}
      */
     @Override
-    public void delete(@NonNullable Document doc) throws StoreException {
-        doNoReturn((DocumentStore t) -> t.delete(doc), SAFE);
+    public String endTrackingWrites() throws StoreException {
+        return checkAndDoWithFailover(OperationType.ADMIN, DocumentStore::endTrackingWrites, veryDangerous);
     }
 
     /**
      * {@inheritDoc}
      */
     @Override
-    public void delete(@NonNullable Document doc, @NonNullable FieldPath fieldAsKey) throws StoreException {
-        doNoReturn((DocumentStore t) -> t.delete(doc, fieldAsKey), SAFE);
+    public void clearTrackedWrites() throws StoreException {
+        doNoReturn(OperationType.ADMIN, DocumentStore::clearTrackedWrites, veryDangerous);
     }
 
     /**
      * {@inheritDoc}
      */
     @Override
-    public void delete(@NonNullable Document doc, @NonNullable String fieldAsKey) throws StoreException {
-        doNoReturn((DocumentStore t) -> t.delete(doc, fieldAsKey), SAFE);
+    public Document findById(String _id) throws StoreException {
+        return checkAndDoWithFailover(OperationType.FIND_BY_ID, (DocumentStore t) -> t.findById(_id), SAFE);
     }
 
     /**
      * {@inheritDoc}
      */
     @Override
-    public void delete(@NonNullable DocumentStream stream) throws MultiOpException {
-        doNoReturn((DocumentStore t) -> t.delete(stream), SAFE);
+    public Document findById(Value _id) throws StoreException {
+        return checkAndDoWithFailover(OperationType.FIND_BY_ID, (DocumentStore t) -> t.findById(_id), SAFE);
     }
 
     /**
      * {@inheritDoc}
      */
     @Override
-    public void delete(@NonNullable DocumentStream stream, @NonNullable FieldPath fieldAsKey) throws MultiOpException {
-        doNoReturn((DocumentStore t) -> t.delete(stream, fieldAsKey), SAFE);
+    public Document findById(String _id, String... fieldPaths) throws StoreException {
+        return checkAndDoWithFailover(OperationType.FIND_BY_ID, (DocumentStore t) -> t.findById(_id, fieldPaths), SAFE);
     }
 
     /**
      * {@inheritDoc}
      */
     @Override
-    public void delete(@NonNullable DocumentStream stream, @NonNullable String fieldAsKey) throws MultiOpException {
-        doNoReturn((DocumentStore t) -> t.delete(stream, fieldAsKey), SAFE);
+    public Document findById(String _id, FieldPath... fieldPaths) throws StoreException {
+        return checkAndDoWithFailover(OperationType.FIND_BY_ID, (DocumentStore t) -> t.findById(_id, fieldPaths), SAFE);
     }
 
     /**
      * {@inheritDoc}
      */
     @Override
-    public void insert(@NonNullable Value _id, @NonNullable Document doc) throws StoreException {
-        doNoReturn((DocumentStore t) -> t.insert(_id, doc), SAFE);
+    public Document findById(Value _id, String... fieldPaths) throws StoreException {
+        return checkAndDoWithFailover(OperationType.FIND_BY_ID, (DocumentStore t) -> t.findById(_id, fieldPaths), SAFE);
     }
 
     /**
      * {@inheritDoc}
      */
     @Override
-    public void insert(@NonNullable Document doc) throws StoreException {
-        doNoReturn((DocumentStore t) -> t.insert(doc), SAFE);
+    public Document findById(Value value, FieldPath... fieldPaths) throws StoreException {
+        return checkAndDoWithFailover(OperationType.FIND_BY_ID, (DocumentStore t) -> t.findById(value, fieldPaths), SAFE);
     }
 
     /**
      * {@inheritDoc}
      */
     @Override
-    public void insert(@NonNullable Document doc, @NonNullable FieldPath fieldAsKey) throws StoreException {
-        doNoReturn((DocumentStore t) -> t.insert(doc), SAFE);
+    public Document findById(String s, QueryCondition queryCondition) throws StoreException {
+        return checkAndDoWithFailover(OperationType.FIND_BY_ID, (DocumentStore t) -> t.findById(s, queryCondition), SAFE);
     }
 
     /**
      * {@inheritDoc}
      */
     @Override
-    public void insert(@NonNullable Document doc, @NonNullable String fieldAsKey) throws StoreException {
-        doNoReturn((DocumentStore t) -> t.insert(doc, fieldAsKey), SAFE);
+    public Document findById(Value value, QueryCondition queryCondition) throws StoreException {
+        return checkAndDoWithFailover(OperationType.FIND_BY_ID, (DocumentStore t) -> t.findById(value, queryCondition), SAFE);
     }
 
     /**
      * {@inheritDoc}
      */
     @Override
-    public void insert(@NonNullable DocumentStream stream) throws MultiOpException {
-        doNoReturn((DocumentStore t) -> t.insert(stream), SAFE);
+    public Document findById(String s, QueryCondition queryCondition, String... strings) throws StoreException {
+        return checkAndDoWithFailover(OperationType.FIND_BY_ID, (DocumentStore t) -> t.findById(s, queryCondition, strings), SAFE);
     }
 
     /**
      * {@inheritDoc}
      */
     @Override
-    public void insert(@NonNullable DocumentStream stream, @NonNullable FieldPath fieldAsKey) throws MultiOpException {
-        doNoReturn((DocumentStore t) -> t.insert(stream, fieldAsKey), SAFE);
+    public Document findById(String s, QueryCondition queryCondition, FieldPath... fieldPaths) throws StoreException {
+        return checkAndDoWithFailover(OperationType.FIND_BY_ID, (DocumentStore t) -> t.findById(s, queryCondition, fieldPaths), SAFE);
     }
 
     /**
      * {@inheritDoc}
      */
     @Override
-    public void insert(@NonNullable DocumentStream stream, @NonNullable String fieldAsKey) throws MultiOpException {
-        doNoReturn((DocumentStore t) -> t.insert(stream, fieldAsKey), SAFE);
+    public Document findById(Value value, QueryCondition queryCondition, String... strings) throws StoreException {
+        return checkAndDoWithFailover(OperationType.FIND_BY_ID, (DocumentStore t) -> t.findById(value, queryCondition, strings), SAFE);
     }
 
     /**
      * {@inheritDoc}
      */
     @Override
-    public void replace(@NonNullable String _id, @NonNullable Document doc) throws StoreException {
-        doNoReturn((DocumentStore t) -> t.replace(_id, doc), mediumDangerous);
+    public Document findById(Value value, QueryCondition queryCondition, FieldPath... fieldPaths) throws StoreException {
+        return checkAndDoWithFailover(OperationType.FIND_BY_ID, (DocumentStore t) -> t.findById(value, queryCondition, fieldPaths), SAFE);
     }
 
     /**
      * {@inheritDoc}
      */
     @Override
-    public void replace(@NonNullable Value _id, @NonNullable Document doc) throws StoreException {
-        doNoReturn((DocumentStore t) -> t.replace(_id, doc), mediumDangerous);
+    public DocumentStream find() throws StoreException {
+        return checkAndDoWithFailover(OperationType.FIND, DocumentStore::find, SAFE);
     }
 
     /**
      * {@inheritDoc}
      */
     @Override
-    public void replace(@NonNullable Document doc) throws StoreException {
-        doNoReturn((DocumentStore t) -> t.replace(doc), mediumDangerous);
+    public DocumentStream find(@NonNullable String... paths) throws StoreException {
+        return checkAndDoWithFailover(OperationType.FIND, (DocumentStore t) -> t.find(paths), SAFE);
     }
 
     /**
      * {@inheritDoc}
      */
     @Override
-    public void replace(@NonNullable Document doc, @NonNullable FieldPath fieldAsKey) throws StoreException {
-        doNoReturn((DocumentStore t) -> t.replace(doc, fieldAsKey), mediumDangerous);
+    public DocumentStream find(@NonNullable FieldPath... paths) throws StoreException {
+        return checkAndDoWithFailover(OperationType.FIND, (DocumentStore t) -> t.find(paths), SAFE);
     }
 
     /**
      * {@inheritDoc}
      */
     @Override
-    public void replace(@NonNullable Document doc, @NonNullable String fieldAsKey) throws StoreException {
-        doNoReturn((DocumentStore t) -> t.replace(doc, fieldAsKey), mediumDangerous);
+    public DocumentStream find(@NonNullable QueryCondition c) throws StoreException {
+        return checkAndDoWithFailover(OperationType.FIND, (DocumentStore t) -> t.find(c), SAFE);
     }
 
     /**
      * {@inheritDoc}
      */
     @Override
-    public void replace(@NonNullable DocumentStream stream) throws MultiOpException {
-        doNoReturn((DocumentStore t) -> t.replace(stream), mediumDangerous);
+    public DocumentStream find(@NonNullable QueryCondition c, @NonNullable String... paths) throws StoreException {
+        return checkAndDoWithFailover(OperationType.FIND, (DocumentStore t) -> t.find(c, paths), SAFE);
     }
 
     /**
      * {@inheritDoc}
      */
     @Override
-    public void replace(@NonNullable DocumentStream stream, @NonNullable FieldPath fieldAsKey) throws MultiOpException {
-        doNoReturn((DocumentStore t) -> t.replace(stream, fieldAsKey), mediumDangerous);
+    public DocumentStream find(@NonNullable QueryCondition c, @NonNullable FieldPath... paths) throws StoreException {
+        return checkAndDoWithFailover(OperationType.FIND, (DocumentStore t) -> t.find(c, paths), SAFE);
     }
 
     /**
      * {@inheritDoc}
+     *
+     * @return DocumentStream that wrapped by DocumentStreamFailoverWrapper for catching {@code StoreException}
+     * and rethrowing {@code EnhancedJSONTable.FailoverException}
      */
     @Override
-    public void replace(@NonNullable DocumentStream stream, @NonNullable String fieldAsKey) throws MultiOpException {
-        doNoReturn((DocumentStore t) -> t.replace(stream, fieldAsKey), mediumDangerous);
+    public DocumentStream findQuery(@NonNullable Query query) throws StoreException {
+        return new DocumentStreamFailoverWrapper(checkAndDoWithFailover(OperationType.FIND_QUERY, (DocumentStore t) -> t.findQuery(query), SAFE));
     }
 
     /**
      * {@inheritDoc}
+     *
+     * @return DocumentStream that wrapped by DocumentStreamFailoverWrapper for catching {@code StoreException}
+     * and rethrowing {@code EnhancedJSONTable.FailoverException}
      */
     @Override
-    public void increment(@NonNullable String _id, @NonNullable String field, byte inc) throws StoreException {
-        doNoReturn((DocumentStore t) -> t.increment(_id, field, inc), veryDangerous);
+    public DocumentStream findQuery(@NonNullable String query) throws StoreException {
+        return new DocumentStreamFailoverWrapper(checkAndDoWithFailover(OperationType.FIND_QUERY, (DocumentStore t) -> t.findQuery(query), SAFE));
     }
 
     /**
      * {@inheritDoc}
      */
     @Override
-    public void increment(@NonNullable String _id, @NonNullable String field, short inc) throws StoreException {
-        doNoReturn((DocumentStore t) -> t.increment(_id, field, inc), veryDangerous);
+    public void insertOrReplace(@NonNullable Document doc) throws StoreException {
+        doNoReturnOrSpill(OperationType.INSERT_OR_REPLACE, ids(doc), (DocumentStore t) -> t.insertOrReplace(doc),
+                Outbox.Kind.INSERT_OR_REPLACE, null, doc);
     }
 
     /**
      * {@inheritDoc}
      */
     @Override
-    public void increment(@NonNullable String _id, @NonNullable String field, int inc) throws StoreException {
-        doNoReturn((DocumentStore t) -> t.increment(_id, field, inc), veryDangerous);
+    public void insertOrReplace(@NonNullable Value _id, @NonNullable Document doc) throws StoreException {
+        doNoReturn(OperationType.INSERT_OR_REPLACE, ids(_id), (DocumentStore t) -> t.insertOrReplace(_id, doc), SAFE);
     }
 
     /**
      * {@inheritDoc}
      */
     @Override
-    public void increment(@NonNullable String _id, @NonNullable String field, long inc) throws StoreException {
-        doNoReturn((DocumentStore t) -> t.increment(_id, field, inc), veryDangerous);
+    public void insertOrReplace(@NonNullable Document doc, @NonNullable FieldPath fieldAsKey) throws StoreException {
+        doNoReturn(OperationType.INSERT_OR_REPLACE, ids(doc, fieldAsKey), (DocumentStore t) -> t.insertOrReplace(doc, fieldAsKey), SAFE);
     }
 
     /**
      * {@inheritDoc}
      */
     @Override
-    public void increment(@NonNullable String _id, @NonNullable String field, float inc) throws StoreException {
-        doNoReturn((DocumentStore t) -> t.increment(_id, field, inc), veryDangerous);
+    public void insertOrReplace(@NonNullable Document doc, @NonNullable String fieldAsKey) throws StoreException {
+        doNoReturn(OperationType.INSERT_OR_REPLACE, ids(doc, fieldAsKey), (DocumentStore t) -> t.insertOrReplace(doc, fieldAsKey), SAFE);
     }
 
     /**
      * {@inheritDoc}
      */
     @Override
-    public void increment(@NonNullable String _id, @NonNullable String field, double inc) throws StoreException {
-        doNoReturn((DocumentStore t) -> t.increment(_id, field, inc), veryDangerous);
+    public void insertOrReplace(@NonNullable DocumentStream stream) throws MultiOpException {
+        bulkWrite(stream, EnhancedJSONTable::ids, (t, chunk) -> t.insertOrReplace(chunk), SAFE);
     }
 
     /**
      * {@inheritDoc}
      */
     @Override
-    public void increment(@NonNullable String _id, @NonNullable String field, @NonNullable BigDecimal inc) throws StoreException {
-        doNoReturn((DocumentStore t) -> t.increment(_id, field, inc), veryDangerous);
+    public void insertOrReplace(@NonNullable DocumentStream stream, @NonNullable FieldPath fieldAsKey) throws MultiOpException {
+        bulkWrite(stream, doc -> ids(doc, fieldAsKey), (t, chunk) -> t.insertOrReplace(chunk, fieldAsKey), SAFE);
     }
 
     /**
      * {@inheritDoc}
      */
     @Override
-    public void increment(@NonNullable Value _id, @NonNullable String field, byte inc) throws StoreException {
-        doNoReturn((DocumentStore t) -> t.increment(_id, field, inc), veryDangerous);
+    public void insertOrReplace(@NonNullable DocumentStream stream, @NonNullable String fieldAsKey) throws MultiOpException {
+        bulkWrite(stream, doc -> ids(doc, fieldAsKey), (t, chunk) -> t.insertOrReplace(chunk, fieldAsKey), SAFE);
     }
 
     /**
      * {@inheritDoc}
      */
     @Override
-    public void increment(@NonNullable Value _id, @NonNullable String field, short inc) throws StoreException {
-        doNoReturn((DocumentStore t) -> t.increment(_id, field, inc), veryDangerous);
+    public void insertOrReplace(@NonNullable String _id, @NonNullable Document doc) throws StoreException {
+        doNoReturnOrSpill(OperationType.INSERT_OR_REPLACE, ids(_id), (DocumentStore t) -> t.insertOrReplace(_id, doc),
+                Outbox.Kind.INSERT_OR_REPLACE, _id, doc);
     }
 
     /**
      * {@inheritDoc}
      */
     @Override
-    public void increment(@NonNullable Value _id, @NonNullable String field, int inc) throws StoreException {
-        doNoReturn((DocumentStore t) -> t.increment(_id, field, inc), veryDangerous);
+    public void insert(@NonNullable String _id, @NonNullable Document doc) throws StoreException {
+        doNoReturn(OperationType.INSERT, ids(_id), (DocumentStore t) -> t.insert(_id, doc), SAFE);
     }
 
     /**
      * {@inheritDoc}
      */
     @Override
-    public void increment(@NonNullable Value _id, @NonNullable String field, long inc) throws StoreException {
-        doNoReturn((DocumentStore t) -> t.increment(_id, field, inc), veryDangerous);
+    public void update(@NonNullable Value _id, @NonNullable DocumentMutation m) throws StoreException {
+        doNoReturn(OperationType.UPDATE, ids(_id), (DocumentStore t) -> t.update(_id, m), SAFE);
     }
 
     /**
      * {@inheritDoc}
      */
     @Override
-    public void increment(@NonNullable Value _id, @NonNullable String field, float inc) throws StoreException {
-        doNoReturn((DocumentStore t) -> t.increment(_id, field, inc), veryDangerous);
+    public void update(@NonNullable String _id, @NonNullable DocumentMutation mutation) throws StoreException {
+        doNoReturn(OperationType.UPDATE, ids(_id), (DocumentStore t) -> t.update(_id, mutation), SAFE);
     }
 
     /**
      * {@inheritDoc}
      */
     @Override
-    public void increment(@NonNullable Value _id, @NonNullable String field, double inc) throws StoreException {
-        doNoReturn((DocumentStore t) -> t.increment(_id, field, inc), veryDangerous);
+    public void delete(@NonNullable String _id) throws StoreException {
+        doNoReturnOrSpill(OperationType.DELETE, ids(_id), (DocumentStore t) -> t.delete(_id), Outbox.Kind.DELETE,
+                _id, null);
     }
 
     /**
      * {@inheritDoc}
      */
     @Override
-    public void increment(@NonNullable Value _id, @NonNullable String field, @NonNullable BigDecimal inc) throws StoreException {
-        doNoReturn((DocumentStore t) -> t.increment(_id, field, inc), veryDangerous);
+    public void delete(@NonNullable Value _id) throws StoreException {
+        doNoReturn(OperationType.DELETE, ids(_id), (DocumentStore t) -> t.delete(_id), SAFE);
     }
 
     /**
      * {@inheritDoc}
      */
     @Override
-    public boolean checkAndMutate(@NonNullable String _id, @NonNullable QueryCondition condition,
-                                  @NonNullable DocumentMutation mutation) throws StoreException {
-        return checkAndDoWithFailover((DocumentStore t) -> t.checkAndMutate(_id, condition, mutation), veryDangerous);
+    public void delete(@NonNullable Document doc) throws StoreException {
+        Value id = doc.getId();
+        doNoReturnOrSpill(OperationType.DELETE, ids(doc), (DocumentStore t) -> t.delete(doc), Outbox.Kind.DELETE,
+                id != null && id.getType() == Value.Type.STRING ? id.getString() : null, null);
     }
 
     /**
      * {@inheritDoc}
      */
     @Override
-    public boolean checkAndDelete(@NonNullable String _id, @NonNullable QueryCondition condition) throws StoreException {
-        return checkAndDoWithFailover((DocumentStore t) -> t.checkAndDelete(_id, condition), veryDangerous);
+    public void delete(@NonNullable Document doc, @NonNullable FieldPath fieldAsKey) throws StoreException {
+        doNoReturn(OperationType.DELETE, ids(doc, fieldAsKey), (DocumentStore t) -> t.delete(doc, fieldAsKey), SAFE);
     }
 
     /**
      * {@inheritDoc}
      */
     @Override
-    public boolean checkAndReplace(@NonNullable String _id, @NonNullable QueryCondition condition,
-                                   @NonNullable Document doc) throws StoreException {
-        return checkAndDoWithFailover((DocumentStore t) -> t.checkAndReplace(_id, condition, doc), veryDangerous);
+    public void delete(@NonNullable Document doc, @NonNullable String fieldAsKey) throws StoreException {
+        doNoReturn(OperationType.DELETE, ids(doc, fieldAsKey), (DocumentStore t) -> t.delete(doc, fieldAsKey), SAFE);
     }
 
     /**
      * {@inheritDoc}
      */
     @Override
-    public boolean checkAndMutate(@NonNullable Value _id, @NonNullable QueryCondition condition,
-                                  @NonNullable DocumentMutation m) throws StoreException {
-        return checkAndDoWithFailover((DocumentStore t) -> t.checkAndMutate(_id, condition, m), veryDangerous);
+    public void delete(@NonNullable DocumentStream stream) throws MultiOpException {
+        bulkWrite(stream, EnhancedJSONTable::ids, (t, chunk) -> t.delete(chunk), SAFE);
     }
 
     /**
      * {@inheritDoc}
      */
     @Override
-    public boolean checkAndDelete(@NonNullable Value _id, @NonNullable QueryCondition condition) throws StoreException {
-        return checkAndDoWithFailover((DocumentStore t) -> t.checkAndDelete(_id, condition), veryDangerous);
+    public void delete(@NonNullable DocumentStream stream, @NonNullable FieldPath fieldAsKey) throws MultiOpException {
+        bulkWrite(stream, doc -> ids(doc, fieldAsKey), (t, chunk) -> t.delete(chunk, fieldAsKey), SAFE);
     }
 
     /**
      * {@inheritDoc}
      */
     @Override
-    public boolean checkAndReplace(@NonNullable Value _id, @NonNullable QueryCondition condition, @NonNullable Document doc) throws StoreException {
-        return checkAndDoWithFailover((DocumentStore t) -> t.checkAndReplace(_id, condition, doc), veryDangerous);
-    }
-
-    public boolean isTableSwitched() {
-        return switched.get();
-    }
-
-    private void doNoReturn(TableProcedure task, boolean withFailover) {
-        checkAndDoWithFailover((DocumentStore t) -> {
-            task.apply(t);
-            return null;
-        }, withFailover);
+    public void delete(@NonNullable DocumentStream stream, @NonNullable String fieldAsKey) throws MultiOpException {
+        bulkWrite(stream, doc -> ids(doc, fieldAsKey), (t, chunk) -> t.delete(chunk, fieldAsKey), SAFE);
     }
 
-    private <R> R checkAndDoWithFailover(TableFunction<R> task, boolean withFailover) {
-        int i = current.get();
-        DocumentStore primary = stores[i];
-        DocumentStore secondary = stores[1 - i];
-        if (withFailover) {
-            if (switched.get()) {
-                // change executor if table switched, in this case primary executor work only with primary cluster
-                // and secondary executor work only with failover table
-                return doWithFallback(secondaryExecutor, primaryExecutor, timeOut, secondaryTimeOut, task, primary, secondary,
-                        this::swapTableLinks, switched);
-            } else {
-                return doWithFallback(primaryExecutor, secondaryExecutor, timeOut, secondaryTimeOut, task, primary, secondary,
-                        this::swapTableLinks, switched);
-            }
-        } else {
-            return doWithoutFailover(task, primary);
-        }
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void insert(@NonNullable Value _id, @NonNullable Document doc) throws StoreException {
+        doNoReturn(OperationType.INSERT, ids(_id), (DocumentStore t) -> t.insert(_id, doc), SAFE);
     }
 
     /**
-     * Process request to db without Failover
-     *
-     * @param task    A lambda with one argument, a table, that does the desired operation
-     * @param primary The primary table
-     * @param <R>     The type that task will return
-     * @return The value returned by task
+     * {@inheritDoc}
      */
-    private <R> R doWithoutFailover(TableFunction<R> task, DocumentStore primary) {
-        try {
-            return primaryExecutor.submit(() -> task.apply(primary)).get();
-        } catch (InterruptedException e) {
-            // this should never happen except perhaps in debugging or on shutdown
-            throw new FailoverException("Thread was interrupted during operation", e);
-        } catch (ExecutionException e) {
-            Throwable cause = e.getCause();
-            if (cause instanceof RuntimeException) {
-                // these are likely StoreException, but we don't differentiate
-                throw (RuntimeException) cause;
-            } else {
-                // this should not happen in our situation since none of the methods do this
-                throw new FailoverException("Checked exception thrown (shouldn't happen)", cause);
-            }
-        }
+    @Override
+    public void insert(@NonNullable Document doc) throws StoreException {
+        doNoReturn(OperationType.INSERT, ids(doc), (DocumentStore t) -> t.insert(doc), SAFE);
     }
 
     /**
-     * Tries to do task on primary until timeOut milliseconds have passed. From then
-     * the task is also attempted with secondary. If second succeeds, we use that result.
-     * If the primary blows the first timeout, then we initiate a failover by invoking
-     * failoverTask. When both primary and secondary throw exceptions, we rethrow the
-     * last exception received. When secondary exceed secondaryTimeOut
-     * milliseconds with no exceptions and no results, then an exception is thrown.
-     * <p>
-     * This method is static to make testing easier.
-     *
-     * @param prim             The executor that does all the work
-     * @param timeOut          How long to wait before invoking the secondary
-     * @param secondaryTimeOut How long to wait before entirely giving up
-     * @param task             A lambda with one argument, a table, that does the desired operation
-     * @param primary          The primary table
-     * @param secondary        The secondary table
-     * @param failover         The function to call when primary doesn't respond quickly
-     * @param switched         The flag, that indicate that table switched or not
-     * @param <R>              The type that task will return
-     * @return The value returned by task
-     * @throws StoreException    If both primary and secondary fail
-     * @throws FailoverException If both primary and secondary fail. This may wrap a real exception
+     * {@inheritDoc}
      */
-    static <R> R doWithFallback(ExecutorService prim, ExecutorService sec,
-                                long timeOut, long secondaryTimeOut,
-                                TableFunction<R> task,
-                                DocumentStore primary, DocumentStore secondary,
-                                Runnable failover, AtomicBoolean switched) {
-        Future<R> primaryFuture = prim.submit(() -> task.apply(primary));
-        try {
-            try {
-                // try on the primary table ... if we get a result, we win
-                return primaryFuture.get(timeOut, TimeUnit.MILLISECONDS);
-            } catch (TimeoutException | ExecutionException e) {
-                // We have lost confidence in the primary at this point even if we get a result
-                // We cancel request to the primary table, for fast change to the failover table
-                primaryFuture.cancel(true);
-                if (!switched.get()) {
-                    failover.run();
-                }
-                // No result in time from primary so we now try on secondary.
-                // Exceptional returns when timeout expires.
-                return sec.submit(() -> task.apply(secondary)).get(secondaryTimeOut, TimeUnit.MILLISECONDS);
-            }
-        } catch (InterruptedException e) {
-            // this should never happen except perhaps in debugging or on shutdown
-            throw new FailoverException("Thread was interrupted during operation", e);
-        } catch (ExecutionException e) {
-            Throwable cause = e.getCause();
-            if (cause instanceof RuntimeException) {
-                // these are likely StoreException, but we don't differentiate
-                throw (RuntimeException) cause;
-            } else {
-                // this should not happen in our situation since none of the methods do this
-                throw new FailoverException("Checked exception thrown (shouldn't happen)", cause);
-            }
-        } catch (TimeoutException e) {
-            throw new FailoverException("Operation timed out on primary and secondary tables", e);
-        }
+    @Override
+    public void insert(@NonNullable Document doc, @NonNullable FieldPath fieldAsKey) throws StoreException {
+        doNoReturn(OperationType.INSERT, ids(doc), (DocumentStore t) -> t.insert(doc), SAFE);
     }
 
     /**
-     * Swap primary and secondary tables
-     * <p>
-     * When failing over to another table/cluster or when going back to origin/master cluster
-     * we do not change the whole logic, but simply switch the primary/secondary tables
+     * {@inheritDoc}
      */
-    private void swapTableLinks() {
-        current.getAndUpdate(old -> 1 - old);
-        switched.compareAndSet(switched.get(), !switched.get());
-        LOG.info("Table switched: " + switched.get());
-        if (switched.get()) {
-            int stick = counterForTableSwitching.getAndIncrement();
-            LOG.info("Switch table for - {} ms", getTimeOut(stick));
-            swapTableBackAfter(getTimeOut(stick));
-        }
+    @Override
+    public void insert(@NonNullable Document doc, @NonNullable String fieldAsKey) throws StoreException {
+        doNoReturn(OperationType.INSERT, ids(doc, fieldAsKey), (DocumentStore t) -> t.insert(doc, fieldAsKey), SAFE);
     }
 
     /**
-     * Create task for swapping table back after timeout
-     *
-     * @param timeout Time after what we swap table back
+     * {@inheritDoc}
      */
-    private void swapTableBackAfter(long timeout) {
-        scheduler.schedule(
-                this::swapTableLinks, timeout, TimeUnit.MILLISECONDS);
+    @Override
+    public void insert(@NonNullable DocumentStream stream) throws MultiOpException {
+        bulkWrite(stream, EnhancedJSONTable::ids, (t, chunk) -> t.insert(chunk), SAFE);
     }
 
     /**
-     * Determines the amount of time that we need to stay on another table
-     * <p>
-     *
-     * @param numberOfSwitch Quantity of table switching
-     * @return time in milliseconds
+     * {@inheritDoc}
      */
-    private long getTimeOut(int numberOfSwitch) {
-        long minute = 60000;
-        switch (numberOfSwitch) {
-            case 0:
-                return minute / 3;
-            case 1:
-                return minute;
-            default:
-                return 2 * minute;
-        }
+    @Override
+    public void insert(@NonNullable DocumentStream stream, @NonNullable FieldPath fieldAsKey) throws MultiOpException {
+        bulkWrite(stream, doc -> ids(doc, fieldAsKey), (t, chunk) -> t.insert(chunk, fieldAsKey), SAFE);
     }
 
     /**
-     * Shutdown all executors, close connection to the tables.
-     * If you do not call this method, the application will freeze
-     *
-     * @throws StoreException If the underlying tables fail to close cleanly.
+     * {@inheritDoc}
+     */
+    @Override
+    public void insert(@NonNullable DocumentStream stream, @NonNullable String fieldAsKey) throws MultiOpException {
+        bulkWrite(stream, doc -> ids(doc, fieldAsKey), (t, chunk) -> t.insert(chunk, fieldAsKey), SAFE);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void replace(@NonNullable String _id, @NonNullable Document doc) throws StoreException {
+        doNoReturn(OperationType.REPLACE, ids(_id), (DocumentStore t) -> t.replace(_id, doc), mediumDangerous);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void replace(@NonNullable Value _id, @NonNullable Document doc) throws StoreException {
+        doNoReturn(OperationType.REPLACE, ids(_id), (DocumentStore t) -> t.replace(_id, doc), mediumDangerous);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void replace(@NonNullable Document doc) throws StoreException {
+        doNoReturn(OperationType.REPLACE, ids(doc), (DocumentStore t) -> t.replace(doc), mediumDangerous);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void replace(@NonNullable Document doc, @NonNullable FieldPath fieldAsKey) throws StoreException {
+        doNoReturn(OperationType.REPLACE, ids(doc, fieldAsKey), (DocumentStore t) -> t.replace(doc, fieldAsKey), mediumDangerous);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void replace(@NonNullable Document doc, @NonNullable String fieldAsKey) throws StoreException {
+        doNoReturn(OperationType.REPLACE, ids(doc, fieldAsKey), (DocumentStore t) -> t.replace(doc, fieldAsKey), mediumDangerous);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void replace(@NonNullable DocumentStream stream) throws MultiOpException {
+        bulkWrite(stream, EnhancedJSONTable::ids, (t, chunk) -> t.replace(chunk), mediumDangerous);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void replace(@NonNullable DocumentStream stream, @NonNullable FieldPath fieldAsKey) throws MultiOpException {
+        bulkWrite(stream, doc -> ids(doc, fieldAsKey), (t, chunk) -> t.replace(chunk, fieldAsKey), mediumDangerous);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void replace(@NonNullable DocumentStream stream, @NonNullable String fieldAsKey) throws MultiOpException {
+        bulkWrite(stream, doc -> ids(doc, fieldAsKey), (t, chunk) -> t.replace(chunk, fieldAsKey), mediumDangerous);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void increment(@NonNullable String _id, @NonNullable String field, byte inc) throws StoreException {
+        doNoReturn(OperationType.INCREMENT, ids(_id), (DocumentStore t) -> t.increment(_id, field, inc), veryDangerous);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void increment(@NonNullable String _id, @NonNullable String field, short inc) throws StoreException {
+        doNoReturn(OperationType.INCREMENT, ids(_id), (DocumentStore t) -> t.increment(_id, field, inc), veryDangerous);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void increment(@NonNullable String _id, @NonNullable String field, int inc) throws StoreException {
+        doNoReturn(OperationType.INCREMENT, ids(_id), (DocumentStore t) -> t.increment(_id, field, inc), veryDangerous);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void increment(@NonNullable String _id, @NonNullable String field, long inc) throws StoreException {
+        doNoReturn(OperationType.INCREMENT, ids(_id), (DocumentStore t) -> t.increment(_id, field, inc), veryDangerous);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void increment(@NonNullable String _id, @NonNullable String field, float inc) throws StoreException {
+        doNoReturn(OperationType.INCREMENT, ids(_id), (DocumentStore t) -> t.increment(_id, field, inc), veryDangerous);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void increment(@NonNullable String _id, @NonNullable String field, double inc) throws StoreException {
+        doNoReturn(OperationType.INCREMENT, ids(_id), (DocumentStore t) -> t.increment(_id, field, inc), veryDangerous);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void increment(@NonNullable String _id, @NonNullable String field, @NonNullable BigDecimal inc) throws StoreException {
+        doNoReturn(OperationType.INCREMENT, ids(_id), (DocumentStore t) -> t.increment(_id, field, inc), veryDangerous);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void increment(@NonNullable Value _id, @NonNullable String field, byte inc) throws StoreException {
+        doNoReturn(OperationType.INCREMENT, ids(_id), (DocumentStore t) -> t.increment(_id, field, inc), veryDangerous);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void increment(@NonNullable Value _id, @NonNullable String field, short inc) throws StoreException {
+        doNoReturn(OperationType.INCREMENT, ids(_id), (DocumentStore t) -> t.increment(_id, field, inc), veryDangerous);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void increment(@NonNullable Value _id, @NonNullable String field, int inc) throws StoreException {
+        doNoReturn(OperationType.INCREMENT, ids(_id), (DocumentStore t) -> t.increment(_id, field, inc), veryDangerous);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void increment(@NonNullable Value _id, @NonNullable String field, long inc) throws StoreException {
+        doNoReturn(OperationType.INCREMENT, ids(_id), (DocumentStore t) -> t.increment(_id, field, inc), veryDangerous);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void increment(@NonNullable Value _id, @NonNullable String field, float inc) throws StoreException {
+        doNoReturn(OperationType.INCREMENT, ids(_id), (DocumentStore t) -> t.increment(_id, field, inc), veryDangerous);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void increment(@NonNullable Value _id, @NonNullable String field, double inc) throws StoreException {
+        doNoReturn(OperationType.INCREMENT, ids(_id), (DocumentStore t) -> t.increment(_id, field, inc), veryDangerous);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void increment(@NonNullable Value _id, @NonNullable String field, @NonNullable BigDecimal inc) throws StoreException {
+        doNoReturn(OperationType.INCREMENT, ids(_id), (DocumentStore t) -> t.increment(_id, field, inc), veryDangerous);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean checkAndMutate(@NonNullable String _id, @NonNullable QueryCondition condition,
+                                  @NonNullable DocumentMutation mutation) throws StoreException {
+        return checkAndDoWithFailover(OperationType.CHECK_AND_MUTATE, ids(_id),
+                (DocumentStore t) -> t.checkAndMutate(_id, condition, mutation), veryDangerous);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean checkAndDelete(@NonNullable String _id, @NonNullable QueryCondition condition) throws StoreException {
+        return checkAndDoWithFailover(OperationType.CHECK_AND_MUTATE, ids(_id),
+                (DocumentStore t) -> t.checkAndDelete(_id, condition), veryDangerous);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean checkAndReplace(@NonNullable String _id, @NonNullable QueryCondition condition,
+                                   @NonNullable Document doc) throws StoreException {
+        return checkAndDoWithFailover(OperationType.CHECK_AND_MUTATE, ids(_id),
+                (DocumentStore t) -> t.checkAndReplace(_id, condition, doc), veryDangerous);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean checkAndMutate(@NonNullable Value _id, @NonNullable QueryCondition condition,
+                                  @NonNullable DocumentMutation m) throws StoreException {
+        return checkAndDoWithFailover(OperationType.CHECK_AND_MUTATE, ids(_id),
+                (DocumentStore t) -> t.checkAndMutate(_id, condition, m), veryDangerous);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean checkAndDelete(@NonNullable Value _id, @NonNullable QueryCondition condition) throws StoreException {
+        return checkAndDoWithFailover(OperationType.CHECK_AND_MUTATE, ids(_id),
+                (DocumentStore t) -> t.checkAndDelete(_id, condition), veryDangerous);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean checkAndReplace(@NonNullable Value _id, @NonNullable QueryCondition condition, @NonNullable Document doc) throws StoreException {
+        return checkAndDoWithFailover(OperationType.CHECK_AND_MUTATE, ids(_id),
+                (DocumentStore t) -> t.checkAndReplace(_id, condition, doc), veryDangerous);
+    }
+
+    /**
+     * Asynchronous version of {@link #findById(String)}. The fail-over works the same way, but the calling
+     * thread does not wait for the result.
+     *
+     * @param _id document id
+     * @return future that completes with the document or null if it doesn't exist
+     */
+    public CompletableFuture<Document> findByIdAsync(String _id) {
+        return checkAndDoWithFailoverAsync(OperationType.FIND_BY_ID, (DocumentStore t) -> t.findById(_id), SAFE);
+    }
+
+    /**
+     * Asynchronous version of {@link #findById(Value)}.
+     *
+     * @param _id document id
+     * @return future that completes with the document or null if it doesn't exist
+     */
+    public CompletableFuture<Document> findByIdAsync(Value _id) {
+        return checkAndDoWithFailoverAsync(OperationType.FIND_BY_ID, (DocumentStore t) -> t.findById(_id), SAFE);
+    }
+
+    /**
+     * Asynchronous version of {@link #findById(String, String...)}.
+     *
+     * @param _id        document id
+     * @param fieldPaths list of fields that should be returned
+     * @return future that completes with the document or null if it doesn't exist
+     */
+    public CompletableFuture<Document> findByIdAsync(String _id, String... fieldPaths) {
+        return checkAndDoWithFailoverAsync(OperationType.FIND_BY_ID, (DocumentStore t) -> t.findById(_id, fieldPaths), SAFE);
+    }
+
+    /**
+     * Asynchronous version of {@link #findQuery(Query)}.
+     *
+     * @param query the query to execute
+     * @return future that completes with the stream of documents, wrapped by DocumentStreamFailoverWrapper
+     */
+    public CompletableFuture<DocumentStream> findQueryAsync(@NonNullable Query query) {
+        return checkAndDoWithFailoverAsync(OperationType.FIND_QUERY, (DocumentStore t) -> t.findQuery(query), SAFE)
+                .thenApply(DocumentStreamFailoverWrapper::new);
+    }
+
+    /**
+     * Asynchronous version of {@link #findQuery(String)}.
+     *
+     * @param query the query to execute, in JSON form
+     * @return future that completes with the stream of documents, wrapped by DocumentStreamFailoverWrapper
+     */
+    public CompletableFuture<DocumentStream> findQueryAsync(@NonNullable String query) {
+        return checkAndDoWithFailoverAsync(OperationType.FIND_QUERY, (DocumentStore t) -> t.findQuery(query), SAFE)
+                .thenApply(DocumentStreamFailoverWrapper::new);
+    }
+
+    /**
+     * Asynchronous version of {@link #insertOrReplace(Document)}.
+     *
+     * @param doc the document to insert or replace
+     * @return future that completes when the document is written
+     */
+    public CompletableFuture<Void> insertOrReplaceAsync(@NonNullable Document doc) {
+        return doNoReturnOrSpillAsync(OperationType.INSERT_OR_REPLACE, ids(doc),
+                (DocumentStore t) -> t.insertOrReplace(doc), Outbox.Kind.INSERT_OR_REPLACE, null, doc);
+    }
+
+    /**
+     * Asynchronous version of {@link #insertOrReplace(Value, Document)}.
+     *
+     * @param _id document id
+     * @param doc the document to insert or replace
+     * @return future that completes when the document is written
+     */
+    public CompletableFuture<Void> insertOrReplaceAsync(@NonNullable Value _id, @NonNullable Document doc) {
+        return doNoReturnAsync(OperationType.INSERT_OR_REPLACE, ids(_id), (DocumentStore t) -> t.insertOrReplace(_id, doc), SAFE);
+    }
+
+    /**
+     * Asynchronous version of {@link #insert(Document)}.
+     *
+     * @param doc the document to insert
+     * @return future that completes when the document is written
+     */
+    public CompletableFuture<Void> insertAsync(@NonNullable Document doc) {
+        return doNoReturnAsync(OperationType.INSERT, ids(doc), (DocumentStore t) -> t.insert(doc), SAFE);
+    }
+
+    /**
+     * Asynchronous version of {@link #update(String, DocumentMutation)}.
+     *
+     * @param _id      document id
+     * @param mutation the mutation to apply
+     * @return future that completes when the document is updated
+     */
+    public CompletableFuture<Void> updateAsync(@NonNullable String _id, @NonNullable DocumentMutation mutation) {
+        return doNoReturnAsync(OperationType.UPDATE, ids(_id), (DocumentStore t) -> t.update(_id, mutation), SAFE);
+    }
+
+    /**
+     * Asynchronous version of {@link #update(Value, DocumentMutation)}.
+     *
+     * @param _id      document id
+     * @param mutation the mutation to apply
+     * @return future that completes when the document is updated
+     */
+    public CompletableFuture<Void> updateAsync(@NonNullable Value _id, @NonNullable DocumentMutation mutation) {
+        return doNoReturnAsync(OperationType.UPDATE, ids(_id), (DocumentStore t) -> t.update(_id, mutation), SAFE);
+    }
+
+    /**
+     * Asynchronous version of {@link #delete(String)}.
+     *
+     * @param _id document id
+     * @return future that completes when the document is deleted
+     */
+    public CompletableFuture<Void> deleteAsync(@NonNullable String _id) {
+        return doNoReturnOrSpillAsync(OperationType.DELETE, ids(_id), (DocumentStore t) -> t.delete(_id),
+                Outbox.Kind.DELETE, _id, null);
+    }
+
+    public boolean isTableSwitched() {
+        return group.isSwitched();
+    }
+
+    /**
+     * @return the current routing of requests, for monitoring
+     */
+    public RoutingState getRoutingState() {
+        return group.getRoutingState();
+    }
+
+    private void doNoReturn(OperationType type, WrittenIds ids, TableProcedure task, boolean withFailover) {
+        checkAndDoWithFailover(type, ids, (DocumentStore t) -> {
+            task.apply(t);
+            return null;
+        }, withFailover);
+    }
+
+    private CompletableFuture<Void> doNoReturnAsync(OperationType type, WrittenIds ids, TableProcedure task,
+                                                    boolean withFailover) {
+        Outbox box = outbox;
+        if (box != null && !box.startDirect()) {
+            return failed(behindOutbox(box));
+        }
+        CompletableFuture<Void> result = doNoReturnAsync(type, journaled(type, ids, task), withFailover);
+        if (box != null) {
+            result.whenComplete((r, t) -> box.finishDirect());
+        }
+        return result;
+    }
+
+    private <R> R checkAndDoWithFailover(OperationType type, WrittenIds ids, TableFunction<R> task,
+                                         boolean withFailover) {
+        Outbox box = outbox;
+        if (box != null && !box.startDirect()) {
+            throw behindOutbox(box);
+        }
+        try {
+            return checkAndDoWithFailover(type, journaled(type, ids, task), withFailover);
+        } finally {
+            if (box != null) {
+                box.finishDirect();
+            }
+        }
+    }
+
+    /**
+     * @return error for a write that must not overtake the writes in the outbox
+     */
+    private static FailoverException behindOutbox(Outbox box) {
+        return new FailoverException("Outbox holds earlier writes that would be applied after this one: " + box,
+                null);
+    }
+
+    /**
+     * @return task that records the ids in the write journal when it runs on a table other than the primary one,
+     * and remembers them for the reconciliation when it succeeds on the primary one
+     */
+    private TableProcedure journaled(OperationType type, WrittenIds ids, TableProcedure task) {
+        return (DocumentStore t) -> {
+            journal(type, ids, t);
+            if (stores[0].get() != t) {
+                task.apply(t);
+                return;
+            }
+            Lock[] locks = lockKeys(ids, false);
+            try {
+                task.apply(t);
+                writtenToPrimary(ids, t);
+            } finally {
+                unlock(locks);
+            }
+        };
+    }
+
+    private <R> TableFunction<R> journaled(OperationType type, WrittenIds ids, TableFunction<R> task) {
+        return (DocumentStore t) -> {
+            journal(type, ids, t);
+            if (stores[0].get() != t) {
+                return task.apply(t);
+            }
+            Lock[] locks = lockKeys(ids, false);
+            try {
+                R result = task.apply(t);
+                writtenToPrimary(ids, t);
+                return result;
+            } finally {
+                unlock(locks);
+            }
+        };
+    }
+
+    /**
+     * Copy keys to the primary table while no write of the application to them runs there, so the copy does
+     * not overwrite a write that lands after its keys were checked
+     *
+     * @param ids  the keys copied
+     * @param copy checks the keys against {@link #primaryWrites()} and writes them
+     * @return the result of the copy
+     */
+    <T> T copyToPrimary(Collection<?> ids, Supplier<T> copy) {
+        Lock[] locks = lockKeys(written -> ids.forEach(written), true);
+        try {
+            return copy.get();
+        } finally {
+            unlock(locks);
+        }
+    }
+
+    /**
+     * Lock the keys in the order of their locks, so writes of overlapping keys do not deadlock
+     */
+    private Lock[] lockKeys(WrittenIds ids, boolean exclusive) {
+        BitSet stripes = new BitSet(KEY_LOCK_STRIPES);
+        ids.forEach(id -> stripes.set(Math.floorMod(id.hashCode(), KEY_LOCK_STRIPES)));
+        Lock[] locks = new Lock[stripes.cardinality()];
+        int n = 0;
+        for (int i = stripes.nextSetBit(0); i >= 0; i = stripes.nextSetBit(i + 1)) {
+            Lock lock = exclusive ? keyLocks[i].writeLock() : keyLocks[i].readLock();
+            lock.lock();
+            locks[n++] = lock;
+        }
+        return locks;
+    }
+
+    private static void unlock(Lock[] locks) {
+        for (int i = locks.length - 1; i >= 0; i--) {
+            locks[i].unlock();
+        }
+    }
+
+    private void journal(OperationType type, WrittenIds ids, DocumentStore store) {
+        WriteJournal journal = writeJournal;
+        if (journal == null) {
+            return;
+        }
+        int table = -1;    // the store was reopened since the task was given it, record the write to be safe
+        for (int k = 0; k < stores.length; k++) {
+            if (stores[k].get() == store) {
+                table = k;
+            }
+        }
+        if (table != 0) {
+            if (primaryWrites.get() == null) {
+                primaryWrites.compareAndSet(null, new ConcurrentHashMap<>());
+            }
+            int written = table;
+            ids.forEach(id -> {
+                if (id instanceof String) {
+                    journal.record(type, written, (String) id);
+                } else {
+                    journal.record(type, written, (ByteBuffer) id);
+                }
+            });
+        }
+    }
+
+    private void writtenToPrimary(WrittenIds ids, DocumentStore store) {
+        Map<Object, Long> written = primaryWrites.get();
+        if (written == null || stores[0].get() != store) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        ids.forEach(id -> {
+            Object key = id instanceof ByteBuffer ? copy((ByteBuffer) id) : id;
+            if (written.size() < MAX_TRACKED_PRIMARY_WRITES) {
+                written.put(key, now);
+            } else if (written.replace(key, now) == null) {
+                LOG.debug("Write of {} to the primary table of {} is not remembered for the reconciliation", id,
+                        this);
+            }
+        });
+    }
+
+    /**
+     * @return copy of the binary id that does not change with the position of the given buffer
+     */
+    private static ByteBuffer copy(ByteBuffer id) {
+        ByteBuffer key = ByteBuffer.allocate(id.remaining()).put(id.duplicate());
+        ((Buffer) key).flip();
+        return key;
+    }
+
+    /**
+     * @return when the keys, string or binary ids, were last written to the primary table since a write was
+     * journaled, in milliseconds, empty if nothing was journaled
+     */
+    Map<Object, Long> primaryWrites() {
+        Map<Object, Long> written = primaryWrites.get();
+        return written != null ? written : Collections.emptyMap();
+    }
+
+    /**
+     * Forget the writes to the primary table, the writes journaled before are reconciled
+     *
+     * @param reconciled the writes returned by {@link #primaryWrites()} when the reconciliation started
+     */
+    void primaryWritesReconciled(Map<Object, Long> reconciled) {
+        primaryWrites.compareAndSet(reconciled, null);
+    }
+
+    private static WrittenIds ids(String id) {
+        return ids -> ids.accept(id);
+    }
+
+    private static WrittenIds ids(Value id) {
+        return ids -> {
+            if (id == null) {
+                return;    // the write fails on its own, there is nothing to record
+            }
+            if (id.getType() == Value.Type.BINARY) {
+                ids.accept(id.getBinary());
+            } else if (id.getType() == Value.Type.STRING) {
+                ids.accept(id.getString());
+            } else {
+                ids.accept(id.asJsonString());
+            }
+        };
+    }
+
+    private static WrittenIds ids(Document doc) {
+        return ids -> ids(doc.getId()).forEach(ids);
+    }
+
+    private static WrittenIds ids(Document doc, String fieldAsKey) {
+        return ids -> ids(doc.getValue(fieldAsKey)).forEach(ids);
+    }
+
+    private static WrittenIds ids(Document doc, FieldPath fieldAsKey) {
+        return ids(doc, fieldAsKey.asPathString());
+    }
+
+    private static WrittenIds ids(List<Document> documents, Function<Document, WrittenIds> idsOf) {
+        return ids -> {
+            for (Document doc : documents) {
+                idsOf.apply(doc).forEach(ids);
+            }
+        };
+    }
+
+    /**
+     * Write with fail-over, and hand the write to the outbox when it was sent to all the tables and all of them
+     * failed, or when the outbox holds earlier writes
+     *
+     * @param kind the kind of the write for the outbox
+     * @param id   the id for the outbox, or null if the document holds it, a delete without it is not spilled
+     * @param doc  the document for the outbox, null for a delete
+     */
+    private void doNoReturnOrSpill(OperationType type, WrittenIds ids, TableProcedure task, Outbox.Kind kind,
+                                   String id, Document doc) {
+        Outbox box = outbox;
+        if (box == null || (kind == Outbox.Kind.DELETE && id == null)) {
+            doNoReturn(type, ids, task, SAFE);
+            return;
+        }
+        if (box.startDirect()) {
+            Set<DocumentStore> attempted = ConcurrentHashMap.newKeySet();
+            RuntimeException failure;
+            try {
+                doNoReturn(type, journaled(type, ids, attempted(task, attempted)), SAFE);
+                return;
+            } catch (RuntimeException e) {
+                failure = e;
+            } finally {
+                box.finishDirect();
+            }
+            if (!allTablesFailed(failure, attempted) || !box.offer(kind, id, doc)) {
+                throw failure;
+            }
+            LOG.debug("Write accepted by the outbox after all tables failed", failure);
+            return;
+        }
+        // applied after the writes the outbox already holds
+        if (!box.offer(kind, id, doc)) {
+            throw new FailoverException("Outbox holds earlier writes and did not accept this one: " + box, null);
+        }
+    }
+
+    /**
+     * Same as {@link #doNoReturnOrSpill}, without waiting. The outbox waits for the writes sent to the tables
+     * and forces its files to disk, so a failed write is handed to it on the maintenance executor.
+     */
+    private CompletableFuture<Void> doNoReturnOrSpillAsync(OperationType type, WrittenIds ids, TableProcedure task,
+                                                           Outbox.Kind kind, String id, Document doc) {
+        Outbox box = outbox;
+        if (box == null || (kind == Outbox.Kind.DELETE && id == null)) {
+            return doNoReturnAsync(type, ids, task, SAFE);
+        }
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        if (!box.startDirect()) {
+            spill(box, kind, id, doc, result, new FailoverException("Outbox holds earlier writes and did not accept "
+                    + "this one: " + box, null));
+            return result;
+        }
+        Set<DocumentStore> attempted = ConcurrentHashMap.newKeySet();
+        doNoReturnAsync(type, journaled(type, ids, attempted(task, attempted)), SAFE).whenComplete((r, t) -> {
+            box.finishDirect();
+            if (t == null) {
+                result.complete(null);
+            } else if (allTablesFailed(t, attempted)) {
+                spill(box, kind, id, doc, result, t);
+            } else {
+                result.completeExceptionally(t);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Hand a write to the outbox on the maintenance executor
+     *
+     * @param result completes when the outbox has accepted the write, or exceptionally with the error otherwise
+     */
+    private void spill(Outbox box, Outbox.Kind kind, String id, Document doc, CompletableFuture<Void> result,
+                       Throwable error) {
+        try {
+            maintenance.execute(() -> {
+                if (box.offer(kind, id, doc)) {
+                    result.complete(null);
+                } else {
+                    result.completeExceptionally(error);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            result.completeExceptionally(error);
+        }
+    }
+
+    /**
+     * @return task that remembers the tables it was run on
+     */
+    private static TableProcedure attempted(TableProcedure task, Set<DocumentStore> attempted) {
+        return (DocumentStore t) -> {
+            attempted.add(t);
+            task.apply(t);
+        };
+    }
+
+    /**
+     * @return true if the write failed on every table it was sent to and it was sent to all of them, a write
+     * stopped by a circuit breaker, a deadline or a saturated worker pool has not tried every table
+     */
+    private boolean allTablesFailed(Throwable error, Set<DocumentStore> attempted) {
+        Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+        return !exceptionClassifier.isApplicationError(cause) && attempted.size() >= stores.length;
+    }
+
+    private void doNoReturn(OperationType type, TableProcedure task, boolean withFailover) {
+        checkAndDoWithFailover(type, (DocumentStore t) -> {
+            task.apply(t);
+            return null;
+        }, withFailover);
+    }
+
+    private CompletableFuture<Void> doNoReturnAsync(OperationType type, TableProcedure task, boolean withFailover) {
+        return checkAndDoWithFailoverAsync(type, (DocumentStore t) -> {
+            task.apply(t);
+            return null;
+        }, withFailover);
+    }
+
+    /**
+     * Write a stream in chunks. Each chunk is buffered, so every attempt reads it from the start, and is written
+     * with fail-over of its own. At most {@link #bulkParallelism} chunks are in flight, the reading waits for
+     * one of them to finish before it goes on. When reading the stream fails, the chunks already sent finish before
+     * the error is passed on.
+     *
+     * @param stream       the documents to write
+     * @param idsOf        the ids of a document, for the write journal
+     * @param task         writes one chunk to a table
+     * @param withFailover whether the chunks may fail over
+     * @throws MultiOpException  with the failed documents at their positions in the stream
+     * @throws StoreException    if all the chunks failed, the error of the first chunk of the stream
+     * @throws FailoverException if the thread was interrupted
+     */
+    private void bulkWrite(DocumentStream stream, Function<Document, WrittenIds> idsOf,
+                           BiConsumer<DocumentStore, DocumentStream> task, boolean withFailover) throws MultiOpException {
+        int chunkSize = bulkChunkSize;
+        Semaphore inFlight = new Semaphore(bulkParallelism);
+        List<CompletableFuture<Void>> sent = new ArrayList<>();
+        List<CompletableFuture<Void>> chunks = new ArrayList<>();    // done once the outcome is recorded
+        List<MultiOpException.Failure> failures = Collections.synchronizedList(new ArrayList<>());
+        // errors of the failed chunks by their offset in the stream
+        ConcurrentSkipListMap<Integer, Throwable> errors = new ConcurrentSkipListMap<>();
+        boolean awaited = false;
+        try {
+            int offset = 0;
+            List<Document> chunk = new ArrayList<>(chunkSize);
+            Iterator<Document> documents = stream.iterator();
+            while (documents.hasNext()) {
+                chunk.add(documents.next());
+                if (chunk.size() == chunkSize || !documents.hasNext()) {
+                    inFlight.acquire();
+                    List<Document> written = chunk;
+                    int start = offset;
+                    CompletableFuture<Void> result = doNoReturnAsync(OperationType.BULK_WRITE, ids(written, idsOf),
+                            (DocumentStore t) -> task.accept(t, new DocumentListStream(written)), withFailover);
+                    sent.add(result);
+                    chunks.add(result.whenComplete((r, t) -> {
+                        inFlight.release();
+                        if (t != null) {
+                            chunkFailed(written, start, t, failures, errors);
+                        }
+                    }));
+                    offset += chunk.size();
+                    chunk = new ArrayList<>(chunkSize);
+                }
+            }
+            CompletableFuture.allOf(chunks.toArray(new CompletableFuture<?>[0])).handle((r, t) -> null).get();
+            awaited = true;
+        } catch (InterruptedException e) {
+            // this should never happen except perhaps in debugging or on shutdown
+            cancel(sent);
+            awaited = true;
+            throw new FailoverException("Thread was interrupted during bulk write", e);
+        } catch (ExecutionException e) {
+            // the outcomes are recorded without failing, so this should not happen
+            throw new FailoverException("Bulk write failed", e.getCause());
+        } finally {
+            if (!awaited) {
+                // the stream failed, do not return while chunks of it are still being written
+                try {
+                    CompletableFuture.allOf(chunks.toArray(new CompletableFuture<?>[0])).handle((r, t) -> null).get();
+                } catch (InterruptedException e) {
+                    cancel(sent);
+                    Thread.currentThread().interrupt();
+                } catch (ExecutionException e) {
+                    // the outcomes are recorded without failing
+                }
+            }
+        }
+        if (!errors.isEmpty() && errors.size() == chunks.size()
+                && !(errors.firstEntry().getValue() instanceof MultiOpException)) {
+            // nothing was written, report it the same way as a failure of a single request
+            Throwable error = errors.firstEntry().getValue();
+            throw error instanceof RuntimeException ? (RuntimeException) error
+                    : new FailoverException("Bulk write failed", error);
+        }
+        if (!failures.isEmpty()) {
+            failures.sort(Comparator.comparingInt(MultiOpException.Failure::getIndex));
+            throw new MultiOpException(failures);
+        }
+    }
+
+    private static void cancel(List<CompletableFuture<Void>> sent) {
+        for (CompletableFuture<Void> result : sent) {
+            result.cancel(true);
+        }
+    }
+
+    /**
+     * Record the documents of a failed chunk at their positions in the stream
+     */
+    private static void chunkFailed(List<Document> chunk, int offset, Throwable error,
+                                    List<MultiOpException.Failure> failures,
+                                    ConcurrentSkipListMap<Integer, Throwable> errors) {
+        errors.put(offset, error);
+        if (error instanceof MultiOpException) {
+            for (MultiOpException.Failure failure : ((MultiOpException) error).getFailures()) {
+                failures.add(new MultiOpException.Failure(failure.getDocument(), offset + failure.getIndex(),
+                        failure.getFailure()));
+            }
+            return;
+        }
+        Exception cause = error instanceof Exception ? (Exception) error
+                : new FailoverException("Bulk write failed", error);
+        for (int i = 0; i < chunk.size(); i++) {
+            failures.add(new MultiOpException.Failure(chunk.get(i), offset + i, cause));
+        }
+    }
+
+    private <R> R checkAndDoWithFailover(OperationType type, TableFunction<R> task, boolean withFailover) {
+        return await(checkAndDoWithFailoverAsync(type, task, withFailover));
+    }
+
+    private <R> CompletableFuture<R> checkAndDoWithFailoverAsync(OperationType type, TableFunction<R> task,
+                                                               boolean withFailover) {
+        Deadline deadline = Deadline.current();
+        // milliseconds left for the request, or -1 without a deadline
+        long budget = deadline == null ? -1 : Math.max(0, deadline.remainingMillis());
+        if (budget == 0) {
+            return failed(new FailoverException("Deadline passed before the request was sent", new TimeoutException()));
+        }
+        RoutingState state = group.current();
+        // the open tables in the order they are tried, the active one first, then the replicas that follow it
+        int[] chain = new int[stores.length];
+        DocumentStore[] open = new DocumentStore[stores.length];
+        int length = 0;
+        for (int k = 0; k < stores.length; k++) {
+            int table = (state.getActive() + k) % stores.length;
+            DocumentStore store = stores[table].get();
+            if (store != null) {
+                chain[length] = table;
+                open[length++] = store;
+            }
+        }
+        if (length == 0) {
+            return failed(new FailoverException(noneOfTheTables() + " is open", null));
+        }
+        if (length > 1 && chain[0] != 0 && group.admitToPrimary(state)) {
+            // the group ramps back to the primary table, this request tries it first
+            for (int k = 1; k < length; k++) {
+                if (chain[k] == 0) {
+                    moveToFront(chain, open, k);
+                    break;
+                }
+            }
+        }
+        ReadBalancer balancer = readBalancer;
+        if (balancer != null && type.isRead() && withFailover && length > 1) {
+            int chosen = balancer.choose(chain, length);
+            if (chosen > 0) {
+                // the chosen replica is tried first, the others keep the order of the routing
+                moveToFront(chain, open, chosen);
+            }
+        }
+        // while the active table is still being opened, or a request was ramped or balanced to another replica,
+        // the others serve without switching the routing
+        boolean reroute = chain[0] == state.getActive();
+        AdaptiveHedging hedging = adaptiveHedging;
+        CircuitBreaker breaker = circuitBreaker;
+        ExceptionClassifier classifier = exceptionClassifier;
+        StandbyKeepAlive keepAlive = standbyKeepAlive;
+        if (keepAlive != null && type == OperationType.FIND_BY_ID && length > 1 && keepAlive.shouldShadow()) {
+            // the answer of the standby table is not used, the request only keeps it warm
+            FallbackRequest.supply(executors[chain[1]], task, open[1])
+                    .whenComplete((r, t) -> keepAlive.onShadowComplete(t));
+        }
+        // the tables whose breaker let the request through, only their outcomes are trials of a half open breaker
+        boolean[] permitted = new boolean[stores.length];
+        // position of the first table in the chain whose breaker lets the request through
+        int first = 0;
+        if (breaker != null) {
+            int candidates = withFailover ? length : 1;
+            while (first < candidates && !(permitted[chain[first]] = breaker.tryAcquire(chain[first]))) {
+                first++;
+            }
+            if (first == candidates) {
+                return failed(new FailoverException(breakersOpen(chain, candidates), null));
+            }
+        }
+        if (first > 1) {
+            // the clusters known to be sick are left out, the last of them stays in the chain and is not tried
+            int skipped = first - 1;
+            System.arraycopy(chain, skipped, chain, 0, length - skipped);
+            System.arraycopy(open, skipped, open, 0, length - skipped);
+            length -= skipped;
+            first = 1;
+        }
+        FallbackRequest<R> request = withFailover && length > 1 ? hedgingChain(type, task, state, chain, open,
+                length, reroute, hedging, breaker, permitted, classifier, balancer, budget) : null;
+        if (request != null) {
+            // with an open breaker there is no point in waiting for the table
+            return first == 0 ? request.start() : request.startOnSecondary();
+        }
+        // without failover, or when the deadline leaves no time to hedge
+        // each executor works only with its own cluster, so when the table is switched they swap roles too
+        int i = chain[first];
+        ExecutorService prim = executors[i];
+        FallbackRequest.LatencyListener listener = attemptListener(i, i, type, hedging, breaker, permitted,
+                classifier, balancer);
+        listener.onStart(true);
+        long started = System.nanoTime();
+        CompletableFuture<R> result = doWithoutFailoverAsync(prim, task, open[first]);
+        result.whenComplete((r, t) -> {
+            if (t == null) {
+                listener.onSuccess(true, System.nanoTime() - started);
+            } else {
+                listener.onFailure(true, t);
+            }
+        });
+        return budget < 0 ? result : withDeadline(result, budget);
+    }
+
+    /**
+     * Give up on an attempt when the deadline passes. The attempt is cancelled, so it does not count
+     * against its table.
+     *
+     * @param attempt the attempt on a single table
+     * @param budget  milliseconds left until the deadline
+     * @return future that completes with the result of the attempt, or exceptionally at the deadline
+     */
+    private <R> CompletableFuture<R> withDeadline(CompletableFuture<R> attempt, long budget) {
+        CompletableFuture<R> result = new CompletableFuture<>();
+        attempt.whenComplete((r, t) -> {
+            if (t == null) {
+                result.complete(r);
+            } else {
+                result.completeExceptionally(t);
+            }
+        });
+        ScheduledFuture<?> giveUp = scheduler.schedule(() -> {
+            if (result.completeExceptionally(new FailoverException("Operation did not finish within the deadline of "
+                    + budget + " ms", new TimeoutException()))) {
+                attempt.cancel(true);
+            }
+        }, budget, TimeUnit.MILLISECONDS);
+        result.whenComplete((r, t) -> {
+            giveUp.cancel(false);
+            if (result.isCancelled()) {
+                attempt.cancel(true);
+            }
+        });
+        return result;
+    }
+
+    private String breakersOpen(int[] chain, int length) {
+        if (length == 1) {
+            return "Circuit breaker of table " + tableNames[chain[0]] + " is open";
+        }
+        StringJoiner names = new StringJoiner(", ");
+        for (int k = 0; k < length; k++) {
+            names.add(tableNames[chain[k]]);
+        }
+        return "Circuit breakers of tables " + names + " are open";
+    }
+
+    private static void moveToFront(int[] chain, DocumentStore[] open, int position) {
+        int table = chain[position];
+        DocumentStore store = open[position];
+        System.arraycopy(chain, 0, chain, 1, position);
+        System.arraycopy(open, 0, open, 1, position);
+        chain[0] = table;
+        open[0] = store;
+    }
+
+    /**
+     * Build the requests of a hedging chain from its end. With two tables the chain is a single request.
+     * Under a deadline the waits are cut to the budget, and the chain ends at the first table after which
+     * less than {@link #minSecondaryBudget} would be left.
+     *
+     * @param state   the routing the request is dispatched with
+     * @param chain   indexes of the open tables in the order they are tried
+     * @param open    the stores of these tables
+     * @param length  quantity of the open tables
+     * @param reroute true if the failed steps of the chain may switch the routing
+     * @param permitted the tables whose breaker let the request through, filled in before the chain starts
+     * @param budget  milliseconds left until the deadline, or -1 without a deadline
+     * @return the first request of the chain, or null if the deadline leaves no time to hedge
+     */
+    private <R> FallbackRequest<R> hedgingChain(OperationType type, TableFunction<R> task, RoutingState state,
+                                                int[] chain, DocumentStore[] open, int length, boolean reroute,
+                                                AdaptiveHedging hedging, CircuitBreaker breaker, boolean[] permitted,
+                                                ExceptionClassifier classifier, ReadBalancer balancer,
+                                                long budget) {
+        long[] delays = hedgeDelays;
+        long[] waits = new long[length - 1];
+        long[] giveUps = new long[length - 1];
+        int hops = 0;
+        long remaining = budget;
+        long reserve = minSecondaryBudget;
+        for (int k = 0; k < length - 1; k++) {
+            long base = delays == null ? timeOut : delays[k];
+            long wait = hedging == null ? base : hedging.hedgeDelay(chain[k], type, base);
+            long giveUp = secondaryTimeOut;
+            if (budget >= 0) {
+                wait = Math.min(wait, remaining - reserve);
+                if (wait <= 0) {
+                    break;
+                }
+                remaining -= wait;
+                giveUp = Math.min(giveUp, remaining);
+            }
+            waits[k] = wait;
+            giveUps[k] = giveUp;
+            hops++;
+        }
+        boolean race = latePrimaryAllowed.contains(type);
+        FallbackRequest<R> request = null;
+        for (int k = hops - 1; k >= 0; k--) {
+            int from = chain[k];
+            int to = chain[k + 1];
+            long hedgeDelay = waits[k];
+            Runnable failover = reroute ? failOverStep(state, from, to, k) : () -> {
+            };
+            FallbackRequest.LatencyListener listener = attemptListener(from, to, type, hedging, breaker, permitted,
+                    classifier, balancer);
+            if (request == null) {
+                request = new FallbackRequest<>(executors[from], executors[to], scheduler, hedgeDelay,
+                        giveUps[k], task, open[k], open[k + 1], failover, listener, race, classifier);
+            } else {
+                request = new FallbackRequest<>(executors[from], scheduler, hedgeDelay, giveUps[k],
+                        task, open[k], request, failover, listener, race, classifier);
+            }
+        }
+        return request;
+    }
+
+    /**
+     * @param state the routing the request is dispatched with
+     * @param from  the table the step of the chain gives up on
+     * @param to    the table the step hedges to
+     * @param step  position of the step in the chain
+     * @return task that switches the group to the next table of the chain
+     */
+    private Runnable failOverStep(RoutingState state, int from, int to, int step) {
+        if (step == 0) {
+            return () -> group.failOver(state, to);
+        }
+        return () -> {
+            // only if nobody has switched since, or only the earlier steps of this chain did
+            RoutingState current = group.current();
+            if (current == state || (current.getEpoch() == state.getEpoch() + 1 && current.getActive() == from)) {
+                group.failOver(current, to);
+            }
+        };
+    }
+
+    /**
+     * @param primary    index of the table that acts as primary for the request
+     * @param secondary  index of the table that acts as secondary for the request
+     * @param type       kind of the request
+     * @param hedging    where the latency is recorded, may be null
+     * @param breaker    where the outcome is recorded, may be null
+     * @param permitted  the tables whose breaker let the request through, filled in before the request starts
+     * @param classifier application errors count neither against the table in the breaker
+     *                   nor towards opening the table again
+     * @param balancer   where the requests in progress and the read latency are tracked, may be null
+     * @return listener that passes the outcome of every attempt to the statistics of its table
+     */
+    private FallbackRequest.LatencyListener attemptListener(int primary, int secondary, OperationType type,
+                                                            AdaptiveHedging hedging, CircuitBreaker breaker,
+                                                            boolean[] permitted, ExceptionClassifier classifier,
+                                                            ReadBalancer balancer) {
+        return new FallbackRequest.LatencyListener() {
+            @Override
+            public void onStart(boolean onPrimary) {
+                if (balancer != null) {
+                    balancer.onStart(onPrimary ? primary : secondary);
+                }
+            }
+
+            @Override
+            public void onSuccess(boolean onPrimary, long nanos) {
+                int table = onPrimary ? primary : secondary;
+                stores[table].onSuccess();
+                if (balancer != null) {
+                    balancer.onSuccess(table, type.isRead() ? nanos : -1);
+                }
+                if (hedging != null) {
+                    hedging.record(table, type, nanos);
+                }
+                FailbackRamp ramp = group.getFailbackRamp();
+                if (ramp != null && table == 0) {
+                    ramp.onSuccess(nanos);
+                }
+                if (breaker != null) {
+                    breaker.onSuccess(table, nanos, permitted[table]);
+                }
+            }
+
+            @Override
+            public void onTimeout(boolean onPrimary, long nanos) {
+                if (hedging != null) {
+                    hedging.recordAbandoned(onPrimary ? primary : secondary, type, nanos);
+                }
+            }
+
+            @Override
+            public void onFailure(boolean onPrimary, Throwable error) {
+                int table = onPrimary ? primary : secondary;
+                boolean inconclusive = classifier.isApplicationError(error) || FallbackRequest.isInconclusive(error);
+                if (balancer != null) {
+                    balancer.onFailure(table, !inconclusive);
+                }
+                if (inconclusive) {
+                    if (breaker != null) {
+                        breaker.onIgnored(table, permitted[table]);
+                    }
+                    return;
+                }
+                stores[table].onFailure();
+                if (breaker != null) {
+                    breaker.onFailure(table, permitted[table]);
+                }
+                FailbackRamp ramp = group.getFailbackRamp();
+                if (ramp != null && table == 0) {
+                    ramp.onFailure();
+                }
+            }
+        };
+    }
+
+    private static <R> CompletableFuture<R> failed(Throwable error) {
+        CompletableFuture<R> result = new CompletableFuture<>();
+        result.completeExceptionally(error);
+        return result;
+    }
+
+    /**
+     * Process request to db without Failover
+     *
+     * @param prim    The worker pool of the cluster that primary table belongs to
+     * @param task    A lambda with one argument, a table, that does the desired operation
+     * @param primary The primary table
+     * @param <R>     The type that task will return
+     * @return Future that completes with the value returned by task
+     */
+    private <R> CompletableFuture<R> doWithoutFailoverAsync(ExecutorService prim, TableFunction<R> task,
+                                                            DocumentStore primary) {
+        return FallbackRequest.supply(prim, task, primary);
+    }
+
+    /**
+     * Tries to do task on primary until timeOut milliseconds have passed. From then
+     * the task is also attempted with secondary. If second succeeds, we use that result.
+     * If the primary blows the first timeout, then we initiate a failover by invoking
+     * failoverTask. When both primary and secondary throw exceptions, we rethrow the
+     * last exception received. When secondary exceed secondaryTimeOut
+     * milliseconds with no exceptions and no results, then an exception is thrown.
+     * <p>
+     * This method is static to make testing easier.
+     *
+     * @param prim             The worker pool of the cluster that primary table belongs to
+     * @param sec              The worker pool of the cluster that secondary table belongs to
+     * @param timer            The scheduler that keeps track of timeouts
+     * @param timeOut          How long to wait before invoking the secondary
+     * @param secondaryTimeOut How long to wait before entirely giving up
+     * @param task             A lambda with one argument, a table, that does the desired operation
+     * @param primary          The primary table
+     * @param secondary        The secondary table
+     * @param failover         The function to call when primary doesn't respond quickly, at most once
+     * @param <R>              The type that task will return
+     * @return The value returned by task
+     * @throws StoreException    If both primary and secondary fail
+     * @throws FailoverException If both primary and secondary fail. This may wrap a real exception
+     */
+    static <R> R doWithFallback(ExecutorService prim, ExecutorService sec, ScheduledExecutorService timer,
+                                long timeOut, long secondaryTimeOut,
+                                TableFunction<R> task,
+                                DocumentStore primary, DocumentStore secondary,
+                                Runnable failover) {
+        return await(doWithFallbackAsync(prim, sec, timer, timeOut, secondaryTimeOut, task, primary, secondary,
+                failover));
+    }
+
+    /**
+     * Same as {@link #doWithFallback}, but the calling thread does not wait for the result.
+     *
+     * @return Future that completes with the value returned by task, or with the exception
+     * that {@link #doWithFallback} would throw
+     */
+    static <R> CompletableFuture<R> doWithFallbackAsync(ExecutorService prim, ExecutorService sec,
+                                                        ScheduledExecutorService timer,
+                                                        long timeOut, long secondaryTimeOut,
+                                                        TableFunction<R> task,
+                                                        DocumentStore primary, DocumentStore secondary,
+                                                        Runnable failover) {
+        return new FallbackRequest<>(prim, sec, timer, timeOut, secondaryTimeOut, task, primary, secondary,
+                failover, FallbackRequest.IGNORE_LATENCY, false).start();
+    }
+
+    /**
+     * Wait for the result of an operation
+     *
+     * @param future The result of the operation
+     * @param <R>    The type of the result
+     * @return The result
+     * @throws StoreException    If the operation failed
+     * @throws FailoverException If the operation failed with checked exception or the thread was interrupted
+     */
+    private static <R> R await(CompletableFuture<R> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            // this should never happen except perhaps in debugging or on shutdown
+            future.cancel(true);
+            throw new FailoverException("Thread was interrupted during operation", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                // these are likely StoreException, but we don't differentiate
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            } else {
+                // this should not happen in our situation since none of the methods do this
+                throw new FailoverException("Checked exception thrown (shouldn't happen)", cause);
+            }
+        }
+    }
+
+    /**
+     * Write a batch of documents with the fail-over of {@link #insertOrReplace(DocumentStream)}. The task must
+     * build a new stream for every attempt, so the secondary table gets the whole batch too.
+     *
+     * @param documents the documents of the batch
+     * @param task      the bulk write of the batch
+     * @return future that completes when the batch is written
+     */
+    CompletableFuture<Void> bulkWriteAsync(List<Document> documents, TableProcedure task) {
+        return doNoReturnAsync(OperationType.BULK_WRITE, ids(documents, EnhancedJSONTable::ids), task, SAFE);
+    }
+
+    /**
+     * Same as {@link #bulkWriteAsync}, for the outbox itself, whose writes are the ones the others must not overtake
+     */
+    CompletableFuture<Void> outboxWriteAsync(List<Document> documents, TableProcedure task) {
+        OperationType type = OperationType.BULK_WRITE;
+        return doNoReturnAsync(type, journaled(type, ids(documents, EnhancedJSONTable::ids), task), SAFE);
+    }
+
+    /**
+     * @return the scheduler of the table, for the timers of its helpers
+     */
+    ScheduledExecutorService scheduler() {
+        return scheduler;
+    }
+
+    /**
+     * @param table index of the table, 0 for the primary one
+     * @return the table itself, without fail-over, or null if it is not open
+     */
+    DocumentStore store(int table) {
+        return stores[table].get();
+    }
+
+    /**
+     * @param json the document as JSON, or null for an empty document
+     * @return new document of the driver
+     */
+    Document newDocument(String json) {
+        Connection driver = connection != null ? connection.connection() : documentConnection();
+        return json == null ? driver.newDocument() : driver.newDocument(json);
+    }
+
+    private synchronized Connection documentConnection() {
+        if (documentConnection == null) {
+            documentConnection = DriverManager.getConnection(DB_DRIVER_NAME);
+        }
+        return documentConnection;
+    }
+
+    /**
+     * Send a health probe to one of the tables through the worker pool of its cluster
+     *
+     * @param table index of the table
+     * @param key   the key of the document to look up
+     * @return future that completes when the table has answered
+     */
+    CompletableFuture<?> probe(int table, String key) {
+        DocumentStore store = stores[table].get();
+        if (store == null) {
+            return failed(new FailoverException("Table " + tableNames[table] + " is not open", null));
+        }
+        CompletableFuture<?> probe = FallbackRequest.supply(executors[table], (DocumentStore t) -> t.findById(key), store);
+        probe.whenComplete((r, t) -> {
+            if (t == null) {
+                stores[table].onSuccess();
+            } else if (!FallbackRequest.isInconclusive(t)) {
+                stores[table].onFailure();
+            }
+        });
+        return probe;
+    }
+
+    /**
+     * Shutdown all executors, close connection to the tables.
+     * If you do not call this method, the application will freeze.
+     * A table obtained from {@link EnhancedConnection} leaves the shared executors to the connection.
+     * Only the first call has an effect.
+     *
+     * @throws StoreException If the underlying tables fail to close cleanly.
      */
     @Override
     public void close() throws StoreException {
-        scheduler.shutdownNow();
-        primaryExecutor.shutdownNow();
-        secondaryExecutor.shutdownNow();
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
         try {
-            stores[0].close();
+            closeTables();
         } finally {
-            stores[1].close();
+            if (connection != null) {
+                connection.release();
+            }
+        }
+    }
+
+    private void closeTables() {
+        group.leave(this);
+        StandbyKeepAlive keepAlive = standbyKeepAlive;
+        if (keepAlive != null) {
+            keepAlive.stop();
+        }
+        try {
+            closeStores();
+        } finally {
+            // the stores are closed first, so the opens interrupted here know that they are not needed
+            if (connection == null) {
+                scheduler.shutdownNow();
+                maintenance.shutdownNow();
+                for (ExecutorService executor : executors) {
+                    WorkerPoolConfig.shutdownNow(executor);
+                }
+                synchronized (this) {
+                    if (documentConnection != null) {
+                        documentConnection.close();
+                        documentConnection = null;
+                    }
+                }
+            }
+        }
+    }
+
+    private void closeStores() {
+        RuntimeException failure = null;
+        for (StoreHandle store : stores) {
+            try {
+                store.close();
+            } catch (RuntimeException e) {
+                if (failure == null) {
+                    failure = e;
+                } else {
+                    failure.addSuppressed(e);
+                }
+            }
         }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Create executor for opening the tables. A handle opens its table once at a time, so the threads are bounded
+     * by the quantity of tables, and they are not taken from the worker pools serving the requests.
+     *
+     * @return new executor with threads created on demand
+     */
+    static ExecutorService createMaintenanceExecutor() {
+        return Executors.newCachedThreadPool(new WorkerPoolConfig.NamedThreadFactory("ojai-maintenance"));
     }
 
     /**
-     * Get DocumentStore from MapR-DB.
-     * Table must exist.
+     * Create scheduler for the timeouts and failback operations. Timeouts of requests that finished
+     * in time are cancelled, so they are removed from the queue instead of piling up there.
      *
-     * @param tableName Name that correspond to db table name
-     * @return com.mapr.db.Table
+     * @return new scheduler with one thread
      */
-    private DocumentStore getDocumentStore(String tableName) {
-        Connection connection = DriverManager.getConnection(DB_DRIVER_NAME);
-        return connection.getStore(tableName);
+    static ScheduledExecutorService createScheduler() {
+        ScheduledThreadPoolExecutor scheduler =
+                new ScheduledThreadPoolExecutor(1, new WorkerPoolConfig.NamedThreadFactory("ojai-failover-scheduler"));
+        scheduler.setRemoveOnCancelPolicy(true);
+        return scheduler;
     }
 
+    /**
+     * A table of its own opens every store of MapR-DB with a new connection, which is closed with the store
+     */
+    private static final StoreHandle.Connector OWN_CONNECTIONS = new StoreHandle.Connector() {
+        @Override
+        public Connection acquire(Connection poisoned) {
+            return DriverManager.getConnection(DB_DRIVER_NAME);
+        }
+
+        @Override
+        public void release(Connection connection) {
+            connection.close();
+        }
+    };
+
     static class FailoverException extends StoreException {
         FailoverException(String msg, Throwable cause) {
             super(msg, cause);
@@ -1001,4 +2663,14 @@ public class EnhancedJSONTable implements DocumentStore {
     public interface TableProcedure {
         void apply(DocumentStore t);
     }
+
+    /**
+     * Ids of the documents that a write changes, recorded when the write goes to a table other than the primary one
+     */
+    interface WrittenIds {
+        /**
+         * @param ids receives every id, a String or a ByteBuffer
+         */
+        void forEach(Consumer<Object> ids);
+    }
 }
\ No newline at end of file
@@ -0,0 +1,20 @@
+package com.mapr.db;
+
+/**
+ * Tells the errors of the application apart from the failures of a cluster.
+ * <p>
+ * An application error, e.g. inserting a document that already exists, is the answer of a healthy cluster.
+ * The other table would give the same answer, so {@link EnhancedJSONTable} rethrows such an error right away,
+ * without trying the secondary table, without failing over and without counting it against the table in the
+ * {@link CircuitBreaker}. Everything else is taken as a sign that the cluster is in trouble.
+ * <p>
+ * Implementations must be thread safe.
+ */
+public interface ExceptionClassifier {
+
+    /**
+     * @param error what an operation on a table failed with
+     * @return true if the error is caused by the request itself and would be the same on any table
+     */
+    boolean isApplicationError(Throwable error);
+}
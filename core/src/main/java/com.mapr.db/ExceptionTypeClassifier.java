@@ -0,0 +1,70 @@
+package com.mapr.db;
+
+import org.ojai.exceptions.DecodingException;
+import org.ojai.exceptions.TypeException;
+import org.ojai.store.exceptions.DocumentExistsException;
+import org.ojai.store.exceptions.DocumentNotFoundException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Classifies errors by their type. An error is an application error if it is an instance of one of the
+ * configured exception classes, subclasses included.
+ */
+public class ExceptionTypeClassifier implements ExceptionClassifier {
+
+    private final List<Class<? extends Throwable>> applicationErrors;
+
+    /**
+     * @param applicationErrors the exceptions caused by the request itself
+     */
+    public ExceptionTypeClassifier(List<Class<? extends Throwable>> applicationErrors) {
+        this.applicationErrors = Collections.unmodifiableList(new ArrayList<>(applicationErrors));
+    }
+
+    /**
+     * @return classifier that treats a document that exists or is missing, a value of a wrong type,
+     * a document that cannot be decoded, an illegal argument and an unsupported operation as application errors
+     */
+    public static ExceptionTypeClassifier defaults() {
+        return new ExceptionTypeClassifier(Arrays.asList(
+                DocumentExistsException.class,
+                DocumentNotFoundException.class,
+                TypeException.class,
+                DecodingException.class,
+                IllegalArgumentException.class,
+                UnsupportedOperationException.class));
+    }
+
+    /**
+     * @param applicationError one more exception caused by the request itself
+     * @return new classifier that treats that exception as an application error too
+     */
+    public ExceptionTypeClassifier with(Class<? extends Throwable> applicationError) {
+        List<Class<? extends Throwable>> errors = new ArrayList<>(applicationErrors);
+        errors.add(applicationError);
+        return new ExceptionTypeClassifier(errors);
+    }
+
+    @Override
+    public boolean isApplicationError(Throwable error) {
+        for (Class<? extends Throwable> type : applicationErrors) {
+            if (type.isInstance(error)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public List<Class<? extends Throwable>> getApplicationErrors() {
+        return applicationErrors;
+    }
+
+    @Override
+    public String toString() {
+        return "ExceptionTypeClassifier{applicationErrors=" + applicationErrors + '}';
+    }
+}
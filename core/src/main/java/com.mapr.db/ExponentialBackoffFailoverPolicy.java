@@ -0,0 +1,80 @@
+package com.mapr.db;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Stickiness that grows exponentially with the quantity of recent failovers and decays while the primary
+ * stays healthy.
+ * <p>
+ * The first failover sticks for <code>initialMs</code>, every further one multiplies that by
+ * <code>multiplier</code>, up to <code>maxMs</code>. For each <code>decayMs</code> spent on the primary table
+ * without a failover one failover is forgotten, so a cluster that had a bad day is trusted again after a while.
+ * A random jitter of up to <code>jitter</code> (a fraction of the window) is applied, so that many clients
+ * switched by the same outage do not all come back at the same moment.
+ */
+public class ExponentialBackoffFailoverPolicy implements FailoverPolicy {
+
+    private final long initialMs;
+    private final double multiplier;
+    private final long maxMs;
+    private final long decayMs;
+    private final double jitter;
+
+    /**
+     * @param initialMs  stickiness after the first failover
+     * @param multiplier how much every next failover increases stickiness
+     * @param maxMs      the longest stickiness
+     * @param decayMs    time on the primary table after which one failover is forgotten
+     * @param jitter     fraction of the window by which it is randomly made shorter or longer, from 0 to 1
+     */
+    public ExponentialBackoffFailoverPolicy(long initialMs, double multiplier, long maxMs, long decayMs, double jitter) {
+        if (multiplier < 1) {
+            throw new IllegalArgumentException("Multiplier must not be less than 1: " + multiplier);
+        }
+        if (decayMs <= 0) {
+            throw new IllegalArgumentException("Decay time must be positive: " + decayMs);
+        }
+        if (jitter < 0 || jitter > 1) {
+            throw new IllegalArgumentException("Jitter must be in [0, 1]: " + jitter);
+        }
+        this.initialMs = initialMs;
+        this.multiplier = multiplier;
+        this.maxMs = maxMs;
+        this.decayMs = decayMs;
+        this.jitter = jitter;
+    }
+
+    /**
+     * @return policy starting from 10 seconds, doubling up to 10 minutes, forgetting a failover after
+     * 10 minutes on the primary, with 20% jitter
+     */
+    public static ExponentialBackoffFailoverPolicy defaults() {
+        return new ExponentialBackoffFailoverPolicy(10_000, 2, 600_000, 600_000, 0.2);
+    }
+
+    @Override
+    public int nextSwitchCount(RoutingState current, long now) {
+        if (current.isSwitched()) {
+            return current.getSwitchCount() + 1;
+        }
+        long healthy = Math.max(0, now - current.getChangedAt());
+        long forgotten = healthy / decayMs;
+        return (int) Math.max(0, current.getSwitchCount() - forgotten) + 1;
+    }
+
+    @Override
+    public long stickinessMillis(RoutingState switched) {
+        int n = Math.max(1, switched.getSwitchCount());
+        double window = Math.min(maxMs, initialMs * Math.pow(multiplier, n - 1));
+        if (jitter > 0) {
+            window *= 1 + jitter * (2 * ThreadLocalRandom.current().nextDouble() - 1);
+        }
+        return Math.max(0, Math.round(window));
+    }
+
+    @Override
+    public String toString() {
+        return "ExponentialBackoffFailoverPolicy{initialMs=" + initialMs + ", multiplier=" + multiplier +
+                ", maxMs=" + maxMs + ", decayMs=" + decayMs + ", jitter=" + jitter + '}';
+    }
+}
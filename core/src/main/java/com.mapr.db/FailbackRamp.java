@@ -0,0 +1,242 @@
+package com.mapr.db;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Returns the traffic to the primary cluster in steps instead of all at once, so a cluster that has just
+ * recovered with cold caches is not hit by the full load and does not fail over again right away.
+ * <p>
+ * When the group would switch back, it stays switched and sends the percentage of requests given by the first
+ * step to the primary cluster first. Every <code>stepMs</code> the requests sent to the primary cluster during
+ * the step are checked. A step that has seen fewer than <code>minCalls</code> of them proves nothing, so it is
+ * extended by another <code>stepMs</code> until it has, but for no longer than <code>maxStepMs</code> in all. A
+ * step that reaches that bound is judged on the requests it has seen, so a table with little traffic is not held
+ * at a small percentage for good, and a step without any request passes. If the rate of failed or of slow
+ * requests reaches its threshold the ramp is aborted and the group stays on the secondary cluster for another
+ * stickiness period, otherwise the next step begins.
+ * After the last step the group switches back. A request sent to the primary cluster during the ramp still
+ * hedges to the secondary cluster, but it does not switch the routing.
+ * <p>
+ * The instance keeps state of one {@link FailoverGroup}, so it must not be shared.
+ */
+public class FailbackRamp {
+    private static final Logger LOG = LoggerFactory.getLogger(FailbackRamp.class);
+
+    private final double[] steps;            // percentages of requests sent to the primary cluster, in order
+    private final long stepMs;               // how long every step lasts
+    private final long maxStepMs;            // how long a step with too few requests may be extended to
+    private final int minCalls;              // requests a step must see before it is judged
+    private final double failureRateThreshold;
+    private final double slowCallRateThreshold;
+    private final long slowCallNanos;        // successful requests slower than that count as slow
+
+    private final AtomicBoolean ramping = new AtomicBoolean(false);
+
+    private volatile int step = -1;          // index of the current step, -1 while not ramping
+    private volatile double percent;         // percentage of the current step, 0 while not ramping
+    private volatile long stepStarted;       // in System.nanoTime() terms
+
+    /**
+     * Outcomes of the requests sent to the primary cluster during the current step
+     */
+    private final AtomicLong calls = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong slowCalls = new AtomicLong();
+
+    private volatile long rampCount;
+    private volatile long abortCount;
+    private volatile long extensionCount;
+
+    /**
+     * @param steps                 percentages of requests sent to the primary cluster, increasing and below 100
+     * @param stepMs                how long every step lasts, in milliseconds
+     * @param maxStepMs             how long a step with too few requests is extended to at most, in milliseconds
+     * @param minCalls              requests to the primary cluster a step must see before it is judged, a step
+     *                              with fewer is extended
+     * @param failureRateThreshold  fraction of failed requests during a step that aborts the ramp, e.g. 0.05
+     * @param slowCallRateThreshold fraction of slow requests during a step that aborts the ramp, e.g. 0.2
+     * @param slowCallMs            successful requests slower than that count as slow, in milliseconds
+     */
+    public FailbackRamp(double[] steps, long stepMs, long maxStepMs, int minCalls, double failureRateThreshold,
+                        double slowCallRateThreshold, long slowCallMs) {
+        if (steps.length == 0) {
+            throw new IllegalArgumentException("At least one step is needed");
+        }
+        for (int k = 0; k < steps.length; k++) {
+            if (steps[k] <= 0 || steps[k] >= 100 || (k > 0 && steps[k] <= steps[k - 1])) {
+                throw new IllegalArgumentException("Steps must increase within (0, 100): " + Arrays.toString(steps));
+            }
+        }
+        if (stepMs <= 0) {
+            throw new IllegalArgumentException("Step duration must be positive: " + stepMs);
+        }
+        if (maxStepMs < stepMs) {
+            throw new IllegalArgumentException("Longest step must not be shorter than a step: " + maxStepMs);
+        }
+        if (minCalls < 1) {
+            throw new IllegalArgumentException("A step must see at least one request: " + minCalls);
+        }
+        this.steps = steps.clone();
+        this.stepMs = stepMs;
+        this.maxStepMs = maxStepMs;
+        this.minCalls = minCalls;
+        this.failureRateThreshold = failureRateThreshold;
+        this.slowCallRateThreshold = slowCallRateThreshold;
+        this.slowCallNanos = slowCallMs * 1_000_000;
+    }
+
+    /**
+     * @param slowCallMs successful requests slower than that count as slow, in milliseconds
+     * @return ramp of 1%, 10% and 50% of the requests, 10 seconds and at least 20 requests each unless a step
+     * has lasted a minute, aborted by 5% of failed or 20% of slow requests
+     */
+    public static FailbackRamp defaults(long slowCallMs) {
+        return new FailbackRamp(new double[]{1, 10, 50}, 10_000, 60_000, 20, 0.05, 0.2, slowCallMs);
+    }
+
+    /**
+     * Start the first step. Does nothing if the ramp is already running.
+     *
+     * @param scheduler   the scheduler for the checks at the end of the steps
+     * @param stillNeeded checked at the end of every step, the ramp stops when it returns false
+     * @param onDone      called once the last step passed
+     * @param onAborted   called when a step failed the check
+     */
+    void start(ScheduledExecutorService scheduler, BooleanSupplier stillNeeded, Runnable onDone, Runnable onAborted) {
+        if (!ramping.compareAndSet(false, true)) {
+            return;
+        }
+        rampCount++;
+        enter(0);
+        scheduler.schedule(() -> check(scheduler, stillNeeded, onDone, onAborted), stepMs, TimeUnit.MILLISECONDS);
+    }
+
+    private void enter(int next) {
+        calls.set(0);
+        failures.set(0);
+        slowCalls.set(0);
+        step = next;
+        stepStarted = System.nanoTime();
+        percent = steps[next];
+        LOG.info("Failback ramp sends {}% of requests to the primary table", percent);
+    }
+
+    private void check(ScheduledExecutorService scheduler, BooleanSupplier stillNeeded, Runnable onDone,
+                       Runnable onAborted) {
+        if (!stillNeeded.getAsBoolean()) {
+            stop();
+            return;
+        }
+        long total = calls.get();
+        long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - stepStarted);
+        if (total < minCalls && elapsedMs + stepMs <= maxStepMs) {
+            LOG.info("Failback ramp stays at {}% for another {} ms, {} of {} requests seen", percent, stepMs,
+                    total, minCalls);
+            extensionCount++;
+            scheduler.schedule(() -> check(scheduler, stillNeeded, onDone, onAborted), stepMs, TimeUnit.MILLISECONDS);
+            return;
+        }
+        if (exceeds(failures.get(), total, failureRateThreshold)
+                || exceeds(slowCalls.get(), total, slowCallRateThreshold)) {
+            LOG.warn("Failback ramp aborted at {}%, {} of {} requests failed, {} were slow",
+                    percent, failures.get(), total, slowCalls.get());
+            abortCount++;
+            stop();
+            onAborted.run();
+            return;
+        }
+        if (step + 1 == steps.length) {
+            stop();
+            onDone.run();
+            return;
+        }
+        enter(step + 1);
+        scheduler.schedule(() -> check(scheduler, stillNeeded, onDone, onAborted), stepMs, TimeUnit.MILLISECONDS);
+    }
+
+    private static boolean exceeds(long count, long total, double threshold) {
+        return count > 0 && count >= threshold * total;
+    }
+
+    private void stop() {
+        percent = 0;
+        step = -1;
+        ramping.set(false);
+    }
+
+    /**
+     * @return true if the request should be sent to the primary cluster first
+     */
+    boolean admit() {
+        double current = percent;
+        return current > 0 && ThreadLocalRandom.current().nextDouble(100) < current;
+    }
+
+    /**
+     * A request to the primary cluster succeeded
+     */
+    void onSuccess(long nanos) {
+        if (ramping.get()) {
+            calls.incrementAndGet();
+            if (nanos > slowCallNanos) {
+                slowCalls.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * A request to the primary cluster failed
+     */
+    void onFailure() {
+        if (ramping.get()) {
+            calls.incrementAndGet();
+            failures.incrementAndGet();
+        }
+    }
+
+    /**
+     * @return true while the traffic is being returned to the primary cluster
+     */
+    public boolean isRamping() {
+        return ramping.get();
+    }
+
+    /**
+     * @return percentage of requests sent to the primary cluster first, 0 while not ramping
+     */
+    public double getPercent() {
+        return percent;
+    }
+
+    public long getRampCount() {
+        return rampCount;
+    }
+
+    public long getAbortCount() {
+        return abortCount;
+    }
+
+    /**
+     * @return how many times a step was extended because it had seen too few requests
+     */
+    public long getExtensionCount() {
+        return extensionCount;
+    }
+
+    @Override
+    public String toString() {
+        return "FailbackRamp{steps=" + Arrays.toString(steps) + ", stepMs=" + stepMs + ", maxStepMs=" + maxStepMs +
+                ", minCalls=" + minCalls +
+                ", failureRateThreshold=" + failureRateThreshold + ", slowCallRateThreshold=" +
+                slowCallRateThreshold + ", slowCallMs=" + slowCallNanos / 1_000_000 + '}';
+    }
+}
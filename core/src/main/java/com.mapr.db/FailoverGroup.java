@@ -0,0 +1,342 @@
+package com.mapr.db;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Routing shared by the tables that live on the same primary and secondary clusters.
+ * <p>
+ * When a request of any member table fails over, the whole group switches to the secondary cluster, so the
+ * other tables do not have to pay the time out on the dead cluster to find out. The group also decides when
+ * to return: after the stickiness given by the {@link FailoverPolicy} the primary cluster is probed through
+ * one of the open member tables if a {@link HealthProber} is set, and the group switches back once it is satisfied,
+ * at once or gradually through a {@link FailbackRamp}.
+ * <p>
+ * Every {@link EnhancedJSONTable} created with its own constructor has a group of its own. Tables obtained
+ * from an {@link EnhancedConnection} share the groups of the connection.
+ */
+public class FailoverGroup {
+    private static final Logger LOG = LoggerFactory.getLogger(FailoverGroup.class);
+
+    private final String name;
+
+    /**
+     * Which cluster acts as primary right now and how many times we switched. Replaced as a whole
+     * with compare-and-set, so concurrent requests that time out together switch the group only once.
+     */
+    private final AtomicReference<RoutingState> routing = new AtomicReference<>(RoutingState.initial());
+
+    /**
+     * Service that schedules failback operations and health probes
+     */
+    private final ScheduledExecutorService scheduler;
+
+    /**
+     * Open tables of the group, failback probes go through one of them
+     */
+    private final Set<EnhancedJSONTable> members = new CopyOnWriteArraySet<>();
+
+    /**
+     * Decides when to switch clusters, how long to stay on the secondary and when to come back
+     */
+    private volatile FailoverPolicy failoverPolicy = FixedWindowFailoverPolicy.defaults();
+
+    /**
+     * Checks that the primary cluster has recovered before failback, if null we switch back blindly
+     */
+    private volatile HealthProber healthProber;
+
+    /**
+     * Returns the traffic to the primary cluster in steps after the probes, if null we switch back at once
+     */
+    private volatile FailbackRamp failbackRamp;
+
+    /**
+     * Where the routing is saved for the next process, if null it is kept in memory only
+     */
+    private volatile RoutingStateFile routingStateFile;
+
+    /**
+     * @param name      the name of the group, for logging
+     * @param scheduler the scheduler for failback and health probes
+     */
+    FailoverGroup(String name, ScheduledExecutorService scheduler) {
+        this.name = name;
+        this.scheduler = scheduler;
+    }
+
+    void join(EnhancedJSONTable table) {
+        members.add(table);
+    }
+
+    void leave(EnhancedJSONTable table) {
+        members.remove(table);
+    }
+
+    /**
+     * @return true if any table of the group has its primary table open, so the primary cluster is up
+     */
+    boolean isPrimaryOpen() {
+        for (EnhancedJSONTable member : members) {
+            if (member.isPrimaryOpen()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    RoutingState current() {
+        return routing.get();
+    }
+
+    /**
+     * Switch to another replica, if the routing is still the one the failing request has seen
+     * <p>
+     * When failing over to another cluster or when going back to origin/master cluster
+     * we do not change the whole logic, but simply switch the primary/secondary tables.
+     * Only one of the requests that observed the same state makes the switch, so concurrent
+     * timeouts cannot flap the tables back and forth. Once switched, the group may move on to a further
+     * replica when the one it switched to fails too, but it returns to the primary cluster only by failback.
+     *
+     * @param observed The routing state that the failing request was dispatched with
+     * @param to       index of the replica that takes over
+     */
+    void failOver(RoutingState observed, int to) {
+        if (to == observed.getActive() || (observed.isSwitched() && to == 0)) {
+            // already working with a failover cluster, we stay there until failback
+            return;
+        }
+        FailoverPolicy policy = failoverPolicy;
+        long now = System.currentTimeMillis();
+        if (!policy.shouldFailOver(observed, now)) {
+            return;
+        }
+        RoutingState next = observed.failOver(to, now, policy.nextSwitchCount(observed, now));
+        if (routing.compareAndSet(observed, next)) {
+            long stick = policy.stickinessMillis(next);
+            LOG.info("Group {} switched: {}, switch tables for - {} ms", name, next, stick);
+            save(next);
+            swapTableBackAfter(next, stick);
+        }
+    }
+
+    /**
+     * Return to the primary cluster, unless the routing has changed since the failover.
+     * With a health prober the switch happens only after the primary cluster passed the probes.
+     *
+     * @param expected The routing state created by the failover
+     */
+    private void failBack(RoutingState expected) {
+        if (routing.get() != expected) {
+            return;
+        }
+        FailoverPolicy policy = failoverPolicy;
+        long now = System.currentTimeMillis();
+        if (!policy.shouldFailBack(expected, now)) {
+            long stick = policy.stickinessMillis(expected);
+            LOG.info("Failback of group {} postponed for - {} ms", name, stick);
+            swapTableBackAfter(expected, stick);
+            return;
+        }
+        HealthProber prober = healthProber;
+        if (prober == null) {
+            rampBack(expected);
+            return;
+        }
+        prober.start(key -> probe(0, key), scheduler,
+                () -> routing.get() == expected, () -> rampBack(expected));
+    }
+
+    /**
+     * Switch back, through the steps of the ramp if there is one. An aborted ramp postpones the failback
+     * by the stickiness of the failover.
+     */
+    private void rampBack(RoutingState expected) {
+        FailbackRamp ramp = failbackRamp;
+        if (ramp == null) {
+            switchBack(expected);
+            return;
+        }
+        ramp.start(scheduler, () -> routing.get() == expected, () -> switchBack(expected), () -> {
+            long stick = failoverPolicy.stickinessMillis(expected);
+            LOG.info("Failback of group {} postponed for - {} ms", name, stick);
+            swapTableBackAfter(expected, stick);
+        });
+    }
+
+    /**
+     * @param state the routing the request is dispatched with
+     * @return true if the request should go to the primary cluster first while the group ramps back to it
+     */
+    boolean admitToPrimary(RoutingState state) {
+        FailbackRamp ramp = failbackRamp;
+        return ramp != null && state.isSwitched() && ramp.admit();
+    }
+
+    /**
+     * Send a probe through any open member. Without members the probe fails, so the group stays switched
+     * and keeps probing until a table joins.
+     */
+    private CompletableFuture<?> probe(int table, String key) {
+        Iterator<EnhancedJSONTable> open = members.iterator();
+        if (open.hasNext()) {
+            return open.next().probe(table, key);
+        }
+        CompletableFuture<Object> noMembers = new CompletableFuture<>();
+        noMembers.completeExceptionally(new IllegalStateException("No open tables in group " + name));
+        return noMembers;
+    }
+
+    private void switchBack(RoutingState expected) {
+        RoutingState next = expected.failBack(System.currentTimeMillis());
+        if (routing.compareAndSet(expected, next)) {
+            LOG.info("Group {} switched back: {}", name, next);
+            save(next);
+        }
+    }
+
+    /**
+     * Save the routing on the scheduler, so requests that trigger the switch do not wait for the file.
+     * The scheduler has one thread, so the saves happen in the order of the transitions.
+     */
+    private void save(RoutingState state) {
+        RoutingStateFile file = routingStateFile;
+        if (file == null) {
+            return;
+        }
+        try {
+            scheduler.execute(() -> file.store(state));
+        } catch (RejectedExecutionException e) {
+            LOG.debug("Routing state of group {} is not saved, scheduler is shut down", name);
+        }
+    }
+
+    /**
+     * Continue the failover saved by a previous process, unless this group has already switched on its own.
+     * The failback is scheduled for the end of the stickiness counted from the saved failover.
+     */
+    private void restore(RoutingStateFile file) {
+        long now = System.currentTimeMillis();
+        RoutingState saved = file.load(now);
+        RoutingState current = routing.get();
+        if (saved == null || !saved.isSwitched() || current.getEpoch() != 0) {
+            return;
+        }
+        if (routing.compareAndSet(current, saved)) {
+            long stick = Math.max(0, saved.getChangedAt() + failoverPolicy.stickinessMillis(saved) - now);
+            LOG.info("Group {} restored: {}, switch tables for - {} ms", name, saved, stick);
+            swapTableBackAfter(saved, stick);
+        }
+    }
+
+    /**
+     * Create task for swapping tables back after timeout.
+     * <p>
+     * After the swap the application writes to the primary table again before the writes of the failover are
+     * reconciled. {@link Reconciler} skips the keys written to the primary table since then, and a write that
+     * races with its copy of the key waits for the copy.
+     *
+     * @param state   The routing state created by the failover
+     * @param timeout Time after what we swap tables back
+     */
+    private void swapTableBackAfter(RoutingState state, long timeout) {
+        scheduler.schedule(() -> failBack(state), timeout, TimeUnit.MILLISECONDS);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return the current routing of requests, for monitoring
+     */
+    public RoutingState getRoutingState() {
+        return routing.get();
+    }
+
+    public boolean isSwitched() {
+        return routing.get().isSwitched();
+    }
+
+    /**
+     * @return quantity of open tables in the group
+     */
+    public int getMemberCount() {
+        return members.size();
+    }
+
+    public FailoverPolicy getFailoverPolicy() {
+        return failoverPolicy;
+    }
+
+    /**
+     * @param failoverPolicy decides when to switch clusters, how long to stay on the secondary cluster and
+     *                       when to come back, by default {@link FixedWindowFailoverPolicy#defaults()}
+     */
+    public void setFailoverPolicy(FailoverPolicy failoverPolicy) {
+        if (failoverPolicy == null) {
+            throw new IllegalArgumentException("Failover policy must not be null");
+        }
+        this.failoverPolicy = failoverPolicy;
+    }
+
+    public HealthProber getHealthProber() {
+        return healthProber;
+    }
+
+    /**
+     * Probe the primary cluster when the failover time is over and switch back only once it answers reliably.
+     * There is no prober by default. The instance keeps state of this group, so it must not be shared.
+     *
+     * @param healthProber the way to check the primary cluster, or null to switch back without checking
+     */
+    public void setHealthProber(HealthProber healthProber) {
+        this.healthProber = healthProber;
+    }
+
+    public FailbackRamp getFailbackRamp() {
+        return failbackRamp;
+    }
+
+    /**
+     * Return the traffic to the primary cluster in steps once it is healthy, instead of all at once.
+     * The instance keeps state of this group, so it must not be shared.
+     *
+     * @param failbackRamp the steps of the return, or null to switch back at once
+     */
+    public void setFailbackRamp(FailbackRamp failbackRamp) {
+        this.failbackRamp = failbackRamp;
+    }
+
+    public RoutingStateFile getRoutingStateFile() {
+        return routingStateFile;
+    }
+
+    /**
+     * Save every switch of the group to the file and continue an unexpired failover found there, so a process
+     * restarted during an outage does not have to find out about it again. Set it before the first request
+     * of the group. The file belongs to the caller and must be closed by it.
+     *
+     * @param routingStateFile the file, or null to keep the routing in memory only
+     */
+    public void setRoutingStateFile(RoutingStateFile routingStateFile) {
+        this.routingStateFile = routingStateFile;
+        if (routingStateFile != null) {
+            restore(routingStateFile);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "FailoverGroup{name='" + name + "', routing=" + routing.get() + ", members=" + members.size() + '}';
+    }
+}
@@ -0,0 +1,51 @@
+package com.mapr.db;
+
+/**
+ * Decides when {@link EnhancedJSONTable} switches to the secondary table, how long it sticks to it
+ * and when it returns to the primary table.
+ * <p>
+ * Implementations must be thread safe. All decisions get the current {@link RoutingState}, so a policy
+ * does not need state of its own to take the history of failovers into account.
+ */
+public interface FailoverPolicy {
+
+    /**
+     * Called when a request on the primary table failed or was too slow
+     *
+     * @param current the routing state the request was dispatched with
+     * @param now     current time in milliseconds
+     * @return true to switch to the secondary table, false to only serve this request from it
+     */
+    default boolean shouldFailOver(RoutingState current, long now) {
+        return true;
+    }
+
+    /**
+     * How many recent failovers count against the primary after this one. Lets a policy forget
+     * failovers that happened long ago.
+     *
+     * @param current the routing state right before failing over
+     * @param now     current time in milliseconds
+     * @return the switch count of the state after failing over
+     */
+    default int nextSwitchCount(RoutingState current, long now) {
+        return current.getSwitchCount() + 1;
+    }
+
+    /**
+     * @param switched the routing state right after failing over
+     * @return how long to stay on the secondary table before thinking about failing back, in milliseconds
+     */
+    long stickinessMillis(RoutingState switched);
+
+    /**
+     * Called when the stickiness window ends
+     *
+     * @param switched the routing state created by the failover
+     * @param now      current time in milliseconds
+     * @return true to return to the primary table, false to stay for another stickiness window
+     */
+    default boolean shouldFailBack(RoutingState switched, long now) {
+        return true;
+    }
+}
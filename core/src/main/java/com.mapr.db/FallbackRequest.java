@@ -0,0 +1,500 @@
+package com.mapr.db;
+
+import com.mapr.db.EnhancedJSONTable.FailoverException;
+import com.mapr.db.EnhancedJSONTable.TableFunction;
+import org.ojai.store.DocumentStore;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * One operation executed with fail-over, without blocking any thread while waiting.
+ * <p>
+ * The task is started on the primary table. If the primary gives no result within timeOut milliseconds,
+ * or fails, the primary attempt is cancelled, the failover task is invoked and the task is started on the
+ * secondary table. If the secondary gives no result within secondaryTimeOut milliseconds the operation
+ * fails with {@link FailoverException}. The timeouts are tracked by the timer, so the only threads involved
+ * are the workers actually talking to the tables. Latency of successful attempts is reported to the
+ * {@link LatencyListener}, which lets the caller adapt timeOut to what the tables normally do. Every attempt
+ * reports exactly one outcome, an attempt given up on because it was too slow fails with
+ * {@link TimeoutException}, an attempt that was no longer needed fails with {@link CancellationException}.
+ * An attempt given up on as too slow also reports how long it was waited for, the latency it would have had
+ * is at least that.
+ * <p>
+ * In race mode a primary that is just slow is not given up on. Once the secondary attempt is started both
+ * attempts stay alive, the first successful result wins and the other attempt is cancelled. The failover task
+ * is invoked only if the primary fails or the secondary answers first, so a short latency spike on the
+ * primary does not switch the tables.
+ * <p>
+ * An application error, as told by the {@link ExceptionClassifier}, is the answer of a healthy cluster.
+ * It completes the operation right away, the secondary is not tried and the failover task is not invoked.
+ * <p>
+ * With more than two replicas the requests form a hedging chain. The secondary attempt of a request is then
+ * the next request of the chain, which has the secondary replica as its primary and hedges further on its own.
+ * Abandoning the secondary attempt cancels the rest of the chain, and every request of the chain reports
+ * only the attempts on the replicas it talks to itself.
+ *
+ * @param <R> The type that task will return
+ */
+class FallbackRequest<R> {
+
+    /**
+     * Listener for the tables that do not keep latency statistics
+     */
+    static final LatencyListener IGNORE_LATENCY = (onPrimary, nanos) -> {
+    };
+
+    /**
+     * Classifier for the requests that fail over on any error
+     */
+    static final ExceptionClassifier NO_APPLICATION_ERRORS = error -> false;
+
+    private final ExecutorService prim;          // the worker pool of the primary cluster
+    private final ExecutorService sec;           // the worker pool of the secondary cluster
+    private final ScheduledExecutorService timer;
+    private final long timeOut;                  // How long to wait before starting secondary query
+    private final long secondaryTimeOut;         // How long to wait before giving up on a good result
+    private final TableFunction<R> task;
+    private final DocumentStore primary;
+    private final DocumentStore secondary;
+    private final Runnable failover;
+    private final LatencyListener latency;
+    private final boolean race;                  // keep the primary attempt alive after hedging
+    private final ExceptionClassifier classifier;
+    private final FallbackRequest<R> next;       // the rest of the hedging chain, takes the place of the secondary
+
+    private final CompletableFuture<R> result = new CompletableFuture<>();
+
+    /**
+     * Stage of the operation, guarded by this
+     */
+    private enum Phase {
+        /**
+         * Only the primary attempt runs
+         */
+        PRIMARY,
+        /**
+         * The secondary attempt was started, in race mode the primary attempt may still run too
+         */
+        HEDGED,
+        /**
+         * The result is decided
+         */
+        DONE
+    }
+
+    private Phase phase = Phase.PRIMARY;
+    private int running;                         // attempts that may still give a result once hedged
+
+    private final AtomicBoolean failedOver = new AtomicBoolean(false);
+
+    private volatile Future<?> primaryAttempt;
+    private volatile Future<?> secondaryAttempt;
+    private volatile CompletableFuture<R> primaryResult;
+    private volatile CompletableFuture<R> secondaryResult;
+    private volatile ScheduledFuture<?> hedgeTimer;
+
+    FallbackRequest(ExecutorService prim, ExecutorService sec, ScheduledExecutorService timer,
+                    long timeOut, long secondaryTimeOut,
+                    TableFunction<R> task,
+                    DocumentStore primary, DocumentStore secondary,
+                    Runnable failover, LatencyListener latency, boolean race) {
+        this(prim, sec, timer, timeOut, secondaryTimeOut, task, primary, secondary, failover, latency, race,
+                NO_APPLICATION_ERRORS);
+    }
+
+    FallbackRequest(ExecutorService prim, ExecutorService sec, ScheduledExecutorService timer,
+                    long timeOut, long secondaryTimeOut,
+                    TableFunction<R> task,
+                    DocumentStore primary, DocumentStore secondary,
+                    Runnable failover, LatencyListener latency, boolean race, ExceptionClassifier classifier) {
+        this(prim, sec, timer, timeOut, secondaryTimeOut, task, primary, secondary, null, failover, latency, race,
+                classifier);
+    }
+
+    /**
+     * Create a request of a hedging chain, that hedges to the <code>next</code> request of the chain
+     * instead of a secondary table
+     */
+    FallbackRequest(ExecutorService prim, ScheduledExecutorService timer,
+                    long timeOut, long secondaryTimeOut,
+                    TableFunction<R> task, DocumentStore primary, FallbackRequest<R> next,
+                    Runnable failover, LatencyListener latency, boolean race, ExceptionClassifier classifier) {
+        this(prim, null, timer, timeOut, secondaryTimeOut, task, primary, null, next, failover, latency, race,
+                classifier);
+    }
+
+    private FallbackRequest(ExecutorService prim, ExecutorService sec, ScheduledExecutorService timer,
+                            long timeOut, long secondaryTimeOut,
+                            TableFunction<R> task,
+                            DocumentStore primary, DocumentStore secondary, FallbackRequest<R> next,
+                            Runnable failover, LatencyListener latency, boolean race,
+                            ExceptionClassifier classifier) {
+        this.prim = prim;
+        this.sec = sec;
+        this.timer = timer;
+        this.timeOut = timeOut;
+        this.secondaryTimeOut = secondaryTimeOut;
+        this.task = task;
+        this.primary = primary;
+        this.secondary = secondary;
+        this.failover = failover;
+        this.latency = latency;
+        this.race = race;
+        this.classifier = classifier;
+        this.next = next;
+    }
+
+    /**
+     * Run the task on one table only, without any timeouts
+     *
+     * @param executor The worker pool of the cluster that table belongs to
+     * @param task     A lambda with one argument, a table, that does the desired operation
+     * @param table    The table to work with
+     * @param <R>      The type that task will return
+     * @return future that completes with the value returned by task
+     */
+    static <R> CompletableFuture<R> supply(ExecutorService executor, TableFunction<R> task, DocumentStore table) {
+        CompletableFuture<R> result = new CompletableFuture<>();
+        Future<?> attempt = attempt(executor, task, table, result);
+        if (attempt == null) {
+            result.completeExceptionally(rejected());
+        } else {
+            result.whenComplete((r, t) -> cancelIfCancelled(result, attempt));
+        }
+        return result;
+    }
+
+    /**
+     * Attempts that were cancelled or rejected by a saturated worker pool say nothing about the table
+     *
+     * @param error what the attempt failed with
+     * @return true if the failure must not count against the table
+     */
+    static boolean isInconclusive(Throwable error) {
+        return error instanceof CancellationException || error.getCause() instanceof RejectedExecutionException;
+    }
+
+    /**
+     * Start the operation
+     *
+     * @return future that completes with the value returned by task, or exceptionally if both tables fail
+     */
+    CompletableFuture<R> start() {
+        long started = System.nanoTime();
+        primaryResult = new CompletableFuture<>();
+        primaryResult.whenComplete((r, t) -> {
+            report(true, started, t);
+            onPrimaryComplete(r, t);
+        });
+
+        hedgeTimer = timer.schedule(this::onHedgeTimeout, timeOut, TimeUnit.MILLISECONDS);
+        latency.onStart(true);
+        primaryAttempt = attempt(prim, task, primary, primaryResult);
+        if (primaryAttempt == null && enter(Phase.PRIMARY, Phase.DONE)) {
+            // we are overloaded, the primary cluster may be fine, so this is no reason to fail over
+            hedgeTimer.cancel(false);
+            FailoverException rejected = rejected();
+            primaryResult.completeExceptionally(rejected);
+            result.completeExceptionally(rejected);
+        }
+        cancelAllIfCancelled();
+        return result;
+    }
+
+    /**
+     * Start the operation right on the secondary table, e.g. because the primary is known to be unavailable.
+     * The failover task is not invoked.
+     *
+     * @return future that completes with the value returned by task, or exceptionally if the secondary fails
+     */
+    CompletableFuture<R> startOnSecondary() {
+        beginHedge(false);
+        startSecondary();
+        cancelAllIfCancelled();
+        return result;
+    }
+
+    private void cancelAllIfCancelled() {
+        result.whenComplete((r, t) -> {
+            if (result.isCancelled()) {
+                synchronized (this) {
+                    phase = Phase.DONE;
+                }
+                abandon(primaryResult, primaryAttempt, new CancellationException());
+                abandon(secondaryResult, secondaryAttempt, new CancellationException());
+            }
+        });
+    }
+
+    private void onHedgeTimeout() {
+        if (!beginHedge(race)) {
+            return;
+        }
+        if (!race) {
+            // We have lost confidence in the primary at this point even if we get a result
+            // We cancel request to the primary table, for fast change to the failover table
+            abandon(primaryResult, primaryAttempt, new TimeoutException());
+            failOver();
+        }
+        // In race mode the primary is only slow so far, we fail over when the secondary answers first
+        startSecondary();
+    }
+
+    private void onPrimaryComplete(R value, Throwable error) {
+        ScheduledFuture<?> timerTask = hedgeTimer;
+        if (timerTask != null) {
+            timerTask.cancel(false);
+        }
+        if (error == null) {
+            // try on the primary table ... if we get a result, we win
+            // in race mode a late result still wins if the secondary has not answered yet
+            if (enter(Phase.PRIMARY, Phase.DONE) || (race && enter(Phase.HEDGED, Phase.DONE))) {
+                abandon(secondaryResult, secondaryAttempt, new CancellationException());
+                result.complete(value);
+            }
+        } else if (classifier.isApplicationError(error)) {
+            // the primary has answered, the secondary would give the same error
+            if (enter(Phase.PRIMARY, Phase.DONE) || (race && enter(Phase.HEDGED, Phase.DONE))) {
+                abandon(secondaryResult, secondaryAttempt, new CancellationException());
+                result.completeExceptionally(error);
+            }
+        } else if (beginHedge(false)) {
+            failOver();
+            startSecondary();
+        } else if (race && isHedged()) {
+            // the primary is broken, not just slow, there is no reason to wait for the secondary to fail over
+            failOver();
+            attemptFailed(error);
+        }
+    }
+
+    /**
+     * No result in time from primary so we now try on secondary.
+     * Exceptional returns when timeout expires.
+     */
+    private void startSecondary() {
+        long started = System.nanoTime();
+        CompletableFuture<R> secondaryResult = new CompletableFuture<>();
+        this.secondaryResult = secondaryResult;
+        secondaryResult.whenComplete((r, t) -> {
+            if (next == null) {
+                report(false, started, t);
+            }
+            if (t != null) {
+                if (classifier.isApplicationError(t) && enter(Phase.HEDGED, Phase.DONE)) {
+                    abandon(primaryResult, primaryAttempt, new CancellationException());
+                    result.completeExceptionally(t);
+                } else {
+                    attemptFailed(t);
+                }
+            } else {
+                if (enter(Phase.HEDGED, Phase.DONE)) {
+                    if (race) {
+                        // the secondary won the race, so the primary really is too slow
+                        abandon(primaryResult, primaryAttempt, new TimeoutException());
+                        failOver();
+                    }
+                    result.complete(r);
+                }
+            }
+        });
+        ScheduledFuture<?> giveUp = timer.schedule(() -> {
+            if (enter(Phase.HEDGED, Phase.DONE)) {
+                abandon(primaryResult, primaryAttempt, new TimeoutException());
+                abandon(secondaryResult, secondaryAttempt, new TimeoutException());
+                result.completeExceptionally(new FailoverException("Operation timed out on primary and secondary tables",
+                        new TimeoutException()));
+            }
+        }, secondaryTimeOut, TimeUnit.MILLISECONDS);
+        result.whenComplete((r, t) -> giveUp.cancel(false));
+
+        if (next != null) {
+            // cancelling the rest of the chain abandons its attempts too
+            CompletableFuture<R> rest = next.start();
+            secondaryAttempt = rest;
+            rest.whenComplete((r, t) -> {
+                if (t == null) {
+                    secondaryResult.complete(r);
+                } else {
+                    secondaryResult.completeExceptionally(t);
+                }
+            });
+            return;
+        }
+        latency.onStart(false);
+        secondaryAttempt = attempt(sec, task, secondary, secondaryResult);
+        if (secondaryAttempt == null) {
+            secondaryResult.completeExceptionally(rejected());
+        }
+    }
+
+    /**
+     * Pass the outcome of an attempt to the listener. An attempt abandoned as too slow is reported with how long it
+     * was waited for, so the listener can tell that the table got slower.
+     */
+    private void report(boolean onPrimary, long started, Throwable error) {
+        long nanos = System.nanoTime() - started;
+        if (error == null) {
+            latency.onSuccess(onPrimary, nanos);
+            return;
+        }
+        if (error instanceof TimeoutException) {
+            latency.onTimeout(onPrimary, nanos);
+        }
+        latency.onFailure(onPrimary, error);
+    }
+
+    /**
+     * An attempt failed after hedging. When it is the last running one, its exception is the result.
+     */
+    private void attemptFailed(Throwable error) {
+        boolean last;
+        synchronized (this) {
+            last = phase == Phase.HEDGED && --running == 0;
+            if (last) {
+                phase = Phase.DONE;
+            }
+        }
+        if (last) {
+            result.completeExceptionally(error);
+        }
+    }
+
+    /**
+     * Move from PRIMARY to HEDGED. Only the first call succeeds.
+     *
+     * @param primaryRunning true if the primary attempt can still give a result
+     * @return true if the secondary attempt should be started
+     */
+    private synchronized boolean beginHedge(boolean primaryRunning) {
+        if (phase != Phase.PRIMARY) {
+            return false;
+        }
+        phase = Phase.HEDGED;
+        running = primaryRunning ? 2 : 1;
+        return true;
+    }
+
+    private synchronized boolean isHedged() {
+        return phase == Phase.HEDGED;
+    }
+
+    private synchronized boolean enter(Phase from, Phase to) {
+        if (phase != from) {
+            return false;
+        }
+        phase = to;
+        return true;
+    }
+
+    private void failOver() {
+        if (failedOver.compareAndSet(false, true)) {
+            failover.run();
+        }
+    }
+
+    /**
+     * Hand the task to the worker pool of the cluster that the table belongs to
+     *
+     * @return future of the submitted work, or null if the worker pool is saturated
+     */
+    private static <R> Future<?> attempt(ExecutorService executor, TableFunction<R> task, DocumentStore table,
+                                         CompletableFuture<R> target) {
+        FutureTask<Void> work = new FutureTask<Void>(() -> {
+            try {
+                target.complete(task.apply(table));
+            } catch (InterruptedException e) {
+                // this should never happen except on cancellation or on shutdown
+                target.completeExceptionally(new FailoverException("Thread was interrupted during operation", e));
+            } catch (Throwable t) {
+                target.completeExceptionally(t);
+            }
+        }, null) {
+            @Override
+            protected void done() {
+                if (isCancelled()) {
+                    // cancelled before it ran, e.g. by the shutdown of the worker pool
+                    target.completeExceptionally(new CancellationException("Attempt was cancelled"));
+                }
+            }
+        };
+        try {
+            executor.execute(work);
+            return work;
+        } catch (RejectedExecutionException e) {
+            return null;
+        }
+    }
+
+    private static FailoverException rejected() {
+        return new FailoverException("Worker pool is saturated, request rejected", new RejectedExecutionException());
+    }
+
+    private static void cancelIfCancelled(CompletableFuture<?> result, Future<?> attempt) {
+        if (result.isCancelled()) {
+            cancel(attempt);
+        }
+    }
+
+    /**
+     * Stop waiting for an attempt. Its result completes with the reason, so the attempt reports its outcome
+     * even if it never started.
+     */
+    private static <R> void abandon(CompletableFuture<R> target, Future<?> attempt, Throwable reason) {
+        if (target != null) {
+            target.completeExceptionally(reason);
+        }
+        cancel(attempt);
+    }
+
+    private static void cancel(Future<?> attempt) {
+        if (attempt != null) {
+            attempt.cancel(true);
+        }
+    }
+
+    /**
+     * Receives latency of the successful attempts and the errors of the failed ones
+     */
+    interface LatencyListener {
+        /**
+         * Called before an attempt is handed to the worker pool, every started attempt reports its outcome
+         *
+         * @param onPrimary true for the attempt on the primary table, false for the secondary
+         */
+        default void onStart(boolean onPrimary) {
+        }
+
+        /**
+         * @param onPrimary true for the attempt on the primary table, false for the secondary
+         * @param nanos     time from submitting the attempt until its result, in nanoseconds
+         */
+        void onSuccess(boolean onPrimary, long nanos);
+
+        /**
+         * Called before {@link #onFailure} for an attempt given up on because it was too slow
+         *
+         * @param onPrimary true for the attempt on the primary table, false for the secondary
+         * @param nanos     time from submitting the attempt until it was given up on, its latency is at least that
+         */
+        default void onTimeout(boolean onPrimary, long nanos) {
+        }
+
+        /**
+         * @param onPrimary true for the attempt on the primary table, false for the secondary
+         * @param error     what the attempt failed with
+         */
+        default void onFailure(boolean onPrimary, Throwable error) {
+        }
+    }
+}
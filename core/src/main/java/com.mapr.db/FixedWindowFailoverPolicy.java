@@ -0,0 +1,42 @@
+package com.mapr.db;
+
+import java.util.Arrays;
+
+/**
+ * Stays on the secondary table for a fixed time that depends on how many times we failed over.
+ * The n-th failover sticks for the n-th window, all further failovers stick for the last window.
+ * The failovers are never forgotten.
+ */
+public class FixedWindowFailoverPolicy implements FailoverPolicy {
+
+    private final long[] windows;      // stickiness for the first, second, ... failover, in milliseconds
+
+    /**
+     * @param windows stickiness for the first, second, ... failover, in milliseconds
+     */
+    public FixedWindowFailoverPolicy(long... windows) {
+        if (windows.length == 0) {
+            throw new IllegalArgumentException("At least one window is required");
+        }
+        this.windows = windows.clone();
+    }
+
+    /**
+     * @return policy that stays on secondary for 20 seconds, then 1 minute, then 2 minutes for every next failover
+     */
+    public static FixedWindowFailoverPolicy defaults() {
+        long minute = 60000;
+        return new FixedWindowFailoverPolicy(minute / 3, minute, 2 * minute);
+    }
+
+    @Override
+    public long stickinessMillis(RoutingState switched) {
+        int n = Math.max(1, switched.getSwitchCount());
+        return windows[Math.min(n, windows.length) - 1];
+    }
+
+    @Override
+    public String toString() {
+        return "FixedWindowFailoverPolicy" + Arrays.toString(windows);
+    }
+}
@@ -0,0 +1,163 @@
+package com.mapr.db;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+import java.util.function.Function;
+
+/**
+ * Checks that a table which we failed over from has recovered before we return to it.
+ * <p>
+ * Every <code>intervalMs</code> a canary <code>findById</code> of a sentinel key is sent to the table.
+ * The key does not need to exist, the request only has to reach the cluster and come back. A probe counts
+ * as successful if it answers within <code>maxLatencyMs</code>. After <code>requiredSuccesses</code>
+ * successful probes in a row the table is declared healthy, any failed or slow probe starts the count over.
+ * The probes run on the worker pool of the probed cluster and are scheduled on the failover scheduler,
+ * so no thread waits for them.
+ * <p>
+ * The instance keeps state of one {@link FailoverGroup}, so it must not be shared.
+ */
+public class HealthProber {
+    private static final Logger LOG = LoggerFactory.getLogger(HealthProber.class);
+
+    /**
+     * Key of the document requested by the probes by default
+     */
+    public static final String DEFAULT_SENTINEL_KEY = "__enhanced_json_table_health_probe__";
+
+    private final String sentinelKey;
+    private final int requiredSuccesses;   // successful probes in a row needed to declare the table healthy
+    private final long intervalMs;         // pause between probes
+    private final long maxLatencyMs;       // slower probes count as failed
+
+    private final AtomicBoolean probing = new AtomicBoolean(false);
+
+    private volatile int consecutiveSuccesses;
+    private volatile double lastProbeLatencyMs = -1;
+    private final AtomicLong probeCount = new AtomicLong();
+    private final AtomicLong failedProbeCount = new AtomicLong();
+
+    /**
+     * @param sentinelKey       the key requested by the probes
+     * @param requiredSuccesses successful probes in a row needed to declare the table healthy
+     * @param intervalMs        pause between probes, in milliseconds
+     * @param maxLatencyMs      probes slower than that count as failed, in milliseconds
+     */
+    public HealthProber(String sentinelKey, int requiredSuccesses, long intervalMs, long maxLatencyMs) {
+        if (requiredSuccesses < 1) {
+            throw new IllegalArgumentException("At least one successful probe must be required: " + requiredSuccesses);
+        }
+        this.sentinelKey = sentinelKey;
+        this.requiredSuccesses = requiredSuccesses;
+        this.intervalMs = intervalMs;
+        this.maxLatencyMs = maxLatencyMs;
+    }
+
+    /**
+     * @param maxLatencyMs probes slower than that count as failed, in milliseconds
+     * @return prober that requires 3 successful probes in a row, one per second
+     */
+    public static HealthProber defaults(long maxLatencyMs) {
+        return new HealthProber(DEFAULT_SENTINEL_KEY, 3, 1000, maxLatencyMs);
+    }
+
+    /**
+     * Start probing the table. Does nothing if the prober is already probing.
+     *
+     * @param probe       sends a <code>findById</code> of the given key to the table, without blocking
+     * @param scheduler   the scheduler for the probes
+     * @param stillNeeded checked before every probe, probing stops when it returns false
+     * @param onHealthy   called once the table is declared healthy
+     */
+    void start(Function<String, CompletableFuture<?>> probe, ScheduledExecutorService scheduler,
+               BooleanSupplier stillNeeded, Runnable onHealthy) {
+        if (!probing.compareAndSet(false, true)) {
+            return;
+        }
+        consecutiveSuccesses = 0;
+        LOG.info("Start probing table before failback");
+        scheduler.execute(() -> probe(probe, scheduler, stillNeeded, onHealthy));
+    }
+
+    private void probe(Function<String, CompletableFuture<?>> send, ScheduledExecutorService scheduler,
+                       BooleanSupplier stillNeeded, Runnable onHealthy) {
+        if (!stillNeeded.getAsBoolean()) {
+            probing.set(false);
+            return;
+        }
+        long started = System.nanoTime();
+        CompletableFuture<?> probe = send.apply(sentinelKey);
+        ScheduledFuture<?> timer = scheduler.schedule(() -> probe.cancel(true), maxLatencyMs, TimeUnit.MILLISECONDS);
+        probe.whenComplete((r, t) -> {
+            timer.cancel(false);
+            double latency = (System.nanoTime() - started) / 1e6;
+            probeCount.incrementAndGet();
+            if (t == null && latency <= maxLatencyMs) {
+                lastProbeLatencyMs = latency;
+                consecutiveSuccesses++;
+            } else {
+                lastProbeLatencyMs = probe.isCancelled() ? maxLatencyMs : latency;
+                failedProbeCount.incrementAndGet();
+                consecutiveSuccesses = 0;
+                LOG.debug("Health probe failed after {} ms", latency, t);
+            }
+            if (consecutiveSuccesses >= requiredSuccesses) {
+                LOG.info("Table is healthy after {} successful probes, last took {} ms",
+                        consecutiveSuccesses, lastProbeLatencyMs);
+                probing.set(false);
+                if (stillNeeded.getAsBoolean()) {
+                    onHealthy.run();
+                }
+            } else {
+                scheduler.schedule(() -> probe(send, scheduler, stillNeeded, onHealthy),
+                        intervalMs, TimeUnit.MILLISECONDS);
+            }
+        });
+    }
+
+    /**
+     * @return true while the prober waits for the table to recover
+     */
+    public boolean isProbing() {
+        return probing.get();
+    }
+
+    /**
+     * @return latency of the last probe in milliseconds, or -1 if there were no probes yet
+     */
+    public double getLastProbeLatencyMs() {
+        return lastProbeLatencyMs;
+    }
+
+    /**
+     * @return how long a probe may take before it counts as failed, in milliseconds
+     */
+    public long getMaxLatencyMs() {
+        return maxLatencyMs;
+    }
+
+    public int getConsecutiveSuccesses() {
+        return consecutiveSuccesses;
+    }
+
+    public long getProbeCount() {
+        return probeCount.get();
+    }
+
+    public long getFailedProbeCount() {
+        return failedProbeCount.get();
+    }
+
+    @Override
+    public String toString() {
+        return "HealthProber{sentinelKey='" + sentinelKey + "', requiredSuccesses=" + requiredSuccesses +
+                ", intervalMs=" + intervalMs + ", maxLatencyMs=" + maxLatencyMs + '}';
+    }
+}
@@ -0,0 +1,134 @@
+package com.mapr.db;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of latencies observed during the last <code>windowMs</code> milliseconds.
+ * <p>
+ * The window is split into slices, each slice counts latencies into buckets that grow
+ * geometrically by 25%, from 1 microsecond to several minutes. So a percentile is exact
+ * up to 25% and old slices are simply reset when the window moves past them.
+ * Recording is lock free and does not allocate, so it is cheap enough to do for every request.
+ */
+class LatencyHistogram {
+
+    private static final double BUCKET_GROWTH = 1.25;
+    private static final double LOG_GROWTH = Math.log(BUCKET_GROWTH);
+    private static final int BUCKETS = 110;             // 1.25^110 microseconds is about 12 minutes
+
+    private final long sliceMs;                         // duration of one slice
+    private final AtomicLongArray[] slices;             // counts for each bucket, per slice
+    private final AtomicLong[] sliceEpochs;             // which period of time each slice currently counts
+
+    /**
+     * @param windowMs    how long a latency is remembered
+     * @param sliceCount  how many steps the window moves by, more slices make it move smoother
+     */
+    LatencyHistogram(long windowMs, int sliceCount) {
+        this.sliceMs = Math.max(1, windowMs / sliceCount);
+        this.slices = new AtomicLongArray[sliceCount];
+        this.sliceEpochs = new AtomicLong[sliceCount];
+        for (int i = 0; i < sliceCount; i++) {
+            slices[i] = new AtomicLongArray(BUCKETS);
+            sliceEpochs[i] = new AtomicLong(-1);
+        }
+    }
+
+    /**
+     * Count a latency
+     *
+     * @param nanos the latency in nanoseconds
+     */
+    void record(long nanos) {
+        record(nanos, System.currentTimeMillis());
+    }
+
+    void record(long nanos, long now) {
+        long epoch = now / sliceMs;
+        int slot = (int) (epoch % slices.length);
+        AtomicLong sliceEpoch = sliceEpochs[slot];
+        long seen = sliceEpoch.get();
+        if (seen < epoch && sliceEpoch.compareAndSet(seen, epoch)) {
+            // the slice counted an old period of time, start it over
+            AtomicLongArray counts = slices[slot];
+            for (int i = 0; i < BUCKETS; i++) {
+                counts.set(i, 0);
+            }
+        }
+        slices[slot].incrementAndGet(bucket(nanos / 1000));
+    }
+
+    /**
+     * @return the quantity of latencies counted in the window
+     */
+    long count() {
+        return count(System.currentTimeMillis());
+    }
+
+    long count(long now) {
+        long total = 0;
+        long epoch = now / sliceMs;
+        for (int s = 0; s < slices.length; s++) {
+            if (isLive(s, epoch)) {
+                for (int i = 0; i < BUCKETS; i++) {
+                    total += slices[s].get(i);
+                }
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Latency below which the given fraction of the latencies in the window are
+     *
+     * @param quantile the fraction, e.g. 0.99 for the 99th percentile
+     * @return the latency in milliseconds, or -1 if nothing was counted in the window
+     */
+    double percentile(double quantile) {
+        return percentile(quantile, System.currentTimeMillis());
+    }
+
+    double percentile(double quantile, long now) {
+        long epoch = now / sliceMs;
+        long[] merged = new long[BUCKETS];
+        long total = 0;
+        for (int s = 0; s < slices.length; s++) {
+            if (isLive(s, epoch)) {
+                for (int i = 0; i < BUCKETS; i++) {
+                    long c = slices[s].get(i);
+                    merged[i] += c;
+                    total += c;
+                }
+            }
+        }
+        if (total == 0) {
+            return -1;
+        }
+        long rank = (long) Math.ceil(quantile * total);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += merged[i];
+            if (seen >= rank) {
+                return upperBoundMicros(i) / 1000.0;
+            }
+        }
+        return upperBoundMicros(BUCKETS - 1) / 1000.0;
+    }
+
+    private boolean isLive(int slot, long epoch) {
+        long sliceEpoch = sliceEpochs[slot].get();
+        return sliceEpoch > epoch - slices.length && sliceEpoch <= epoch;
+    }
+
+    private static int bucket(long micros) {
+        if (micros <= 1) {
+            return 0;
+        }
+        return Math.min(BUCKETS - 1, (int) (Math.log(micros) / LOG_GROWTH));
+    }
+
+    private static double upperBoundMicros(int bucket) {
+        return Math.pow(BUCKET_GROWTH, bucket + 1);
+    }
+}
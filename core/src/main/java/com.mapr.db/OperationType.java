@@ -0,0 +1,42 @@
+package com.mapr.db;
+
+/**
+ * Kinds of operations that {@link EnhancedJSONTable} performs. Operations of one kind have similar
+ * latency, so latency statistics and the fail-over settings are kept per kind.
+ */
+public enum OperationType {
+    FIND_BY_ID(true),
+    FIND(true),
+    FIND_QUERY(true),
+    INSERT(false),
+    INSERT_OR_REPLACE(false),
+    REPLACE(false),
+    UPDATE(false),
+    DELETE(false),
+    INCREMENT(false),
+    /**
+     * checkAndMutate, checkAndDelete and checkAndReplace
+     */
+    CHECK_AND_MUTATE(false),
+    /**
+     * Write of a whole {@link org.ojai.DocumentStream}
+     */
+    BULK_WRITE(false),
+    /**
+     * flush, isReadOnly and tracking of writes
+     */
+    ADMIN(false);
+
+    private final boolean read;
+
+    OperationType(boolean read) {
+        this.read = read;
+    }
+
+    /**
+     * @return true if the operation only reads documents
+     */
+    public boolean isRead() {
+        return read;
+    }
+}
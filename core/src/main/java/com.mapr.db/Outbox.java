@@ -0,0 +1,614 @@
+package com.mapr.db;
+
+import org.ojai.Document;
+import org.ojai.store.exceptions.MultiOpException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * Local disk queue for the writes of {@link EnhancedJSONTable} that no table could take.
+ * <p>
+ * When a single document <code>insertOrReplace</code> or <code>delete</code> with a string id was tried on
+ * all the tables and failed on every one of them, the table appends the write to the outbox and returns as if it
+ * succeeded: the write is accepted, it is not applied yet. A write that was not sent to every table, e.g. because
+ * a circuit breaker was open or a deadline passed, fails as before. While the outbox holds writes, the later
+ * writes of these kinds go to the outbox too, so they are applied in the order they were made, and the writes of
+ * other kinds fail. A write is appended only once the writes sent to the tables before it have finished, and no
+ * write goes to the tables while one is appended, so a direct write never overtakes a write of the outbox.
+ * <p>
+ * A thread of the outbox applies the writes in order, in bulk writes of up to <code>batchSize</code> documents of
+ * the same kind, once a table takes them again, and tries again every <code>retryMs</code> until then. A write can
+ * be applied twice after a crash or a retry, which does not change the result of these kinds of writes. A document
+ * that the table rejects with an application error while the outbox is drained, e.g. because it is invalid, is
+ * dropped and counted. Any other failure of a document is taken as a sign that the cluster is still unhealthy,
+ * and the whole bulk write is tried again.
+ * <p>
+ * The outbox is a directory of segment files with CRC32 protected records, every accepted write is forced
+ * to disk. It holds at most <code>maxBytes</code> of writes, a write that does not fit fails with the error
+ * of the tables. The writes kept from an earlier run are applied when the outbox is set on a table again.
+ * <p>
+ * The outbox belongs to the caller and must be closed by it, before the table. The instance keeps state of one
+ * {@link EnhancedJSONTable}, so it must not be shared.
+ */
+public class Outbox implements Closeable {
+    private static final Logger LOG = LoggerFactory.getLogger(Outbox.class);
+
+    private static final int MAGIC = 0x4f4a4f42;   // "OJOB"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 8;      // magic, version
+    private static final int RECORD_HEADER_SIZE = 8;  // length and CRC of the body
+    private static final String SUFFIX = ".outbox";
+    private static final String HEAD = "head";
+
+    /**
+     * Kinds of writes the outbox takes, both give the same result when applied twice
+     */
+    enum Kind {
+        INSERT_OR_REPLACE, DELETE
+    }
+
+    /**
+     * One accepted write and where the next one starts
+     */
+    private static final class Record {
+        final Kind kind;
+        final String id;        // null if the document holds its id
+        final String json;      // null for a delete
+        final long sequence;    // of the segment that holds the next record
+        final long next;        // offset of the next record in that segment
+        final int size;
+
+        Record(Kind kind, String id, String json, long sequence, long next, int size) {
+            this.kind = kind;
+            this.id = id;
+            this.json = json;
+            this.sequence = sequence;
+            this.next = next;
+            this.size = size;
+        }
+    }
+
+    private final Path directory;
+    private final long maxBytes;       // writes held at most
+    private final int segmentSize;     // a segment is closed once it is that big
+    private final int batchSize;       // documents applied with one bulk write
+    private final long retryMs;        // how long the drain waits after a failed bulk write
+
+    /**
+     * Files and counts of the outbox, guarded by this
+     */
+    private FileChannel writer;        // the segment being appended to, null if a new one must be started
+    private long writeSequence;
+    private long writeSize;
+    private long headSequence;         // the first write not applied yet
+    private long headOffset;
+    private long pendingCount;
+    private long pendingBytes;
+    private int direct;                // writes sent to the tables and not finished yet
+    private int appending;             // writes waiting for the direct ones to finish before they are appended
+
+    private volatile EnhancedJSONTable table;
+    private Thread drainer;
+    private volatile boolean closed;
+
+    private final AtomicLong acceptedCount = new AtomicLong();
+    private final AtomicLong appliedCount = new AtomicLong();
+    private final AtomicLong rejectedCount = new AtomicLong();
+    private final AtomicLong droppedCount = new AtomicLong();
+
+    /**
+     * @param directory   where the segment files are kept, created if missing
+     * @param maxBytes    size of the writes the outbox holds at most
+     * @param segmentSize size at which a segment file is closed and a new one started
+     * @param batchSize   documents applied with one bulk write
+     * @param retryMs     how long to wait after a failed bulk write, in milliseconds
+     * @throws IOException if the directory cannot be created or the writes kept in it cannot be read
+     */
+    public Outbox(Path directory, long maxBytes, int segmentSize, int batchSize, long retryMs) throws IOException {
+        if (maxBytes < segmentSize || segmentSize < 1024) {
+            throw new IllegalArgumentException("Segment must have at least 1024 bytes and fit the outbox: " +
+                    segmentSize + ", " + maxBytes);
+        }
+        if (batchSize < 1 || retryMs <= 0) {
+            throw new IllegalArgumentException("Batch size and retry time must be positive: " + batchSize + ", " +
+                    retryMs);
+        }
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        this.segmentSize = segmentSize;
+        this.batchSize = batchSize;
+        this.retryMs = retryMs;
+        Files.createDirectories(directory);
+        recover();
+    }
+
+    /**
+     * @param directory where the segment files are kept, created if missing
+     * @return outbox of up to 1 GB in segments of 16 MB, applied in batches of 500 documents, retried every second
+     * @throws IOException if the directory cannot be created or the writes kept in it cannot be read
+     */
+    public static Outbox open(Path directory) throws IOException {
+        return new Outbox(directory, 1L << 30, 16 << 20, 500, 1000);
+    }
+
+    /**
+     * Find the first write not applied yet and count the writes that follow it
+     */
+    private synchronized void recover() throws IOException {
+        List<Path> segments = segments();
+        if (segments.isEmpty()) {
+            return;
+        }
+        headSequence = sequenceOf(segments.get(0));
+        headOffset = HEADER_SIZE;
+        Path head = directory.resolve(HEAD);
+        if (Files.exists(head)) {
+            ByteBuffer saved = ByteBuffer.wrap(Files.readAllBytes(head));
+            if (saved.remaining() == 20) {
+                long sequence = saved.getLong();
+                long offset = saved.getLong();
+                if (checksum(sequence, offset) == saved.getInt() && sequence >= headSequence) {
+                    headSequence = sequence;
+                    headOffset = offset;
+                }
+            }
+        }
+        for (Path path : segments) {
+            long sequence = sequenceOf(path);
+            if (sequence < headSequence) {
+                Files.delete(path);
+                continue;
+            }
+            try (FileChannel file = FileChannel.open(path, StandardOpenOption.READ)) {
+                long offset = sequence == headSequence ? headOffset : HEADER_SIZE;
+                Record record;
+                while ((record = read(file, sequence, offset, file.size())) != null) {
+                    pendingCount++;
+                    pendingBytes += record.size;
+                    offset = record.next;
+                }
+            }
+        }
+        // appends go to a new segment, a torn record at the end of the last one is never followed
+        writeSequence = sequenceOf(segments.get(segments.size() - 1));
+        if (pendingCount > 0) {
+            LOG.info("Outbox in {} holds {} writes from an earlier run", directory, pendingCount);
+        }
+    }
+
+    /**
+     * Apply the writes with the given table from now on
+     */
+    void start(EnhancedJSONTable table) {
+        synchronized (this) {
+            if (this.table != null || closed) {
+                throw new IllegalStateException("Outbox " + directory + " is already used or closed");
+            }
+            this.table = table;
+            drainer = new Thread(this::drain, "ojai-outbox-" + directory.getFileName());
+            drainer.setDaemon(true);
+        }
+        drainer.start();
+    }
+
+    /**
+     * @return true while the outbox holds writes that are not applied yet
+     */
+    synchronized boolean isPending() {
+        return pendingCount > 0;
+    }
+
+    /**
+     * Let a write go to the tables, unless the outbox holds or is appending writes it must not overtake.
+     * A write that is let through must be followed by {@link #finishDirect()}.
+     *
+     * @return true if the write may go to the tables
+     */
+    synchronized boolean startDirect() {
+        if (pendingCount > 0 || appending > 0) {
+            return false;
+        }
+        direct++;
+        return true;
+    }
+
+    /**
+     * A write let through by {@link #startDirect()} has finished
+     */
+    synchronized void finishDirect() {
+        if (--direct == 0) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * Append a write and force it to disk, once the writes sent to the tables have finished
+     *
+     * @param kind the kind of the write
+     * @param id   the id of the document, or null if the document holds it
+     * @param doc  the document to write, null for a delete
+     * @return true if the write was accepted, false if the outbox is full or closed or the disk failed
+     */
+    boolean offer(Kind kind, String id, Document doc) {
+        ByteBuffer record = encode(kind, id, doc == null ? null : doc.asJsonString());
+        synchronized (this) {
+            appending++;
+            try {
+                while (direct > 0 && !closed) {
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                rejected();
+                return false;
+            } finally {
+                appending--;
+            }
+            if (closed || pendingBytes + record.remaining() > maxBytes
+                    || RECORD_HEADER_SIZE + record.remaining() > segmentSize - HEADER_SIZE) {
+                rejected();
+                return false;
+            }
+            int size = record.remaining();
+            try {
+                if (writer == null || writeSize + size > segmentSize) {
+                    startSegment();
+                }
+                while (record.hasRemaining()) {
+                    writer.write(record);
+                }
+                writer.force(false);
+            } catch (IOException e) {
+                LOG.error("Failed to append a write to the outbox in {}", directory, e);
+                closeWriter();
+                rejected();
+                return false;
+            }
+            writeSize += size;
+            pendingCount++;
+            pendingBytes += size;
+            notifyAll();
+        }
+        acceptedCount.incrementAndGet();
+        return true;
+    }
+
+    private void rejected() {
+        if (rejectedCount.getAndIncrement() == 0) {
+            LOG.warn("Outbox in {} is full or closed, writes are rejected", directory);
+        }
+    }
+
+    private static ByteBuffer encode(Kind kind, String id, String json) {
+        byte[] idBytes = id == null ? null : id.getBytes(StandardCharsets.UTF_8);
+        byte[] jsonBytes = json == null ? new byte[0] : json.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer body = ByteBuffer.allocate(1 + 4 + (idBytes == null ? 0 : idBytes.length) + jsonBytes.length);
+        body.put((byte) kind.ordinal());
+        body.putInt(idBytes == null ? -1 : idBytes.length);
+        if (idBytes != null) {
+            body.put(idBytes);
+        }
+        body.put(jsonBytes);
+        CRC32 crc = new CRC32();
+        crc.update(body.array());
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + body.capacity());
+        record.putInt(body.capacity()).putInt((int) crc.getValue()).put(body.array());
+        ((Buffer) record).flip();
+        return record;
+    }
+
+    private void startSegment() throws IOException {
+        closeWriter();
+        writeSequence++;
+        Path path = directory.resolve(String.format("%020d%s", writeSequence, SUFFIX));
+        writer = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC).putInt(VERSION);
+        ((Buffer) header).flip();
+        while (header.hasRemaining()) {
+            writer.write(header);
+        }
+        writeSize = HEADER_SIZE;
+        if (pendingCount == 0) {
+            headSequence = writeSequence;
+            headOffset = HEADER_SIZE;
+        }
+    }
+
+    private void closeWriter() {
+        if (writer != null) {
+            try {
+                writer.close();
+            } catch (IOException e) {
+                LOG.warn("Failed to close outbox segment {}", writeSequence, e);
+            }
+            writer = null;
+        }
+    }
+
+    /**
+     * Body of the drain thread: apply the writes in order, wait and try again when the tables fail
+     */
+    private void drain() {
+        while (!closed) {
+            try {
+                synchronized (this) {
+                    while (!closed && pendingCount == 0) {
+                        wait();
+                    }
+                }
+                List<Record> batch = readBatch();
+                int applied = 0;
+                while (applied < batch.size() && !closed) {
+                    applied += apply(batch, applied);
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException | RuntimeException e) {
+                LOG.debug("Outbox in {} failed to apply writes, retrying in {} ms", directory, retryMs, e);
+                try {
+                    Thread.sleep(retryMs);
+                } catch (InterruptedException interrupted) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Apply the writes of the same kind that start at the given position of the batch
+     *
+     * @return quantity of the writes applied
+     */
+    private int apply(List<Record> batch, int from) throws IOException {
+        Kind kind = batch.get(from).kind;
+        int to = from;
+        List<Document> documents = new ArrayList<>();
+        while (to < batch.size() && batch.get(to).kind == kind) {
+            Record record = batch.get(to++);
+            Document doc = table.newDocument(record.json);
+            if (record.id != null) {
+                doc.setId(record.id);
+            }
+            documents.add(doc);
+        }
+        try {
+            table.outboxWriteAsync(documents, kind == Kind.DELETE
+                    ? t -> t.delete(new DocumentListStream(documents))
+                    : t -> t.insertOrReplace(new DocumentListStream(documents))).join();
+        } catch (CompletionException e) {
+            if (!(e.getCause() instanceof MultiOpException)) {
+                throw e;
+            }
+            List<MultiOpException.Failure> failures = ((MultiOpException) e.getCause()).getFailures();
+            ExceptionClassifier classifier = table.getExceptionClassifier();
+            for (MultiOpException.Failure failure : failures) {
+                if (!classifier.isApplicationError(failure.getFailure())) {
+                    // the documents are written again with the whole batch, which does not change their result
+                    throw e;
+                }
+            }
+            LOG.warn("Outbox in {} dropped {} writes rejected by the table", directory, failures.size(), e.getCause());
+            droppedCount.addAndGet(failures.size());
+        }
+        advance(batch.get(to - 1), batch.subList(from, to));
+        return to - from;
+    }
+
+    /**
+     * Read the next writes to apply, up to a batch
+     */
+    private synchronized List<Record> readBatch() throws IOException {
+        List<Record> batch = new ArrayList<>();
+        long sequence = headSequence;
+        long offset = headOffset;
+        while (batch.size() < batchSize) {
+            Path path = directory.resolve(String.format("%020d%s", sequence, SUFFIX));
+            if (!Files.exists(path)) {
+                break;
+            }
+            try (FileChannel file = FileChannel.open(path, StandardOpenOption.READ)) {
+                long limit = sequence == writeSequence && writer != null ? writeSize : file.size();
+                Record record;
+                while (batch.size() < batchSize && (record = read(file, sequence, offset, limit)) != null) {
+                    batch.add(record);
+                    offset = record.next;
+                }
+            }
+            if (batch.size() == batchSize || sequence >= writeSequence) {
+                break;
+            }
+            sequence++;
+            offset = HEADER_SIZE;
+        }
+        if (batch.isEmpty()) {
+            // the counts include writes lost to a failed disk, there is nothing left to apply
+            LOG.warn("Outbox in {} expected {} more writes, found none", directory, pendingCount);
+            pendingCount = 0;
+            pendingBytes = 0;
+        }
+        return batch;
+    }
+
+    /**
+     * @return the record at the offset, or null at the end of the segment or at a damaged record
+     */
+    private static Record read(FileChannel file, long sequence, long offset, long limit) throws IOException {
+        if (offset + RECORD_HEADER_SIZE > limit) {
+            return null;
+        }
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+        readFully(file, header, offset);
+        int length = header.getInt(0);
+        int checksum = header.getInt(4);
+        if (length < 5 || offset + RECORD_HEADER_SIZE + length > limit) {
+            return null;
+        }
+        ByteBuffer body = ByteBuffer.allocate(length);
+        readFully(file, body, offset + RECORD_HEADER_SIZE);
+        CRC32 crc = new CRC32();
+        crc.update(body.array());
+        if ((int) crc.getValue() != checksum) {
+            return null;
+        }
+        ((Buffer) body).flip();
+        byte kind = body.get();
+        if (kind < 0 || kind >= Kind.values().length) {
+            return null;
+        }
+        int idLength = body.getInt();
+        String id = null;
+        if (idLength >= 0) {
+            id = new String(body.array(), body.position(), idLength, StandardCharsets.UTF_8);
+            ((Buffer) body).position(body.position() + idLength);
+        }
+        String json = body.hasRemaining()
+                ? new String(body.array(), body.position(), body.remaining(), StandardCharsets.UTF_8) : null;
+        return new Record(Kind.values()[kind], id, json, sequence, offset + RECORD_HEADER_SIZE + length,
+                RECORD_HEADER_SIZE + length);
+    }
+
+    private static void readFully(FileChannel file, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (file.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Outbox segment ends unexpectedly");
+            }
+        }
+    }
+
+    /**
+     * Save the position after the applied writes and remove the segments that are done
+     */
+    private synchronized void advance(Record last, List<Record> applied) throws IOException {
+        ByteBuffer head = ByteBuffer.allocate(20);
+        head.putLong(last.sequence).putLong(last.next).putInt(checksum(last.sequence, last.next));
+        ((Buffer) head).flip();
+        try (FileChannel file = FileChannel.open(directory.resolve(HEAD), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE)) {
+            while (head.hasRemaining()) {
+                file.write(head, head.position());
+            }
+            file.force(false);
+        }
+        headSequence = last.sequence;
+        headOffset = last.next;
+        for (Record record : applied) {
+            pendingCount--;
+            pendingBytes -= record.size;
+        }
+        appliedCount.addAndGet(applied.size());
+        for (Path path : segments()) {
+            if (sequenceOf(path) < headSequence) {
+                Files.delete(path);
+            }
+        }
+        if (pendingCount == 0) {
+            LOG.info("Outbox in {} is drained, {} writes applied so far", directory, appliedCount.get());
+        }
+    }
+
+    private static int checksum(long sequence, long offset) {
+        CRC32 crc = new CRC32();
+        crc.update(ByteBuffer.allocate(16).putLong(sequence).putLong(offset).array());
+        return (int) crc.getValue();
+    }
+
+    private List<Path> segments() throws IOException {
+        List<Path> segments = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+            for (Path file : files) {
+                segments.add(file);
+            }
+        }
+        Collections.sort(segments);
+        return segments;
+    }
+
+    private static long sequenceOf(Path segment) {
+        String name = segment.getFileName().toString();
+        return Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+    }
+
+    /**
+     * @return writes held and not applied yet
+     */
+    public synchronized long getPendingCount() {
+        return pendingCount;
+    }
+
+    /**
+     * @return writes accepted since the outbox was opened
+     */
+    public long getAcceptedCount() {
+        return acceptedCount.get();
+    }
+
+    /**
+     * @return writes applied to a table since the outbox was opened
+     */
+    public long getAppliedCount() {
+        return appliedCount.get();
+    }
+
+    /**
+     * @return writes refused because the outbox was full or closed or the disk failed
+     */
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    /**
+     * @return writes a table rejected with an application error while the outbox was drained
+     */
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Stop taking and applying writes. The writes not applied yet stay on disk for the next run.
+     */
+    @Override
+    public void close() {
+        Thread thread;
+        synchronized (this) {
+            closed = true;
+            closeWriter();
+            notifyAll();
+            thread = drainer;
+        }
+        if (thread != null) {
+            thread.interrupt();
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "Outbox{directory=" + directory + ", maxBytes=" + maxBytes + ", batchSize=" + batchSize +
+                ", retryMs=" + retryMs + '}';
+    }
+}
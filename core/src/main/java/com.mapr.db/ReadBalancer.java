@@ -0,0 +1,176 @@
+package com.mapr.db;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Spreads the reads of {@link EnhancedJSONTable} across all the healthy replicas instead of sending them
+ * to the active table only.
+ * <p>
+ * Every read goes to the replica with the lowest cost, ties go to the replica that comes first in the
+ * routing, i.e. to the active table. With {@link Strategy#LEAST_OUTSTANDING} the cost is the quantity of
+ * requests the replica is working on. With {@link Strategy#PEAK_EWMA} it is that quantity plus one,
+ * multiplied by the exponentially weighted moving average of the read latency of the replica. The average
+ * jumps up to a latency above it at once and decays to lower latencies over <code>decayMs</code>, so a
+ * replica that starts to stall loses the reads right away and gets them back gradually. The average of a
+ * replica that gets no reads decays to zero as well, so an idle or new replica is tried again. A failed
+ * request doubles the average.
+ * <p>
+ * The replicas are replicated asynchronously, so a read may not see a write made just before on another
+ * replica. Writes always go to the active table. The instance keeps state of one {@link EnhancedJSONTable},
+ * so it must not be shared.
+ */
+public class ReadBalancer {
+
+    /**
+     * How the cost of a replica is computed
+     */
+    public enum Strategy {
+        /**
+         * Quantity of requests the replica is working on
+         */
+        LEAST_OUTSTANDING,
+        /**
+         * Requests the replica is working on weighted by its peak-sensitive moving average latency
+         */
+        PEAK_EWMA
+    }
+
+    private static final double PENALTY = 1e15;    // cost of a replica with unknown latency that is busy
+
+    private final Strategy strategy;
+    private final double decayNanos;    // time constant of the moving average
+
+    private final AtomicIntegerArray outstanding = new AtomicIntegerArray(EnhancedJSONTable.MAX_REPLICAS);
+
+    /**
+     * Moving averages of latency per replica, guarded by this
+     */
+    private final double[] ewmaNanos = new double[EnhancedJSONTable.MAX_REPLICAS];
+    private final long[] updatedAt = new long[EnhancedJSONTable.MAX_REPLICAS];
+
+    /**
+     * @param strategy how the cost of a replica is computed
+     * @param decayMs  how fast the moving average forgets a latency peak, in milliseconds
+     */
+    public ReadBalancer(Strategy strategy, long decayMs) {
+        if (decayMs <= 0) {
+            throw new IllegalArgumentException("Decay time must be positive: " + decayMs);
+        }
+        this.strategy = strategy;
+        this.decayNanos = decayMs * 1e6;
+    }
+
+    /**
+     * @return balancer by peak moving average latency that forgets peaks in 10 seconds
+     */
+    public static ReadBalancer defaults() {
+        return new ReadBalancer(Strategy.PEAK_EWMA, 10_000);
+    }
+
+    /**
+     * @param chain  indexes of the candidate replicas in the order of the routing
+     * @param length quantity of the candidates
+     * @return position of the replica to read from in <code>chain</code>
+     */
+    int choose(int[] chain, int length) {
+        return choose(chain, length, System.nanoTime());
+    }
+
+    int choose(int[] chain, int length, long now) {
+        int best = 0;
+        double bestCost = Double.MAX_VALUE;
+        for (int k = 0; k < length; k++) {
+            double cost = cost(chain[k], now);
+            if (cost < bestCost) {
+                best = k;
+                bestCost = cost;
+            }
+        }
+        return best;
+    }
+
+    private double cost(int table, long now) {
+        int requests = outstanding.get(table);
+        if (strategy == Strategy.LEAST_OUTSTANDING) {
+            return requests;
+        }
+        double latency;
+        synchronized (this) {
+            latency = ewmaNanos[table] * Math.exp(-Math.max(0, now - updatedAt[table]) / decayNanos);
+        }
+        if (latency == 0 && requests > 0) {
+            // nothing is known yet, let the first request come back before sending more
+            return PENALTY;
+        }
+        return latency * (requests + 1);
+    }
+
+    /**
+     * A request was sent to the replica
+     */
+    void onStart(int table) {
+        outstanding.incrementAndGet(table);
+    }
+
+    /**
+     * A request to the replica succeeded
+     *
+     * @param nanos latency of the request, or -1 if it must not be taken into account
+     */
+    void onSuccess(int table, long nanos) {
+        outstanding.decrementAndGet(table);
+        if (nanos >= 0 && strategy == Strategy.PEAK_EWMA) {
+            update(table, nanos, System.nanoTime());
+        }
+    }
+
+    /**
+     * A request to the replica failed
+     *
+     * @param counts false if the failure says nothing about the replica, e.g. the request was cancelled
+     */
+    void onFailure(int table, boolean counts) {
+        outstanding.decrementAndGet(table);
+        if (counts && strategy == Strategy.PEAK_EWMA) {
+            synchronized (this) {
+                ewmaNanos[table] *= 2;
+            }
+        }
+    }
+
+    synchronized void update(int table, long nanos, long now) {
+        double average = ewmaNanos[table];
+        if (nanos > average) {
+            ewmaNanos[table] = nanos;
+        } else {
+            double weight = Math.exp(-(now - updatedAt[table]) / decayNanos);
+            ewmaNanos[table] = average * weight + nanos * (1 - weight);
+        }
+        updatedAt[table] = now;
+    }
+
+    /**
+     * @param table index of the table, 0 for primary, 1 for secondary, further replicas follow in their order
+     * @return quantity of requests the replica is working on
+     */
+    public int getOutstanding(int table) {
+        return outstanding.get(table);
+    }
+
+    /**
+     * @param table index of the table, 0 for primary, 1 for secondary, further replicas follow in their order
+     * @return moving average of the read latency in milliseconds, or 0 if there were no reads yet
+     */
+    public synchronized double getLatencyMs(int table) {
+        return ewmaNanos[table] / 1e6;
+    }
+
+    public Strategy getStrategy() {
+        return strategy;
+    }
+
+    @Override
+    public String toString() {
+        return "ReadBalancer{strategy=" + strategy + ", decayMs=" + (long) (decayNanos / 1e6) + '}';
+    }
+}
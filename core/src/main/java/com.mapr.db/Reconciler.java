@@ -0,0 +1,442 @@
+package com.mapr.db;
+
+import org.ojai.Document;
+import org.ojai.Value;
+import org.ojai.store.DocumentStore;
+import org.ojai.store.exceptions.MultiOpException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Brings the primary table of {@link EnhancedJSONTable} up to date with the writes that went to another table
+ * during a failover.
+ * <p>
+ * For every key, the current document is read from the table the write went to and is written to the primary
+ * table, or deleted from it when the document is gone. The keys are handled in batches of
+ * <code>batchSize</code>, up to <code>parallelism</code> batches at a time, and no faster than
+ * <code>maxKeysPerSecond</code>, so the catch-up does not starve the live traffic of the primary cluster.
+ * The tables are used directly, without fail-over. The progress can be followed with the counters while
+ * the reconciliation runs.
+ * <p>
+ * Run it once the table has switched back. The table remembers the keys it writes to the primary table from the
+ * first journaled write on, and a key it wrote there after the reconciled write is left alone. The check and the
+ * copy of a batch hold the locks of its keys, which the writes of the table to the primary table take as well, so
+ * such a write lands either before the check or after the copy, and the writes of those keys wait for the copy of
+ * the batch. A key beyond the first million remembered ones is still overwritten with the version of the other
+ * table, so the reconciliation should follow the failback without delay.
+ * <p>
+ * The instance keeps the counters of one reconciliation, so it must not be shared between concurrent runs.
+ */
+public class Reconciler {
+    private static final Logger LOG = LoggerFactory.getLogger(Reconciler.class);
+
+    private final EnhancedJSONTable table;
+    private final int batchSize;              // keys read and written together
+    private final int parallelism;            // batches in flight
+    private final double maxKeysPerSecond;    // 0 if the rate is not limited
+
+    private long nextBatchAt;                 // in System.nanoTime() terms, guarded by this
+
+    /**
+     * Progress of the current or the last reconciliation
+     */
+    private final AtomicLong pendingCount = new AtomicLong();
+    private final AtomicLong reconciledCount = new AtomicLong();
+    private final AtomicLong supersededCount = new AtomicLong();
+    private final AtomicLong failedCount = new AtomicLong();
+    private final AtomicLong skippedCount = new AtomicLong();
+
+    /**
+     * @param table            the table to reconcile
+     * @param batchSize        keys read and written together
+     * @param parallelism      batches in flight
+     * @param maxKeysPerSecond keys reconciled per second at most, or 0 for no limit
+     */
+    public Reconciler(EnhancedJSONTable table, int batchSize, int parallelism, double maxKeysPerSecond) {
+        if (batchSize < 1 || parallelism < 1) {
+            throw new IllegalArgumentException("Batch size and parallelism must be positive: " + batchSize + ", " +
+                    parallelism);
+        }
+        if (maxKeysPerSecond < 0) {
+            throw new IllegalArgumentException("Rate must not be negative: " + maxKeysPerSecond);
+        }
+        this.table = table;
+        this.batchSize = batchSize;
+        this.parallelism = parallelism;
+        this.maxKeysPerSecond = maxKeysPerSecond;
+    }
+
+    /**
+     * @param table the table to reconcile
+     * @return reconciler with batches of 100 keys, 4 batches in flight and at most 5000 keys per second
+     */
+    public static Reconciler defaults(EnhancedJSONTable table) {
+        return new Reconciler(table, 100, 4, 5000);
+    }
+
+    /**
+     * Reconcile the keys of the write journal of the table. The journal position of every batch that is done is
+     * saved as its checkpoint, together with the batches before it, so a reconciliation that was interrupted
+     * continues after the keys it has done. When every key is reconciled the replayed segments of the journal are
+     * discarded, so the next reconciliation starts from there. Otherwise the next reconciliation tries the keys
+     * after the checkpoint again.
+     *
+     * @param journal the journal the table wrote to during the failover
+     * @return true if every key was reconciled
+     * @throws IOException          if the journal cannot be read or discarded
+     * @throws InterruptedException if the thread is interrupted, the batches in flight are finished first
+     */
+    public boolean reconcile(WriteJournal journal) throws IOException, InterruptedException {
+        long checkpoint = journal.getCheckpoint();
+        Map<Object, Long> primaryWrites = table.primaryWrites();
+        // the last write of a key tells where its current version is
+        Map<Object, Key> latest = new LinkedHashMap<>();
+        journal.replay(entry -> {
+            if (entry.getPosition() <= checkpoint) {
+                return;
+            }
+            Object id = entry.getId() != null ? entry.getId() : entry.getBinaryId();
+            latest.remove(id);
+            latest.put(id, new Key(id, entry.getTable() < 0 ? 1 : entry.getTable(), entry.getTimestamp(),
+                    entry.getPosition()));
+        });
+        if (checkpoint >= 0) {
+            LOG.info("Reconciliation of {} continues after journal position {}", table, checkpoint);
+        }
+        boolean converged = reconcile(new ArrayList<>(latest.values()), journal);
+        if (converged) {
+            journal.discard();
+            table.primaryWritesReconciled(primaryWrites);
+        }
+        return converged;
+    }
+
+    /**
+     * Reconcile the given keys from one table. Keys that the table writes to its primary table while they wait
+     * for their turn are left alone.
+     *
+     * @param ids         the keys written to the source table during the failover
+     * @param sourceTable index of the table with the current version of the keys, 1 for the secondary table
+     * @return true if every key was reconciled
+     * @throws InterruptedException if the thread is interrupted, the batches in flight are finished first
+     */
+    public boolean reconcile(Collection<String> ids, int sourceTable) throws InterruptedException {
+        long now = System.currentTimeMillis();
+        List<Key> keys = new ArrayList<>(ids.size());
+        for (String id : ids) {
+            keys.add(new Key(id, sourceTable, now, -1));
+        }
+        return reconcile(keys, null);
+    }
+
+    /**
+     * @param keys    in the order of the journal
+     * @param journal where the progress is saved, or null
+     */
+    private boolean reconcile(List<Key> keys, WriteJournal journal) throws InterruptedException {
+        if (table.isTableSwitched()) {
+            throw new IllegalStateException("Table " + table + " is still switched to a secondary table");
+        }
+        DocumentStore primary = table.store(0);
+        if (primary == null) {
+            throw new IllegalStateException("Primary table of " + table + " is not open");
+        }
+        resetCounters(keys.size());
+        long started = System.nanoTime();
+        Progress progress = new Progress(batches(keys), journal);
+        Map<Object, Long> primaryWrites = table.primaryWrites();
+        ExecutorService workers = Executors.newFixedThreadPool(parallelism,
+                new WorkerPoolConfig.NamedThreadFactory("ojai-reconcile"));
+        Semaphore inFlight = new Semaphore(parallelism);
+        try {
+            for (int i = 0; i < progress.batches.size(); i++) {
+                Batch batch = progress.batches.get(i);
+                int from = batch.from;
+                DocumentStore secondary = from > 0 && from < table.getReplicaCount() ? table.store(from) : null;
+                if (secondary == null) {
+                    LOG.warn("Table {} of {} is not open, {} keys are not reconciled", from, table,
+                            batch.keys.size());
+                    skip(batch.keys.size());
+                    progress.done(i, false);
+                    continue;
+                }
+                pace(batch.keys.size());
+                inFlight.acquire();
+                int index = i;
+                CompletableFuture.supplyAsync(() -> reconcile(batch.keys, secondary, primary, primaryWrites), workers)
+                        .whenComplete((ok, t) -> {
+                            progress.done(index, ok != null && ok);
+                            inFlight.release();
+                        });
+            }
+        } finally {
+            // wait for the batches in flight, they hold no other resources
+            inFlight.acquireUninterruptibly(parallelism);
+            workers.shutdown();
+        }
+        LOG.info("Reconciled {} of {} keys in {} ms, {} newer on the primary table, {} failed, {} skipped",
+                reconciledCount.get(), pendingCount.get(),
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started), supersededCount.get(),
+                failedCount.get(), skippedCount.get());
+        return failedCount.get() == 0 && skippedCount.get() == 0;
+    }
+
+    /**
+     * Split the keys into batches of consecutive keys from the same table
+     */
+    private List<Batch> batches(List<Key> keys) {
+        List<Batch> batches = new ArrayList<>();
+        Batch batch = null;
+        for (Key key : keys) {
+            if (batch == null || batch.from != key.from || batch.keys.size() == batchSize) {
+                batch = new Batch(key.from);
+                batches.add(batch);
+            }
+            batch.keys.add(key);
+        }
+        return batches;
+    }
+
+    private void resetCounters(long total) {
+        pendingCount.set(total);
+        reconciledCount.set(0);
+        supersededCount.set(0);
+        failedCount.set(0);
+        skippedCount.set(0);
+    }
+
+    private void skip(long keys) {
+        skippedCount.addAndGet(keys);
+    }
+
+    /**
+     * Copy the current version of a batch of keys to the primary table
+     *
+     * @return true if no key failed
+     */
+    private boolean reconcile(List<Key> keys, DocumentStore source, DocumentStore primary,
+                              Map<Object, Long> primaryWrites) {
+        int failed = 0;
+        List<Key> read = new ArrayList<>(keys.size());
+        List<Document> found = new ArrayList<>(keys.size());    // null if the document is gone
+        for (Key key : keys) {
+            if (newerOnPrimary(key, primaryWrites)) {
+                continue;
+            }
+            try {
+                found.add(key.id instanceof String ? source.findById((String) key.id) : source.findById(value(key)));
+                read.add(key);
+            } catch (RuntimeException e) {
+                LOG.debug("Failed to reconcile key {}", key.id, e);
+                failed++;
+            }
+        }
+        // the reads take a while, the application may have written some of the keys meanwhile
+        List<Object> ids = new ArrayList<>(read.size());
+        for (Key key : read) {
+            ids.add(key.id);
+        }
+        failed += table.copyToPrimary(ids, () -> copy(read, found, primary, primaryWrites));
+        failedCount.addAndGet(failed);
+        return failed == 0;
+    }
+
+    /**
+     * Write the documents read from the source table to the primary table, unless the table wrote them there
+     * after the reconciled write
+     *
+     * @return quantity of the keys that failed
+     */
+    private int copy(List<Key> read, List<Document> found, DocumentStore primary, Map<Object, Long> primaryWrites) {
+        int failed = 0;
+        List<Document> written = new ArrayList<>(found.size());
+        for (int i = 0; i < found.size(); i++) {
+            Key key = read.get(i);
+            if (newerOnPrimary(key, primaryWrites)) {
+                continue;
+            }
+            if (found.get(i) != null) {
+                written.add(found.get(i));
+                continue;
+            }
+            try {
+                if (key.id instanceof String) {
+                    primary.delete((String) key.id);
+                } else {
+                    primary.delete(value(key));
+                }
+                reconciledCount.incrementAndGet();
+            } catch (RuntimeException e) {
+                LOG.debug("Failed to reconcile key {}", key.id, e);
+                failed++;
+            }
+        }
+        if (!written.isEmpty()) {
+            try {
+                primary.insertOrReplace(new DocumentListStream(written));
+                reconciledCount.addAndGet(written.size());
+            } catch (MultiOpException e) {
+                int rejected = e.getFailures().size();
+                LOG.debug("Failed to write {} of {} reconciled documents", rejected, written.size(), e);
+                failed += rejected;
+                reconciledCount.addAndGet(written.size() - rejected);
+            } catch (RuntimeException e) {
+                LOG.debug("Failed to write {} reconciled documents", written.size(), e);
+                failed += written.size();
+            }
+        }
+        return failed;
+    }
+
+    /**
+     * @return the binary id of the key as a value the tables are read and written by
+     */
+    private Value value(Key key) {
+        return table.newDocument(null).setId(((ByteBuffer) key.id).duplicate()).getId();
+    }
+
+    /**
+     * @return true if the table wrote the key to the primary table after the write that is reconciled, the key is
+     * counted as done then
+     */
+    private boolean newerOnPrimary(Key key, Map<Object, Long> primaryWrites) {
+        Long written = primaryWrites.get(key.id);
+        if (written == null || written < key.writtenAt) {
+            return false;
+        }
+        supersededCount.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Wait until the rate limit allows the next batch
+     */
+    private void pace(int keys) throws InterruptedException {
+        if (maxKeysPerSecond == 0) {
+            return;
+        }
+        long now = System.nanoTime();
+        long at;
+        synchronized (this) {
+            at = Math.max(nextBatchAt, now);
+            nextBatchAt = at + (long) (keys * 1e9 / maxKeysPerSecond);
+        }
+        TimeUnit.NANOSECONDS.sleep(at - now);
+    }
+
+    /**
+     * @return keys of the current or the last reconciliation
+     */
+    public long getPendingCount() {
+        return pendingCount.get();
+    }
+
+    /**
+     * @return keys copied to or deleted from the primary table so far
+     */
+    public long getReconciledCount() {
+        return reconciledCount.get();
+    }
+
+    /**
+     * @return keys left alone because the table wrote them to the primary table after the reconciled write
+     */
+    public long getSupersededCount() {
+        return supersededCount.get();
+    }
+
+    /**
+     * @return keys that could not be read or written
+     */
+    public long getFailedCount() {
+        return failedCount.get();
+    }
+
+    /**
+     * @return keys whose source table was not open
+     */
+    public long getSkippedCount() {
+        return skippedCount.get();
+    }
+
+    /**
+     * A key to reconcile and its last write to another table
+     */
+    private static final class Key {
+        final Object id;          // string or binary id
+        final int from;           // index of the table with the current version
+        final long writtenAt;     // when the write was sent, in milliseconds
+        final long position;      // of the write in the journal, -1 without a journal
+
+        Key(Object id, int from, long writtenAt, long position) {
+            this.id = id;
+            this.from = from;
+            this.writtenAt = writtenAt;
+            this.position = position;
+        }
+    }
+
+    private static final class Batch {
+        final int from;
+        final List<Key> keys = new ArrayList<>();
+
+        Batch(int from) {
+            this.from = from;
+        }
+    }
+
+    /**
+     * Outcomes of the batches of one reconciliation, saves the journal position of the batches done so far
+     */
+    private static final class Progress {
+        final List<Batch> batches;
+        private final WriteJournal journal;
+        private final Boolean[] succeeded;    // null while the batch is not done, guarded by this
+        private int next;                     // first batch not covered by the checkpoint, guarded by this
+
+        Progress(List<Batch> batches, WriteJournal journal) {
+            this.batches = batches;
+            this.journal = journal;
+            this.succeeded = new Boolean[batches.size()];
+        }
+
+        synchronized void done(int batch, boolean ok) {
+            succeeded[batch] = ok;
+            int first = next;
+            while (next < succeeded.length && succeeded[next] == Boolean.TRUE) {
+                next++;
+            }
+            if (journal == null || next == first) {
+                return;
+            }
+            List<Key> keys = batches.get(next - 1).keys;
+            long position = keys.get(keys.size() - 1).position;
+            try {
+                journal.checkpoint(position);
+            } catch (IOException e) {
+                LOG.warn("Failed to save the reconciliation checkpoint {} in {}", position, journal.getDirectory(),
+                        e);
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "Reconciler{batchSize=" + batchSize + ", parallelism=" + parallelism + ", maxKeysPerSecond=" +
+                maxKeysPerSecond + '}';
+    }
+}
@@ -0,0 +1,82 @@
+package com.mapr.db;
+
+/**
+ * Immutable snapshot of where {@link EnhancedJSONTable} sends requests.
+ * <p>
+ * Every change creates a new state with the next epoch, and the table replaces the old state with one
+ * compare-and-set. A transition is therefore made only by the first of the threads that observed the same
+ * state, the others see that the epoch has moved on and do nothing. Reading the routing on the request path
+ * is a single volatile load.
+ */
+public final class RoutingState {
+
+    private final int active;          // index of the replica that currently acts as primary
+    private final long epoch;          // incremented on every transition
+    private final int switchCount;     // how many recent failovers count against the primary
+    private final long changedAt;      // when the transition to this state happened, in milliseconds
+
+    RoutingState(int active, long epoch, int switchCount, long changedAt) {
+        this.active = active;
+        this.epoch = epoch;
+        this.switchCount = switchCount;
+        this.changedAt = changedAt;
+    }
+
+    /**
+     * @return state of a new table, working with the primary table
+     */
+    static RoutingState initial() {
+        return new RoutingState(0, 0, 0, System.currentTimeMillis());
+    }
+
+    /**
+     * @param to          index of the replica that takes over
+     * @param now         current time in milliseconds
+     * @param switchCount quantity of recent failovers including this one, as decided by {@link FailoverPolicy}
+     * @return state after failing over to the given replica
+     */
+    RoutingState failOver(int to, long now, int switchCount) {
+        return new RoutingState(to, epoch + 1, switchCount, now);
+    }
+
+    /**
+     * @param now current time in milliseconds
+     * @return state after returning to the primary table
+     */
+    RoutingState failBack(long now) {
+        return new RoutingState(0, epoch + 1, switchCount, now);
+    }
+
+    /**
+     * @return index of the table that currently acts as primary, 0 for the primary table, 1 for the secondary,
+     * further replicas follow in their order
+     */
+    public int getActive() {
+        return active;
+    }
+
+    /**
+     * @return true if requests go to the secondary table first
+     */
+    public boolean isSwitched() {
+        return active != 0;
+    }
+
+    public long getEpoch() {
+        return epoch;
+    }
+
+    public int getSwitchCount() {
+        return switchCount;
+    }
+
+    public long getChangedAt() {
+        return changedAt;
+    }
+
+    @Override
+    public String toString() {
+        return "RoutingState{active=" + active + ", epoch=" + epoch + ", switchCount=" + switchCount +
+                ", changedAt=" + changedAt + '}';
+    }
+}
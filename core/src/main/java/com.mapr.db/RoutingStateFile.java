@@ -0,0 +1,149 @@
+package com.mapr.db;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * Small memory-mapped file that keeps the {@link RoutingState} of a {@link FailoverGroup} across restarts.
+ * <p>
+ * Without it a process that restarts during an outage of the primary cluster starts on the primary again
+ * and pays the open delay and the time out before it finds out about the outage. With it the group starts
+ * where the previous process left off, as long as the saved state is not older than <code>expiryMs</code>.
+ * Processes on the same host may share the file: the reads and writes take a file lock and the content is
+ * protected by a checksum, so a torn or foreign file is ignored.
+ * <p>
+ * One file keeps the state of one group. Open the file once per process.
+ */
+public class RoutingStateFile implements Closeable {
+    private static final Logger LOG = LoggerFactory.getLogger(RoutingStateFile.class);
+
+    private static final int MAGIC = 0x45_4A_54_52;
+    private static final int VERSION = 1;
+
+    // layout of the file
+    private static final int MAGIC_AT = 0;
+    private static final int VERSION_AT = 4;
+    private static final int ACTIVE_AT = 8;
+    private static final int SWITCH_COUNT_AT = 12;
+    private static final int EPOCH_AT = 16;
+    private static final int CHANGED_AT_AT = 24;
+    private static final int CHECKSUM_AT = 32;
+    private static final int SIZE = 40;
+
+    private final Path path;
+    private final long expiryMs;         // older states are not restored
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private boolean closed;              // guarded by this
+
+    /**
+     * @param path     the file, created if it does not exist
+     * @param expiryMs saved states older than that are not restored, in milliseconds
+     * @throws IOException if the file cannot be opened or mapped
+     */
+    public RoutingStateFile(Path path, long expiryMs) throws IOException {
+        this.path = path;
+        this.expiryMs = expiryMs;
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        try {
+            this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, SIZE);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @param now current time in milliseconds
+     * @return the saved state, or null if there is none, it is damaged or it has expired
+     */
+    synchronized RoutingState load(long now) {
+        if (closed) {
+            return null;
+        }
+        try (FileLock ignored = channel.lock(0, SIZE, true)) {
+            if (buffer.getInt(MAGIC_AT) != MAGIC || buffer.getInt(VERSION_AT) != VERSION) {
+                return null;
+            }
+            if (buffer.getLong(CHECKSUM_AT) != checksum()) {
+                LOG.warn("Routing state in {} is damaged, ignored", path);
+                return null;
+            }
+            RoutingState saved = new RoutingState(buffer.getInt(ACTIVE_AT), buffer.getLong(EPOCH_AT),
+                    buffer.getInt(SWITCH_COUNT_AT), buffer.getLong(CHANGED_AT_AT));
+            if (now - saved.getChangedAt() > expiryMs) {
+                LOG.debug("Routing state in {} has expired: {}", path, saved);
+                return null;
+            }
+            return saved;
+        } catch (IOException | OverlappingFileLockException e) {
+            LOG.warn("Cannot read routing state from {}", path, e);
+            return null;
+        }
+    }
+
+    /**
+     * Save the state, failures are logged and otherwise ignored
+     *
+     * @param state the state to save
+     */
+    synchronized void store(RoutingState state) {
+        if (closed) {
+            return;
+        }
+        try (FileLock ignored = channel.lock(0, SIZE, false)) {
+            buffer.putInt(MAGIC_AT, MAGIC);
+            buffer.putInt(VERSION_AT, VERSION);
+            buffer.putInt(ACTIVE_AT, state.getActive());
+            buffer.putInt(SWITCH_COUNT_AT, state.getSwitchCount());
+            buffer.putLong(EPOCH_AT, state.getEpoch());
+            buffer.putLong(CHANGED_AT_AT, state.getChangedAt());
+            buffer.putLong(CHECKSUM_AT, checksum());
+        } catch (IOException | OverlappingFileLockException e) {
+            LOG.warn("Cannot save routing state to {}", path, e);
+        }
+    }
+
+    private long checksum() {
+        ByteBuffer content = buffer.duplicate();
+        // through Buffer, the covariant overrides of ByteBuffer do not exist on Java 8
+        ((Buffer) content).position(0).limit(CHECKSUM_AT);
+        CRC32 crc = new CRC32();
+        crc.update(content);
+        return crc.getValue();
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    public long getExpiryMs() {
+        return expiryMs;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (!closed) {
+            closed = true;
+            channel.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "RoutingStateFile{path=" + path + ", expiryMs=" + expiryMs + '}';
+    }
+}
@@ -0,0 +1,159 @@
+package com.mapr.db;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Keeps the standby table warm, so the first hedged request after a quiet period does not pay for a cold
+ * connection and empty lookup caches on top of the primary time out.
+ * <p>
+ * Every <code>intervalMs</code> a cheap <code>findById</code> of a sentinel key is sent to the table that
+ * is not active at the moment. The key does not need to exist. A keep-alive read that has not answered
+ * within the interval is cancelled, and no new one is sent while the previous one is running. Optionally
+ * a <code>shadowSampleRate</code> fraction of real <code>findById</code> requests is also sent to the
+ * standby table and its answer is thrown away. Only lookups by id are shadowed, they do not hold any
+ * resources that would have to be released.
+ * <p>
+ * The instance keeps state of one {@link EnhancedJSONTable}, so it must not be shared.
+ */
+public class StandbyKeepAlive {
+    private static final Logger LOG = LoggerFactory.getLogger(StandbyKeepAlive.class);
+
+    private final String sentinelKey;
+    private final long intervalMs;           // pause between keep-alive reads
+    private final double shadowSampleRate;   // fraction of real lookups by id also sent to the standby table
+
+    private final AtomicBoolean inFlight = new AtomicBoolean(false);
+    private volatile ScheduledFuture<?> task;
+
+    private volatile double lastLatencyMs = -1;
+    private final AtomicLong keepAliveCount = new AtomicLong();
+    private final AtomicLong failedKeepAliveCount = new AtomicLong();
+    private final AtomicLong shadowCount = new AtomicLong();
+    private final AtomicLong failedShadowCount = new AtomicLong();
+
+    /**
+     * @param sentinelKey      the key requested by the keep-alive reads
+     * @param intervalMs       pause between keep-alive reads, in milliseconds
+     * @param shadowSampleRate fraction of real lookups by id that are also sent to the standby table,
+     *                         from 0 for none to 1 for all
+     */
+    public StandbyKeepAlive(String sentinelKey, long intervalMs, double shadowSampleRate) {
+        if (intervalMs <= 0) {
+            throw new IllegalArgumentException("Interval must be positive: " + intervalMs);
+        }
+        if (shadowSampleRate < 0 || shadowSampleRate > 1) {
+            throw new IllegalArgumentException("Shadow sample rate must be in [0, 1]: " + shadowSampleRate);
+        }
+        this.sentinelKey = sentinelKey;
+        this.intervalMs = intervalMs;
+        this.shadowSampleRate = shadowSampleRate;
+    }
+
+    /**
+     * @return keep-alive that reads the standby table every 5 seconds and shadows no requests
+     */
+    public static StandbyKeepAlive defaults() {
+        return new StandbyKeepAlive(HealthProber.DEFAULT_SENTINEL_KEY, 5000, 0);
+    }
+
+    /**
+     * Start sending keep-alive reads
+     *
+     * @param read      sends a <code>findById</code> of the given key to the standby table, without blocking
+     * @param scheduler the scheduler for the keep-alive reads
+     * @throws IllegalStateException if the keep-alive is already running
+     */
+    synchronized void start(Function<String, CompletableFuture<?>> read, ScheduledExecutorService scheduler) {
+        if (task != null) {
+            throw new IllegalStateException("Keep-alive is already used by another table");
+        }
+        task = scheduler.scheduleWithFixedDelay(() -> keepAlive(read, scheduler),
+                intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    private void keepAlive(Function<String, CompletableFuture<?>> send, ScheduledExecutorService scheduler) {
+        if (!inFlight.compareAndSet(false, true)) {
+            // the standby cluster is slow, another read would not make it any warmer
+            return;
+        }
+        long started = System.nanoTime();
+        CompletableFuture<?> read = send.apply(sentinelKey);
+        ScheduledFuture<?> timeOut = scheduler.schedule(() -> read.cancel(true), intervalMs, TimeUnit.MILLISECONDS);
+        read.whenComplete((r, t) -> {
+            timeOut.cancel(false);
+            keepAliveCount.incrementAndGet();
+            if (t == null) {
+                lastLatencyMs = (System.nanoTime() - started) / 1e6;
+            } else {
+                failedKeepAliveCount.incrementAndGet();
+                LOG.debug("Keep-alive read of the standby table failed", t);
+            }
+            inFlight.set(false);
+        });
+    }
+
+    /**
+     * Stop sending keep-alive reads
+     */
+    synchronized void stop() {
+        if (task != null) {
+            task.cancel(false);
+        }
+    }
+
+    /**
+     * @return true if the current request should also be sent to the standby table
+     */
+    boolean shouldShadow() {
+        return shadowSampleRate > 0 && ThreadLocalRandom.current().nextDouble() < shadowSampleRate;
+    }
+
+    /**
+     * @param error what the shadow request failed with, or null if it succeeded
+     */
+    void onShadowComplete(Throwable error) {
+        shadowCount.incrementAndGet();
+        if (error != null) {
+            failedShadowCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * @return latency of the last successful keep-alive read in milliseconds, or -1 if there were none yet
+     */
+    public double getLastLatencyMs() {
+        return lastLatencyMs;
+    }
+
+    public long getKeepAliveCount() {
+        return keepAliveCount.get();
+    }
+
+    public long getFailedKeepAliveCount() {
+        return failedKeepAliveCount.get();
+    }
+
+    public long getShadowCount() {
+        return shadowCount.get();
+    }
+
+    public long getFailedShadowCount() {
+        return failedShadowCount.get();
+    }
+
+    @Override
+    public String toString() {
+        return "StandbyKeepAlive{sentinelKey='" + sentinelKey + "', intervalMs=" + intervalMs +
+                ", shadowSampleRate=" + shadowSampleRate + '}';
+    }
+}
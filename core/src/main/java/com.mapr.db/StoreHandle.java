@@ -0,0 +1,342 @@
+package com.mapr.db;
+
+import org.ojai.store.Connection;
+import org.ojai.store.DocumentStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One of the tables of {@link EnhancedJSONTable}, opened in the background.
+ * <p>
+ * Opening a table may take many seconds when its cluster is down, so the table is opened in the background on
+ * a maintenance executor and the handle stays empty until then. The opens do not take the workers of the
+ * cluster, which are busy with the requests exactly when a table has to be opened again. A failed open, or an
+ * open the executor has no room for, is retried with growing pauses until it succeeds or the handle is closed.
+ * <p>
+ * A store may also get into a bad state after a failure of its cluster and keep failing after the cluster
+ * has recovered. So once enough requests in a row failed, the handle is declared failed and the table is
+ * opened again in the background, through a connection other than the one of the failed store. The new store
+ * replaces the old one only when it is open, the requests keep using the old store until then and never wait
+ * for the open. Requests that took the old store before the swap may still run on it, so it is closed and its
+ * connection is given back to the {@link Connector} only after a grace delay, or when the handle is closed.
+ */
+class StoreHandle {
+    private static final Logger LOG = LoggerFactory.getLogger(StoreHandle.class);
+
+    private static final long INITIAL_RETRY_MS = 1_000;
+    private static final long MAX_RETRY_MS = 60_000;
+    static final long DEFAULT_RETIRE_GRACE_MS = 30_000;
+
+    private final String tableName;
+    private final Connector connector;
+    private final ExecutorService executor;          // runs the opens
+    private final ScheduledExecutorService scheduler;
+    private final Runnable onOpenFailed;
+
+    private volatile DocumentStore store;      // null until the table is open
+    private Connection connection;             // the store was opened with, guarded by this
+    private boolean closed;                    // guarded by this
+    private volatile long retireGraceMs = DEFAULT_RETIRE_GRACE_MS;  // how long a replaced store stays open
+
+    /**
+     * Stores replaced by a reopen that are not closed yet, with their connections, guarded by this
+     */
+    private final Map<DocumentStore, Connection> retired = new IdentityHashMap<>();
+
+    private final CompletableFuture<DocumentStore> opened = new CompletableFuture<>();
+
+    private volatile int reopenAfterFailures;  // failed requests in a row that make us open the table again, 0 for never
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    private final AtomicBoolean opening = new AtomicBoolean(false);
+    private volatile long reopenCount;
+
+    /**
+     * @param tableName           the name of the table
+     * @param connector           gives the connections the table is opened with
+     * @param executor            the executor that runs the opens
+     * @param scheduler           the scheduler for the retries
+     * @param reopenAfterFailures failed requests in a row after which the table is opened again, 0 for never
+     * @param onOpenFailed        called after every failed attempt to open the table
+     */
+    StoreHandle(String tableName, Connector connector, ExecutorService executor,
+                ScheduledExecutorService scheduler, int reopenAfterFailures, Runnable onOpenFailed) {
+        this.tableName = tableName;
+        this.connector = connector;
+        this.executor = executor;
+        this.scheduler = scheduler;
+        this.reopenAfterFailures = reopenAfterFailures;
+        this.onOpenFailed = onOpenFailed;
+    }
+
+    /**
+     * Start opening the table
+     */
+    void open() {
+        if (opening.compareAndSet(false, true)) {
+            submit(INITIAL_RETRY_MS);
+        }
+    }
+
+    private void submit(long retryMs) {
+        try {
+            executor.execute(() -> attempt(retryMs));
+        } catch (RejectedExecutionException e) {
+            if (isClosed()) {
+                opening.set(false);
+                return;
+            }
+            LOG.warn("Cannot open table {} now, the executor is saturated, retry in {} ms", tableName, retryMs);
+            retry(retryMs);
+        }
+    }
+
+    /**
+     * Open the table again after a pause, or stop opening it if the scheduler is shut down
+     */
+    private void retry(long retryMs) {
+        try {
+            scheduler.schedule(() -> submit(Math.min(MAX_RETRY_MS, 2 * retryMs)), retryMs, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException shutDown) {
+            LOG.debug("Table {} is not opened, scheduler is shut down", tableName);
+            opening.set(false);
+        }
+    }
+
+    private void attempt(long retryMs) {
+        if (isClosed()) {
+            return;
+        }
+        Connection poisoned;
+        synchronized (this) {
+            // the connection of the store we replace may be as broken as the store
+            poisoned = connection;
+        }
+        Connection driver = null;
+        DocumentStore fresh;
+        try {
+            driver = connector.acquire(poisoned);
+            fresh = driver.getStore(tableName);
+        } catch (RuntimeException e) {
+            if (driver != null) {
+                releaseQuietly(driver);
+            }
+            if (isClosed()) {
+                // interrupted by close
+                return;
+            }
+            LOG.warn("Cannot open table {}, retry in {} ms", tableName, retryMs, e);
+            onOpenFailed.run();
+            retry(retryMs);
+            return;
+        }
+        DocumentStore old;
+        Connection oldConnection;
+        boolean accepted;
+        synchronized (this) {
+            accepted = !closed;
+            old = store;
+            oldConnection = connection;
+            if (accepted) {
+                store = fresh;
+                connection = driver;
+            }
+        }
+        if (!accepted) {
+            // closed while we were opening it
+            try {
+                fresh.close();
+            } finally {
+                releaseQuietly(driver);
+            }
+            return;
+        }
+        consecutiveFailures.set(0);
+        opening.set(false);
+        if (old == null) {
+            LOG.info("Table {} is open", tableName);
+            opened.complete(fresh);
+        } else {
+            LOG.info("Table {} is open again, the old store is closed in {} ms", tableName, retireGraceMs);
+            retire(old, oldConnection);
+            // counted once the old store is retired, so whoever sees the reopen also sees it to close
+            reopenCount++;
+        }
+    }
+
+    /**
+     * Close a replaced store once the requests that took it before the swap are done
+     */
+    private void retire(DocumentStore old, Connection oldConnection) {
+        boolean closeNow;
+        synchronized (this) {
+            // once the handle is closed nobody else closes the old store
+            closeNow = closed;
+            if (!closeNow) {
+                retired.put(old, oldConnection);
+            }
+        }
+        if (closeNow) {
+            closeQuietly(old);
+            releaseQuietly(oldConnection);
+            return;
+        }
+        try {
+            scheduler.schedule(() -> closeRetired(old), retireGraceMs, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException shutDown) {
+            closeRetired(old);
+        }
+    }
+
+    private void closeRetired(DocumentStore old) {
+        Connection oldConnection;
+        synchronized (this) {
+            if (!retired.containsKey(old)) {
+                return;    // closed with the handle
+            }
+            oldConnection = retired.remove(old);
+        }
+        closeQuietly(old);
+        releaseQuietly(oldConnection);
+    }
+
+    /**
+     * A request to the table succeeded
+     */
+    void onSuccess() {
+        if (consecutiveFailures.get() != 0) {
+            consecutiveFailures.set(0);
+        }
+    }
+
+    /**
+     * A request to the table failed for a reason that may be a failure of the store
+     */
+    void onFailure() {
+        int threshold = reopenAfterFailures;
+        if (threshold > 0 && store != null && consecutiveFailures.incrementAndGet() >= threshold
+                && opening.compareAndSet(false, true)) {
+            LOG.warn("Table {} failed {} times in a row, opening it again", tableName, threshold);
+            submit(INITIAL_RETRY_MS);
+        }
+    }
+
+    /**
+     * @return the table, or null if it is not open yet
+     */
+    DocumentStore get() {
+        return store;
+    }
+
+    boolean isOpen() {
+        return store != null;
+    }
+
+    /**
+     * @return future that completes when the table is open for the first time, it never completes exceptionally
+     */
+    CompletableFuture<DocumentStore> opened() {
+        return opened;
+    }
+
+    String getTableName() {
+        return tableName;
+    }
+
+    void setReopenAfterFailures(int reopenAfterFailures) {
+        this.reopenAfterFailures = reopenAfterFailures;
+    }
+
+    /**
+     * @param retireGraceMs how long a store replaced by a reopen stays open for the requests that still use it
+     */
+    void setRetireGraceMs(long retireGraceMs) {
+        this.retireGraceMs = retireGraceMs;
+    }
+
+    /**
+     * @return how many times the table was opened again after it was declared failed
+     */
+    long getReopenCount() {
+        return reopenCount;
+    }
+
+    synchronized boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Close the table if it is open and stop opening it otherwise
+     */
+    void close() {
+        DocumentStore open;
+        Connection openConnection;
+        Map<DocumentStore, Connection> replaced;
+        synchronized (this) {
+            closed = true;
+            open = store;
+            openConnection = connection;
+            store = null;
+            connection = null;
+            replaced = new IdentityHashMap<>(retired);
+            retired.clear();
+        }
+        replaced.forEach((old, oldConnection) -> {
+            closeQuietly(old);
+            releaseQuietly(oldConnection);
+        });
+        if (open != null) {
+            try {
+                open.close();
+            } finally {
+                releaseQuietly(openConnection);
+            }
+        }
+    }
+
+    private void closeQuietly(DocumentStore old) {
+        try {
+            old.close();
+        } catch (RuntimeException e) {
+            LOG.debug("Cannot close the old store of table {}", tableName, e);
+        }
+    }
+
+    private void releaseQuietly(Connection released) {
+        try {
+            connector.release(released);
+        } catch (RuntimeException e) {
+            LOG.debug("Cannot release the connection of table {}", tableName, e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "StoreHandle{tableName='" + tableName + "', open=" + isOpen() + ", reopenCount=" + reopenCount + '}';
+    }
+
+    /**
+     * Gives the connections the tables are opened with and takes them back when their stores are closed
+     */
+    interface Connector {
+        /**
+         * @param poisoned the connection of a store that was declared failed, or null
+         * @return connection to open a table with, not the poisoned one
+         */
+        Connection acquire(Connection poisoned);
+
+        /**
+         * @param connection a connection given by {@link #acquire}, its store is closed or was never opened
+         */
+        void release(Connection connection);
+    }
+}
@@ -0,0 +1,128 @@
+package com.mapr.db;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Executor that runs every task on its own virtual thread, with the quantity of tasks working with
+ * the cluster at the same time limited by a semaphore.
+ * <p>
+ * A task waiting for a permit parks its virtual thread, so a hung cluster costs memory for the
+ * waiting tasks but never carrier threads. Virtual threads need Java 21, while this library is
+ * compiled for Java 8, so the JDK API is reached by reflection. Use {@link #isSupported()} to check
+ * whether the running JVM provides it.
+ */
+class VirtualThreadExecutor extends AbstractExecutorService {
+    private static final Logger LOG = LoggerFactory.getLogger(VirtualThreadExecutor.class);
+
+    private final ExecutorService delegate;    // one new virtual thread per task
+    private final Semaphore permits;           // the tasks that may talk to the cluster at the same time
+
+    private VirtualThreadExecutor(ExecutorService delegate, int maxConcurrency) {
+        this.delegate = delegate;
+        this.permits = new Semaphore(maxConcurrency);
+    }
+
+    /**
+     * @return true if the running JVM can create virtual threads. Java 19 and 20 have the API as a preview
+     * feature, it fails unless the JVM runs with <code>--enable-preview</code>, so the API is tried, not looked up
+     */
+    static boolean isSupported() {
+        try {
+            Thread.class.getMethod("ofVirtual").invoke(null);
+            return true;
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Create executor with virtual threads
+     *
+     * @param name           prefix for the names of the virtual threads
+     * @param maxConcurrency maximum quantity of tasks running at the same time
+     * @return new executor
+     * @throws UnsupportedOperationException if the JVM does not support virtual threads
+     */
+    static VirtualThreadExecutor create(String name, int maxConcurrency) {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, name + "-", 1L);
+            ThreadFactory factory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+            Method perTask = java.util.concurrent.Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+            ExecutorService delegate = (ExecutorService) perTask.invoke(null, factory);
+            LOG.info("Using virtual threads for {} with at most {} concurrent requests", name, maxConcurrency);
+            return new VirtualThreadExecutor(delegate, maxConcurrency);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            throw new UnsupportedOperationException("Virtual threads are not supported by this JVM", e);
+        }
+    }
+
+    /**
+     * Run the task once a permit is free. A task whose thread is interrupted while it waits, e.g. by
+     * {@link #shutdownNow()}, does not run. If it is a {@link Future}, as the tasks of {@link #submit} are,
+     * it is cancelled, so whoever waits for it is not left waiting.
+     */
+    @Override
+    public void execute(Runnable command) {
+        delegate.execute(() -> {
+            try {
+                permits.acquire();
+            } catch (InterruptedException e) {
+                // executor was shut down while the task waited for its turn
+                if (command instanceof Future) {
+                    ((Future<?>) command).cancel(false);
+                }
+                Thread.currentThread().interrupt();
+                return;
+            }
+            try {
+                command.run();
+            } finally {
+                permits.release();
+            }
+        });
+    }
+
+    /**
+     * @return quantity of tasks that may start working with the cluster right now
+     */
+    int availablePermits() {
+        return permits.availablePermits();
+    }
+
+    @Override
+    public void shutdown() {
+        delegate.shutdown();
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+        return delegate.shutdownNow();
+    }
+
+    @Override
+    public boolean isShutdown() {
+        return delegate.isShutdown();
+    }
+
+    @Override
+    public boolean isTerminated() {
+        return delegate.isTerminated();
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return delegate.awaitTermination(timeout, unit);
+    }
+}
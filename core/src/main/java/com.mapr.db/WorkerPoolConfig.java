@@ -0,0 +1,208 @@
+package com.mapr.db;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Describes the worker pool that {@link EnhancedJSONTable} creates for each cluster.
+ * <p>
+ * Every cluster gets its own pool so that a hung primary cluster can only exhaust the primary
+ * workers and never delays requests that have been handed to the secondary cluster.
+ * The pool is bounded both in threads and in queued requests, what happens when both are
+ * exhausted is controlled by the {@link RejectionPolicy}.
+ * <p>
+ * With {@link #virtualThreads(int)} each request runs on its own virtual thread instead, and only the
+ * quantity of requests talking to the cluster at the same time is bounded. This needs Java 21 at runtime,
+ * on older JVMs the regular pool is used.
+ */
+public class WorkerPoolConfig {
+    private static final Logger LOG = LoggerFactory.getLogger(WorkerPoolConfig.class);
+
+    /**
+     * Default quantity of threads per cluster
+     */
+    private static final int DEFAULT_POOL_SIZE = 32;
+
+    /**
+     * Default quantity of requests that can wait for a free thread
+     */
+    private static final int DEFAULT_QUEUE_CAPACITY = 1024;
+
+    /**
+     * Time after which idle threads above the core size are released
+     */
+    private static final long KEEP_ALIVE_MS = 60_000;
+
+    /**
+     * What to do with a request when all workers are busy and the queue is full
+     */
+    public enum RejectionPolicy {
+        /**
+         * Fail the request immediately with {@link EnhancedJSONTable.FailoverException}
+         */
+        ABORT,
+        /**
+         * Run the request on the calling thread. This throttles callers, but the call is no longer
+         * bounded by the fail-over timeout.
+         */
+        CALLER_RUNS
+    }
+
+    /**
+     * Kind of threads that do the work
+     */
+    public enum Mode {
+        /**
+         * Fixed pool of platform threads with a bounded queue
+         */
+        PLATFORM,
+        /**
+         * New virtual thread per request, concurrency bounded by a semaphore
+         */
+        VIRTUAL
+    }
+
+    private final Mode mode;
+    private final int poolSize;            // maximum quantity of threads per cluster, or concurrent requests in VIRTUAL mode
+    private final int queueCapacity;       // maximum quantity of waiting requests, 0 means direct hand-off
+    private final RejectionPolicy rejectionPolicy;
+
+    /**
+     * @param poolSize        maximum quantity of threads working with one cluster
+     * @param queueCapacity   maximum quantity of requests waiting for a thread, 0 for direct hand-off
+     * @param rejectionPolicy what to do with a request that cannot be queued
+     */
+    public WorkerPoolConfig(int poolSize, int queueCapacity, RejectionPolicy rejectionPolicy) {
+        this(Mode.PLATFORM, poolSize, queueCapacity, rejectionPolicy);
+    }
+
+    private WorkerPoolConfig(Mode mode, int poolSize, int queueCapacity, RejectionPolicy rejectionPolicy) {
+        if (poolSize < 1) {
+            throw new IllegalArgumentException("Pool size must be positive: " + poolSize);
+        }
+        if (queueCapacity < 0) {
+            throw new IllegalArgumentException("Queue capacity must not be negative: " + queueCapacity);
+        }
+        this.mode = mode;
+        this.poolSize = poolSize;
+        this.queueCapacity = queueCapacity;
+        this.rejectionPolicy = rejectionPolicy;
+    }
+
+    /**
+     * @return configuration with {@value #DEFAULT_POOL_SIZE} threads and {@value #DEFAULT_QUEUE_CAPACITY}
+     * queued requests per cluster, that rejects requests above that
+     */
+    public static WorkerPoolConfig defaults() {
+        return new WorkerPoolConfig(DEFAULT_POOL_SIZE, DEFAULT_QUEUE_CAPACITY, RejectionPolicy.ABORT);
+    }
+
+    /**
+     * Run every request on its own virtual thread. Requests above <code>maxConcurrency</code> park their
+     * virtual thread until one of the running requests finishes, so a hung cluster does not hold any
+     * platform threads. Falls back to a pool of <code>maxConcurrency</code> platform threads if the JVM
+     * does not support virtual threads.
+     *
+     * @param maxConcurrency maximum quantity of requests working with one cluster at the same time
+     * @return configuration for virtual threads
+     */
+    public static WorkerPoolConfig virtualThreads(int maxConcurrency) {
+        return new WorkerPoolConfig(Mode.VIRTUAL, maxConcurrency, DEFAULT_QUEUE_CAPACITY, RejectionPolicy.ABORT);
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public int getPoolSize() {
+        return poolSize;
+    }
+
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    public RejectionPolicy getRejectionPolicy() {
+        return rejectionPolicy;
+    }
+
+    /**
+     * Create executor for working with one cluster
+     *
+     * @param name prefix for the names of the worker threads
+     * @return new bounded executor
+     */
+    ExecutorService createExecutor(String name) {
+        if (mode == Mode.VIRTUAL) {
+            try {
+                return VirtualThreadExecutor.create(name, poolSize);
+            } catch (UnsupportedOperationException e) {
+                LOG.warn("Virtual threads are not supported by this JVM, using pool of {} threads for {}",
+                        poolSize, name, e);
+            }
+        }
+        BlockingQueue<Runnable> queue = queueCapacity == 0
+                ? new SynchronousQueue<>()
+                : new ArrayBlockingQueue<>(queueCapacity);
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(poolSize, poolSize,
+                KEEP_ALIVE_MS, TimeUnit.MILLISECONDS, queue, new NamedThreadFactory(name), rejectionHandler());
+        // threads are created on demand and released when idle, so an unused cluster costs nothing
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Stop a worker pool. The tasks still waiting in its queue never run, those that are futures are cancelled,
+     * so whoever waits for them is not left waiting.
+     */
+    static void shutdownNow(ExecutorService executor) {
+        for (Runnable queued : executor.shutdownNow()) {
+            if (queued instanceof Future) {
+                ((Future<?>) queued).cancel(false);
+            }
+        }
+    }
+
+    private RejectedExecutionHandler rejectionHandler() {
+        switch (rejectionPolicy) {
+            case CALLER_RUNS:
+                return new ThreadPoolExecutor.CallerRunsPolicy();
+            default:
+                return new ThreadPoolExecutor.AbortPolicy();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "WorkerPoolConfig{mode=" + mode + ", poolSize=" + poolSize + ", queueCapacity=" + queueCapacity +
+                ", rejectionPolicy=" + rejectionPolicy + '}';
+    }
+
+    /**
+     * Gives worker threads readable names, it simplifies debugging of stuck requests
+     */
+    static class NamedThreadFactory implements ThreadFactory {
+        private final String prefix;
+        private final AtomicInteger counter = new AtomicInteger(0);
+
+        NamedThreadFactory(String prefix) {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            return new Thread(r, prefix + "-" + counter.incrementAndGet());
+        }
+    }
+}
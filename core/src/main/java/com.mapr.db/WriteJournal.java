@@ -0,0 +1,469 @@
+package com.mapr.db;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only local journal of the writes that {@link EnhancedJSONTable} sends to a table other than the primary
+ * one, so the keys that the primary table misses after a failover are known.
+ * <p>
+ * The journal is a directory of segment files of <code>segmentSize</code> bytes, each mapped into memory.
+ * A record holds the time of the write, its kind, the index of the table and the id of the document, and is
+ * protected by a CRC32. The requests only put their records into a queue, a thread of the journal appends
+ * them and forces the segment to disk once per batch of records, so a write does not wait for the disk.
+ * When the queue is full the record is dropped and counted, the write itself is never delayed. A full segment
+ * is forced and a new one is started. An opened journal continues in a new segment after the existing ones.
+ * <p>
+ * {@link #replay(Consumer)} reads the records back in the order they were written, up to the first damaged
+ * record of every segment, e.g. one torn by a crash. {@link #discard()} then removes the complete segments that
+ * were replayed, the records of the segment being written are kept and replayed again next time.
+ * A reader that works through the records can save its progress with {@link #checkpoint(long)}, so after a
+ * restart it skips the records up to {@link #getCheckpoint()}.
+ * The journal belongs to the caller and must be closed by it.
+ */
+public class WriteJournal implements Closeable {
+    private static final Logger LOG = LoggerFactory.getLogger(WriteJournal.class);
+
+    private static final int MAGIC = 0x4f4a574a;   // "OJWJ"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 8;      // magic, version
+    private static final int RECORD_HEADER_SIZE = 8;  // length and CRC of the body
+    private static final String SUFFIX = ".journal";
+    private static final String CHECKPOINT = "checkpoint";
+
+    private static final byte STRING_ID = 0;
+    private static final byte BINARY_ID = 1;
+
+    /**
+     * One journaled write
+     */
+    public static final class Entry {
+        private final long timestamp;
+        private final OperationType type;
+        private final int table;
+        private final String id;
+        private final ByteBuffer binaryId;
+        private final long position;
+
+        Entry(long timestamp, OperationType type, int table, String id, ByteBuffer binaryId, long position) {
+            this.timestamp = timestamp;
+            this.type = type;
+            this.table = table;
+            this.id = id;
+            this.binaryId = binaryId;
+            this.position = position;
+        }
+
+        /**
+         * @return when the write was sent, in milliseconds
+         */
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        public OperationType getType() {
+            return type;
+        }
+
+        /**
+         * @return index of the table the write was sent to, 1 for the secondary, further replicas follow, -1 if it
+         * was reopened meanwhile
+         */
+        public int getTable() {
+            return table;
+        }
+
+        /**
+         * @return the id of the document, or null if the id is binary
+         */
+        public String getId() {
+            return id;
+        }
+
+        /**
+         * @return the binary id of the document, or null if the id is a string
+         */
+        public ByteBuffer getBinaryId() {
+            return binaryId == null ? null : binaryId.asReadOnlyBuffer();
+        }
+
+        /**
+         * @return position of the record in the journal, later records have higher positions, -1 for a record
+         * that was not read from the journal
+         */
+        public long getPosition() {
+            return position;
+        }
+
+        @Override
+        public String toString() {
+            return "Entry{timestamp=" + timestamp + ", type=" + type + ", table=" + table + ", id=" +
+                    (id != null ? id : binaryId.remaining() + " bytes") + '}';
+        }
+    }
+
+    private final Path directory;
+    private final int segmentSize;
+    private final BlockingQueue<Entry> queue;
+    private final Thread appender;
+
+    /**
+     * The segment being written, used by the appender thread only
+     */
+    private FileChannel channel;
+    private MappedByteBuffer segment;
+    private volatile long sequence;    // of the segment being written
+
+    private volatile long replayedThrough;  // the last complete segment that was replayed
+
+    private final AtomicLong recordCount = new AtomicLong();
+    private final AtomicLong droppedCount = new AtomicLong();
+    private volatile boolean closed;
+
+    /**
+     * @param directory   where the segment files are kept, created if missing
+     * @param segmentSize size of a segment file in bytes
+     * @param queueSize   records waiting to be appended, more are dropped
+     * @throws IOException if the directory or the first segment cannot be created
+     */
+    public WriteJournal(Path directory, int segmentSize, int queueSize) throws IOException {
+        if (segmentSize < 1024) {
+            throw new IllegalArgumentException("Segment must have at least 1024 bytes: " + segmentSize);
+        }
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.queue = new ArrayBlockingQueue<>(queueSize);
+        Files.createDirectories(directory);
+        List<Path> segments = segments();
+        sequence = segments.isEmpty() ? 0 : sequenceOf(segments.get(segments.size() - 1));
+        startSegment();
+        appender = new Thread(this::append, "ojai-journal-" + directory.getFileName());
+        appender.setDaemon(true);
+        appender.start();
+    }
+
+    /**
+     * @param directory where the segment files are kept, created if missing
+     * @return journal with segments of 64 MB and up to 65536 records waiting to be appended
+     * @throws IOException if the directory or the first segment cannot be created
+     */
+    public static WriteJournal open(Path directory) throws IOException {
+        return new WriteJournal(directory, 64 << 20, 65536);
+    }
+
+    /**
+     * Queue a string id for the journal, without waiting
+     */
+    void record(OperationType type, int table, String id) {
+        offer(new Entry(System.currentTimeMillis(), type, table, id, null, -1));
+    }
+
+    /**
+     * Queue a binary id for the journal, without waiting
+     */
+    void record(OperationType type, int table, ByteBuffer binaryId) {
+        offer(new Entry(System.currentTimeMillis(), type, table, null, binaryId.duplicate(), -1));
+    }
+
+    private void offer(Entry entry) {
+        if (closed || !queue.offer(entry)) {
+            if (droppedCount.getAndIncrement() == 0) {
+                LOG.warn("Write journal in {} is full or closed, records are dropped", directory);
+            }
+        }
+    }
+
+    /**
+     * Body of the appender thread: append whatever is queued, then force the segment once for all of it
+     */
+    private void append() {
+        List<Entry> batch = new ArrayList<>();
+        while (!closed || !queue.isEmpty()) {
+            try {
+                Entry first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch);
+                for (Entry entry : batch) {
+                    write(entry);
+                }
+                segment.force();
+                recordCount.addAndGet(batch.size());
+            } catch (InterruptedException e) {
+                // close() waits for the queue to be drained, an interrupt is not expected
+                Thread.currentThread().interrupt();
+                return;
+            } catch (IOException | RuntimeException e) {
+                LOG.error("Failed to append {} records to the write journal in {}", batch.size(), directory, e);
+                droppedCount.addAndGet(batch.size());
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void write(Entry entry) throws IOException {
+        byte[] id = entry.id != null ? entry.id.getBytes(StandardCharsets.UTF_8) : null;
+        int idLength = id != null ? id.length : entry.binaryId.remaining();
+        ByteBuffer body = ByteBuffer.allocate(8 + 1 + 1 + 1 + 4 + idLength);
+        body.putLong(entry.timestamp)
+                .put((byte) entry.type.ordinal())
+                .put((byte) entry.table)
+                .put(id != null ? STRING_ID : BINARY_ID)
+                .putInt(idLength);
+        if (id != null) {
+            body.put(id);
+        } else {
+            body.put(entry.binaryId.duplicate());
+        }
+        ((Buffer) body).flip();
+        if (RECORD_HEADER_SIZE + body.remaining() > segmentSize - HEADER_SIZE) {
+            throw new IllegalArgumentException("Record of " + body.remaining() + " bytes does not fit a segment");
+        }
+        if (segment.remaining() < RECORD_HEADER_SIZE + body.remaining()) {
+            segment.force();
+            startSegment();
+        }
+        CRC32 crc = new CRC32();
+        crc.update(body.array(), 0, body.limit());
+        segment.putInt(body.remaining());
+        segment.putInt((int) crc.getValue());
+        segment.put(body);
+    }
+
+    /**
+     * Create the next segment and make it the current one. If that fails the current segment stays, full,
+     * and the next record tries again.
+     */
+    private void startSegment() throws IOException {
+        long next = sequence + 1;
+        Path path = directory.resolve(String.format("%020d%s", next, SUFFIX));
+        FileChannel created = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        MappedByteBuffer mapped;
+        try {
+            mapped = created.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        } catch (IOException | RuntimeException e) {
+            created.close();
+            Files.deleteIfExists(path);
+            throw e;
+        }
+        mapped.putInt(MAGIC);
+        mapped.putInt(VERSION);
+        FileChannel previous = channel;
+        channel = created;
+        segment = mapped;
+        sequence = next;
+        if (previous != null) {
+            try {
+                previous.close();
+            } catch (IOException e) {
+                LOG.warn("Failed to close journal segment {} in {}", next - 1, directory, e);
+            }
+        }
+    }
+
+    /**
+     * Read all the records written so far, oldest first. Records still in the queue are not included,
+     * call it once the writes it is interested in are done.
+     *
+     * @param consumer receives the records
+     * @return quantity of the records read
+     * @throws IOException if a segment cannot be read
+     */
+    public long replay(Consumer<Entry> consumer) throws IOException {
+        long current = sequence;
+        long count = 0;
+        for (Path path : segments()) {
+            long replayed = sequenceOf(path);
+            try (FileChannel file = FileChannel.open(path, StandardOpenOption.READ)) {
+                ByteBuffer data = file.map(FileChannel.MapMode.READ_ONLY, 0, file.size());
+                if (data.remaining() < HEADER_SIZE || data.getInt() != MAGIC || data.getInt() != VERSION) {
+                    LOG.warn("Journal segment {} has no valid header, skipped", path);
+                    continue;
+                }
+                Entry entry;
+                // the segment in the high bits, the record in it in the low ones
+                long position = replayed << 32;
+                while ((entry = read(data, position++)) != null) {
+                    consumer.accept(entry);
+                    count++;
+                }
+            }
+            if (replayed < current) {
+                replayedThrough = Math.max(replayedThrough, replayed);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return the next record, or null at the end of the records or at a damaged one
+     */
+    private static Entry read(ByteBuffer data, long position) {
+        if (data.remaining() < RECORD_HEADER_SIZE) {
+            return null;
+        }
+        int length = data.getInt();
+        int checksum = data.getInt();
+        if (length <= 0 || length > data.remaining()) {
+            return null;
+        }
+        byte[] body = new byte[length];
+        data.get(body);
+        CRC32 crc = new CRC32();
+        crc.update(body);
+        if ((int) crc.getValue() != checksum) {
+            return null;
+        }
+        ByteBuffer record = ByteBuffer.wrap(body);
+        long timestamp = record.getLong();
+        OperationType type = OperationType.values()[record.get()];
+        int table = record.get();
+        byte idKind = record.get();
+        byte[] id = new byte[record.getInt()];
+        record.get(id);
+        return idKind == STRING_ID
+                ? new Entry(timestamp, type, table, new String(id, StandardCharsets.UTF_8), null, position)
+                : new Entry(timestamp, type, table, null, ByteBuffer.wrap(id), position);
+    }
+
+    /**
+     * Save the position of the last record handled, e.g. by a reconciliation
+     *
+     * @param position {@link Entry#getPosition()} of the record
+     * @throws IOException if the checkpoint cannot be written
+     */
+    public synchronized void checkpoint(long position) throws IOException {
+        ByteBuffer saved = ByteBuffer.allocate(12);
+        saved.putLong(position).putInt(checksum(position));
+        ((Buffer) saved).flip();
+        try (FileChannel file = FileChannel.open(directory.resolve(CHECKPOINT), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE)) {
+            while (saved.hasRemaining()) {
+                file.write(saved, saved.position());
+            }
+            file.force(false);
+        }
+    }
+
+    /**
+     * @return the position saved by {@link #checkpoint(long)}, or -1 if none was saved or it is damaged
+     * @throws IOException if the checkpoint cannot be read
+     */
+    public synchronized long getCheckpoint() throws IOException {
+        Path path = directory.resolve(CHECKPOINT);
+        if (!Files.exists(path)) {
+            return -1;
+        }
+        ByteBuffer saved = ByteBuffer.wrap(Files.readAllBytes(path));
+        if (saved.remaining() != 12) {
+            return -1;
+        }
+        long position = saved.getLong();
+        return checksum(position) == saved.getInt() ? position : -1;
+    }
+
+    private static int checksum(long position) {
+        CRC32 crc = new CRC32();
+        crc.update(ByteBuffer.allocate(8).putLong(position).array());
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Remove the complete segments replayed so far, e.g. once the primary table has caught up with their records.
+     * A complete segment is never written again, so no record is removed without having been replayed.
+     *
+     * @throws IOException if a segment cannot be deleted
+     */
+    public synchronized void discard() throws IOException {
+        long through = replayedThrough;
+        for (Path path : segments()) {
+            if (sequenceOf(path) <= through) {
+                Files.delete(path);
+            }
+        }
+        LOG.info("Write journal in {} discarded up to segment {}", directory, through);
+    }
+
+    private List<Path> segments() throws IOException {
+        List<Path> segments = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+            for (Path file : files) {
+                segments.add(file);
+            }
+        }
+        Collections.sort(segments);
+        return segments;
+    }
+
+    private static long sequenceOf(Path segment) {
+        String name = segment.getFileName().toString();
+        return Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+    }
+
+    /**
+     * @return records appended to the journal
+     */
+    public long getRecordCount() {
+        return recordCount.get();
+    }
+
+    /**
+     * @return records lost because the queue was full, the journal was closed or the disk failed
+     */
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Append the queued records and close the current segment. Calls after the first one do nothing.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            appender.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        segment.force();
+        channel.close();
+    }
+
+    @Override
+    public String toString() {
+        return "WriteJournal{directory=" + directory + ", segmentSize=" + segmentSize + ", records=" +
+                recordCount.get() + ", dropped=" + droppedCount.get() + '}';
+    }
+}
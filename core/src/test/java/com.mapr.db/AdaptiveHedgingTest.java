@@ -0,0 +1,28 @@
+package com.mapr.db;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class AdaptiveHedgingTest {
+
+    @Test
+    public void testAbandonedRequestsDoNotGrowTheDelay() {
+        AdaptiveHedging hedging = new AdaptiveHedging(0.99, 2, 10, 5000, 100, 60_000);
+        for (int i = 0; i < 100; i++) {
+            hedging.record(0, OperationType.FIND_BY_ID, TimeUnit.MILLISECONDS.toNanos(30));
+        }
+        long delay = hedging.hedgeDelay(0, OperationType.FIND_BY_ID, 500);
+        assertTrue("Delay " + delay, delay >= 60 && delay < 100);
+
+        // the primary gets slow, every request is given up on at the delay
+        for (int i = 0; i < 1000; i++) {
+            hedging.recordAbandoned(0, OperationType.FIND_BY_ID, TimeUnit.MILLISECONDS.toNanos(delay));
+        }
+        assertEquals(delay, hedging.hedgeDelay(0, OperationType.FIND_BY_ID, 500));
+        assertEquals(1000, hedging.getAbandonedCount(0, OperationType.FIND_BY_ID));
+        assertEquals(0, hedging.getAbandonedCount(1, OperationType.FIND_BY_ID));
+    }
+}
@@ -0,0 +1,129 @@
+package com.mapr.db;
+
+import org.junit.After;
+import org.junit.Test;
+import org.ojai.store.DocumentStore;
+import org.ojai.store.exceptions.StoreException;
+
+import java.lang.reflect.Proxy;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class AsyncRequestTest {
+
+    private final ExecutorService prim = Executors.newCachedThreadPool();
+    private final ExecutorService sec = Executors.newCachedThreadPool();
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+    private final DocumentStore primary = store();
+    private final DocumentStore secondary = store();
+    private final AtomicInteger failovers = new AtomicInteger();
+
+    @After
+    public void shutDown() {
+        prim.shutdownNow();
+        sec.shutdownNow();
+        timer.shutdownNow();
+    }
+
+    @Test
+    public void testCompletesWithValueWithoutBlockingCaller() throws Exception {
+        CountDownLatch answer = new CountDownLatch(1);
+        CompletableFuture<String> result = EnhancedJSONTable.doWithFallbackAsync(prim, sec, timer, 1000, 1000,
+                store -> {
+                    answer.await();
+                    return store == primary ? "primary" : "secondary";
+                }, primary, secondary, failovers::incrementAndGet);
+        assertFalse(result.isDone());
+        answer.countDown();
+        assertEquals("primary", result.get(1, TimeUnit.SECONDS));
+        assertEquals(0, failovers.get());
+    }
+
+    @Test
+    public void testFailsOverWhenPrimaryIsSlow() throws Exception {
+        CountDownLatch primaryAnswer = new CountDownLatch(1);
+        CompletableFuture<String> result = EnhancedJSONTable.doWithFallbackAsync(prim, sec, timer, 50, 1000,
+                store -> {
+                    if (store == primary) {
+                        primaryAnswer.await();
+                        return "primary";
+                    }
+                    return "secondary";
+                }, primary, secondary, failovers::incrementAndGet);
+        try {
+            assertEquals("secondary", result.get(1, TimeUnit.SECONDS));
+            assertEquals(1, failovers.get());
+        } finally {
+            primaryAnswer.countDown();
+        }
+    }
+
+    @Test
+    public void testFailsOverWhenPrimaryFails() throws Exception {
+        CompletableFuture<String> result = EnhancedJSONTable.doWithFallbackAsync(prim, sec, timer, 1000, 1000,
+                store -> {
+                    if (store == primary) {
+                        throw new StoreException("primary down");
+                    }
+                    return "secondary";
+                }, primary, secondary, failovers::incrementAndGet);
+        assertEquals("secondary", result.get(1, TimeUnit.SECONDS));
+        assertEquals(1, failovers.get());
+    }
+
+    @Test
+    public void testCompletesExceptionallyWhenBothTablesFail() throws Exception {
+        CompletableFuture<String> result = EnhancedJSONTable.doWithFallbackAsync(prim, sec, timer, 1000, 1000,
+                store -> {
+                    throw new StoreException(store == primary ? "primary down" : "secondary down");
+                }, primary, secondary, failovers::incrementAndGet);
+        try {
+            result.get(1, TimeUnit.SECONDS);
+            fail("Both tables failed");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof StoreException);
+            assertEquals("secondary down", e.getCause().getMessage());
+        }
+        assertTrue(result.isCompletedExceptionally());
+    }
+
+    @Test
+    public void testCompletesExceptionallyWhenBothTablesTimeOut() throws Exception {
+        CountDownLatch answer = new CountDownLatch(1);
+        CompletableFuture<String> result = EnhancedJSONTable.doWithFallbackAsync(prim, sec, timer, 50, 50,
+                store -> {
+                    answer.await();
+                    return "late";
+                }, primary, secondary, failovers::incrementAndGet);
+        try {
+            result.get(1, TimeUnit.SECONDS);
+            fail("Neither table answered in time");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof EnhancedJSONTable.FailoverException);
+        } finally {
+            answer.countDown();
+        }
+    }
+
+    private static DocumentStore store() {
+        return (DocumentStore) Proxy.newProxyInstance(AsyncRequestTest.class.getClassLoader(),
+                new Class[]{DocumentStore.class}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "hashCode":
+                            return System.identityHashCode(proxy);
+                        case "equals":
+                            return proxy == args[0];
+                        default:
+                            return null;
+                    }
+                });
+    }
+}
@@ -0,0 +1,120 @@
+package com.mapr.db;
+
+import org.junit.Test;
+import org.ojai.Document;
+import org.ojai.store.exceptions.MultiOpException;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class BatchingWriterTest {
+
+    @Test
+    public void testOnlyFailedDocumentsFail() throws Exception {
+        ScheduledExecutorService scheduler = EnhancedJSONTable.createScheduler();
+        List<Document> docs = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            docs.add(document());
+        }
+        BatchingWriter writer = new BatchingWriter((batch, task) -> {
+            CompletableFuture<Void> written = new CompletableFuture<>();
+            MultiOpException.Failure failure = new MultiOpException.Failure(batch.get(1), 1,
+                    new IllegalStateException("rejected"));
+            written.completeExceptionally(new MultiOpException(Collections.singletonList(failure)));
+            return written;
+        }, scheduler, 3, 0, 1000, 1);
+        try {
+            List<CompletableFuture<Void>> written = new ArrayList<>();
+            for (Document doc : docs) {
+                written.add(writer.insert(doc));
+            }
+            written.get(0).get(1, TimeUnit.SECONDS);
+            written.get(2).get(1, TimeUnit.SECONDS);
+            try {
+                written.get(1).get(1, TimeUnit.SECONDS);
+                fail("The rejected document must fail");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof MultiOpException);
+            }
+        } finally {
+            writer.close();
+            scheduler.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testLingerSendsPartialBatch() throws Exception {
+        ScheduledExecutorService scheduler = EnhancedJSONTable.createScheduler();
+        List<Integer> sizes = new CopyOnWriteArrayList<>();
+        BatchingWriter writer = new BatchingWriter((batch, task) -> {
+            sizes.add(batch.size());
+            return CompletableFuture.completedFuture(null);
+        }, scheduler, 100, 0, 20, 1);
+        try {
+            CompletableFuture<Void> first = writer.insertOrReplace(document());
+            CompletableFuture<Void> second = writer.insertOrReplace(document());
+            // nobody flushes, the linger time sends the batch
+            first.get(1, TimeUnit.SECONDS);
+            second.get(1, TimeUnit.SECONDS);
+            assertEquals(Collections.singletonList(2), sizes);
+        } finally {
+            writer.close();
+            scheduler.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testBatchesInFlightAreBounded() throws Exception {
+        ScheduledExecutorService scheduler = EnhancedJSONTable.createScheduler();
+        List<CompletableFuture<Void>> sent = new CopyOnWriteArrayList<>();
+        BatchingWriter writer = new BatchingWriter((batch, task) -> {
+            CompletableFuture<Void> written = new CompletableFuture<>();
+            sent.add(written);
+            return written;
+        }, scheduler, 1, 0, 1000, 2);
+        try {
+            List<CompletableFuture<Void>> written = new ArrayList<>();
+            for (int i = 0; i < 5; i++) {
+                written.add(writer.delete(document()));
+            }
+            assertEquals(2, sent.size());
+
+            // every batch that is done makes room for the next one
+            sent.get(0).complete(null);
+            assertEquals(3, sent.size());
+            assertTrue(written.get(0).isDone());
+            CompletableFuture<Void> flushed = writer.flush();
+            for (int i = 1; i < 5; i++) {
+                sent.get(i).complete(null);
+            }
+            flushed.get(1, TimeUnit.SECONDS);
+            assertEquals(5, sent.size());
+        } finally {
+            writer.close();
+            scheduler.shutdownNow();
+        }
+    }
+
+    static Document document() {
+        return (Document) Proxy.newProxyInstance(BatchingWriterTest.class.getClassLoader(),
+                new Class[]{Document.class}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "hashCode":
+                            return System.identityHashCode(proxy);
+                        case "equals":
+                            return proxy == args[0];
+                        default:
+                            return null;
+                    }
+                });
+    }
+}
@@ -0,0 +1,181 @@
+package com.mapr.db;
+
+import org.junit.Test;
+import org.ojai.Document;
+import org.ojai.DocumentListener;
+import org.ojai.DocumentReader;
+import org.ojai.DocumentStream;
+import org.ojai.store.Connection;
+import org.ojai.store.DocumentStore;
+import org.ojai.store.exceptions.StoreException;
+
+import java.lang.reflect.Proxy;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class BulkWriteTest {
+
+    @Test
+    public void testChunksFailOverMidStream() {
+        Map<String, AtomicInteger> written = new ConcurrentHashMap<>();
+        AtomicInteger primaryChunks = new AtomicInteger();
+        EnhancedConnection connection = connection((name, docs) -> {
+            if (name.equals("/a") && primaryChunks.incrementAndGet() > 3) {
+                throw new StoreException("down " + name);
+            }
+            written.computeIfAbsent(name, n -> new AtomicInteger()).addAndGet(docs);
+        });
+        try {
+            EnhancedJSONTable table = connection.getTable("/a", "/b", 500);
+            table.setBulkChunkSize(10);
+            table.setBulkParallelism(1);
+            table.insert(stream(100, -1));
+            assertEquals(30, written.get("/a").get());
+            assertEquals(70, written.get("/b").get());
+            assertTrue(table.isTableSwitched());
+            table.close();
+        } finally {
+            connection.close();
+        }
+    }
+
+    @Test
+    public void testErrorOfFirstChunkIsReported() {
+        EnhancedConnection connection = connection((name, docs) -> {
+            // the first chunk fails last
+            if (docs == 10) {
+                Thread.sleep(100);
+            }
+            throw new StoreException("chunk of " + docs);
+        });
+        try {
+            EnhancedJSONTable table = connection.getTable("/a", "/b", 500);
+            table.setBulkChunkSize(10);
+            table.setBulkParallelism(2);
+            try {
+                table.insert(stream(15, -1));
+                fail("All the chunks failed");
+            } catch (StoreException e) {
+                assertEquals("chunk of 10", e.getMessage());
+            }
+            table.close();
+        } finally {
+            connection.close();
+        }
+    }
+
+    @Test
+    public void testStreamErrorWaitsForChunksInFlight() {
+        AtomicInteger written = new AtomicInteger();
+        EnhancedConnection connection = connection((name, docs) -> {
+            Thread.sleep(100);
+            written.addAndGet(docs);
+        });
+        try {
+            EnhancedJSONTable table = connection.getTable("/a", "/b", 500);
+            table.setBulkChunkSize(10);
+            table.setBulkParallelism(4);
+            try {
+                table.insert(stream(100, 25));
+                fail("The stream failed");
+            } catch (IllegalStateException e) {
+                assertEquals(20, written.get());
+            }
+            table.close();
+        } finally {
+            connection.close();
+        }
+    }
+
+    interface ChunkWriter {
+        void write(String table, int documents) throws Exception;
+    }
+
+    /**
+     * @return connection to tables that pass every chunk to the writer
+     */
+    private static EnhancedConnection connection(ChunkWriter writer) {
+        return new EnhancedConnection(new WorkerPoolConfig(4, 100, WorkerPoolConfig.RejectionPolicy.ABORT),
+                () -> (Connection) Proxy.newProxyInstance(BulkWriteTest.class.getClassLoader(),
+                        new Class[]{Connection.class}, (proxy, method, args) -> {
+                            switch (method.getName()) {
+                                case "getStore":
+                                    return store((String) args[0], writer);
+                                case "hashCode":
+                                    return System.identityHashCode(proxy);
+                                case "equals":
+                                    return proxy == args[0];
+                                default:
+                                    return null;
+                            }
+                        }));
+    }
+
+    private static DocumentStore store(String name, ChunkWriter writer) {
+        return (DocumentStore) Proxy.newProxyInstance(BulkWriteTest.class.getClassLoader(),
+                new Class[]{DocumentStore.class}, (proxy, method, args) -> {
+                    if (args != null && args.length == 1 && args[0] instanceof DocumentStream) {
+                        int documents = 0;
+                        for (Document ignored : (DocumentStream) args[0]) {
+                            documents++;
+                        }
+                        writer.write(name, documents);
+                        return null;
+                    }
+                    switch (method.getName()) {
+                        case "hashCode":
+                            return System.identityHashCode(proxy);
+                        case "equals":
+                            return proxy == args[0];
+                        default:
+                            return null;
+                    }
+                });
+    }
+
+    /**
+     * @param size     documents in the stream
+     * @param failAt   position where reading the stream fails, or -1
+     */
+    private static DocumentStream stream(int size, int failAt) {
+        return new DocumentStream() {
+            @Override
+            public Iterator<Document> iterator() {
+                return new Iterator<Document>() {
+                    int next;
+
+                    @Override
+                    public boolean hasNext() {
+                        return next < size;
+                    }
+
+                    @Override
+                    public Document next() {
+                        if (next++ == failAt) {
+                            throw new IllegalStateException("Stream failed");
+                        }
+                        return BatchingWriterTest.document();
+                    }
+                };
+            }
+
+            @Override
+            public void streamTo(DocumentListener listener) {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public Iterable<DocumentReader> documentReaders() {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+}
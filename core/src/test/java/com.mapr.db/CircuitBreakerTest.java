@@ -0,0 +1,168 @@
+package com.mapr.db;
+
+import org.junit.Test;
+import org.ojai.store.Connection;
+import org.ojai.store.DocumentStore;
+
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class CircuitBreakerTest {
+
+    private static final long NOW = 1_000_000;
+    private static final long FAST = TimeUnit.MILLISECONDS.toNanos(2);
+    private static final long SLOW = TimeUnit.MILLISECONDS.toNanos(200);
+
+    @Test
+    public void testOpensOnFailureRate() {
+        CircuitBreaker breaker = new CircuitBreaker(10, 5, 0.5, 1, 100, 1000, 2);
+        for (int i = 0; i < 3; i++) {
+            breaker.onFailure(0, true, NOW);
+        }
+        // not enough calls in the window yet
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState(0));
+        breaker.onSuccess(0, FAST, true, NOW);
+        breaker.onSuccess(0, FAST, true, NOW);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState(0));
+        assertFalse(breaker.tryAcquire(0, NOW + 10));
+
+        // the other table is not affected
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState(1));
+        assertTrue(breaker.tryAcquire(1, NOW + 10));
+    }
+
+    @Test
+    public void testOpensOnSlowCallRate() {
+        CircuitBreaker breaker = new CircuitBreaker(10, 5, 0.5, 0.8, 100, 1000, 2);
+        for (int i = 0; i < 4; i++) {
+            breaker.onSuccess(0, SLOW, true, NOW);
+        }
+        breaker.onSuccess(0, FAST, true, NOW);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState(0));
+        assertEquals(0.8, breaker.getSlowCallRate(0), 1e-9);
+    }
+
+    @Test
+    public void testOldOutcomesLeaveTheWindow() {
+        CircuitBreaker breaker = new CircuitBreaker(10, 10, 0.5, 1, 100, 1000, 2);
+        for (int i = 0; i < 4; i++) {
+            breaker.onFailure(0, true, NOW);
+        }
+        for (int i = 0; i < 10; i++) {
+            breaker.onSuccess(0, FAST, true, NOW);
+        }
+        assertEquals(0, breaker.getFailureRate(0), 0);
+        breaker.onFailure(0, true, NOW);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState(0));
+    }
+
+    @Test
+    public void testHalfOpenTrials() {
+        CircuitBreaker breaker = new CircuitBreaker(10, 1, 0.5, 1, 100, 1000, 2);
+        breaker.onFailure(0, true, NOW);
+        assertFalse(breaker.tryAcquire(0, NOW + 999));
+
+        // after the open time only the trial requests get through
+        assertTrue(breaker.tryAcquire(0, NOW + 1000));
+        assertTrue(breaker.tryAcquire(0, NOW + 1000));
+        assertFalse(breaker.tryAcquire(0, NOW + 1000));
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState(0));
+
+        // a cancelled trial gives its permit back
+        breaker.onIgnored(0, true);
+        assertTrue(breaker.tryAcquire(0, NOW + 1000));
+
+        breaker.onSuccess(0, FAST, true, NOW + 1001);
+        breaker.onSuccess(0, FAST, true, NOW + 1001);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState(0));
+        assertEquals(-1, breaker.getFailureRate(0), 0);
+    }
+
+    @Test
+    public void testFailedTrialOpensAgain() {
+        CircuitBreaker breaker = new CircuitBreaker(10, 1, 0.5, 1, 100, 1000, 2);
+        breaker.onFailure(0, true, NOW);
+        assertTrue(breaker.tryAcquire(0, NOW + 1000));
+        breaker.onFailure(0, true, NOW + 1001);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState(0));
+        assertFalse(breaker.tryAcquire(0, NOW + 1500));
+        assertTrue(breaker.tryAcquire(0, NOW + 2001));
+    }
+
+    @Test
+    public void testOnlyPermittedRequestsAreTrials() {
+        CircuitBreaker breaker = new CircuitBreaker(10, 1, 0.5, 1, 100, 1000, 2);
+        breaker.onFailure(0, true, NOW);
+        assertTrue(breaker.tryAcquire(0, NOW + 1000));
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState(0));
+
+        // hedged attempts were sent without asking the breaker
+        breaker.onFailure(0, false, NOW + 1001);
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState(0));
+        breaker.onSuccess(0, FAST, false, NOW + 1001);
+        breaker.onSuccess(0, FAST, false, NOW + 1001);
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState(0));
+        breaker.onIgnored(0, false);
+        assertTrue(breaker.tryAcquire(0, NOW + 1001));
+        assertFalse(breaker.tryAcquire(0, NOW + 1001));
+
+        breaker.onSuccess(0, FAST, true, NOW + 1002);
+        breaker.onSuccess(0, FAST, true, NOW + 1002);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState(0));
+    }
+
+    @Test
+    public void testRequestGoesToFirstTableWithClosedBreaker() throws InterruptedException {
+        Map<String, AtomicInteger> requests = new ConcurrentHashMap<>();
+        EnhancedConnection connection = new EnhancedConnection(
+                new WorkerPoolConfig(2, 10, WorkerPoolConfig.RejectionPolicy.ABORT),
+                () -> (Connection) Proxy.newProxyInstance(getClass().getClassLoader(),
+                        new Class[]{Connection.class}, (proxy, method, args) -> {
+                            if (!method.getName().equals("getStore")) {
+                                return method.getName().equals("hashCode") ? System.identityHashCode(proxy) : null;
+                            }
+                            String name = (String) args[0];
+                            return Proxy.newProxyInstance(getClass().getClassLoader(),
+                                    new Class[]{DocumentStore.class}, (store, m, a) -> {
+                                        if (m.getName().equals("findById")) {
+                                            requests.computeIfAbsent(name, n -> new AtomicInteger()).incrementAndGet();
+                                        }
+                                        return null;
+                                    });
+                        }));
+        try {
+            EnhancedJSONTable table = connection.getTable(Arrays.asList("/a", "/b", "/c"), 100);
+            CircuitBreaker breaker = new CircuitBreaker(10, 1, 0.5, 1, 100, 60_000, 1);
+            breaker.onFailure(0, true);
+            breaker.onFailure(1, true);
+            table.setCircuitBreaker(breaker);
+            long until = System.currentTimeMillis() + 5000;
+            while (table.store(2) == null && System.currentTimeMillis() < until) {
+                Thread.sleep(10);
+            }
+
+            // the first two clusters are known to be sick, the third one serves
+            table.findById("k");
+            assertEquals(1, requests.get("/c").get());
+            assertNull(requests.get("/a"));
+            assertNull(requests.get("/b"));
+
+            breaker.onFailure(2, true);
+            try {
+                table.findById("k");
+                fail("All the breakers are open");
+            } catch (EnhancedJSONTable.FailoverException e) {
+                assertEquals("Circuit breakers of tables /a, /b, /c are open", e.getMessage());
+            }
+            table.close();
+        } finally {
+            connection.close();
+        }
+    }
+}
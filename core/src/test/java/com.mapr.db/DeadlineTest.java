@@ -0,0 +1,28 @@
+package com.mapr.db;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class DeadlineTest {
+
+    @Test
+    public void testInnerDeadlineNeverExtendsOuter() {
+        assertNull(Deadline.current());
+        try (Deadline outer = Deadline.after(100, TimeUnit.MILLISECONDS)) {
+            assertSame(outer, Deadline.current());
+            try (Deadline inner = Deadline.after(1, TimeUnit.HOURS)) {
+                assertSame(inner, Deadline.current());
+                assertTrue(inner.remainingMillis() <= 100);
+            }
+            assertSame(outer, Deadline.current());
+            try (Deadline inner = Deadline.after(0, TimeUnit.MILLISECONDS)) {
+                assertTrue(inner.isExpired());
+                assertFalse(outer.isExpired());
+            }
+        }
+        assertNull(Deadline.current());
+    }
+}
@@ -0,0 +1,140 @@
+package com.mapr.db;
+
+import org.junit.Test;
+import org.ojai.store.Connection;
+import org.ojai.store.DocumentStore;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+
+import static org.junit.Assert.*;
+
+public class EnhancedConnectionTest {
+
+    @Test
+    public void testExtraReleaseIsIgnored() {
+        EnhancedConnection connection = new EnhancedConnection(new WorkerPoolConfig(1, 10, WorkerPoolConfig.RejectionPolicy.ABORT));
+        try {
+            connection.release();
+            assertEquals(0, connection.getOpenTables());
+        } finally {
+            connection.close();
+        }
+    }
+
+    @Test
+    public void testGroupsHaveWorkerPoolsOfTheirOwn() {
+        EnhancedConnection connection = new EnhancedConnection(
+                new WorkerPoolConfig(1, 10, WorkerPoolConfig.RejectionPolicy.ABORT));
+        try {
+            FailoverGroup first = connection.getFailoverGroup("first");
+            FailoverGroup second = connection.getFailoverGroup("second");
+            assertSame(first, connection.getFailoverGroup("first"));
+            // failback probes are opt-in
+            assertNull(first.getHealthProber());
+
+            ExecutorService[] firstPools = connection.executors(first);
+            ExecutorService[] secondPools = connection.executors(second);
+            assertEquals(2, firstPools.length);
+            for (ExecutorService pool : firstPools) {
+                assertFalse(Arrays.asList(secondPools).contains(pool));
+            }
+        } finally {
+            connection.close();
+        }
+        for (ExecutorService pool : connection.executors(connection.getFailoverGroup("first"))) {
+            assertTrue(pool.isShutdown());
+        }
+    }
+
+    @Test
+    public void testTablesOverMoreReplicas() {
+        EnhancedConnection connection = new EnhancedConnection(
+                new WorkerPoolConfig(1, 10, WorkerPoolConfig.RejectionPolicy.ABORT), EnhancedConnectionTest::connection);
+        try {
+            EnhancedJSONTable table = connection.getTable(Arrays.asList("/a", "/b", "/c"), 100);
+            assertEquals(3, connection.executors(connection.getFailoverGroup()).length);
+            try {
+                connection.getTable("/d", "/e", 100);
+                fail("The tables of the group have three replicas");
+            } catch (IllegalArgumentException e) {
+                assertEquals(1, connection.getOpenTables());
+            }
+            table.close();
+        } finally {
+            connection.close();
+        }
+    }
+
+    @Test
+    public void testPoisonedConnectionIsReplaced() {
+        List<Connection> opened = new ArrayList<>();
+        Set<Connection> closed = new HashSet<>();
+        EnhancedConnection connection = new EnhancedConnection(
+                new WorkerPoolConfig(1, 10, WorkerPoolConfig.RejectionPolicy.ABORT), () -> {
+            Connection driver = (Connection) Proxy.newProxyInstance(getClass().getClassLoader(),
+                    new Class[]{Connection.class}, (proxy, method, args) -> {
+                        switch (method.getName()) {
+                            case "close":
+                                closed.add((Connection) proxy);
+                                return null;
+                            case "hashCode":
+                                return System.identityHashCode(proxy);
+                            case "equals":
+                                return proxy == args[0];
+                            default:
+                                return null;
+                        }
+                    });
+            opened.add(driver);
+            return driver;
+        });
+        StoreHandle.Connector connector = connection.connector();
+        Connection first = connector.acquire(null);
+        assertSame(first, connector.acquire(null));
+
+        // a store of the first connection failed, the stores opened from now on use a new one
+        Connection second = connector.acquire(first);
+        assertNotSame(first, second);
+        assertSame(second, connector.acquire(first));
+        assertSame(second, connection.connection());
+
+        // the old connection is closed with its last store
+        connector.release(first);
+        assertFalse(closed.contains(first));
+        connector.release(first);
+        assertTrue(closed.contains(first));
+
+        connector.release(second);
+        connector.release(second);
+        assertFalse(closed.contains(second));
+        connection.close();
+        assertTrue(closed.contains(second));
+        assertEquals(2, opened.size());
+    }
+
+    /**
+     * @return connection whose stores answer every request with null
+     */
+    private static Connection connection() {
+        return (Connection) Proxy.newProxyInstance(EnhancedConnectionTest.class.getClassLoader(),
+                new Class[]{Connection.class}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getStore":
+                            return Proxy.newProxyInstance(EnhancedConnectionTest.class.getClassLoader(),
+                                    new Class[]{DocumentStore.class}, (store, m, a) -> null);
+                        case "hashCode":
+                            return System.identityHashCode(proxy);
+                        case "equals":
+                            return proxy == args[0];
+                        default:
+                            return null;
+                    }
+                });
+    }
+}
@@ -10,6 +10,7 @@ import org.ojai.FieldPath;
 import org.ojai.Value;
 import org.ojai.annotation.API;
 import org.ojai.store.*;
+import org.ojai.store.exceptions.DocumentExistsException;
 import org.ojai.store.exceptions.MultiOpException;
 import org.ojai.store.exceptions.StoreException;
 import org.slf4j.Logger;
@@ -18,9 +19,11 @@ import org.slf4j.LoggerFactory;
 import java.io.IOException;
 import java.math.BigDecimal;
 import java.nio.ByteBuffer;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.Assert.*;
 
@@ -54,6 +57,153 @@ public class EnhancedJsonTableTest {
         runSamples(20, 30, 0, 10, 10, true, false, 10);
     }
 
+    @Test
+    public void testAbandonedPrimaryIsALatencySample() {
+        ExecutorService prim = Executors.newSingleThreadExecutor();
+        ExecutorService sec = Executors.newSingleThreadExecutor();
+        ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+        TestStore a = new TestStore(0);
+        TestStore b = new TestStore(1);
+
+        long[] timedOut = {-1, -1};
+        int r = new FallbackRequest<>(prim, sec, timer, 20, 1000,
+                (DocumentStore t) -> {
+                    int x = ((TestStore) t).tag;
+                    if (x == 0) {
+                        Thread.sleep(500);
+                    }
+                    return x;
+                },
+                a, b,
+                () -> {
+                }, new FallbackRequest.LatencyListener() {
+                    @Override
+                    public void onSuccess(boolean onPrimary, long nanos) {
+                    }
+
+                    @Override
+                    public void onTimeout(boolean onPrimary, long nanos) {
+                        timedOut[onPrimary ? 0 : 1] = nanos;
+                    }
+                }, false).start().join();
+        assertEquals(1, r);
+        assertTrue("Primary sample " + timedOut[0], timedOut[0] >= TimeUnit.MILLISECONDS.toNanos(20));
+        assertEquals(-1, timedOut[1]);
+    }
+
+    @Test
+    public void testLatePrimaryWinsRace() {
+        // primary misses the time out, but answers long before the secondary, so there is no switch
+        int[] counts = runRace(40, 300, false, 10);
+        assertEquals("Primary", 10, counts[0]);
+        assertEquals("Secondary", 0, counts[1]);
+        assertEquals("Failed", 0, counts[2]);
+    }
+
+    @Test
+    public void testSecondaryWinsRace() {
+        int[] counts = runRace(300, 5, false, 10);
+        assertEquals("Primary", 0, counts[0]);
+        assertEquals("Secondary", 10, counts[1]);
+        assertEquals("Failed", 10, counts[2]);
+    }
+
+    @Test
+    public void testFailedPrimaryLosesRace() {
+        int[] counts = runRace(40, 100, true, 10);
+        assertEquals("Primary", 0, counts[0]);
+        assertEquals("Secondary", 10, counts[1]);
+        assertEquals("Failed", 10, counts[2]);
+    }
+
+    @Test
+    public void testApplicationErrorIsNotFailedOver() {
+        ExecutorService prim = Executors.newSingleThreadExecutor();
+        ExecutorService sec = Executors.newSingleThreadExecutor();
+        ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+        TestStore a = new TestStore(0);
+        TestStore b = new TestStore(1);
+
+        int[] counts = new int[3];
+        for (int i = 0; i < 10; i++) {
+            try {
+                new FallbackRequest<>(prim, sec, timer, 20, 1000,
+                        (DocumentStore t) -> {
+                            counts[((TestStore) t).tag]++;
+                            throw new DocumentExistsException("Document exists");
+                        },
+                        a, b,
+                        () -> counts[2]++, FallbackRequest.IGNORE_LATENCY, false,
+                        ExceptionTypeClassifier.defaults()).start().join();
+                fail("Expected the application error");
+            } catch (CompletionException e) {
+                assertTrue(e.getCause() instanceof DocumentExistsException);
+            }
+        }
+        assertEquals("Primary", 10, counts[0]);
+        assertEquals("Secondary", 0, counts[1]);
+        assertEquals("Failed", 0, counts[2]);
+    }
+
+    @Test
+    public void testHedgingChainSurvivesTwoSlowReplicas() {
+        ExecutorService[] executors = {
+                Executors.newSingleThreadExecutor(),
+                Executors.newSingleThreadExecutor(),
+                Executors.newSingleThreadExecutor()};
+        ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+        TestStore a = new TestStore(0);
+        TestStore b = new TestStore(1);
+        TestStore c = new TestStore(2);
+        EnhancedJSONTable.TableFunction<Integer> task = (DocumentStore t) -> {
+            int x = ((TestStore) t).tag;
+            if (x < 2) {
+                Thread.sleep(500);
+            }
+            return x;
+        };
+
+        int[] counts = new int[5];
+        for (int i = 0; i < 5; i++) {
+            FallbackRequest<Integer> rest = new FallbackRequest<>(executors[1], executors[2], timer, 20, 1000,
+                    task, b, c, () -> counts[4]++, FallbackRequest.IGNORE_LATENCY, false);
+            long started = System.nanoTime();
+            int r = new FallbackRequest<>(executors[0], timer, 20, 1000, task, a, rest,
+                    () -> counts[3]++, FallbackRequest.IGNORE_LATENCY, false,
+                    FallbackRequest.NO_APPLICATION_ERRORS).start().join();
+            assertTrue("Waited for a slow replica", System.nanoTime() - started < 400_000_000L);
+            counts[r]++;
+        }
+        assertEquals("Third replica", 5, counts[2]);
+        assertEquals("Failed over from first", 5, counts[3]);
+        assertEquals("Failed over from second", 5, counts[4]);
+    }
+
+    private int[] runRace(int aDelay, int bDelay, boolean failA, int iterations) {
+        ExecutorService prim = Executors.newSingleThreadExecutor();
+        ExecutorService sec = Executors.newSingleThreadExecutor();
+        ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+        TestStore a = new TestStore(0);
+        TestStore b = new TestStore(1);
+
+        int[] counts = new int[3];
+        for (int i = 0; i < iterations; i++) {
+            int r = new FallbackRequest<>(prim, sec, timer, 20, 1000,
+                    (DocumentStore t) -> {
+                        int x = ((TestStore) t).tag;
+                        Thread.sleep(x == 0 ? aDelay : bDelay);
+                        if (x == 0 && failA) {
+                            throw new StoreException("A has failed");
+                        }
+                        return x;
+                    },
+                    a, b,
+                    () -> counts[2]++, FallbackRequest.IGNORE_LATENCY, true).start().join();
+            counts[r]++;
+        }
+        return counts;
+    }
+
     private void runSamples(int aDelay, int bDelay, int primary, int secondary, int failed, boolean failA, boolean failB, int iterations) {
         int[] counts = runSamples((DocumentStore t) -> {
                 int x = ((TestStore) t).tag;
@@ -78,16 +228,17 @@ public class EnhancedJsonTableTest {
     private int[] runSamples(EnhancedJSONTable.TableFunction<Integer> task, int iterations) {
         ExecutorService prim = Executors.newSingleThreadExecutor();
         ExecutorService sec = Executors.newSingleThreadExecutor();
+        ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
         TestStore a = new TestStore(0);
         TestStore b = new TestStore(1);
 
         int[] counts = new int[3];
         for (int i = 0; i < iterations; i++) {
             int r = EnhancedJSONTable.doWithFallback(
-                    prim, sec, 20, 1000,
+                    prim, sec, timer, 20, 1000,
                     task,
                     a, b,
-                    () -> counts[2]++, new AtomicBoolean(false));
+                    () -> counts[2]++);
             counts[r]++;
         }
         return counts;
@@ -0,0 +1,34 @@
+package com.mapr.db;
+
+import org.junit.Test;
+import org.ojai.exceptions.TypeException;
+import org.ojai.store.exceptions.DocumentExistsException;
+import org.ojai.store.exceptions.StoreException;
+
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.*;
+
+public class ExceptionTypeClassifierTest {
+
+    @Test
+    public void testDefaults() {
+        ExceptionTypeClassifier classifier = ExceptionTypeClassifier.defaults();
+        assertTrue(classifier.isApplicationError(new DocumentExistsException("exists")));
+        assertTrue(classifier.isApplicationError(new TypeException("not a number")));
+        assertTrue(classifier.isApplicationError(new IllegalArgumentException("bad query")));
+
+        // a generic store error may well be a cluster failure
+        assertFalse(classifier.isApplicationError(new StoreException("connection lost")));
+        assertFalse(classifier.isApplicationError(new TimeoutException()));
+    }
+
+    @Test
+    public void testWithAddsType() {
+        ExceptionTypeClassifier classifier = ExceptionTypeClassifier.defaults();
+        ExceptionTypeClassifier extended = classifier.with(IllegalStateException.class);
+        assertTrue(extended.isApplicationError(new IllegalStateException()));
+        assertTrue(extended.isApplicationError(new DocumentExistsException("exists")));
+        assertFalse(classifier.isApplicationError(new IllegalStateException()));
+    }
+}
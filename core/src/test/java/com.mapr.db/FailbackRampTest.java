@@ -0,0 +1,116 @@
+package com.mapr.db;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class FailbackRampTest {
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+
+    @After
+    public void tearDown() {
+        scheduler.shutdownNow();
+    }
+
+    @Test
+    public void testStepsPassWithHealthyPrimary() throws InterruptedException {
+        FailbackRamp ramp = new FailbackRamp(new double[]{10, 50}, 50, 10_000, 5, 0.05, 0.2, 100);
+        CountDownLatch done = new CountDownLatch(1);
+        ramp.start(scheduler, () -> true, done::countDown, () -> fail("Ramp must not be aborted"));
+        assertTrue(ramp.isRamping());
+        assertEquals(10, ramp.getPercent(), 0);
+
+        int admitted = 0;
+        for (int i = 0; i < 10_000; i++) {
+            if (ramp.admit()) {
+                admitted++;
+                ramp.onSuccess(TimeUnit.MILLISECONDS.toNanos(5));
+            }
+        }
+        assertTrue("Admitted " + admitted, admitted > 800 && admitted < 1200);
+
+        // the second step needs requests of its own
+        while (ramp.getPercent() == 10) {
+            Thread.sleep(5);
+        }
+        for (int i = 0; i < 10; i++) {
+            ramp.onSuccess(TimeUnit.MILLISECONDS.toNanos(5));
+        }
+
+        assertTrue(done.await(1, TimeUnit.SECONDS));
+        assertFalse(ramp.isRamping());
+        assertEquals(0, ramp.getPercent(), 0);
+        assertFalse(ramp.admit());
+    }
+
+    @Test
+    public void testSlowPrimaryAbortsRamp() throws InterruptedException {
+        FailbackRamp ramp = new FailbackRamp(new double[]{10, 50}, 50, 10_000, 5, 0.05, 0.2, 100);
+        CountDownLatch aborted = new CountDownLatch(1);
+        ramp.start(scheduler, () -> true, () -> fail("Ramp must not pass"), aborted::countDown);
+        for (int i = 0; i < 8; i++) {
+            ramp.onSuccess(TimeUnit.MILLISECONDS.toNanos(5));
+        }
+        ramp.onSuccess(TimeUnit.MILLISECONDS.toNanos(500));
+        ramp.onFailure();
+
+        assertTrue(aborted.await(1, TimeUnit.SECONDS));
+        assertFalse(ramp.isRamping());
+        assertEquals(1, ramp.getAbortCount());
+    }
+
+    @Test
+    public void testQuietStepIsExtended() throws InterruptedException {
+        FailbackRamp ramp = new FailbackRamp(new double[]{10}, 20, 10_000, 5, 0.05, 0.2, 100);
+        CountDownLatch done = new CountDownLatch(1);
+        ramp.start(scheduler, () -> true, done::countDown, () -> fail("Ramp must not be aborted"));
+        ramp.onSuccess(TimeUnit.MILLISECONDS.toNanos(5));
+
+        // one request proves nothing, the step goes on
+        assertFalse(done.await(200, TimeUnit.MILLISECONDS));
+        assertTrue(ramp.isRamping());
+        assertEquals(10, ramp.getPercent(), 0);
+        assertTrue(ramp.getExtensionCount() > 0);
+
+        for (int i = 0; i < 4; i++) {
+            ramp.onSuccess(TimeUnit.MILLISECONDS.toNanos(5));
+        }
+        assertTrue(done.await(1, TimeUnit.SECONDS));
+        assertFalse(ramp.isRamping());
+    }
+
+    @Test
+    public void testQuietStepEndsAtLongestStep() throws InterruptedException {
+        FailbackRamp ramp = new FailbackRamp(new double[]{10, 50}, 20, 100, 5, 0.05, 0.2, 100);
+        CountDownLatch done = new CountDownLatch(1);
+        ramp.start(scheduler, () -> true, done::countDown, () -> fail("Ramp must not be aborted"));
+
+        // no request reaches the primary cluster, every step still ends
+        assertTrue(done.await(2, TimeUnit.SECONDS));
+        assertFalse(ramp.isRamping());
+        assertTrue(ramp.getExtensionCount() >= 2);
+    }
+
+    @Test
+    public void testFailuresOfQuietStepAbortRamp() throws InterruptedException {
+        FailbackRamp ramp = new FailbackRamp(new double[]{10}, 20, 100, 5, 0.05, 0.2, 100);
+        CountDownLatch aborted = new CountDownLatch(1);
+        ramp.start(scheduler, () -> true, () -> fail("Ramp must not pass"), aborted::countDown);
+        ramp.onFailure();
+
+        assertTrue(aborted.await(2, TimeUnit.SECONDS));
+        assertEquals(1, ramp.getAbortCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testStepsMustIncrease() {
+        new FailbackRamp(new double[]{10, 10, 100}, 50, 10_000, 5, 0.05, 0.2, 100);
+    }
+}
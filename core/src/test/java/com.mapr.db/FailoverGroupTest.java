@@ -0,0 +1,135 @@
+package com.mapr.db;
+
+import org.junit.Test;
+import org.ojai.store.Connection;
+import org.ojai.store.DocumentStore;
+import org.ojai.store.exceptions.StoreException;
+
+import java.lang.reflect.Proxy;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class FailoverGroupTest {
+
+    /**
+     * Requests per table, and whether the primary cluster is down
+     */
+    private final Map<String, AtomicInteger> requests = new ConcurrentHashMap<>();
+    private volatile boolean primaryDown;
+
+    @Test
+    public void testTablesOnSameClustersSwitchAndSwapBackTogether() throws Exception {
+        EnhancedConnection connection = connection();
+        try {
+            EnhancedJSONTable orders = connection.getTable("/a/orders", "/b/orders", 100);
+            EnhancedJSONTable users = connection.getTable("/a/users", "/b/users", 100);
+            assertSame(orders.getFailoverGroup(), users.getFailoverGroup());
+            orders.getFailoverGroup().setFailoverPolicy(new FixedWindowFailoverPolicy(200));
+            awaitOpen(orders);
+            awaitOpen(users);
+
+            // a request of one table finds the primary cluster down, the other table follows without trying it
+            primaryDown = true;
+            orders.findById("k");
+            assertTrue(orders.isTableSwitched());
+            assertTrue(users.isTableSwitched());
+            users.findById("k");
+            assertEquals(0, requests("/a/users").get());
+            assertEquals(1, requests("/b/users").get());
+
+            // after the stickiness both tables go back to the primary cluster
+            primaryDown = false;
+            long until = System.currentTimeMillis() + 5000;
+            while (users.isTableSwitched() && System.currentTimeMillis() < until) {
+                Thread.sleep(10);
+            }
+            assertFalse(users.isTableSwitched());
+            assertFalse(orders.isTableSwitched());
+            orders.findById("k");
+            users.findById("k");
+            assertEquals(1, requests("/a/users").get());
+            assertEquals(1, requests("/b/users").get());
+            assertEquals(2, requests("/a/orders").get());
+            orders.close();
+            users.close();
+        } finally {
+            connection.close();
+        }
+    }
+
+    @Test
+    public void testGroupsSwitchApart() throws Exception {
+        EnhancedConnection connection = connection();
+        try {
+            EnhancedJSONTable orders = connection.getTable("/a/orders", "/b/orders", 100);
+            EnhancedJSONTable events = connection.getTable(connection.getFailoverGroup("events"),
+                    "/a/events", "/b/events", 100, false, false);
+            assertNotSame(orders.getFailoverGroup(), events.getFailoverGroup());
+            awaitOpen(orders);
+
+            primaryDown = true;
+            orders.findById("k");
+            assertTrue(orders.isTableSwitched());
+            assertFalse(events.isTableSwitched());
+            orders.close();
+            events.close();
+        } finally {
+            connection.close();
+        }
+    }
+
+    private static void awaitOpen(EnhancedJSONTable table) throws InterruptedException {
+        long until = System.currentTimeMillis() + 5000;
+        while (table.store(1) == null && System.currentTimeMillis() < until) {
+            Thread.sleep(10);
+        }
+        assertNotNull(table.store(1));
+    }
+
+    private AtomicInteger requests(String table) {
+        return requests.computeIfAbsent(table, name -> new AtomicInteger());
+    }
+
+    /**
+     * @return connection to tables on the clusters /a and /b, the tables of /a fail while it is down
+     */
+    private EnhancedConnection connection() {
+        return new EnhancedConnection(new WorkerPoolConfig(4, 100, WorkerPoolConfig.RejectionPolicy.ABORT),
+                () -> (Connection) Proxy.newProxyInstance(getClass().getClassLoader(),
+                        new Class[]{Connection.class}, (proxy, method, args) -> {
+                            switch (method.getName()) {
+                                case "getStore":
+                                    return store((String) args[0]);
+                                case "hashCode":
+                                    return System.identityHashCode(proxy);
+                                case "equals":
+                                    return proxy == args[0];
+                                default:
+                                    return null;
+                            }
+                        }));
+    }
+
+    private DocumentStore store(String name) {
+        return (DocumentStore) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class[]{DocumentStore.class}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "findById":
+                            requests(name).incrementAndGet();
+                            if (primaryDown && name.startsWith("/a/")) {
+                                throw new StoreException("Cluster of " + name + " is down");
+                            }
+                            return null;
+                        case "hashCode":
+                            return System.identityHashCode(proxy);
+                        case "equals":
+                            return proxy == args[0];
+                        default:
+                            return null;
+                    }
+                });
+    }
+}
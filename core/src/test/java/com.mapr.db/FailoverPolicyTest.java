@@ -0,0 +1,61 @@
+package com.mapr.db;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class FailoverPolicyTest {
+
+    private static final long MINUTE = 60_000;
+
+    @Test
+    public void testFixedWindowsKeepTheOriginalSchedule() {
+        FailoverPolicy policy = FixedWindowFailoverPolicy.defaults();
+        RoutingState state = RoutingState.initial();
+
+        long[] expected = {MINUTE / 3, MINUTE, 2 * MINUTE, 2 * MINUTE, 2 * MINUTE};
+        for (long window : expected) {
+            state = state.failOver(1, 0, policy.nextSwitchCount(state, 0));
+            assertEquals(window, policy.stickinessMillis(state));
+            state = state.failBack(0);
+        }
+    }
+
+    @Test
+    public void testExponentialBackoffGrowsUpToMaximum() {
+        FailoverPolicy policy = new ExponentialBackoffFailoverPolicy(1000, 2, 5000, MINUTE, 0);
+        RoutingState state = RoutingState.initial();
+
+        long[] expected = {1000, 2000, 4000, 5000, 5000};
+        long now = state.getChangedAt();
+        for (long window : expected) {
+            now += 10;
+            state = state.failOver(1, now, policy.nextSwitchCount(state, now));
+            assertEquals(window, policy.stickinessMillis(state));
+            now += window;
+            state = state.failBack(now);
+        }
+    }
+
+    @Test
+    public void testExponentialBackoffDecays() {
+        FailoverPolicy policy = new ExponentialBackoffFailoverPolicy(1000, 2, 100_000, MINUTE, 0);
+        RoutingState state = new RoutingState(0, 10, 4, 0);
+
+        // two and a half minutes on the primary forget two failovers
+        assertEquals(3, policy.nextSwitchCount(state, 150_000));
+        // a long quiet period starts over from the first window
+        assertEquals(1, policy.nextSwitchCount(state, 60 * MINUTE));
+        assertEquals(1000, policy.stickinessMillis(state.failOver(1, 0, 1)));
+    }
+
+    @Test
+    public void testJitterStaysWithinBounds() {
+        FailoverPolicy policy = new ExponentialBackoffFailoverPolicy(10_000, 2, 100_000, MINUTE, 0.2);
+        RoutingState switched = new RoutingState(1, 1, 1, 0);
+        for (int i = 0; i < 1000; i++) {
+            long window = policy.stickinessMillis(switched);
+            assertTrue("Window " + window, window >= 8000 && window <= 12_000);
+        }
+    }
+}
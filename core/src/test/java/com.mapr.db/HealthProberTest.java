@@ -0,0 +1,91 @@
+package com.mapr.db;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class HealthProberTest {
+
+    @Test
+    public void testHealthyAfterSuccessesInARow() throws Exception {
+        ScheduledThreadPoolExecutor scheduler = (ScheduledThreadPoolExecutor) EnhancedJSONTable.createScheduler();
+        HealthProber prober = new HealthProber("sentinel", 3, 10, 1000);
+        CountDownLatch healthy = new CountDownLatch(1);
+        AtomicInteger healthyCalls = new AtomicInteger();
+        try {
+            prober.start(key -> {
+                assertEquals("sentinel", key);
+                return CompletableFuture.completedFuture(null);
+            }, scheduler, () -> true, () -> {
+                healthyCalls.incrementAndGet();
+                healthy.countDown();
+            });
+            assertTrue(healthy.await(5, TimeUnit.SECONDS));
+            assertFalse(prober.isProbing());
+            assertEquals(3, prober.getProbeCount());
+            assertEquals(0, prober.getFailedProbeCount());
+            assertEquals(1, healthyCalls.get());
+            // the time outs of the probes that answered are cancelled, nothing is left scheduled
+            assertEquals(0, scheduler.getQueue().size());
+        } finally {
+            scheduler.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testFailedAndSlowProbesStartOver() throws Exception {
+        ScheduledThreadPoolExecutor scheduler = (ScheduledThreadPoolExecutor) EnhancedJSONTable.createScheduler();
+        HealthProber prober = new HealthProber("sentinel", 2, 10, 50);
+        CountDownLatch healthy = new CountDownLatch(1);
+        // success, failure, success, no answer, success, success
+        Iterator<String> outcomes = Arrays.asList("ok", "fail", "ok", "hang", "ok", "ok").iterator();
+        try {
+            prober.start(key -> {
+                String outcome = outcomes.next();
+                CompletableFuture<Void> probe = new CompletableFuture<>();
+                if (outcome.equals("ok")) {
+                    probe.complete(null);
+                } else if (outcome.equals("fail")) {
+                    probe.completeExceptionally(new IllegalStateException("down"));
+                }
+                return probe;
+            }, scheduler, () -> true, healthy::countDown);
+            assertTrue(healthy.await(5, TimeUnit.SECONDS));
+            assertEquals(6, prober.getProbeCount());
+            assertEquals(2, prober.getFailedProbeCount());
+            assertEquals(2, prober.getConsecutiveSuccesses());
+            assertFalse(outcomes.hasNext());
+        } finally {
+            scheduler.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testStopsWhenNoLongerNeeded() throws Exception {
+        ScheduledThreadPoolExecutor scheduler = (ScheduledThreadPoolExecutor) EnhancedJSONTable.createScheduler();
+        HealthProber prober = new HealthProber("sentinel", 3, 10, 1000);
+        AtomicInteger probes = new AtomicInteger();
+        try {
+            prober.start(key -> {
+                probes.incrementAndGet();
+                return CompletableFuture.completedFuture(null);
+            }, scheduler, () -> probes.get() < 2, () -> fail("The failback was abandoned"));
+            long until = System.currentTimeMillis() + 5000;
+            while (prober.isProbing() && System.currentTimeMillis() < until) {
+                Thread.sleep(10);
+            }
+            assertFalse(prober.isProbing());
+            assertEquals(2, probes.get());
+        } finally {
+            scheduler.shutdownNow();
+        }
+    }
+}
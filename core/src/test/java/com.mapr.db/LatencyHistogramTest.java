@@ -0,0 +1,54 @@
+package com.mapr.db;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class LatencyHistogramTest {
+
+    private static final long NOW = 1_000_000;
+
+    @Test
+    public void testEmptyHistogram() {
+        LatencyHistogram histogram = new LatencyHistogram(60_000, 6);
+        assertEquals(0, histogram.count(NOW));
+        assertEquals(-1, histogram.percentile(0.99, NOW), 0);
+    }
+
+    @Test
+    public void testPercentileIsWithinBucketPrecision() {
+        LatencyHistogram histogram = new LatencyHistogram(60_000, 6);
+        for (int i = 0; i < 990; i++) {
+            histogram.record(TimeUnit.MILLISECONDS.toNanos(3), NOW);
+        }
+        for (int i = 0; i < 10; i++) {
+            histogram.record(TimeUnit.MILLISECONDS.toNanos(400), NOW);
+        }
+        assertEquals(1000, histogram.count(NOW));
+
+        double median = histogram.percentile(0.5, NOW);
+        assertTrue("Median " + median, median >= 3 && median <= 3 * 1.25);
+        double p99 = histogram.percentile(0.99, NOW);
+        assertTrue("p99 " + p99, p99 >= 3 && p99 <= 3 * 1.25);
+        double max = histogram.percentile(1, NOW);
+        assertTrue("max " + max, max >= 400 && max <= 400 * 1.25);
+    }
+
+    @Test
+    public void testOldLatenciesAreForgotten() {
+        LatencyHistogram histogram = new LatencyHistogram(60_000, 6);
+        histogram.record(TimeUnit.MILLISECONDS.toNanos(500), NOW);
+        histogram.record(TimeUnit.MILLISECONDS.toNanos(2), NOW + 30_000);
+        assertEquals(2, histogram.count(NOW + 30_000));
+
+        // the first latency leaves the window, the second one is still there
+        assertEquals(1, histogram.count(NOW + 65_000));
+        assertTrue(histogram.percentile(1, NOW + 65_000) < 3);
+
+        // a slice reused for a new period of time starts from zero
+        histogram.record(TimeUnit.MILLISECONDS.toNanos(2), NOW + 120_000);
+        assertEquals(1, histogram.count(NOW + 120_000));
+    }
+}
@@ -0,0 +1,151 @@
+package com.mapr.db;
+
+import org.junit.Test;
+import org.ojai.store.Connection;
+import org.ojai.store.DocumentStore;
+import org.ojai.store.exceptions.StoreException;
+
+import java.lang.reflect.Proxy;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class OpenTablesTest {
+
+    /**
+     * Tables whose open hangs until the latch is released, tables that fail to open, and the requests per table
+     */
+    private final CountDownLatch hung = new CountDownLatch(1);
+    private final Set<String> hanging = ConcurrentHashMap.newKeySet();
+    private final Set<String> failing = ConcurrentHashMap.newKeySet();
+    private final Map<String, AtomicInteger> requests = new ConcurrentHashMap<>();
+
+    @Test
+    public void testServesFromSecondaryWhilePrimaryOpens() throws Exception {
+        hanging.add("/a");
+        EnhancedConnection connection = connection();
+        connection.setOpenTimeOut(200);
+        try {
+            long started = System.currentTimeMillis();
+            EnhancedJSONTable table = connection.getTable("/a", "/b", 100);
+            assertTrue(System.currentTimeMillis() - started < 1000);
+            table.findById("k");
+            assertEquals(1, requests("/b").get());
+            assertEquals(0, requests("/a").get());
+
+            // the primary table is not open by the deadline, the group switches
+            awaitSwitched(table, true);
+
+            hung.countDown();
+            long until = System.currentTimeMillis() + 5000;
+            while (!table.isPrimaryOpen() && System.currentTimeMillis() < until) {
+                Thread.sleep(10);
+            }
+            assertTrue(table.isPrimaryOpen());
+            table.close();
+        } finally {
+            hung.countDown();
+            connection.close();
+        }
+    }
+
+    @Test
+    public void testNoTableOpensInTime() {
+        hanging.add("/a");
+        hanging.add("/b");
+        EnhancedConnection connection = connection();
+        connection.setOpenTimeOut(100);
+        try {
+            connection.getTable("/a", "/b", 100);
+            fail("Neither table opens");
+        } catch (EnhancedJSONTable.FailoverException e) {
+            assertEquals(0, connection.getOpenTables());
+        } finally {
+            hung.countDown();
+            connection.close();
+        }
+    }
+
+    @Test
+    public void testFailedOpenOfOneTableKeepsGroup() throws Exception {
+        failing.add("/c");
+        EnhancedConnection connection = connection();
+        connection.setOpenTimeOut(200);
+        try {
+            EnhancedJSONTable healthy = connection.getTable("/a", "/b", 100);
+            EnhancedJSONTable broken = connection.getTable("/c", "/d", 100);
+            broken.findById("k");
+            assertEquals(1, requests("/d").get());
+
+            // the other table of the group reaches the primary cluster, so it is up
+            Thread.sleep(300);
+            assertFalse(broken.isTableSwitched());
+            healthy.findById("k");
+            assertEquals(1, requests("/a").get());
+            assertEquals(0, requests("/b").get());
+            broken.close();
+            healthy.close();
+        } finally {
+            connection.close();
+        }
+    }
+
+    private static void awaitSwitched(EnhancedJSONTable table, boolean switched) throws InterruptedException {
+        long until = System.currentTimeMillis() + 5000;
+        while (table.isTableSwitched() != switched && System.currentTimeMillis() < until) {
+            Thread.sleep(10);
+        }
+        assertEquals(switched, table.isTableSwitched());
+    }
+
+    private AtomicInteger requests(String table) {
+        return requests.computeIfAbsent(table, name -> new AtomicInteger());
+    }
+
+    /**
+     * @return connection to tables that hang or fail to open as the test has set up
+     */
+    private EnhancedConnection connection() {
+        return new EnhancedConnection(new WorkerPoolConfig(4, 100, WorkerPoolConfig.RejectionPolicy.ABORT),
+                () -> (Connection) Proxy.newProxyInstance(getClass().getClassLoader(),
+                        new Class[]{Connection.class}, (proxy, method, args) -> {
+                            switch (method.getName()) {
+                                case "getStore":
+                                    return store((String) args[0]);
+                                case "hashCode":
+                                    return System.identityHashCode(proxy);
+                                case "equals":
+                                    return proxy == args[0];
+                                default:
+                                    return null;
+                            }
+                        }));
+    }
+
+    private DocumentStore store(String name) throws InterruptedException {
+        if (failing.contains(name)) {
+            throw new StoreException("Cannot open " + name);
+        }
+        if (hanging.contains(name)) {
+            hung.await();
+        }
+        return (DocumentStore) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class[]{DocumentStore.class}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "findById":
+                            requests(name).incrementAndGet();
+                            return null;
+                        case "hashCode":
+                            return System.identityHashCode(proxy);
+                        case "equals":
+                            return proxy == args[0];
+                        default:
+                            return null;
+                    }
+                });
+    }
+}
@@ -0,0 +1,288 @@
+package com.mapr.db;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.ojai.Document;
+import org.ojai.DocumentStream;
+import org.ojai.Value;
+import org.ojai.exceptions.DecodingException;
+import org.ojai.store.Connection;
+import org.ojai.store.DocumentStore;
+import org.ojai.store.exceptions.DocumentExistsException;
+import org.ojai.store.exceptions.MultiOpException;
+import org.ojai.store.exceptions.StoreException;
+
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class OutboxTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Documents written to the tables by id, both tables write to the same map
+     */
+    private final Map<String, Document> written = new ConcurrentHashMap<>();
+    private volatile boolean down;
+    private final AtomicInteger flakyFailures = new AtomicInteger();
+
+    @Test
+    public void testWritesAreKeptUntilApplied() throws IOException {
+        Path directory = folder.getRoot().toPath();
+        try (Outbox outbox = new Outbox(directory, 1 << 20, 1024, 10, 100)) {
+            assertFalse(outbox.isPending());
+            for (int i = 0; i < 100; i++) {
+                assertTrue(outbox.offer(Outbox.Kind.DELETE, "key" + i, null));
+            }
+            assertTrue(outbox.isPending());
+            assertEquals(100, outbox.getAcceptedCount());
+        }
+        // nothing applied them, the next run gets all of them
+        try (Outbox outbox = new Outbox(directory, 1 << 20, 1024, 10, 100)) {
+            assertEquals(100, outbox.getPendingCount());
+            assertTrue(outbox.offer(Outbox.Kind.DELETE, "later", null));
+            assertEquals(101, outbox.getPendingCount());
+        }
+    }
+
+    @Test
+    public void testFullOutboxRejectsWrites() throws IOException {
+        try (Outbox outbox = new Outbox(folder.getRoot().toPath(), 1024, 1024, 10, 100)) {
+            int accepted = 0;
+            while (outbox.offer(Outbox.Kind.DELETE, "key" + accepted, null)) {
+                accepted++;
+            }
+            assertTrue(accepted > 10);
+            assertEquals(accepted, outbox.getPendingCount());
+            assertEquals(1, outbox.getRejectedCount());
+        }
+    }
+
+    @Test
+    public void testDrainAppliesWritesInOrder() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        down = true;
+        EnhancedConnection connection = connection();
+        try (Outbox outbox = new Outbox(directory, 1 << 20, 1024, 4, 20)) {
+            EnhancedJSONTable table = connection.getTable("/a", "/b", 100);
+            table.setOutbox(outbox);
+
+            // the tables are down, the writes go to the outbox, a few of them fill a segment
+            String padding = String.join("", Collections.nCopies(300, "x"));
+            for (int i = 0; i < 8; i++) {
+                table.insertOrReplace("k" + i, document(null, padding));
+            }
+            table.insertOrReplace("rejected", document(null, padding));
+            table.insertOrReplace("flaky", document(null, "retried"));
+            table.deleteAsync("k3").get(1, TimeUnit.SECONDS);
+            assertEquals(11, outbox.getAcceptedCount());
+            assertTrue(segments(directory) > 1);
+
+            // a write of another kind would overtake the ones in the outbox
+            try {
+                table.insert(document("k0", "first"));
+                fail("The write must not overtake the outbox");
+            } catch (StoreException e) {
+                assertTrue(e.getMessage(), e.getMessage().startsWith("Outbox holds earlier writes"));
+            }
+
+            down = false;
+            long until = System.currentTimeMillis() + 5000;
+            while (outbox.isPending() && System.currentTimeMillis() < until) {
+                Thread.sleep(10);
+            }
+            assertFalse(outbox.isPending());
+            assertEquals(11, outbox.getAppliedCount());
+            assertEquals(1, outbox.getDroppedCount());
+            // failures that are not application errors are retried with the whole batch
+            assertEquals(2, flakyFailures.get());
+            assertEquals("retried", written.get("flaky").getString("v"));
+            assertEquals(8, written.size());
+            assertFalse(written.containsKey("k3"));
+            assertFalse(written.containsKey("rejected"));
+            assertEquals(padding, written.get("k7").getString("v"));
+            // the segments that were applied are removed, the one still written to is kept
+            assertEquals(1, segments(directory));
+
+            table.setOutbox(null);
+            table.insert(document("k8", "direct"));
+            assertEquals("direct", written.get("k8").getString("v"));
+            table.insertOrReplace("k8", document(null, "replaced"));
+            assertEquals("replaced", written.get("k8").getString("v"));
+            table.close();
+        } finally {
+            connection.close();
+        }
+    }
+
+    @Test
+    public void testWriteStoppedByBreakersIsNotSpilled() throws Exception {
+        down = true;
+        EnhancedConnection connection = connection();
+        try (Outbox outbox = new Outbox(folder.getRoot().toPath(), 1 << 20, 1024, 4, 20)) {
+            EnhancedJSONTable table = connection.getTable("/a", "/b", 100);
+            table.setOutbox(outbox);
+            CircuitBreaker breaker = new CircuitBreaker(10, 1, 0.5, 1, 100, 60_000, 1);
+            breaker.onFailure(0, true);
+            breaker.onFailure(1, true);
+            table.setCircuitBreaker(breaker);
+            try {
+                table.insertOrReplace("k0", document(null, "v"));
+                fail("The write was sent to no table");
+            } catch (StoreException e) {
+                assertTrue(e.getMessage(), e.getMessage().startsWith("Circuit breakers"));
+            }
+            try {
+                table.deleteAsync("k0").get(1, TimeUnit.SECONDS);
+                fail("The write was sent to no table");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause().getMessage().startsWith("Circuit breakers"));
+            }
+            assertEquals(0, outbox.getAcceptedCount());
+            table.close();
+        } finally {
+            connection.close();
+        }
+    }
+
+    @Test
+    public void testWriteIsAppendedAfterDirectWritesFinish() throws Exception {
+        try (Outbox outbox = new Outbox(folder.getRoot().toPath(), 1 << 20, 1024, 10, 100)) {
+            assertTrue(outbox.startDirect());
+            CompletableFuture<Boolean> offered = CompletableFuture.supplyAsync(
+                    () -> outbox.offer(Outbox.Kind.DELETE, "k0", null));
+            Thread.sleep(50);
+            assertFalse(offered.isDone());
+            // no write may go to the tables while one waits to be appended
+            assertFalse(outbox.startDirect());
+            outbox.finishDirect();
+            assertTrue(offered.get(1, TimeUnit.SECONDS));
+            assertFalse(outbox.startDirect());
+            assertEquals(1, outbox.getPendingCount());
+        }
+    }
+
+    private static long segments(Path directory) throws IOException {
+        return Files.list(directory).filter(path -> path.toString().endsWith(".outbox")).count();
+    }
+
+    private EnhancedConnection connection() {
+        return new EnhancedConnection(new WorkerPoolConfig(4, 100, WorkerPoolConfig.RejectionPolicy.ABORT),
+                () -> (Connection) Proxy.newProxyInstance(getClass().getClassLoader(),
+                        new Class[]{Connection.class}, (proxy, method, args) -> {
+                            switch (method.getName()) {
+                                case "getStore":
+                                    return store();
+                                case "newDocument":
+                                    return document(null, args == null ? null : (String) args[0]);
+                                case "hashCode":
+                                    return System.identityHashCode(proxy);
+                                case "equals":
+                                    return proxy == args[0];
+                                default:
+                                    return null;
+                            }
+                        }));
+    }
+
+    private DocumentStore store() {
+        return (DocumentStore) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class[]{DocumentStore.class}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "hashCode":
+                            return System.identityHashCode(proxy);
+                        case "equals":
+                            return proxy == args[0];
+                        case "close":
+                            return null;
+                    }
+                    if (down) {
+                        throw new StoreException("down");
+                    }
+                    boolean delete = method.getName().equals("delete");
+                    if (args[0] instanceof DocumentStream) {
+                        List<MultiOpException.Failure> failures = new ArrayList<>();
+                        int index = 0;
+                        for (Document doc : (DocumentStream) args[0]) {
+                            String id = doc.getId().getString();
+                            if (id.equals("rejected")) {
+                                failures.add(new MultiOpException.Failure(doc, index, new DecodingException("invalid")));
+                            } else if (id.equals("flaky") && flakyFailures.get() < 2) {
+                                flakyFailures.incrementAndGet();
+                                failures.add(new MultiOpException.Failure(doc, index, new StoreException("timeout")));
+                            } else if (delete) {
+                                written.remove(id);
+                            } else {
+                                written.put(id, doc);
+                            }
+                            index++;
+                        }
+                        if (!failures.isEmpty()) {
+                            throw new MultiOpException(failures);
+                        }
+                    } else if (delete) {
+                        written.remove((String) args[0]);
+                    } else {
+                        String id = args.length == 2 ? (String) args[0] : ((Document) args[0]).getId().getString();
+                        Document doc = (Document) args[args.length - 1];
+                        if (method.getName().equals("insert") && written.putIfAbsent(id, doc) != null) {
+                            throw new DocumentExistsException(id);
+                        }
+                        written.put(id, doc);
+                    }
+                    return null;
+                });
+    }
+
+    /**
+     * @return document that keeps an id and its content as the field v, which is also its JSON
+     */
+    private static Document document(String id, String v) {
+        String[] documentId = {id};
+        Value idValue = (Value) Proxy.newProxyInstance(OutboxTest.class.getClassLoader(),
+                new Class[]{Value.class}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getType":
+                            return Value.Type.STRING;
+                        case "getString":
+                            return documentId[0];
+                        default:
+                            return null;
+                    }
+                });
+        return (Document) Proxy.newProxyInstance(OutboxTest.class.getClassLoader(),
+                new Class[]{Document.class}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getId":
+                            return documentId[0] == null ? null : idValue;
+                        case "setId":
+                            documentId[0] = (String) args[0];
+                            return proxy;
+                        case "getString":
+                        case "asJsonString":
+                            return v;
+                        case "hashCode":
+                            return System.identityHashCode(proxy);
+                        case "equals":
+                            return proxy == args[0];
+                        default:
+                            return null;
+                    }
+                });
+    }
+}
@@ -0,0 +1,91 @@
+package com.mapr.db;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class ReadBalancerTest {
+
+    private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    @Test
+    public void testLeastOutstanding() {
+        ReadBalancer balancer = new ReadBalancer(ReadBalancer.Strategy.LEAST_OUTSTANDING, 1000);
+        int[] chain = {1, 0, 2};
+        // ties go to the active table
+        assertEquals(0, balancer.choose(chain, 3));
+
+        balancer.onStart(1);
+        balancer.onStart(1);
+        balancer.onStart(0);
+        assertEquals(2, balancer.choose(chain, 3));
+        assertEquals(1, balancer.choose(chain, 2));
+
+        balancer.onSuccess(1, 5 * MS);
+        balancer.onFailure(1, true);
+        assertEquals(0, balancer.getOutstanding(1));
+        assertEquals(0, balancer.choose(chain, 2));
+    }
+
+    @Test
+    public void testPeakEwma() {
+        ReadBalancer balancer = new ReadBalancer(ReadBalancer.Strategy.PEAK_EWMA, 1000);
+        int[] chain = {0, 1};
+        balancer.update(0, 10 * MS, 0);
+        balancer.update(1, 4 * MS, 0);
+        assertEquals(1, balancer.choose(chain, 2, 0));
+
+        // a peak is taken at once
+        balancer.update(1, 50 * MS, 10 * MS);
+        assertEquals(50, balancer.getLatencyMs(1), 1e-9);
+        assertEquals(0, balancer.choose(chain, 2, 10 * MS));
+
+        // and forgotten gradually
+        balancer.update(1, 4 * MS, 1010 * MS);
+        double latency = balancer.getLatencyMs(1);
+        assertTrue("Decayed too little or too much: " + latency, latency > 4 && latency < 50);
+
+        // outstanding requests make a fast replica expensive
+        balancer.update(0, 10 * MS, 100_000 * MS);
+        balancer.update(1, 4 * MS, 100_000 * MS);
+        assertEquals(1, balancer.choose(chain, 2, 100_000 * MS));
+        for (int i = 0; i < 3; i++) {
+            balancer.onStart(1);
+        }
+        assertEquals(0, balancer.choose(chain, 2, 100_000 * MS));
+
+        // a slow replica without reads for long is tried again
+        for (int i = 0; i < 3; i++) {
+            balancer.onSuccess(1, -1);
+        }
+        balancer.update(1, 50 * MS, 100_000 * MS);
+        assertEquals(0, balancer.choose(chain, 2, 100_000 * MS));
+        balancer.update(0, 10 * MS, 105_000 * MS);
+        assertEquals(1, balancer.choose(chain, 2, 105_000 * MS));
+    }
+
+    @Test
+    public void testUnknownReplicaIsTriedOnce() {
+        ReadBalancer balancer = new ReadBalancer(ReadBalancer.Strategy.PEAK_EWMA, 1000);
+        int[] chain = {0, 1};
+        balancer.update(0, 10 * MS, 0);
+        assertEquals(1, balancer.choose(chain, 2, 0));
+        balancer.onStart(1);
+        assertEquals(0, balancer.choose(chain, 2, 0));
+    }
+
+    @Test
+    public void testFailureDoublesLatency() {
+        ReadBalancer balancer = new ReadBalancer(ReadBalancer.Strategy.PEAK_EWMA, 1000);
+        balancer.update(0, 10 * MS, 0);
+        balancer.onStart(0);
+        balancer.onFailure(0, true);
+        assertEquals(20, balancer.getLatencyMs(0), 1e-9);
+
+        balancer.onStart(0);
+        balancer.onFailure(0, false);
+        assertEquals(20, balancer.getLatencyMs(0), 1e-9);
+    }
+}
@@ -0,0 +1,289 @@
+package com.mapr.db;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.ojai.Document;
+import org.ojai.DocumentStream;
+import org.ojai.Value;
+import org.ojai.store.Connection;
+import org.ojai.store.DocumentStore;
+import org.ojai.store.exceptions.StoreException;
+
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Predicate;
+
+import static org.junit.Assert.*;
+
+public class ReconcilerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Documents of the tables by name and string or binary id, the ids whose writes the tables reject, and what
+     * happens before a batch is written to the primary table
+     */
+    private final Map<String, Map<Object, Document>> tables = new ConcurrentHashMap<>();
+    private volatile Predicate<Object> rejected = id -> false;
+    private volatile Callable<?> beforeBatchWrite = () -> null;
+
+    @Test
+    public void testInterruptedReconciliationContinuesAfterCheckpoint() throws Exception {
+        EnhancedConnection connection = connection();
+        try (WriteJournal journal = new WriteJournal(folder.getRoot().toPath(), 1024, 100)) {
+            EnhancedJSONTable table = connection.getTable("/a", "/b", 500);
+            for (int i = 0; i < 10; i++) {
+                documents("/b").put("k" + i, document("k" + i, "new"));
+                journal.record(OperationType.INSERT_OR_REPLACE, 1, "k" + i);
+            }
+            awaitAppended(journal, 10);
+
+            // the batch of k4 and k5 fails, the checkpoint stays after k3 though the later batches are done
+            rejected = id -> id.equals("k5");
+            Reconciler reconciler = new Reconciler(table, 2, 1, 0);
+            assertFalse(reconciler.reconcile(journal));
+            assertEquals(10, reconciler.getPendingCount());
+            assertEquals(2, reconciler.getFailedCount());
+            assertNull(documents("/a").get("k5"));
+            assertNotNull(documents("/a").get("k9"));
+
+            rejected = id -> false;
+            assertTrue(reconciler.reconcile(journal));
+            assertEquals(6, reconciler.getPendingCount());
+            assertEquals(6, reconciler.getReconciledCount());
+            for (int i = 0; i < 10; i++) {
+                assertEquals("new", documents("/a").get("k" + i).getString("v"));
+            }
+            table.close();
+        } finally {
+            connection.close();
+        }
+    }
+
+    @Test
+    public void testKeyWrittenToPrimaryAfterFailbackIsLeftAlone() throws Exception {
+        EnhancedConnection connection = connection();
+        try (WriteJournal journal = new WriteJournal(folder.getRoot().toPath(), 1024, 100)) {
+            EnhancedJSONTable table = connection.getTable("/a", "/b", 500);
+            table.setFailoverPolicy(new FixedWindowFailoverPolicy(50));
+            table.setHealthProber(null);
+            table.setWriteJournal(journal);
+
+            // the primary table fails, both keys go to the secondary one
+            rejected = id -> true;
+            table.insertOrReplace(document("k0", "failover"));
+            table.insertOrReplace(document("k1", "failover"));
+            assertTrue(table.isTableSwitched());
+            rejected = id -> false;
+            long until = System.currentTimeMillis() + 5000;
+            while (table.isTableSwitched() && System.currentTimeMillis() < until) {
+                Thread.sleep(10);
+            }
+            assertFalse(table.isTableSwitched());
+
+            // after the failback the application writes k1 to the primary table again
+            Thread.sleep(5);
+            table.insertOrReplace(document("k1", "failback"));
+            awaitAppended(journal, 2);
+
+            Reconciler reconciler = new Reconciler(table, 10, 1, 0);
+            assertTrue(reconciler.reconcile(journal));
+            assertEquals(1, reconciler.getReconciledCount());
+            assertEquals(1, reconciler.getSupersededCount());
+            assertEquals("failover", documents("/a").get("k0").getString("v"));
+            assertEquals("failback", documents("/a").get("k1").getString("v"));
+            assertTrue(table.primaryWrites().isEmpty());
+            table.close();
+        } finally {
+            connection.close();
+        }
+    }
+
+    @Test
+    public void testBinaryIdsAreReconciled() throws Exception {
+        EnhancedConnection connection = connection();
+        try (WriteJournal journal = new WriteJournal(folder.getRoot().toPath(), 1024, 100)) {
+            EnhancedJSONTable table = connection.getTable("/a", "/b", 500);
+            ByteBuffer written = ByteBuffer.wrap(new byte[]{1, 2});
+            ByteBuffer deleted = ByteBuffer.wrap(new byte[]{3});
+            documents("/a").put(deleted, document(deleted, "old"));
+            documents("/b").put(written, document(written, "new"));
+            journal.record(OperationType.INSERT_OR_REPLACE, 1, written.duplicate());
+            journal.record(OperationType.DELETE, 1, deleted.duplicate());
+            awaitAppended(journal, 2);
+
+            Reconciler reconciler = new Reconciler(table, 10, 1, 0);
+            assertTrue(reconciler.reconcile(journal));
+            assertEquals(2, reconciler.getReconciledCount());
+            assertEquals(0, reconciler.getSkippedCount());
+            assertEquals("new", documents("/a").get(written).getString("v"));
+            assertFalse(documents("/a").containsKey(deleted));
+            table.close();
+        } finally {
+            connection.close();
+        }
+    }
+
+    @Test
+    public void testWriteRacingWithTheCopyIsKept() throws Exception {
+        EnhancedConnection connection = connection();
+        try (WriteJournal journal = new WriteJournal(folder.getRoot().toPath(), 1024, 100)) {
+            EnhancedJSONTable table = connection.getTable("/a", "/b", 500);
+            documents("/b").put("k0", document("k0", "failover"));
+            journal.record(OperationType.INSERT_OR_REPLACE, 1, "k0");
+            awaitAppended(journal, 1);
+
+            // the application writes the key after it was checked, while its copy is on the way
+            AtomicReference<CompletableFuture<Void>> racing = new AtomicReference<>();
+            beforeBatchWrite = () -> {
+                beforeBatchWrite = () -> null;
+                racing.set(CompletableFuture.runAsync(() -> table.insertOrReplace(document("k0", "application"))));
+                try {
+                    racing.get().get(200, TimeUnit.MILLISECONDS);
+                } catch (TimeoutException e) {
+                    // the write waits for the copy
+                }
+                return null;
+            };
+            Reconciler reconciler = new Reconciler(table, 10, 1, 0);
+            assertTrue(reconciler.reconcile(journal));
+            racing.get().get(1, TimeUnit.SECONDS);
+            assertEquals("application", documents("/a").get("k0").getString("v"));
+            table.close();
+        } finally {
+            connection.close();
+        }
+    }
+
+    private static void awaitAppended(WriteJournal journal, long records) throws InterruptedException {
+        long until = System.currentTimeMillis() + 5000;
+        while (journal.getRecordCount() < records && System.currentTimeMillis() < until) {
+            Thread.sleep(10);
+        }
+        assertEquals(records, journal.getRecordCount());
+    }
+
+    private Map<Object, Document> documents(String table) {
+        return tables.computeIfAbsent(table, name -> new ConcurrentHashMap<>());
+    }
+
+    /**
+     * @return connection to tables that keep their documents in {@link #tables}
+     */
+    private EnhancedConnection connection() {
+        return new EnhancedConnection(new WorkerPoolConfig(4, 100, WorkerPoolConfig.RejectionPolicy.ABORT),
+                () -> (Connection) Proxy.newProxyInstance(getClass().getClassLoader(),
+                        new Class[]{Connection.class}, (proxy, method, args) -> {
+                            switch (method.getName()) {
+                                case "getStore":
+                                    return store((String) args[0]);
+                                case "newDocument":
+                                    return document(null, null);
+                                case "hashCode":
+                                    return System.identityHashCode(proxy);
+                                case "equals":
+                                    return proxy == args[0];
+                                default:
+                                    return null;
+                            }
+                        }));
+    }
+
+    private DocumentStore store(String name) {
+        Map<Object, Document> documents = documents(name);
+        return (DocumentStore) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class[]{DocumentStore.class}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "findById":
+                            return documents.get(key(args[0]));
+                        case "delete":
+                            documents.remove(key(args[0]));
+                            return null;
+                        case "insertOrReplace":
+                            if (args[0] instanceof DocumentStream) {
+                                if (name.equals("/a")) {
+                                    beforeBatchWrite.call();
+                                }
+                                for (Document doc : (DocumentStream) args[0]) {
+                                    write(name, documents, doc);
+                                }
+                            } else {
+                                write(name, documents, (Document) args[0]);
+                            }
+                            return null;
+                        case "hashCode":
+                            return System.identityHashCode(proxy);
+                        case "equals":
+                            return proxy == args[0];
+                        default:
+                            return null;
+                    }
+                });
+    }
+
+    private void write(String name, Map<Object, Document> documents, Document doc) {
+        Object id = key(doc.getId());
+        if (name.equals("/a") && rejected.test(id)) {
+            throw new StoreException("Rejected " + id);
+        }
+        documents.put(id, doc);
+    }
+
+    /**
+     * @return the string or binary id
+     */
+    private static Object key(Object id) {
+        if (!(id instanceof Value)) {
+            return id;
+        }
+        Value value = (Value) id;
+        return value.getType() == Value.Type.BINARY ? value.getBinary() : value.getString();
+    }
+
+    /**
+     * @param id string or binary id, or null to set it later
+     */
+    private static Document document(Object id, String v) {
+        Object[] documentId = {id};
+        Value value = (Value) Proxy.newProxyInstance(ReconcilerTest.class.getClassLoader(),
+                new Class[]{Value.class}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getType":
+                            return documentId[0] instanceof ByteBuffer ? Value.Type.BINARY : Value.Type.STRING;
+                        case "getString":
+                            return documentId[0];
+                        case "getBinary":
+                            return ((ByteBuffer) documentId[0]).duplicate();
+                        default:
+                            return null;
+                    }
+                });
+        return (Document) Proxy.newProxyInstance(ReconcilerTest.class.getClassLoader(),
+                new Class[]{Document.class}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getId":
+                            return value;
+                        case "setId":
+                            documentId[0] = args[0];
+                            return proxy;
+                        case "getString":
+                            return v;
+                        case "hashCode":
+                            return System.identityHashCode(proxy);
+                        case "equals":
+                            return proxy == args[0];
+                        default:
+                            return null;
+                    }
+                });
+    }
+}
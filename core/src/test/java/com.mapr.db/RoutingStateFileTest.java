@@ -0,0 +1,53 @@
+package com.mapr.db;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Path;
+
+import static org.junit.Assert.*;
+
+public class RoutingStateFileTest {
+
+    private static final long NOW = 1_000_000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testStateIsSharedBetweenInstances() throws IOException {
+        Path path = folder.getRoot().toPath().resolve("group.routing");
+        try (RoutingStateFile writer = new RoutingStateFile(path, 60_000)) {
+            assertNull(writer.load(NOW));
+            writer.store(new RoutingState(1, 3, 2, NOW - 1000));
+        }
+        // another process opens the same file later
+        try (RoutingStateFile reader = new RoutingStateFile(path, 60_000)) {
+            RoutingState saved = reader.load(NOW);
+            assertNotNull(saved);
+            assertEquals(1, saved.getActive());
+            assertEquals(3, saved.getEpoch());
+            assertEquals(2, saved.getSwitchCount());
+            assertEquals(NOW - 1000, saved.getChangedAt());
+
+            // too old to be trusted
+            assertNull(reader.load(NOW + 60_000));
+        }
+    }
+
+    @Test
+    public void testDamagedStateIsIgnored() throws IOException {
+        Path path = folder.getRoot().toPath().resolve("group.routing");
+        try (RoutingStateFile file = new RoutingStateFile(path, 60_000)) {
+            file.store(new RoutingState(1, 1, 1, NOW));
+            try (RandomAccessFile raw = new RandomAccessFile(path.toFile(), "rw")) {
+                raw.seek(8);
+                raw.writeInt(0);
+            }
+            assertNull(file.load(NOW));
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package com.mapr.db;
+
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class StandbyKeepAliveTest {
+
+    @Test
+    public void testReadsTheStandbyTablePeriodically() throws InterruptedException {
+        ScheduledExecutorService scheduler = EnhancedJSONTable.createScheduler();
+        try {
+            StandbyKeepAlive keepAlive = new StandbyKeepAlive("key", 10, 0);
+            AtomicInteger reads = new AtomicInteger();
+            keepAlive.start(key -> {
+                assertEquals("key", key);
+                reads.incrementAndGet();
+                return CompletableFuture.completedFuture(null);
+            }, scheduler);
+            Thread.sleep(200);
+            keepAlive.stop();
+            int sent = reads.get();
+            assertTrue("Too few keep-alive reads: " + sent, sent >= 3);
+            assertEquals(sent, keepAlive.getKeepAliveCount());
+            assertEquals(0, keepAlive.getFailedKeepAliveCount());
+
+            Thread.sleep(50);
+            assertEquals(sent, reads.get());
+        } finally {
+            scheduler.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testSlowReadIsCancelled() throws InterruptedException {
+        ScheduledExecutorService scheduler = EnhancedJSONTable.createScheduler();
+        try {
+            StandbyKeepAlive keepAlive = new StandbyKeepAlive("key", 100, 0);
+            AtomicInteger reads = new AtomicInteger();
+            keepAlive.start(key -> {
+                reads.incrementAndGet();
+                return new CompletableFuture<>();
+            }, scheduler);
+            Thread.sleep(150);
+            assertEquals(1, reads.get());
+            assertEquals(0, keepAlive.getKeepAliveCount());
+
+            // the read that hangs is given up after the interval
+            Thread.sleep(100);
+            keepAlive.stop();
+            assertTrue(keepAlive.getFailedKeepAliveCount() >= 1);
+            assertEquals(-1, keepAlive.getLastLatencyMs(), 0);
+        } finally {
+            scheduler.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testShadowSampleRate() {
+        StandbyKeepAlive none = new StandbyKeepAlive("key", 1000, 0);
+        StandbyKeepAlive all = new StandbyKeepAlive("key", 1000, 1);
+        for (int i = 0; i < 100; i++) {
+            assertFalse(none.shouldShadow());
+            assertTrue(all.shouldShadow());
+        }
+        try {
+            new StandbyKeepAlive("key", 1000, 1.5);
+            fail("Sample rate above 1 must be rejected");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+}
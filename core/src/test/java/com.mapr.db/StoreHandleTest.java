@@ -0,0 +1,179 @@
+package com.mapr.db;
+
+import org.junit.Test;
+import org.ojai.store.Connection;
+import org.ojai.store.DocumentStore;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class StoreHandleTest {
+
+    @Test
+    public void testOpensOnceSaturatedExecutorHasRoom() throws Exception {
+        // one thread and no queue, so the open is rejected while the thread is busy
+        ExecutorService executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new SynchronousQueue<>(),
+                new ThreadPoolExecutor.AbortPolicy());
+        ScheduledExecutorService scheduler = EnhancedJSONTable.createScheduler();
+        CountDownLatch busy = new CountDownLatch(1);
+        executor.execute(() -> {
+            try {
+                busy.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        StoreHandle handle = new StoreHandle("/t", new TestConnector(), executor, scheduler, 0, () -> {
+        });
+        try {
+            handle.open();
+            assertFalse(handle.isOpen());
+            busy.countDown();
+            assertNotNull(handle.opened().get(5, TimeUnit.SECONDS));
+            assertTrue(handle.isOpen());
+        } finally {
+            handle.close();
+            executor.shutdownNow();
+            scheduler.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testReopenReplacesStoreAndConnection() throws Exception {
+        ExecutorService executor = EnhancedJSONTable.createMaintenanceExecutor();
+        ScheduledExecutorService scheduler = EnhancedJSONTable.createScheduler();
+        TestConnector connector = new TestConnector();
+        StoreHandle handle = new StoreHandle("/t", connector, executor, scheduler, 2, () -> {
+        });
+        handle.setRetireGraceMs(300);
+        try {
+            handle.open();
+            DocumentStore first = handle.opened().get(5, TimeUnit.SECONDS);
+            handle.onFailure();
+            handle.onFailure();
+            long until = System.currentTimeMillis() + 5000;
+            while (handle.getReopenCount() == 0 && System.currentTimeMillis() < until) {
+                Thread.sleep(10);
+            }
+            assertEquals(1, handle.getReopenCount());
+            assertNotSame(first, handle.get());
+            // requests that took the old store before the swap may still run on it
+            assertFalse(connector.closedStores.contains(first));
+            assertTrue(connector.released.isEmpty());
+
+            while (connector.released.isEmpty() && System.currentTimeMillis() < until) {
+                Thread.sleep(10);
+            }
+            assertTrue(connector.closedStores.contains(first));
+
+            // the reopen asked for a connection other than the one of the failed store
+            assertEquals(2, connector.acquired.size());
+            assertNull(connector.poisoned.get(0));
+            assertSame(connector.acquired.get(0), connector.poisoned.get(1));
+            assertEquals(connector.acquired.subList(0, 1), connector.released);
+        } finally {
+            handle.close();
+            executor.shutdownNow();
+            scheduler.shutdownNow();
+        }
+        assertEquals(connector.acquired, connector.released);
+    }
+
+    @Test
+    public void testCloseClosesReplacedStore() throws Exception {
+        ExecutorService executor = EnhancedJSONTable.createMaintenanceExecutor();
+        ScheduledExecutorService scheduler = EnhancedJSONTable.createScheduler();
+        TestConnector connector = new TestConnector();
+        StoreHandle handle = new StoreHandle("/t", connector, executor, scheduler, 1, () -> {
+        });
+        try {
+            handle.open();
+            DocumentStore first = handle.opened().get(5, TimeUnit.SECONDS);
+            handle.onFailure();
+            long until = System.currentTimeMillis() + 5000;
+            while (handle.getReopenCount() == 0 && System.currentTimeMillis() < until) {
+                Thread.sleep(10);
+            }
+            DocumentStore second = handle.get();
+            assertNotSame(first, second);
+            assertTrue(connector.closedStores.isEmpty());
+
+            // the grace delay is far away, the handle does not wait for it
+            handle.close();
+            assertTrue(connector.closedStores.contains(first));
+            assertTrue(connector.closedStores.contains(second));
+            assertEquals(connector.acquired, connector.released);
+        } finally {
+            executor.shutdownNow();
+            scheduler.shutdownNow();
+        }
+    }
+
+    /**
+     * Gives a new connection every time and records what the handle does with them
+     */
+    static class TestConnector implements StoreHandle.Connector {
+        final List<Connection> acquired = new CopyOnWriteArrayList<>();
+        final List<Connection> poisoned = new ArrayList<>();
+        final List<Connection> released = new CopyOnWriteArrayList<>();
+        final Set<DocumentStore> closedStores = ConcurrentHashMap.newKeySet();
+
+        @Override
+        public synchronized Connection acquire(Connection poisoned) {
+            Connection connection = connection(this);
+            this.poisoned.add(poisoned);
+            acquired.add(connection);
+            return connection;
+        }
+
+        @Override
+        public void release(Connection connection) {
+            released.add(connection);
+        }
+    }
+
+    static Connection connection(TestConnector connector) {
+        return (Connection) Proxy.newProxyInstance(StoreHandleTest.class.getClassLoader(),
+                new Class[]{Connection.class}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getStore":
+                            return store(connector);
+                        case "hashCode":
+                            return System.identityHashCode(proxy);
+                        case "equals":
+                            return proxy == args[0];
+                        default:
+                            return null;
+                    }
+                });
+    }
+
+    static DocumentStore store(TestConnector connector) {
+        return (DocumentStore) Proxy.newProxyInstance(StoreHandleTest.class.getClassLoader(),
+                new Class[]{DocumentStore.class}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "close":
+                            connector.closedStores.add((DocumentStore) proxy);
+                            return null;
+                        case "hashCode":
+                            return System.identityHashCode(proxy);
+                        case "equals":
+                            return proxy == args[0];
+                        default:
+                            return null;
+                    }
+                });
+    }
+}
@@ -0,0 +1,54 @@
+package com.mapr.db;
+
+import org.junit.Test;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class WorkerPoolConfigTest {
+
+    @Test
+    public void testVirtualThreadsFallBackToPlatformPool() throws Exception {
+        ExecutorService executor = WorkerPoolConfig.virtualThreads(2).createExecutor("test");
+        try {
+            assertEquals("done", executor.submit(() -> "done").get(1, TimeUnit.SECONDS));
+            assertEquals(VirtualThreadExecutor.isSupported(), executor instanceof VirtualThreadExecutor);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testQueuedAttemptFailsOnShutdown() throws Exception {
+        ExecutorService executor = new WorkerPoolConfig(1, 10, WorkerPoolConfig.RejectionPolicy.ABORT)
+                .createExecutor("test");
+        CountDownLatch busy = new CountDownLatch(1);
+        CompletableFuture<String> running = FallbackRequest.supply(executor, t -> {
+            busy.countDown();
+            Thread.sleep(10_000);
+            return "slow";
+        }, null);
+        busy.await();
+        CompletableFuture<String> queued = FallbackRequest.supply(executor, t -> "never", null);
+
+        WorkerPoolConfig.shutdownNow(executor);
+        try {
+            queued.get(1, TimeUnit.SECONDS);
+            fail("The queued attempt must not run");
+        } catch (CancellationException e) {
+            // expected, the attempt says nothing about the table
+        }
+        try {
+            running.get(1, TimeUnit.SECONDS);
+            fail("The running attempt must be interrupted");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof EnhancedJSONTable.FailoverException);
+        }
+    }
+}
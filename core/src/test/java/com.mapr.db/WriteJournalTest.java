@@ -0,0 +1,106 @@
+package com.mapr.db;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class WriteJournalTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testRecordsAreReplayedAfterReopen() throws IOException {
+        Path directory = folder.getRoot().toPath();
+        try (WriteJournal journal = new WriteJournal(directory, 1024, 100)) {
+            journal.record(OperationType.INSERT_OR_REPLACE, 1, "a");
+            journal.record(OperationType.DELETE, 2, ByteBuffer.wrap(new byte[]{1, 2, 3}));
+        }
+        List<WriteJournal.Entry> entries = new ArrayList<>();
+        try (WriteJournal journal = new WriteJournal(directory, 1024, 100)) {
+            assertEquals(2, journal.replay(entries::add));
+
+            // the replayed segment is complete, the one opened now is kept
+            journal.discard();
+            assertEquals(1, Files.list(directory).count());
+        }
+        assertEquals(OperationType.INSERT_OR_REPLACE, entries.get(0).getType());
+        assertEquals(1, entries.get(0).getTable());
+        assertEquals("a", entries.get(0).getId());
+        assertEquals(OperationType.DELETE, entries.get(1).getType());
+        assertEquals(2, entries.get(1).getTable());
+        assertNull(entries.get(1).getId());
+        assertEquals(ByteBuffer.wrap(new byte[]{1, 2, 3}), entries.get(1).getBinaryId());
+    }
+
+    @Test
+    public void testReplayStopsAtDamagedRecord() throws IOException {
+        Path directory = folder.getRoot().toPath();
+        try (WriteJournal journal = new WriteJournal(directory, 1024, 100)) {
+            journal.record(OperationType.INSERT, 1, "first");
+            journal.record(OperationType.INSERT, 1, "second");
+        }
+        // flip a byte of the id of the second record
+        Path segment = Files.list(directory).findFirst().get();
+        try (RandomAccessFile raw = new RandomAccessFile(segment.toFile(), "rw")) {
+            long position = 8 + 8 + 15 + "first".length() + 8 + 15;
+            raw.seek(position);
+            raw.write(raw.read() ^ 0xff);
+        }
+        List<WriteJournal.Entry> entries = new ArrayList<>();
+        try (WriteJournal journal = new WriteJournal(directory, 1024, 100)) {
+            assertEquals(1, journal.replay(entries::add));
+        }
+        assertEquals("first", entries.get(0).getId());
+    }
+
+    @Test
+    public void testFailedRotationIsRetried() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        List<WriteJournal.Entry> entries = new ArrayList<>();
+        try (WriteJournal journal = new WriteJournal(directory, 1024, 100)) {
+            // records of 26 bytes, 39 of them fill the first segment
+            for (int i = 0; i < 39; i++) {
+                journal.record(OperationType.INSERT, 1, String.format("k%02d", i));
+            }
+            awaitAppended(journal, 39);
+
+            // the next segment cannot be created, the record that needs it is lost
+            Path blocked = Files.createDirectory(directory.resolve(String.format("%020d.journal", 2)));
+            journal.record(OperationType.INSERT, 1, "lost");
+            long until = System.currentTimeMillis() + 5000;
+            while (journal.getDroppedCount() == 0 && System.currentTimeMillis() < until) {
+                Thread.sleep(10);
+            }
+            assertEquals(1, journal.getDroppedCount());
+
+            Files.delete(blocked);
+            journal.record(OperationType.INSERT, 1, "k39");
+            awaitAppended(journal, 40);
+            // closed again by the try, which does nothing
+            journal.close();
+            journal.replay(entries::add);
+        }
+        assertEquals(40, entries.size());
+        assertEquals("k39", entries.get(39).getId());
+        assertTrue(Files.exists(directory.resolve(String.format("%020d.journal", 2))));
+    }
+
+    private static void awaitAppended(WriteJournal journal, long records) throws InterruptedException {
+        long until = System.currentTimeMillis() + 5000;
+        while (journal.getRecordCount() < records && System.currentTimeMillis() < until) {
+            Thread.sleep(10);
+        }
+        assertEquals(records, journal.getRecordCount());
+    }
+}